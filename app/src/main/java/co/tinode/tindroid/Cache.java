@@ -53,7 +53,7 @@ public class Cache {
     public static synchronized Tinode getTinode() {
         if (sInstance.mTinode == null) {
             sInstance.mTinode = new Tinode("Tindroid/" + TindroidApp.getAppVersion(), API_KEY,
-                    BaseDb.getInstance().getStore(), null);
+                    BaseDb.getInstance().getTinodeStore(), null);
             sInstance.mTinode.setOsString(Build.VERSION.RELEASE);
 
             // Default types for parsing Public, Private fields of messages
@@ -1,11 +1,11 @@
 package co.tinode.tindroid.db;
 
 import android.annotation.SuppressLint;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
 import android.util.SparseArray;
@@ -14,7 +14,9 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 
 import androidx.annotation.NonNull;
 import co.tinode.tindroid.TindroidApp;
+import co.tinode.tinodesdk.Storage;
 import co.tinode.tinodesdk.Tinode;
+import co.tinode.tinodesdk.WriteBehindStore;
 import co.tinode.tinodesdk.model.Acs;
 import co.tinode.tinodesdk.model.Defacs;
 
@@ -27,15 +29,17 @@ public class BaseDb extends SQLiteOpenHelper {
     /**
      * Schema version. Increment on schema changes.
      */
-    private static final int DATABASE_VERSION = 21;
+    private static final int DATABASE_VERSION = 22;
 
     /**
      * Filename for SQLite file.
      */
     private static final String DATABASE_NAME = "base.db";
+
     private static BaseDb sInstance = null;
     private StoredAccount mAcc = null;
     private SqlStore mStore = null;
+    private WriteBehindStore mTinodeStore = null;
 
     static final int UNSENT_ID_START = 2_000_000_000;
 
@@ -58,6 +62,8 @@ public class BaseDb extends SQLiteOpenHelper {
             sInstance = new BaseDb(TindroidApp.getAppContext());
             sInstance.mAcc = AccountDb.getActiveAccount(sInstance.getReadableDatabase());
             sInstance.mStore = new SqlStore(sInstance);
+            // Messages and updates from the server are written to the database by a single background thread.
+            sInstance.mTinodeStore = new WriteBehindStore(sInstance.mStore);
         }
         return sInstance;
     }
@@ -76,6 +82,8 @@ public class BaseDb extends SQLiteOpenHelper {
         db.execSQL(MessageDb.CREATE_TABLE);
         db.execSQL(MessageDb.CREATE_INDEX);
         db.execSQL(MessageDb.CREATE_INDEX_2);
+        db.execSQL(MessageDb.CREATE_INDEX_3);
+        db.execSQL(MessageDb.CREATE_INDEX_4);
     }
 
     @Override
@@ -93,6 +101,8 @@ public class BaseDb extends SQLiteOpenHelper {
         // This is just a cache. Drop then re-fetch everything from the server.
         db.execSQL(MessageDb.DROP_INDEX);
         db.execSQL(MessageDb.DROP_INDEX_2);
+        db.execSQL(MessageDb.DROP_INDEX_3);
+        db.execSQL(MessageDb.DROP_INDEX_4);
         db.execSQL(MessageDb.DROP_TABLE);
         // Remove this on the next release.
         db.execSQL("DROP TABLE IF EXISTS edit_history");
@@ -123,6 +133,9 @@ public class BaseDb extends SQLiteOpenHelper {
     @Override
     public void onConfigure(SQLiteDatabase db) {
         db.setForeignKeyConstraintsEnabled(true);
+        // Queries use constant SQL with bound arguments: keep all of them prepared, so compiling
+        // a statement again reuses the prepared one.
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
     }
 
     public static boolean isUnsentSeq(int seq) {
@@ -249,9 +262,13 @@ public class BaseDb extends SQLiteOpenHelper {
     }
 
     static boolean updateCounter(SQLiteDatabase db, String table, String column, long id, int counter) {
-        ContentValues values = new ContentValues();
-        values.put(column, counter);
-        return db.update(table, values, BaseColumns._ID + "=" + id + " AND " + column + "<" + counter, null) > 0;
+        try (SQLiteStatement stmt = db.compileStatement("UPDATE " + table + " SET " + column + "=?" +
+                " WHERE " + BaseColumns._ID + "=? AND " + column + "<?")) {
+            stmt.bindLong(1, counter);
+            stmt.bindLong(2, id);
+            stmt.bindLong(3, counter);
+            return stmt.executeUpdateDelete() > 0;
+        }
     }
 
     static boolean isMe(String uid) {
@@ -325,7 +342,7 @@ public class BaseDb extends SQLiteOpenHelper {
     }
 
     /**
-     * Get an instance of {@link SqlStore} to use by Tinode core for persistence.
+     * Get an instance of {@link SqlStore} to use by the app for persistence.
      *
      * @return instance of {@link SqlStore}
      */
@@ -333,6 +350,16 @@ public class BaseDb extends SQLiteOpenHelper {
         return mStore;
     }
 
+    /**
+     * Get storage to use by Tinode core for persistence. It writes to {@link SqlStore} in the background:
+     * call {@link Storage#flush()} before querying the database directly.
+     *
+     * @return instance of {@link SqlStore} wrapped into {@link WriteBehindStore}.
+     */
+    @NonNull public Storage getTinodeStore() {
+        return mTinodeStore;
+    }
+
     long getAccountId() {
         return mAcc != null ? mAcc.id : -1;
     }
@@ -7,6 +7,7 @@ import android.database.SQLException;
 import android.database.StaleDataException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.Log;
@@ -146,13 +147,17 @@ public class MessageDb implements BaseColumns {
     /**
      * The name of index: messages by topic and sequence.
      */
-    private static final String INDEX_NAME = "message_topic_id_seq";
-    private static final String INDEX_NAME_2 = "message_topic_id_eff_seq";
+    static final String INDEX_NAME = "message_topic_id_seq";
+    static final String INDEX_NAME_2 = "message_topic_id_eff_seq";
+    static final String INDEX_NAME_3 = "message_topic_id_unsent";
+    static final String INDEX_NAME_4 = "message_topic_id_deleted";
     /**
      * Drop the indexes too
      */
     static final String DROP_INDEX = "DROP INDEX IF EXISTS " + INDEX_NAME;
     static final String DROP_INDEX_2 = "DROP INDEX IF EXISTS " + INDEX_NAME_2;
+    static final String DROP_INDEX_3 = "DROP INDEX IF EXISTS " + INDEX_NAME_3;
+    static final String DROP_INDEX_4 = "DROP INDEX IF EXISTS " + INDEX_NAME_4;
     /**
      * Add unique index on topic-seq, in descending order
      */
@@ -167,12 +172,125 @@ public class MessageDb implements BaseColumns {
                     " ON " + TABLE_NAME + " (" +
                     COLUMN_NAME_TOPIC_ID + "," +
                     COLUMN_NAME_EFFECTIVE_SEQ + " DESC) WHERE " + COLUMN_NAME_EFFECTIVE_SEQ + " IS NOT NULL";
+
+    /**
+     * Add partial index on the outbox: messages waiting to be sent in the order of timestamps.
+     * The outbox is small, the index saves scanning and sorting all messages in the topic.
+     */
+    static final String CREATE_INDEX_3 =
+            "CREATE INDEX " + INDEX_NAME_3 +
+                    " ON " + TABLE_NAME + " (" +
+                    COLUMN_NAME_TOPIC_ID + "," +
+                    COLUMN_NAME_TS + ") WHERE " + COLUMN_NAME_STATUS + "=" + BaseDb.Status.QUEUED.value;
+
+    /**
+     * Add partial covering index on deletion markers, i.e. records with the upper bound of the deleted range.
+     * The markers are few and otherwise found by scanning all messages in the topic.
+     */
+    static final String CREATE_INDEX_4 =
+            "CREATE INDEX " + INDEX_NAME_4 +
+                    " ON " + TABLE_NAME + " (" +
+                    COLUMN_NAME_TOPIC_ID + "," +
+                    COLUMN_NAME_STATUS + "," +
+                    COLUMN_NAME_SEQ + "," +
+                    COLUMN_NAME_HIGH + "," +
+                    COLUMN_NAME_DEL_ID + ") WHERE " + COLUMN_NAME_HIGH + " IS NOT NULL";
+
+    // Frequently used statements. Values are passed as arguments to keep the SQL constant: SQLite caches
+    // prepared statements by SQL text.
+    private static final String COLUMNS_INSERT = " (" +
+            COLUMN_NAME_TOPIC_ID + "," +
+            COLUMN_NAME_USER_ID + "," +
+            COLUMN_NAME_STATUS + "," +
+            COLUMN_NAME_SENDER + "," +
+            COLUMN_NAME_TS + "," +
+            COLUMN_NAME_EFFECTIVE_TS + "," +
+            COLUMN_NAME_SEQ + "," +
+            COLUMN_NAME_REPLACES_SEQ + "," +
+            COLUMN_NAME_EFFECTIVE_SEQ + "," +
+            COLUMN_NAME_HEAD + "," +
+            COLUMN_NAME_CONTENT + ") VALUES (?,?,?,?,?,?,?,?,?,?,?)";
+
+    private static final String SQL_INSERT = "INSERT INTO " + TABLE_NAME + COLUMNS_INSERT;
+
+    // Skips the message if the topic already has a message with the same seq: relies on the unique index.
+    private static final String SQL_INSERT_OR_IGNORE = "INSERT OR IGNORE INTO " + TABLE_NAME + COLUMNS_INSERT;
+
+    private static final String SQL_DELIVERED = "UPDATE " + TABLE_NAME + " SET " +
+            COLUMN_NAME_STATUS + "=" + BaseDb.Status.SYNCED.value + "," +
+            COLUMN_NAME_TS + "=?," +
+            COLUMN_NAME_SEQ + "=?," +
+            COLUMN_NAME_EFFECTIVE_TS +
+                "=CASE WHEN " + COLUMN_NAME_EFFECTIVE_TS + " IS NULL THEN ? ELSE " + COLUMN_NAME_EFFECTIVE_TS + " END," +
+            COLUMN_NAME_EFFECTIVE_SEQ +
+                "=CASE WHEN " + COLUMN_NAME_REPLACES_SEQ + " IS NOT NULL THEN " +
+                    COLUMN_NAME_REPLACES_SEQ + " ELSE ? END " +
+            "WHERE " + _ID + "=?";
+
+    private static final String SQL_UPDATE_STATUS = "UPDATE " + TABLE_NAME + " SET " +
+            COLUMN_NAME_STATUS + "=? WHERE " + _ID + "=?";
+
+    private static final String SQL_UPDATE_CONTENT = "UPDATE " + TABLE_NAME + " SET " +
+            COLUMN_NAME_CONTENT + "=? WHERE " + _ID + "=?";
+
+    private static final String SQL_UPDATE_STATUS_CONTENT = "UPDATE " + TABLE_NAME + " SET " +
+            COLUMN_NAME_STATUS + "=?," + COLUMN_NAME_CONTENT + "=? WHERE " + _ID + "=?";
+
+    private static final String SQL_DEACTIVATE_VERSION = "UPDATE " + TABLE_NAME + " SET " +
+            COLUMN_NAME_EFFECTIVE_SEQ + "=NULL" +
+            " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " + COLUMN_NAME_EFFECTIVE_SEQ + "=?";
+
+    private static final String SQL_ACTIVATE_VERSION = "UPDATE " + TABLE_NAME + " SET " +
+            COLUMN_NAME_EFFECTIVE_SEQ + "=?," + COLUMN_NAME_EFFECTIVE_TS + "=?" +
+            // Select the newest message with the given COLUMN_NAME_REPLACES_SEQ.
+            " WHERE " + _ID + "=" +
+                "(SELECT " + _ID + " FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_NAME_REPLACES_SEQ + "=? AND " + COLUMN_NAME_TOPIC_ID + "=?" +
+                    " ORDER BY " + COLUMN_NAME_SEQ + " DESC LIMIT 1)";
+
+    static final String SQL_BY_ID = "SELECT * FROM " + TABLE_NAME + " WHERE " + _ID + "=?";
+
+    static final String SQL_BY_SEQ = "SELECT * FROM " + TABLE_NAME +
+            " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " + COLUMN_NAME_EFFECTIVE_SEQ + "=?";
+
+    static final String SQL_UNSENT = "SELECT * FROM " + TABLE_NAME +
+            " WHERE " + COLUMN_NAME_TOPIC_ID + "=?" +
+            // Status is not an argument: the query must match the condition of the partial index.
+            " AND " + COLUMN_NAME_STATUS + "=" + BaseDb.Status.QUEUED.value +
+            " ORDER BY " + COLUMN_NAME_TS;
+
+    static final String SQL_DELETED = "SELECT " +
+            COLUMN_NAME_DEL_ID + "," +
+            COLUMN_NAME_SEQ + "," +
+            COLUMN_NAME_HIGH +
+            " FROM " + TABLE_NAME +
+            " WHERE " + COLUMN_NAME_TOPIC_ID + "=?" +
+            " AND " + COLUMN_NAME_STATUS + "=?" +
+            // Deletion markers only: matches the condition of the partial index.
+            " AND " + COLUMN_NAME_HIGH + " IS NOT NULL" +
+            " ORDER BY " + COLUMN_NAME_SEQ;
+
+    private static final String SQL_DELETE_BY_ID = "DELETE FROM " + TABLE_NAME + " WHERE " + _ID + "=?";
+
+    private static final String SQL_DELETE_BY_SEQ = "DELETE FROM " + TABLE_NAME +
+            " WHERE " + COLUMN_NAME_TOPIC_ID + "=? AND " + COLUMN_NAME_SEQ + "=?";
     /**
      * Save message to DB.
      *
      * @return ID of the newly added message
      */
     static long insert(SQLiteDatabase db, Topic topic, StoredMessage msg) {
+        return insert(db, topic, msg, false);
+    }
+
+    /**
+     * Save message to DB.
+     *
+     * @param ignoreDuplicate skip the message if the topic already has a message with the same seq ID
+     *                        instead of failing the transaction.
+     * @return ID of the newly added message, 0 if the message was skipped, -1 on failure.
+     */
+    static long insert(SQLiteDatabase db, Topic topic, StoredMessage msg, boolean ignoreDuplicate) {
         if (msg.id > 0) {
             // Message is already inserted.
             return msg.id;
@@ -228,15 +346,17 @@ public class MessageDb implements BaseColumns {
                 }
             }
 
-            msg.id = insertRaw(db, topic, msg, effSeq, effTs);
-            if (msg.id > 0) {
+            msg.id = insertRaw(db, topic, msg, effSeq, effTs, ignoreDuplicate);
+            if (msg.id >= 0) {
                 db.setTransactionSuccessful();
             }
         } catch (SQLiteConstraintException ex) {
             // This may happen when concurrent {sub} requests are sent.
             Log.d(TAG, "Duplicate message topic='" + topic.getName() + "' id=" + msg.seq);
+            msg.id = -1;
         } catch (Exception ex) {
             Log.w(TAG, "Insert failed", ex);
+            msg.id = -1;
         } finally {
             db.endTransaction();
         }
@@ -249,7 +369,8 @@ public class MessageDb implements BaseColumns {
      *
      * @return ID of the newly added message
      */
-    private static long insertRaw(SQLiteDatabase db, Topic topic, StoredMessage msg, int withEffSeq, long withEffTs) {
+    private static long insertRaw(SQLiteDatabase db, Topic topic, StoredMessage msg, int withEffSeq, long withEffTs,
+                                  boolean ignoreDuplicate) {
         if (msg.userId <= 0) {
             msg.userId = UserDb.getId(db, msg.from);
         }
@@ -270,84 +391,101 @@ public class MessageDb implements BaseColumns {
             status = BaseDb.Status.SYNCED;
         }
 
-        // Convert message to a map of values
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_NAME_TOPIC_ID, msg.topicId);
-        values.put(COLUMN_NAME_USER_ID, msg.userId);
-        values.put(COLUMN_NAME_STATUS, status.value);
-        values.put(COLUMN_NAME_SENDER, msg.from);
-        values.put(COLUMN_NAME_TS, msg.ts != null ? msg.ts.getTime() : null);
-        if (withEffTs > 0) {
-            values.put(COLUMN_NAME_EFFECTIVE_TS, withEffTs);
-        }
-        values.put(COLUMN_NAME_SEQ, msg.seq);
-        int replacesSeq = msg.getReplacementSeqId();
-        if (replacesSeq > 0) {
-            values.put(COLUMN_NAME_REPLACES_SEQ, replacesSeq);
+        try (SQLiteStatement stmt = db.compileStatement(ignoreDuplicate ? SQL_INSERT_OR_IGNORE : SQL_INSERT)) {
+            stmt.bindLong(1, msg.topicId);
+            stmt.bindLong(2, msg.userId);
+            stmt.bindLong(3, status.value);
+            bindString(stmt, 4, msg.from);
+            if (msg.ts != null) {
+                stmt.bindLong(5, msg.ts.getTime());
+            } else {
+                stmt.bindNull(5);
+            }
+            bindPositive(stmt, 6, withEffTs);
+            stmt.bindLong(7, msg.seq);
+            bindPositive(stmt, 8, msg.getReplacementSeqId());
+            bindPositive(stmt, 9, withEffSeq);
+            bindString(stmt, 10, BaseDb.serialize(msg.head));
+            bindString(stmt, 11, BaseDb.serialize(msg.content));
+            long id = stmt.executeInsert();
+            // Nothing is inserted when the duplicate is ignored.
+            return ignoreDuplicate && id < 0 ? 0 : id;
         }
-        if (withEffSeq > 0) {
-            values.put(COLUMN_NAME_EFFECTIVE_SEQ, withEffSeq);
+    }
+
+    private static void bindString(SQLiteStatement stmt, int index, String value) {
+        if (value != null) {
+            stmt.bindString(index, value);
+        } else {
+            stmt.bindNull(index);
         }
-        values.put(COLUMN_NAME_HEAD, BaseDb.serialize(msg.head));
-        values.put(COLUMN_NAME_CONTENT, BaseDb.serialize(msg.content));
+    }
 
-        return db.insertOrThrow(TABLE_NAME, null, values);
+    // Bind positive value, NULL otherwise.
+    private static void bindPositive(SQLiteStatement stmt, int index, long value) {
+        if (value > 0) {
+            stmt.bindLong(index, value);
+        } else {
+            stmt.bindNull(index);
+        }
     }
 
     static boolean updateStatusAndContent(SQLiteDatabase db, long msgId, BaseDb.Status status, Object content) {
-        ContentValues values = new ContentValues();
-        if (status != BaseDb.Status.UNDEFINED) {
-            values.put(COLUMN_NAME_STATUS, status.value);
-        }
-        if (content != null) {
-            values.put(COLUMN_NAME_CONTENT, BaseDb.serialize(content));
+        boolean withStatus = status != BaseDb.Status.UNDEFINED;
+        String sql;
+        if (withStatus && content != null) {
+            sql = SQL_UPDATE_STATUS_CONTENT;
+        } else if (withStatus) {
+            sql = SQL_UPDATE_STATUS;
+        } else if (content != null) {
+            sql = SQL_UPDATE_CONTENT;
+        } else {
+            return false;
         }
 
-        if (values.size() > 0) {
-            return db.update(TABLE_NAME, values, _ID + "=" + msgId, null) > 0;
+        try (SQLiteStatement stmt = db.compileStatement(sql)) {
+            int index = 1;
+            if (withStatus) {
+                stmt.bindLong(index++, status.value);
+            }
+            if (content != null) {
+                bindString(stmt, index++, BaseDb.serialize(content));
+            }
+            stmt.bindLong(index, msgId);
+            return stmt.executeUpdateDelete() > 0;
         }
-        return false;
     }
 
     static void delivered(SQLiteDatabase db, long msgId, Date timestamp, int seq) {
-        String sql = "UPDATE " + TABLE_NAME + " SET " +
-                COLUMN_NAME_STATUS + "=" + BaseDb.Status.SYNCED.value + "," +
-                COLUMN_NAME_TS + "=" + timestamp.getTime() + "," +
-                COLUMN_NAME_SEQ + "=" + seq + "," +
-                COLUMN_NAME_EFFECTIVE_TS +
-                    "=CASE WHEN " + COLUMN_NAME_EFFECTIVE_TS + " IS NULL THEN " +
-                        timestamp.getTime() + " ELSE " + COLUMN_NAME_EFFECTIVE_TS + " END," +
-                COLUMN_NAME_EFFECTIVE_SEQ +
-                    "=CASE WHEN " + COLUMN_NAME_REPLACES_SEQ + " IS NOT NULL THEN "
-                        + COLUMN_NAME_REPLACES_SEQ + " ELSE " + seq + " END " +
-                "WHERE " + _ID + "=" + msgId;
-        db.execSQL(sql);
+        try (SQLiteStatement stmt = db.compileStatement(SQL_DELIVERED)) {
+            stmt.bindLong(1, timestamp.getTime());
+            stmt.bindLong(2, seq);
+            stmt.bindLong(3, timestamp.getTime());
+            stmt.bindLong(4, seq);
+            stmt.bindLong(5, msgId);
+            stmt.executeUpdateDelete();
+        }
     }
 
     // Clear COLUMN_NAME_EFFECTIVE_SEQ to remove message from display.
     private static void deactivateMessageVersion(SQLiteDatabase db, long topicId, int effSeq) {
-        ContentValues values = new ContentValues();
-        values.putNull(COLUMN_NAME_EFFECTIVE_SEQ);
-        db.update(TABLE_NAME, values,
-                COLUMN_NAME_TOPIC_ID + "=" + topicId + " AND " +
-                        COLUMN_NAME_EFFECTIVE_SEQ + "=" + effSeq,
-                null);
+        try (SQLiteStatement stmt = db.compileStatement(SQL_DEACTIVATE_VERSION)) {
+            stmt.bindLong(1, topicId);
+            stmt.bindLong(2, effSeq);
+            stmt.executeUpdateDelete();
+        }
     }
 
     // Find the newest version of a message and make it visible
     // by setting COLUMN_NAME_EFFECTIVE_SEQ to the given seq value.
     private static boolean activateMessageVersion(SQLiteDatabase db, long topicId, int seqId, long effTs) {
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_NAME_EFFECTIVE_SEQ, seqId);
-        values.put(COLUMN_NAME_EFFECTIVE_TS, effTs);
-        return db.update(TABLE_NAME, values,
-                // Select the newest message with the given COLUMN_NAME_REPLACES_SEQ.
-                _ID + "=" +
-                        "(SELECT " + _ID + " FROM " + TABLE_NAME +
-                            " WHERE " + COLUMN_NAME_REPLACES_SEQ + "=" + seqId + " AND " +
-                                COLUMN_NAME_TOPIC_ID + "=" + topicId +
-                            " ORDER BY " + COLUMN_NAME_SEQ + " DESC LIMIT 1)",
-                null) > 0;
+        try (SQLiteStatement stmt = db.compileStatement(SQL_ACTIVATE_VERSION)) {
+            stmt.bindLong(1, seqId);
+            stmt.bindLong(2, effTs);
+            stmt.bindLong(3, seqId);
+            stmt.bindLong(4, topicId);
+            return stmt.executeUpdateDelete() > 0;
+        }
     }
 
     // Find all version of an edited message (if any). The versions are sorted from newest to oldest.
@@ -401,7 +539,7 @@ public class MessageDb implements BaseColumns {
      * @return cursor with the message (close after use!).
      */
     static Cursor getMessageById(SQLiteDatabase db, long msgId) {
-        return db.rawQuery("SELECT * FROM " + TABLE_NAME + " WHERE _id=" + msgId, null);
+        return db.rawQuery(SQL_BY_ID, new String[]{Long.toString(msgId)});
     }
 
     /**
@@ -414,9 +552,7 @@ public class MessageDb implements BaseColumns {
      * @return cursor with the message (close after use!).
      */
     static Cursor getMessageBySeq(SQLiteDatabase db, long topicId, int effSeq) {
-        return db.rawQuery("SELECT * FROM " + TABLE_NAME +
-                    " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId + " AND " +
-                    COLUMN_NAME_EFFECTIVE_SEQ + "=" + effSeq, null);
+        return db.rawQuery(SQL_BY_SEQ, new String[]{Long.toString(topicId), Integer.toString(effSeq)});
     }
 
     /**
@@ -447,13 +583,7 @@ public class MessageDb implements BaseColumns {
      * @return cursor with the messages
      */
     static Cursor queryUnsent(SQLiteDatabase db, long topicId) {
-        final String sql = "SELECT * FROM " + TABLE_NAME +
-                " WHERE " +
-                COLUMN_NAME_TOPIC_ID + "=" + topicId +
-                " AND " + COLUMN_NAME_STATUS + "=" + BaseDb.Status.QUEUED.value +
-                " ORDER BY " + COLUMN_NAME_TS;
-
-        return db.rawQuery(sql, null);
+        return db.rawQuery(SQL_UNSENT, new String[]{Long.toString(topicId)});
     }
 
     /**
@@ -466,17 +596,7 @@ public class MessageDb implements BaseColumns {
      */
     static Cursor queryDeleted(SQLiteDatabase db, long topicId, boolean hard) {
         BaseDb.Status status = hard ? BaseDb.Status.DELETED_HARD : BaseDb.Status.DELETED_SOFT;
-
-        final String sql = "SELECT " +
-                COLUMN_NAME_DEL_ID + "," +
-                COLUMN_NAME_SEQ + "," +
-                COLUMN_NAME_HIGH +
-                " FROM " + TABLE_NAME +
-                " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId +
-                " AND " + COLUMN_NAME_STATUS + "=" + status.value +
-                " ORDER BY " + COLUMN_NAME_SEQ;
-
-        return db.rawQuery(sql, null);
+        return db.rawQuery(SQL_DELETED, new String[]{Long.toString(topicId), Integer.toString(status.value)});
     }
 
     /**
@@ -609,7 +729,8 @@ public class MessageDb implements BaseColumns {
         parts.add(COLUMN_NAME_HIGH + "<=" + toId);
         // All types: server, soft and hard.
         rangeDeleteSelector += " AND " + TextUtils.join(" AND ", parts) +
-                " AND " + COLUMN_NAME_STATUS + ">=" + BaseDb.Status.DELETED_HARD.value;
+                " AND " + COLUMN_NAME_STATUS + ">=" + BaseDb.Status.DELETED_HARD.value +
+                " AND " + COLUMN_NAME_HIGH + " IS NOT NULL";
 
         // Selector of effective message versions which are fully within the range.
         parts.clear();
@@ -630,7 +751,8 @@ public class MessageDb implements BaseColumns {
         } else {
             status = markAsHard ? BaseDb.Status.DELETED_HARD : BaseDb.Status.DELETED_SOFT;
         }
-        rangeConsumeSelector += " AND " + COLUMN_NAME_STATUS + "=" + status.value;
+        rangeConsumeSelector += " AND " + COLUMN_NAME_STATUS + "=" + status.value +
+                " AND " + COLUMN_NAME_HIGH + " IS NOT NULL";
 
         String rangeNarrow = "";
         parts.clear();
@@ -791,7 +913,10 @@ public class MessageDb implements BaseColumns {
      * @return true on success, false on failure
      */
     static boolean delete(SQLiteDatabase db, long msgId) {
-        return db.delete(TABLE_NAME, _ID + "=" + msgId, null) > 0;
+        try (SQLiteStatement stmt = db.compileStatement(SQL_DELETE_BY_ID)) {
+            stmt.bindLong(1, msgId);
+            return stmt.executeUpdateDelete() > 0;
+        }
     }
 
     /**
@@ -803,8 +928,11 @@ public class MessageDb implements BaseColumns {
      * @return true on success, false on failure.
      */
     static boolean delete(SQLiteDatabase db, long topicId, int seq) {
-        return db.delete(TABLE_NAME, COLUMN_NAME_TOPIC_ID + "=" + topicId +
-                " AND " + COLUMN_NAME_SEQ + "=" + seq, null) > 0;
+        try (SQLiteStatement stmt = db.compileStatement(SQL_DELETE_BY_SEQ)) {
+            stmt.bindLong(1, topicId);
+            stmt.bindLong(2, seq);
+            return stmt.executeUpdateDelete() > 0;
+        }
     }
 
     /**
@@ -904,6 +1032,8 @@ public class MessageDb implements BaseColumns {
 
         @Override
         public Cursor loadInBackground() {
+            // Messages received from the server are saved in the background.
+            BaseDb.getInstance().getTinodeStore().flush();
             return query(mDb, topicId, pageCount, pageSize);
         }
     }
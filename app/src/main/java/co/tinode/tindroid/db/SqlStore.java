@@ -9,7 +9,9 @@ import android.util.Log;
 import java.io.Closeable;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import co.tinode.tinodesdk.Storage;
@@ -81,6 +83,19 @@ public class SqlStore implements Storage {
         return mDbh.isReady();
     }
 
+    @Override
+    public void runBatch(Runnable updates) {
+        // Updates in one transaction are written to disk once.
+        SQLiteDatabase db = mDbh.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            updates.run();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public void logout() {
         // Clear the database.
         mDbh.setUid(null, null);
@@ -259,15 +274,7 @@ public class SqlStore implements Storage {
 
             StoredTopic st = (StoredTopic) topic.getLocal();
             topicId = st.id;
-            userId = UserDb.getId(db, m.from);
-            if (userId < 0) {
-                // Create a placeholder user to satisfy the foreign key constraint.
-                if (sub != null) {
-                    userId = UserDb.insert(db, sub);
-                } else {
-                    userId = UserDb.insert(db, m.from, m.ts, null);
-                }
-            }
+            userId = placeholderUserId(db, sub, m);
         } else {
             topicId = ss.topicId;
             userId = ss.userId;
@@ -300,6 +307,91 @@ public class SqlStore implements Storage {
         return msg;
     }
 
+    @Override
+    public Storage.Message[] msgReceived(Topic topic, List<MsgServerData> batch) {
+        Storage.Message[] saved = new Storage.Message[batch.size()];
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || st.id < 0) {
+            Log.w(TAG, "Failed to save messages, topic not found " + topic.getName());
+            return saved;
+        }
+
+        final SQLiteDatabase db = mDbh.getWritableDatabase();
+        // IDs of senders resolved in this batch.
+        Map<String, Long> userIds = new HashMap<>();
+        Date latest = null;
+        int minSeq = 0, maxSeq = 0;
+        boolean failed = false, success = false;
+        try {
+            db.beginTransaction();
+
+            for (int i = 0; i < saved.length; i++) {
+                MsgServerData m = batch.get(i);
+                Long userId = userIds.get(m.from);
+                if (userId == null) {
+                    Subscription sub = topic.getSubscription(m.from);
+                    StoredSubscription ss = sub != null ? (StoredSubscription) sub.getLocal() : null;
+                    userId = ss != null ? ss.userId : placeholderUserId(db, sub, m);
+                    userIds.put(m.from, userId);
+                }
+                if (userId < 0) {
+                    Log.w(TAG, "Failed to save message, userId=" + userId);
+                    continue;
+                }
+
+                StoredMessage msg = new StoredMessage(m);
+                msg.topicId = st.id;
+                msg.userId = userId;
+                msg.status = BaseDb.Status.SYNCED;
+                // A failed insert would roll back the whole batch: duplicates are skipped by the unique index.
+                msg.id = MessageDb.insert(db, topic, msg, true);
+                if (msg.id < 0) {
+                    // The failed nested transaction rolls back the batch anyway.
+                    failed = true;
+                    break;
+                }
+                if (msg.id == 0) {
+                    // Already stored.
+                    continue;
+                }
+                saved[i] = msg;
+                minSeq = minSeq == 0 ? msg.seq : Math.min(minSeq, msg.seq);
+                maxSeq = Math.max(maxSeq, msg.seq);
+                latest = latest == null || msg.ts.after(latest) ? msg.ts : latest;
+            }
+
+            // Topic record is updated once for the whole batch.
+            if (!failed && (latest == null || TopicDb.msgReceived(db, topic, latest, minSeq, maxSeq))) {
+                db.setTransactionSuccessful();
+                success = true;
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to save messages", ex);
+        } finally {
+            db.endTransaction();
+        }
+
+        if (!success) {
+            // Save the messages one by one so one bad message does not lose the batch.
+            return Storage.super.msgReceived(topic, batch);
+        }
+        return saved;
+    }
+
+    // Find ID of the sender who is not a known subscriber of the topic. Create a placeholder user to satisfy
+    // the foreign key constraint if the sender is not found.
+    private static long placeholderUserId(SQLiteDatabase db, Subscription sub, MsgServerData m) {
+        long userId = UserDb.getId(db, m.from);
+        if (userId < 0) {
+            if (sub != null) {
+                userId = UserDb.insert(db, sub);
+            } else {
+                userId = UserDb.insert(db, m.from, m.ts, null);
+            }
+        }
+        return userId;
+    }
+
     private Storage.Message insertMessage(Topic topic, Drafty data, Map<String, Object> head,
                                           BaseDb.Status initialStatus) {
         StoredMessage msg = new StoredMessage();
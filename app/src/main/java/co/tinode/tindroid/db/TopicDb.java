@@ -4,6 +4,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
 
@@ -219,6 +220,16 @@ public class TopicDb implements BaseColumns {
             "DROP INDEX IF EXISTS " + INDEX_NAME;
     private static final String TAG = "TopicsDb";
 
+    // Frequently used statements with values passed as arguments.
+    static final String SQL_ID_BY_NAME = "SELECT " + _ID + " FROM " + TABLE_NAME +
+            " WHERE " + COLUMN_NAME_ACCOUNT_ID + "=? AND " + COLUMN_NAME_TOPIC + "=?";
+
+    static final String SQL_BY_NAME = "SELECT * FROM " + TABLE_NAME +
+            " WHERE " + COLUMN_NAME_ACCOUNT_ID + "=? AND " + COLUMN_NAME_TOPIC + "=?";
+
+    private static final String SQL_NEXT_UNSENT_SEQ = "UPDATE " + TABLE_NAME +
+            " SET " + COLUMN_NAME_NEXT_UNSENT_SEQ + "=? WHERE " + _ID + "=?";
+
     /**
      * Save topic description to DB
      *
@@ -341,7 +352,7 @@ public class TopicDb implements BaseColumns {
             values.put(COLUMN_NAME_LASTUSED, lastUsed.getTime());
         }
 
-        int updated = db.update(TABLE_NAME, values, _ID + "=" + st.id, null);
+        int updated = db.update(TABLE_NAME, values, _ID + "=?", new String[]{Long.toString(st.id)});
         if (updated > 0) {
             if (lastUsed != null) {
                 st.lastUsed = lastUsed;
@@ -359,6 +370,18 @@ public class TopicDb implements BaseColumns {
      */
     @SuppressWarnings("WeakerAccess")
     public static boolean msgReceived(SQLiteDatabase db, Topic topic, Date timestamp, int seq) {
+        return msgReceived(db, topic, timestamp, seq, seq);
+    }
+
+    /**
+     * A batch of messages was received and stored. Update topic record with the batch info at once.
+     *
+     * @param timestamp timestamp of the newest message in the batch.
+     * @param minSeq    the lowest seq ID in the batch.
+     * @param maxSeq    the highest seq ID in the batch.
+     * @return true on success, false otherwise
+     */
+    public static boolean msgReceived(SQLiteDatabase db, Topic topic, Date timestamp, int minSeq, int maxSeq) {
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st == null) {
             return false;
@@ -367,17 +390,17 @@ public class TopicDb implements BaseColumns {
         // Convert topic description to a map of values
         ContentValues values = new ContentValues();
 
-        if (seq > st.maxLocalSeq) {
-            values.put(COLUMN_NAME_MAX_LOCAL_SEQ, seq);
-            values.put(COLUMN_NAME_RECV, seq);
+        if (maxSeq > st.maxLocalSeq) {
+            values.put(COLUMN_NAME_MAX_LOCAL_SEQ, maxSeq);
+            values.put(COLUMN_NAME_RECV, maxSeq);
         }
 
-        if (seq > 0 && (st.minLocalSeq == 0 || seq < st.minLocalSeq)) {
-            values.put(COLUMN_NAME_MIN_LOCAL_SEQ, seq);
+        if (minSeq > 0 && (st.minLocalSeq == 0 || minSeq < st.minLocalSeq)) {
+            values.put(COLUMN_NAME_MIN_LOCAL_SEQ, minSeq);
         }
 
-        if (seq > topic.getSeq()) {
-            values.put(COLUMN_NAME_SEQ, seq);
+        if (maxSeq > topic.getSeq()) {
+            values.put(COLUMN_NAME_SEQ, maxSeq);
         }
 
         if (timestamp.after(st.lastUsed)) {
@@ -385,15 +408,15 @@ public class TopicDb implements BaseColumns {
         }
 
         if (values.size() > 0) {
-            int updated = db.update(TABLE_NAME, values, _ID + "=" + st.id, null);
+            int updated = db.update(TABLE_NAME, values, _ID + "=?", new String[]{Long.toString(st.id)});
             if (updated <= 0) {
                 return false;
             }
 
             st.lastUsed = timestamp.after(st.lastUsed) ? timestamp : st.lastUsed;
-            st.minLocalSeq = seq > 0 && (st.minLocalSeq == 0 || seq < st.minLocalSeq) ?
-                    seq : st.minLocalSeq;
-            st.maxLocalSeq = Math.max(seq, st.maxLocalSeq);
+            st.minLocalSeq = minSeq > 0 && (st.minLocalSeq == 0 || minSeq < st.minLocalSeq) ?
+                    minSeq : st.minLocalSeq;
+            st.maxLocalSeq = Math.max(maxSeq, st.maxLocalSeq);
         }
         return true;
     }
@@ -449,7 +472,7 @@ public class TopicDb implements BaseColumns {
         }
 
         if (values.size() > 0) {
-            int updated = db.update(TABLE_NAME, values, _ID + "=" + st.id, null);
+            int updated = db.update(TABLE_NAME, values, _ID + "=?", new String[]{Long.toString(st.id)});
             if (updated <= 0) {
                 Log.d(TAG, "Failed to update table records on delete");
                 return false;
@@ -505,11 +528,8 @@ public class TopicDb implements BaseColumns {
      */
     protected static Topic readOne(SQLiteDatabase db, Tinode tinode, String name) {
         Topic topic = null;
-        String sql = "SELECT * FROM " + TABLE_NAME +
-                " WHERE " +
-                COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() + " AND " +
-                COLUMN_NAME_TOPIC + "='" + name + "'";
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = db.rawQuery(SQL_BY_NAME,
+                new String[]{Long.toString(BaseDb.getInstance().getAccountId()), name});
         if (c.moveToFirst()) {
             topic = readOne(tinode, c);
         }
@@ -584,11 +604,13 @@ public class TopicDb implements BaseColumns {
      * @return _id of the topic
      */
     public static long getId(SQLiteDatabase db, String topic) {
-        try {
-            return db.compileStatement("SELECT " + _ID + " FROM " + TABLE_NAME +
-                    " WHERE " +
-                    COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() + " AND " +
-                    COLUMN_NAME_TOPIC + "='" + topic + "'").simpleQueryForLong();
+        if (topic == null) {
+            return -1;
+        }
+        try (SQLiteStatement stmt = db.compileStatement(SQL_ID_BY_NAME)) {
+            stmt.bindLong(1, BaseDb.getInstance().getAccountId());
+            stmt.bindString(2, topic);
+            return stmt.simpleQueryForLong();
         } catch (SQLException ignored) {
             // topic not found
             return -1;
@@ -599,9 +621,11 @@ public class TopicDb implements BaseColumns {
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st != null) {
             st.nextUnsentId++;
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_NAME_NEXT_UNSENT_SEQ, st.nextUnsentId);
-            db.update(TABLE_NAME, values, _ID + "=" + st.id, null);
+            try (SQLiteStatement stmt = db.compileStatement(SQL_NEXT_UNSENT_SEQ)) {
+                stmt.bindLong(1, st.nextUnsentId);
+                stmt.bindLong(2, st.id);
+                stmt.executeUpdateDelete();
+            }
             return st.nextUnsentId;
         }
 
@@ -4,6 +4,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
 
@@ -84,6 +85,13 @@ public class UserDb implements BaseColumns {
             "DROP INDEX IF EXISTS " + INDEX_NAME;
     private static final String TAG = "UserDb";
 
+    // Frequently used statements with values passed as arguments.
+    static final String SQL_ID_BY_UID = "SELECT " + _ID + " FROM " + TABLE_NAME +
+            " WHERE " + COLUMN_NAME_ACCOUNT_ID + "=? AND " + COLUMN_NAME_UID + "=?";
+
+    static final String SQL_BY_UID = "SELECT * FROM " + TABLE_NAME +
+            " WHERE " + COLUMN_NAME_ACCOUNT_ID + "=? AND " + COLUMN_NAME_UID + "=?";
+
     /**
      * Save user to DB
      *
@@ -161,7 +169,8 @@ public class UserDb implements BaseColumns {
             values.put(COLUMN_NAME_PUBLIC, BaseDb.serialize(pub));
         }
 
-        return values.size() <= 0 || db.update(TABLE_NAME, values, _ID + "=" + userId, null) > 0;
+        return values.size() <= 0 ||
+                db.update(TABLE_NAME, values, _ID + "=?", new String[]{Long.toString(userId)}) > 0;
     }
 
     /**
@@ -193,36 +202,22 @@ public class UserDb implements BaseColumns {
      * @return _id of the user
      */
     static long getId(SQLiteDatabase db, String uid) {
-        long id = -1;
-        String sql =
-                "SELECT " + _ID +
-                        " FROM " + TABLE_NAME +
-                        " WHERE " +
-                        COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
-                        " AND " +
-                        COLUMN_NAME_UID + "='" + (uid != null ? uid : UID_NULL) + "'";
-        Cursor c = db.rawQuery(sql, null);
-        if (c.getCount() > 0) {
-            if (c.moveToFirst()) {
-                id = c.getLong(0);
-            }
-            c.close();
+        try (SQLiteStatement stmt = db.compileStatement(SQL_ID_BY_UID)) {
+            stmt.bindLong(1, BaseDb.getInstance().getAccountId());
+            stmt.bindString(2, uid != null ? uid : UID_NULL);
+            return stmt.simpleQueryForLong();
+        } catch (SQLException ignored) {
+            // User not found.
+            return -1;
         }
-        return id;
     }
 
     @SuppressWarnings("WeakerAccess")
     public static <Pu> User<Pu> readOne(SQLiteDatabase db, String uid) {
         // Instantiate topic of an appropriate class ('me' or group)
         User<Pu> user = null;
-        String sql =
-                "SELECT * FROM " + TABLE_NAME +
-                        " WHERE " +
-                        COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
-                        " AND " +
-                        COLUMN_NAME_UID + "='" + (uid != null ? uid : UID_NULL) + "'";
-
-        Cursor c = db.rawQuery(sql, null);
+        Cursor c = db.rawQuery(SQL_BY_UID, new String[]{
+                Long.toString(BaseDb.getInstance().getAccountId()), uid != null ? uid : UID_NULL});
         if (c.moveToFirst()) {
             user = new User<>(uid);
             StoredUser.deserialize(user, c);
@@ -27,6 +27,8 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
@@ -36,7 +38,6 @@ import co.tinode.tindroid.TindroidApp;
 import co.tinode.tindroid.account.ContactsManager;
 import co.tinode.tindroid.account.Utils;
 import co.tinode.tindroid.media.VxCard;
-import co.tinode.tinodesdk.PromisedReply;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.Topic;
 import co.tinode.tinodesdk.model.MetaGetSub;
@@ -283,27 +284,33 @@ class ContactsSyncAdapter extends AbstractThreadedSyncAdapter {
                 boolean tls = sharedPref.getBoolean(Utils.PREFS_USE_TLS, TindroidApp.getDefaultTLS());
                 String token = AccountManager.get(mContext)
                         .blockingGetAuthToken(account, Utils.TOKEN_TYPE, false);
-                tinode.connect(hostName, tls, true).getResult();
-
-                // It will throw if something is wrong so we will try again later.
-                tinode.loginToken(token).getResult();
-
-                // It throws if rejected and we just fail to sync.
-                // FND sends no presence notifications thus background flag is not needed.
-                tinode.subscribe(Tinode.TOPIC_FND, null, null).getResult();
-
-                if (lastSyncMarker == null) {
-                    // Send contacts list to the server only if it has changed since last update, i.e. a full
-                    // update is performed.
-                    tinode.setMeta(Tinode.TOPIC_FND, new MsgSetMeta.Builder()
-                            .with(new MetaSetDesc(null, contacts)).build()).getResult();
-                }
-
+                final boolean fullUpdate = lastSyncMarker == null;
                 final MsgGetMeta meta = new MsgGetMeta(new MetaGetSub(lastSyncMarker, null));
-                PromisedReply<ServerMessage> future = tinode.getMeta(Tinode.TOPIC_FND, meta);
+                // The requests are chained without blocking, the sync thread waits for the end of the chain.
+                CompletableFuture<ServerMessage> fetched = tinode.connect(hostName, tls, true).toCompletableFuture()
+                        // It will fail if something is wrong so we will try again later.
+                        .thenCompose(ignored -> tinode.loginToken(token).toCompletableFuture())
+                        // It fails if rejected and we just fail to sync.
+                        // FND sends no presence notifications thus background flag is not needed.
+                        .thenCompose(ignored -> tinode.subscribe(Tinode.TOPIC_FND, null, null).toCompletableFuture())
+                        // Send contacts list to the server only if it has changed since last update, i.e. a full
+                        // update is performed.
+                        .thenCompose(ignored -> fullUpdate ?
+                                tinode.setMeta(Tinode.TOPIC_FND, new MsgSetMeta.Builder()
+                                        .with(new MetaSetDesc(null, contacts)).build()).toCompletableFuture() :
+                                CompletableFuture.completedFuture(null))
+                        // Failure to fetch the updated contacts is not an error.
+                        .thenCompose(ignored -> tinode.getMeta(Tinode.TOPIC_FND, meta).toCompletableFuture()
+                                .exceptionally(err -> null));
+
+                ServerMessage<?, ?, VxCard, PrivateType> pkt;
+                try {
+                    pkt = fetched.get();
+                } catch (ExecutionException ex) {
+                    throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                }
                 Date newSyncMarker = null;
-                if (future.waitResult()) {
-                    ServerMessage<?, ?, VxCard, PrivateType> pkt = future.getResult();
+                if (pkt != null) {
                     if (pkt.meta != null && pkt.meta.sub != null) {
                         // Fetch the list of updated contacts.
                         Collection<Subscription<VxCard, PrivateType>> updated = new ArrayList<>();
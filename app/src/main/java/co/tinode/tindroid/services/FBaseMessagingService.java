@@ -17,6 +17,7 @@ import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.StyleableRes;
@@ -51,6 +52,8 @@ public class FBaseMessagingService extends FirebaseMessagingService {
     private static final int AVATAR_SIZE = 128;
     // Max length of the message.
     private static final int MAX_MESSAGE_LENGTH = 80;
+    // Maximum time to wait for the missing data before showing the notification, seconds.
+    private static final long OOB_TIMEOUT = 15;
 
     @Override
     public void onNewToken(@NonNull final String refreshedToken) {
@@ -124,14 +127,22 @@ public class FBaseMessagingService extends FirebaseMessagingService {
                 return;
             }
 
+            // Start connecting to the server while the notification is being processed.
+            tinode.warmUp();
+
             String webrtc = data.get("webrtc");
             String senderId = data.get("xfrom");
 
             // Update data state, maybe fetch missing data.
             String token = Utils.getLoginToken(getApplicationContext());
             String selectedTopic = Cache.getSelectedTopicName();
-            tinode.oobNotification(data, token, "started".equals(webrtc) ||
-                    topicName.equals(selectedTopic));
+            try {
+                // Wait for the missing data to be fetched: it's used in the notification.
+                tinode.oobNotification(data, token, "started".equals(webrtc) ||
+                        topicName.equals(selectedTopic)).toCompletableFuture().get(OOB_TIMEOUT, TimeUnit.SECONDS);
+            } catch (Exception ex) {
+                Log.w(TAG, "Failed to fetch data for notification", ex);
+            }
 
             if (webrtc != null) {
                 // It's a video call.
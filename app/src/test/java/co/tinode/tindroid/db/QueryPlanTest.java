@@ -0,0 +1,81 @@
+package co.tinode.tindroid.db;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+// Check that frequent queries use indexes.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34, application = Application.class)
+public class QueryPlanTest {
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(TopicDb.CREATE_TABLE);
+        mDb.execSQL(TopicDb.CREATE_INDEX);
+        mDb.execSQL(UserDb.CREATE_TABLE);
+        mDb.execSQL(UserDb.CREATE_INDEX);
+        mDb.execSQL(MessageDb.CREATE_TABLE);
+        mDb.execSQL(MessageDb.CREATE_INDEX);
+        mDb.execSQL(MessageDb.CREATE_INDEX_2);
+        mDb.execSQL(MessageDb.CREATE_INDEX_3);
+        mDb.execSQL(MessageDb.CREATE_INDEX_4);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void unsent_usesPartialIndex_noSort() {
+        String plan = plan(MessageDb.SQL_UNSENT, "1");
+        assertTrue(plan, plan.contains(MessageDb.INDEX_NAME_3));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void deleted_usesCoveringIndex_noSort() {
+        String plan = plan(MessageDb.SQL_DELETED, "1",
+                Integer.toString(BaseDb.Status.DELETED_HARD.value));
+        assertTrue(plan, plan.contains("COVERING INDEX " + MessageDb.INDEX_NAME_4));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void messageBySeq_usesEffectiveSeqIndex() {
+        String plan = plan(MessageDb.SQL_BY_SEQ, "1", "10");
+        assertTrue(plan, plan.contains(MessageDb.INDEX_NAME_2));
+    }
+
+    @Test
+    public void idLookups_useCoveringIndex() {
+        String plan = plan(TopicDb.SQL_ID_BY_NAME, "1", "grpTopic");
+        assertTrue(plan, plan.contains("COVERING INDEX " + TopicDb.INDEX_NAME));
+        plan = plan(UserDb.SQL_ID_BY_UID, "1", "usrAlice");
+        assertTrue(plan, plan.contains("COVERING INDEX " + UserDb.INDEX_NAME));
+    }
+
+    // Query plan as text.
+    private String plan(String sql, String... args) {
+        StringBuilder plan = new StringBuilder();
+        try (Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.append(c.getString(detail)).append('\n');
+            }
+        }
+        return plan.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package co.tinode.tinodesdk;
+
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import co.tinode.tinodesdk.model.Acs;
+import co.tinode.tinodesdk.model.AcsHelper;
+
+/**
+ * Access mode parsing and updates, done for every subscription and presence notification.
+ */
+@State(Scope.Benchmark)
+public class AcsBenchmark {
+    private final Map<String, String> mModes = Map.of("want", "JRWPS", "given", "JRWPASO", "mode", "JRWPS");
+    private final AcsHelper mHelper = new AcsHelper("JRWPASDO");
+
+    @Benchmark
+    public AcsHelper parse() {
+        return new AcsHelper("JRWPASDO");
+    }
+
+    @Benchmark
+    public String format() {
+        return mHelper.toString();
+    }
+
+    @Benchmark
+    public AcsHelper update() {
+        AcsHelper ah = new AcsHelper(mHelper);
+        ah.update("+D-R");
+        return ah;
+    }
+
+    @Benchmark
+    public Acs fromMap() {
+        return new Acs(mModes);
+    }
+}
@@ -0,0 +1,79 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import co.tinode.tinodesdk.model.ClientMessage;
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgClientGet;
+import co.tinode.tinodesdk.model.MsgClientHi;
+import co.tinode.tinodesdk.model.MsgClientLogin;
+import co.tinode.tinodesdk.model.MsgClientNote;
+import co.tinode.tinodesdk.model.MsgClientPub;
+import co.tinode.tinodesdk.model.MsgClientSub;
+import co.tinode.tinodesdk.model.MsgGetMeta;
+
+/**
+ * Serialization of outbound packets: to a String, and into the reusable buffer used by {@link Tinode#send}.
+ */
+@State(Scope.Benchmark)
+public class ClientMessageBenchmark {
+    @Param({"hi", "login", "sub", "pub", "get", "note"})
+    public String packet;
+
+    private ObjectMapper mMapper;
+    private ClientMessage<?, ?> mMessage;
+
+    @Setup
+    public void setUp() {
+        mMapper = Tinode.getJsonMapper();
+        mMessage = switch (packet) {
+            case "hi" -> new ClientMessage<>(new MsgClientHi("101", "0.22",
+                    "Tindroid/0.22.13 (Android 14; en_US); tindroid/0.22.13", "fcm-token-aXBob25lLXRva2Vu", "en-US",
+                    false));
+            case "login" -> new ClientMessage<>(new MsgClientLogin("102", "token",
+                    "SHpXZW9TRnRMeFBIcEM2QWFBQUFBQUFFa0FBMA=="));
+            case "sub" -> {
+                MsgGetMeta get = new MsgGetMeta();
+                get.setDesc(null);
+                get.setSub(null, null);
+                get.setData(null, 1500, 24);
+                yield new ClientMessage<>(new MsgClientSub<>("103", "grpkMNIAf6gEsA", null, get));
+            }
+            case "pub" -> new ClientMessage<>(new MsgClientPub("104", "grpkMNIAf6gEsA", true,
+                    Fixtures.value("drafty", "rich", Drafty.class), Map.of("mime", Drafty.MIME_TYPE)));
+            case "get" -> {
+                MsgGetMeta get = new MsgGetMeta();
+                get.setData(1400, 1500, 24);
+                yield new ClientMessage<>(new MsgClientGet("105", "grpkMNIAf6gEsA", get));
+            }
+            case "note" -> new ClientMessage<>(new MsgClientNote("grpkMNIAf6gEsA", "read", 1534));
+            default -> throw new IllegalArgumentException(packet);
+        };
+    }
+
+    @Benchmark
+    public String toJsonString() throws JsonProcessingException {
+        return mMapper.writeValueAsString(mMessage);
+    }
+
+    @Benchmark
+    public int toBuffer() throws JsonProcessingException {
+        OutboundBuffer out = OutboundBuffer.obtain();
+        try {
+            ByteBuffer payload = out.serialize(mMapper, WireCodec.json(), mMessage);
+            return payload.remaining();
+        } finally {
+            out.release();
+        }
+    }
+}
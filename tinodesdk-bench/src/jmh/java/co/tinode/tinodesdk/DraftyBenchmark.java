@@ -0,0 +1,74 @@
+package co.tinode.tinodesdk;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Drafty rendering: formatting for display, previews in the chat list and shortened quotes.
+ * Documents are from fixtures/drafty.json.
+ */
+@State(Scope.Benchmark)
+public class DraftyBenchmark {
+    @Param({"plain", "rich", "reply", "image", "long"})
+    public String doc;
+
+    private Drafty mDrafty;
+    private final HtmlFormatter mFormatter = new HtmlFormatter();
+
+    @Setup
+    public void setUp() {
+        mDrafty = Fixtures.value("drafty", doc, Drafty.class);
+    }
+
+    @Benchmark
+    public String format() {
+        return mDrafty.format(mFormatter);
+    }
+
+    @Benchmark
+    public Drafty preview() {
+        return mDrafty.preview(64);
+    }
+
+    @Benchmark
+    public Drafty shorten() {
+        return mDrafty.shorten(128, true);
+    }
+
+    // Renders document to HTML-like markup, similar in cost to building spans in the app.
+    static class HtmlFormatter implements Drafty.Formatter<String> {
+        @Override
+        public String apply(String tp, Map<String, Object> attr, List<String> content, Stack<String> context) {
+            StringBuilder sb = new StringBuilder();
+            String tag = tp != null ? tp.toLowerCase() : "span";
+            sb.append('<').append(tag);
+            if (attr != null) {
+                Object url = attr.get("url");
+                if (url != null) {
+                    sb.append(" href=\"").append(url).append('"');
+                }
+            }
+            sb.append('>');
+            if (content != null) {
+                for (String part : content) {
+                    sb.append(part);
+                }
+            }
+            return sb.append("</").append(tag).append('>').toString();
+        }
+
+        @Override
+        public String wrapText(CharSequence text) {
+            return text != null ? text.toString() : null;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package co.tinode.tinodesdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Parsing of markdown-like text typed by the user into Drafty. Inputs are from fixtures/markdown.json.
+ */
+@State(Scope.Benchmark)
+public class DraftyParseBenchmark {
+    @Param({"plain", "styled", "nested", "links", "mentions", "cyrillic", "notes"})
+    public String text;
+
+    private String mContent;
+
+    @Setup
+    public void setUp() {
+        mContent = Fixtures.get("markdown", text).asText();
+    }
+
+    @Benchmark
+    public Drafty parse() {
+        return Drafty.parse(mContent);
+    }
+}
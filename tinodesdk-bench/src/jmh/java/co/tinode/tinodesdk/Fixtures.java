@@ -0,0 +1,60 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Loader of benchmark fixtures from src/jmh/resources/fixtures. Each fixture file is a JSON object
+ * mapping case name to payload.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * Get one case from a fixture file.
+     *
+     * @param file name of the fixture file without extension, e.g. "packets".
+     * @param name name of the case in the file.
+     * @return payload of the case.
+     */
+    static JsonNode get(String file, String name) {
+        JsonNode node = load(file).get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("Missing fixture " + file + "/" + name);
+        }
+        return node;
+    }
+
+    /**
+     * Get one case from a fixture file as compact JSON, as it would arrive over the wire.
+     */
+    static String json(String file, String name) {
+        return get(file, name).toString();
+    }
+
+    /**
+     * Get one case and convert it to the given type.
+     */
+    static <T> T value(String file, String name, Class<T> type) {
+        try {
+            return Tinode.getJsonMapper().treeToValue(get(file, name), type);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static JsonNode load(String file) {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + file + ".json")) {
+            if (in == null) {
+                throw new IllegalArgumentException("Missing fixture file " + file);
+            }
+            return Tinode.getJsonMapper().readTree(in);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
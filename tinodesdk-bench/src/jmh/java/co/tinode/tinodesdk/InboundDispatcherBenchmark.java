@@ -0,0 +1,63 @@
+package co.tinode.tinodesdk;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Routing of inbound packets with a simulated cost of routing one packet (database insert, listener
+ * callbacks): on the socket thread ('inline') and through {@link InboundDispatcher} with the packets spread
+ * over the given number of topics. Results are per packet. 'inline' does not depend on the number of topics.
+ */
+@State(Scope.Benchmark)
+public class InboundDispatcherBenchmark {
+    private static final int PACKETS = 2_000;
+    private static final long ROUTE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final Runnable ROUTE = () -> LockSupport.parkNanos(ROUTE_NANOS);
+
+    @Param({"1", "4", "16", "64"})
+    public int topics;
+
+    private InboundDispatcher mDispatcher;
+    private String[] mTopics;
+
+    @Setup
+    public void setUp() {
+        mDispatcher = new InboundDispatcher(4, 512);
+        mTopics = new String[topics];
+        for (int i = 0; i < topics; i++) {
+            mTopics[i] = "grp" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDispatcher.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void inline() {
+        for (int i = 0; i < PACKETS; i++) {
+            ROUTE.run();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void dispatched() throws InterruptedException {
+        for (int i = 0; i < PACKETS; i++) {
+            mDispatcher.execute(mTopics[i % topics], ROUTE);
+        }
+        if (!mDispatcher.awaitIdle(30_000)) {
+            throw new IllegalStateException("Packets were not routed");
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import co.tinode.tinodesdk.model.Description;
+import co.tinode.tinodesdk.model.PrivateType;
+import co.tinode.tinodesdk.model.TheCard;
+
+/**
+ * Merging of topic descriptions and cards received from the server into cached copies.
+ * <p>
+ * {@link TheCard#merge} uses reflection over fields. The target card is merged with two different
+ * sources in turn, so every call finds something to change.
+ */
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+    private Description<TheCard, PrivateType> mDesc;
+
+    private TheCard mCard;
+    private TheCard[] mSources;
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() {
+        ObjectMapper mapper = Tinode.getJsonMapper();
+        JavaType type = mapper.getTypeFactory()
+                .constructParametricType(Description.class, TheCard.class, PrivateType.class);
+        mDesc = mapper.convertValue(Fixtures.get("packets", "meta-desc").get("meta").get("desc"), type);
+
+        mSources = new TheCard[] {
+                Fixtures.value("cards", "a", TheCard.class),
+                Fixtures.value("cards", "b", TheCard.class)
+        };
+        mCard = mSources[0].copy();
+    }
+
+    @Benchmark
+    public Description<TheCard, PrivateType> descriptionIntoEmpty() {
+        Description<TheCard, PrivateType> desc = new Description<>();
+        desc.merge(mDesc);
+        return desc;
+    }
+
+    @Benchmark
+    public boolean descriptionUnchanged() {
+        // Cached copy is already up to date: the common case for repeated {meta} responses.
+        return mDesc.merge(mDesc);
+    }
+
+    @Benchmark
+    public boolean card() {
+        mNext ^= 1;
+        return mCard.merge(mSources[mNext]);
+    }
+}
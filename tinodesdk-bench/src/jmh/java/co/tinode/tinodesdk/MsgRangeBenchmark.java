@@ -0,0 +1,68 @@
+package co.tinode.tinodesdk;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import co.tinode.tinodesdk.model.MsgRange;
+
+/**
+ * Range arithmetic used when tracking cached and missing messages.
+ * <p>
+ * {@link MsgRange#collapse} modifies its input, so each call gets a fresh copy; {@link #copy()} measures
+ * the cost of the copy alone.
+ */
+@State(Scope.Benchmark)
+public class MsgRangeBenchmark {
+    @Param({"16", "1024"})
+    public int count;
+
+    // Sorted, overlapping ranges, as produced by merging message IDs from several pages.
+    private MsgRange[] mOverlapping;
+    // Sorted ranges without overlaps and with gaps between them.
+    private MsgRange[] mCollapsed;
+
+    @Setup
+    public void setUp() {
+        // Fixed seed: the same input on every run.
+        Random random = new Random(42);
+        mOverlapping = new MsgRange[count];
+        int low = 1;
+        for (int i = 0; i < count; i++) {
+            int len = 1 + random.nextInt(20);
+            mOverlapping[i] = len == 1 ? new MsgRange(low) : new MsgRange(low, low + len);
+            // Next range may start inside the current one, right after it, or after a gap.
+            low += random.nextInt(len + 10);
+        }
+        Arrays.sort(mOverlapping);
+        mCollapsed = MsgRange.collapse(copyOf(mOverlapping));
+    }
+
+    @Benchmark
+    public MsgRange[] copy() {
+        return copyOf(mOverlapping);
+    }
+
+    @Benchmark
+    public MsgRange[] collapse() {
+        return MsgRange.collapse(copyOf(mOverlapping));
+    }
+
+    @Benchmark
+    public MsgRange[] gaps() {
+        return MsgRange.gaps(mCollapsed);
+    }
+
+    private static MsgRange[] copyOf(MsgRange[] src) {
+        MsgRange[] dst = new MsgRange[src.length];
+        for (int i = 0; i < src.length; i++) {
+            dst[i] = new MsgRange(src[i]);
+        }
+        return dst;
+    }
+}
@@ -0,0 +1,71 @@
+package co.tinode.tinodesdk;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing and formatting of server timestamps: {@link RFC3339Codec} compared to the pair of
+ * SimpleDateFormats previously used by RFC3339Format. A quarter of the timestamps have no milliseconds,
+ * which the old path handled by catching ParseException and parsing again with the second format.
+ * <p>
+ * SimpleDateFormat is not thread-safe, so the state is per thread.
+ */
+@State(Scope.Thread)
+public class RFC3339Benchmark {
+    // Power of two: the index wraps with a mask.
+    private static final int SAMPLES = 1024;
+
+    private String[] mSamples;
+    private int mNext = 0;
+    private SimpleDateFormat mFull;
+    private SimpleDateFormat mShort;
+
+    @Setup
+    public void setUp() {
+        // Fixed seed: the same input on every run.
+        Random random = new Random(7);
+        mSamples = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            mSamples[i] = RFC3339Codec.format(new Date(1_600_000_000_000L + random.nextInt(Integer.MAX_VALUE)));
+            if (i % 4 == 0) {
+                // Server sometimes omits milliseconds.
+                mSamples[i] = mSamples[i].substring(0, 19) + "Z";
+            }
+        }
+
+        mFull = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        mFull.setTimeZone(TimeZone.getTimeZone("UTC"));
+        mShort = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        mShort.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Benchmark
+    public String codec() throws ParseException {
+        return RFC3339Codec.format(RFC3339Codec.parse(next()));
+    }
+
+    @Benchmark
+    public String simpleDateFormat() throws ParseException {
+        String text = next();
+        Date date;
+        try {
+            date = mFull.parse(text);
+        } catch (ParseException ignored) {
+            date = mShort.parse(text);
+        }
+        return mFull.format(date);
+    }
+
+    private String next() {
+        return mSamples[mNext++ & (SAMPLES - 1)];
+    }
+}
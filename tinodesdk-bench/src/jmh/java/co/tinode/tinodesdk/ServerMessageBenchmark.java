@@ -0,0 +1,58 @@
+package co.tinode.tinodesdk;
+
+import java.nio.charset.StandardCharsets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import co.tinode.tinodesdk.model.PrivateType;
+import co.tinode.tinodesdk.model.ServerMessage;
+import co.tinode.tinodesdk.model.TheCard;
+
+/**
+ * Parsing of inbound packets, from a String as delivered by the websocket and from UTF-8 bytes.
+ * Packets are from fixtures/packets.json; 'meta-sub' is a 'me' subscription list of 40 contacts.
+ */
+@State(Scope.Benchmark)
+public class ServerMessageBenchmark {
+    @Param({"ctrl", "data", "data-plain", "meta-desc", "meta-sub", "pres", "info"})
+    public String packet;
+
+    private Tinode mTinode;
+    private String mJson;
+    private byte[] mBytes;
+
+    @Setup
+    public void setUp() {
+        mTinode = new Tinode("bench", "apikey");
+        // Same types as the app uses.
+        mTinode.setDefaultTypeOfMetaPacket(TheCard.class, PrivateType.class);
+        mTinode.setMeTypeOfMetaPacket(TheCard.class);
+        mTinode.setFndTypeOfMetaPacket(TheCard.class);
+
+        mJson = Fixtures.json("packets", packet);
+        mBytes = mJson.getBytes(StandardCharsets.UTF_8);
+        if (mTinode.parseServerMessageFromJson(mJson) == null) {
+            throw new IllegalStateException("Fixture '" + packet + "' cannot be parsed");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTinode.maybeDisconnect(false);
+    }
+
+    @Benchmark
+    public ServerMessage parseString() {
+        return mTinode.parseServerMessageFromJson(mJson);
+    }
+
+    @Benchmark
+    public ServerMessage parseBytes() {
+        return mTinode.parseServerMessageFromJson(mBytes, 0, mBytes.length);
+    }
+}
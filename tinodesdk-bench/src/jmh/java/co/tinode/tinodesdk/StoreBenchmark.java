@@ -0,0 +1,168 @@
+package co.tinode.tinodesdk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+
+/**
+ * Queries on a large topic in the JVM stores: ranges of missing and cached messages, queued messages,
+ * lookup by seq, and opening of a saved {@link MappedStore}. The cost of the queries should not depend
+ * on the size of the topic.
+ * <p>
+ * The topic has {@code count} messages with a gap after every 1000 and 100 queued messages.
+ */
+public class StoreBenchmark {
+    private static final String TOPIC = "grpkMNIAf6gEsA";
+    private static final String ME = "usrMe";
+
+    @State(Scope.Benchmark)
+    public static class LargeTopic {
+        @Param({"memory", "mapped"})
+        public String store;
+
+        @Param({"10000", "1000000"})
+        public int count;
+
+        Storage mStore;
+        Topic mTopic;
+        File mDir;
+        int mNext = 0;
+
+        @Setup
+        public void setUp() throws IOException {
+            if ("mapped".equals(store)) {
+                mDir = Files.createTempDirectory("store-bench").toFile();
+                mStore = new MappedStore(mDir);
+            } else {
+                mStore = new InMemoryStore();
+            }
+            mTopic = fill(mStore, count);
+            for (int i = 0; i < 100; i++) {
+                mStore.msgReady(mTopic, mStore.msgDraft(mTopic, Drafty.fromPlainText("q" + i), null).getDbId(), null);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            if (mStore instanceof MappedStore) {
+                ((MappedStore) mStore).close();
+            }
+            delete(mDir);
+        }
+
+        // Start of the next page: pages are spread over the topic.
+        int nextFrom() {
+            mNext = (mNext + 997) % (count - 200);
+            return 1 + mNext;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SavedTopic {
+        @Param({"10000", "200000"})
+        public int count;
+
+        File mDir;
+
+        @Setup
+        public void setUp() throws IOException {
+            mDir = Files.createTempDirectory("store-bench").toFile();
+            MappedStore store = new MappedStore(mDir);
+            fill(store, count);
+            store.close();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            delete(mDir);
+        }
+    }
+
+    @Benchmark
+    public MsgRange[] missingRanges(LargeTopic t) {
+        return t.mStore.getMissingRanges(t.mTopic, t.nextFrom(), 100, true);
+    }
+
+    @Benchmark
+    public MsgRange[] cachedRanges(LargeTopic t) {
+        int from = t.nextFrom();
+        return t.mStore.msgIsCached(t.mTopic, new MsgRange[]{new MsgRange(from, from + 50)});
+    }
+
+    @Benchmark
+    public boolean queued(LargeTopic t) throws IOException {
+        Iterator<Storage.Message> queued = t.mStore.getQueuedMessages(t.mTopic);
+        boolean found = queued.hasNext();
+        ((Closeable) queued).close();
+        return found;
+    }
+
+    @Benchmark
+    public Storage.Message messageBySeq(LargeTopic t) {
+        return t.mStore.getMessageBySeq(t.mTopic, t.nextFrom());
+    }
+
+    @Benchmark
+    public Topic open(SavedTopic t) throws IOException {
+        MappedStore store = new MappedStore(t.mDir);
+        try {
+            return new Tinode("store-bench", "apikey", store, null).getTopic(TOPIC);
+        } finally {
+            store.close();
+        }
+    }
+
+    // Create the topic and save messages into it, leaving a gap after every 1000.
+    private static Topic fill(Storage store, int count) {
+        store.setMyUid(ME, "ws://localhost:6060");
+        Tinode tinode = new Tinode("store-bench", "apikey", store, null);
+        Topic topic = tinode.newTopic(TOPIC, null);
+        topic.persist();
+
+        MsgServerData m = new MsgServerData();
+        m.topic = TOPIC;
+        m.from = "usrAlice";
+        m.content = Drafty.fromPlainText("message text");
+        for (int seq = 1; seq <= count; seq++) {
+            if (seq % 1000 == 0) {
+                continue;
+            }
+            m.seq = seq;
+            m.ts = new Date(1_700_000_000_000L + seq * 1000L);
+            store.msgReceived(topic, null, m);
+        }
+        return topic;
+    }
+
+    private static void delete(File dir) throws IOException {
+        if (dir == null) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir.toPath())) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+    }
+}
@@ -24,6 +24,12 @@
 # Classes which define json wire protocol.
 -keep class co.tinode.tinodesdk.model.** {*;}
 
+# Listener events are matched to the methods which implement them by name, see EventBus.
+-keepclassmembernames interface co.tinode.tinodesdk.Tinode$EventListener { <methods>; }
+-keepclassmembernames class * implements co.tinode.tinodesdk.Tinode$EventListener { public void on*(...); }
+-keepclassmembernames interface co.tinode.tinodesdk.Topic$Listener { <methods>; }
+-keepclassmembernames class * implements co.tinode.tinodesdk.Topic$Listener { public void on*(...); }
+
 -keepattributes *Annotation*,EnclosingMethod,Signature
 -keepattributes SourceFile,LineNumberTable
 
@@ -2,27 +2,26 @@ package co.tinode.tinodesdk;
 
 import android.util.Log;
 
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.drafts.Draft_6455;
-import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
-import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.framing.CloseFrame;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocket;
-
 /**
- * A thinly wrapped websocket connection.
+ * A websocket connection with automatic reconnects. The socket is provided by a {@link Transport}:
+ * a new one is created for every connection attempt.
+ * <p>
+ * Connection used to extend Java-WebSocket's WebSocketClient. The client methods which callers used
+ * on it, {@link #getURI()}, {@link #isOpen()}, {@link #send(String)}, {@link #send(byte[])} and
+ * {@link #close()}, are kept with the same behavior. Overriding the WebSocketClient callbacks is no
+ * longer possible: events are delivered to {@link WsListener}.
  */
-public class Connection extends WebSocketClient {
+public class Connection {
     private static final String TAG = "Connection";
 
     private static final int CONNECTION_TIMEOUT = 3000; // in milliseconds
@@ -36,14 +35,20 @@ public class Connection extends WebSocketClient {
         CONNECTING,
         // Connected.
         CONNECTED,
-        // Disconnected. A thread is waiting to reconnect again.
+        // Disconnected. A reconnect attempt is scheduled.
         WAITING_TO_RECONNECT,
         // Disconnected. Not waiting to reconnect.
         CLOSED
     }
 
+    private final URI mEndpoint;
+    private final Map<String, String> mHeaders;
+    private final Transport.Factory mTransportFactory;
     private final WsListener mListener;
 
+    // Transport of the current connection attempt.
+    private volatile Transport mTransport = null;
+
     // Connection status
     private State mStatus;
 
@@ -56,12 +61,31 @@ public class Connection extends WebSocketClient {
 
     // Exponential backoff/reconnecting
     final private ExpBackoff backoff = new ExpBackoff();
+    // Scheduled reconnect attempt.
+    private ScheduledFuture<?> mReconnectTask = null;
+    // Time when the connection started waiting to reconnect, System.nanoTime().
+    private long mWaitingSince = 0;
+    // Reconnect without the backoff delay once the current socket is closed, see dropConnection().
+    private boolean mReconnectNow = false;
 
     @SuppressWarnings("WeakerAccess")
     protected Connection(URI endpoint, String apikey, WsListener listener) {
-        super(normalizeEndpoint(endpoint), new Draft_6455(new PerMessageDeflateExtension()),
-                wrapApiKey(apikey), CONNECTION_TIMEOUT);
-        setReuseAddr(true);
+        this(endpoint, apikey, listener, null);
+    }
+
+    /**
+     * Create connection which uses the given transport.
+     *
+     * @param endpoint server address.
+     * @param apikey   API key.
+     * @param listener receiver of connection events.
+     * @param factory  creates transports for connection attempts; null to use the default Java-WebSocket transport.
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected Connection(URI endpoint, String apikey, WsListener listener, Transport.Factory factory) {
+        mEndpoint = normalizeEndpoint(endpoint);
+        mHeaders = wrapApiKey(apikey);
+        mTransportFactory = factory != null ? factory : JavaWebSocketTransport.FACTORY;
 
         mListener = listener;
         mStatus = State.NEW;
@@ -75,6 +99,20 @@ public class Connection extends WebSocketClient {
         return headers;
     }
 
+    /**
+     * Open TCP and TLS connection to the endpoint in the background, so the next connection attempt
+     * to the same endpoint does not have to wait for the handshakes. To be called when a connection is
+     * likely to be needed soon, e.g. when a push notification is received. The socket is closed if
+     * it's not used within a few seconds.
+     *
+     * @param endpoint server address as passed to the constructor.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static void warmUp(URI endpoint) {
+        URI uri = normalizeEndpoint(endpoint);
+        WarmSocketFactory.warmUp(uri.getHost(), uri.getPort(), "wss".equals(uri.getScheme()), CONNECTION_TIMEOUT);
+    }
+
     private static URI normalizeEndpoint(URI endpoint) {
         String path = endpoint.getPath();
         if (path.isEmpty()) {
@@ -107,32 +145,70 @@ public class Connection extends WebSocketClient {
         return endpoint;
     }
 
-    private void connectSocket(final boolean reconnect) {
-        new Thread(() -> {
-            try {
-                if (reconnect) {
-                    reconnectBlocking();
-                } else {
-                    connectBlocking(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
-                }
+    // Start connection attempt with a new transport. The previous transport, if any, is dropped.
+    private void connectSocket() {
+        Transport transport = mTransportFactory.create(mEndpoint, mHeaders, CONNECTION_TIMEOUT,
+                new TransportListener());
+        Transport old;
+        synchronized (this) {
+            old = mTransport;
+            mTransport = transport;
+        }
+        if (old != null) {
+            old.abort(CloseFrame.ABNORMAL_CLOSE, "replaced");
+        }
+        transport.connect();
+    }
 
-                if ("wss".equals(uri.getScheme())) {
-                    // SNI: Verify server host name.
-                    SSLSession sess = ((SSLSocket) getSocket()).getSession();
-                    String hostName = uri.getHost();
-                    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(hostName, sess)) {
-                        close();
-                        throw new SSLHandshakeException("SNI verification failed. Expected: '" + uri.getHost() +
-                                "', actual: '" + sess.getPeerPrincipal() + "'");
-                    }
-                }
-            } catch (Exception ex) {
-                Log.w(TAG, "WS connection failed", ex);
-                if (mListener != null) {
-                    mListener.onError(Connection.this, ex);
-                }
+    // Schedule reconnect attempt after a backoff delay. Must be called while holding the lock.
+    private void scheduleReconnect(boolean now) {
+        long delay;
+        if (now) {
+            backoff.reset();
+            delay = 0;
+        } else {
+            delay = backoff.getNextDelay();
+        }
+        mReconnectTask = SharedScheduler.get().schedule(this::attemptReconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Make scheduled reconnect attempt unless the connection no longer needs it.
+    private void attemptReconnect() {
+        long waited;
+        synchronized (this) {
+            if (mStatus != State.WAITING_TO_RECONNECT) {
+                return;
             }
-        }).start();
+            mStatus = State.CONNECTING;
+            mReconnectTask = null;
+            waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mWaitingSince);
+        }
+
+        if (mListener != null) {
+            mListener.onReconnect(this, waited);
+        }
+        connectSocket();
+    }
+
+    // Cancel scheduled reconnect attempt. Must be called while holding the lock.
+    private void cancelReconnect() {
+        if (mReconnectTask != null) {
+            mReconnectTask.cancel(false);
+            mReconnectTask = null;
+        }
+    }
+
+    /**
+     * Reconnect right away if the connection is waiting for the backoff timer, e.g. when the network
+     * becomes available. Does nothing if the connection is connected, connecting or closed.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public synchronized void retryNow() {
+        if (mStatus == State.WAITING_TO_RECONNECT) {
+            cancelReconnect();
+            backoff.reset();
+            SharedScheduler.get().execute(this::attemptReconnect);
+        }
     }
 
     /**
@@ -154,15 +230,12 @@ public class Connection extends WebSocketClient {
                 // Already connected or in process of connecting: do nothing.
                 break;
             case WAITING_TO_RECONNECT:
-                backoff.wakeUp();
+                retryNow();
                 break;
             case NEW:
-                mStatus = State.CONNECTING;
-                connectSocket(false);
-                break;
             case CLOSED:
                 mStatus = State.CONNECTING;
-                connectSocket(true);
+                connectSocket();
                 break;
             // exhaustive, no default:
         }
@@ -175,19 +248,129 @@ public class Connection extends WebSocketClient {
      * The call is idempotent: if connection is already closed it does nothing.
      */
     @SuppressWarnings("WeakerAccess")
-    synchronized public void disconnect() {
-        boolean wakeUp = mAutoreconnect;
-        mAutoreconnect = false;
+    public void disconnect() {
+        Transport transport;
+        synchronized (this) {
+            boolean wakeUp = mAutoreconnect;
+            mAutoreconnect = false;
+            transport = mTransport;
+
+            if (wakeUp) {
+                // Make sure we are not waiting to reconnect.
+                cancelReconnect();
+                backoff.reset();
+                if (mStatus == State.WAITING_TO_RECONNECT) {
+                    mStatus = State.CLOSED;
+                }
+            }
+        }
 
-        // Actually close the socket (non-blocking).
-        close();
+        // Actually close the socket (non-blocking). Not under the lock: the transport may report
+        // the close to onClose() while holding its own lock, e.g. when the socket is being aborted.
+        if (transport != null) {
+            transport.close();
+        }
+    }
 
-        if (wakeUp) {
-            // Make sure we are not waiting to reconnect
-            backoff.wakeUp();
+    /**
+     * Drop the socket without the closing handshake, e.g. when the server stopped responding,
+     * and reconnect right away if autoreconnect is enabled.
+     *
+     * @param reason reason for dropping the connection, for logging.
+     */
+    void dropConnection(String reason) {
+        Transport transport;
+        synchronized (this) {
+            if (mStatus == State.WAITING_TO_RECONNECT) {
+                // Already closed.
+                retryNow();
+                return;
+            }
+            transport = mTransport;
+            // The socket is not closed yet: onClose() schedules the attempt.
+            mReconnectNow = mAutoreconnect;
+        }
+        if (transport != null) {
+            transport.abort(CloseFrame.ABNORMAL_CLOSE, reason);
         }
     }
 
+    /**
+     * Send text as a websocket text frame.
+     *
+     * @param text text to send.
+     */
+    public void send(String text) {
+        transport().send(text);
+    }
+
+    /**
+     * Send bytes as a websocket binary frame.
+     *
+     * @param data bytes to send.
+     */
+    public void send(byte[] data) {
+        sendBinary(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Send UTF-8 encoded text as a single websocket text frame. The payload is copied into the
+     * outgoing frame before the call returns, so the caller may reuse the buffer.
+     *
+     * @param payload UTF-8 encoded text to send.
+     */
+    void sendText(ByteBuffer payload) {
+        transport().sendText(payload);
+    }
+
+    /**
+     * Send bytes as a single websocket binary frame. The payload is copied into the
+     * outgoing frame before the call returns, so the caller may reuse the buffer.
+     *
+     * @param payload bytes to send.
+     */
+    void sendBinary(ByteBuffer payload) {
+        transport().sendBinary(payload);
+    }
+
+    /**
+     * Check if reading from the current socket can be paused instead of blocking the thread
+     * delivering messages, see {@link Transport#canPauseReading()}.
+     */
+    boolean canPauseReading() {
+        Transport transport = mTransport;
+        return transport != null && transport.canPauseReading();
+    }
+
+    /**
+     * Stop reading from the current socket until {@link #resumeReading()} is called.
+     */
+    void pauseReading() {
+        Transport transport = mTransport;
+        if (transport != null) {
+            transport.pauseReading();
+        }
+    }
+
+    /**
+     * Resume reading from the socket. Does nothing if the socket was replaced since it was paused:
+     * the new one is not paused.
+     */
+    void resumeReading() {
+        Transport transport = mTransport;
+        if (transport != null) {
+            transport.resumeReading();
+        }
+    }
+
+    private Transport transport() {
+        Transport transport = mTransport;
+        if (transport == null) {
+            throw new NotConnectedException();
+        }
+        return transport;
+    }
+
     /**
      * Check if the socket is OPEN.
      *
@@ -195,7 +378,41 @@ public class Connection extends WebSocketClient {
      */
     @SuppressWarnings("WeakerAccess")
     public boolean isConnected() {
-        return isOpen();
+        Transport transport = mTransport;
+        return transport != null && transport.isOpen();
+    }
+
+    /**
+     * Get normalized address of the websocket endpoint.
+     *
+     * @return endpoint URI.
+     */
+    public URI getURI() {
+        return mEndpoint;
+    }
+
+    /**
+     * Check if the socket is OPEN.
+     *
+     * @deprecated use {@link #isConnected()}.
+     */
+    @Deprecated
+    public boolean isOpen() {
+        return isConnected();
+    }
+
+    /**
+     * Gracefully close the current socket. If autoreconnect is enabled the connection reconnects
+     * after a backoff delay.
+     *
+     * @deprecated use {@link #disconnect()} which also stops reconnecting.
+     */
+    @Deprecated
+    public void close() {
+        Transport transport = mTransport;
+        if (transport != null) {
+            transport.close();
+        }
     }
 
     /**
@@ -217,8 +434,7 @@ public class Connection extends WebSocketClient {
         backoff.reset();
     }
 
-    @Override
-    public void onOpen(ServerHandshake handshakeData) {
+    private void onOpen() {
         synchronized (this) {
             mStatus = State.CONNECTED;
         }
@@ -232,27 +448,17 @@ public class Connection extends WebSocketClient {
         }
     }
 
-    @Override
-    public void onMessage(String message) {
-        if (mListener != null) {
-            mListener.onMessage(this, message);
-        }
-    }
-
-    @Override
-    public void onMessage(ByteBuffer blob) {
-        // do nothing, server does not send binary frames
-        Log.w(TAG, "binary message received (should not happen)");
-    }
-
-    @Override
-    public void onClose(int code, String reason, boolean remote) {
+    private void onClose(int code, String reason, boolean remote) {
+        final boolean now;
         // Avoid infinite recursion
         synchronized (this) {
+            now = mReconnectNow;
+            mReconnectNow = false;
             if (mStatus == State.WAITING_TO_RECONNECT) {
                 return;
             } else if (mAutoreconnect) {
                 mStatus = State.WAITING_TO_RECONNECT;
+                mWaitingSince = System.nanoTime();
             } else {
                 mStatus = State.CLOSED;
             }
@@ -262,30 +468,64 @@ public class Connection extends WebSocketClient {
             mListener.onDisconnect(this, remote, code, reason);
         }
 
-        if (mAutoreconnect) {
-            new Thread(() -> {
-                while (mStatus == State.WAITING_TO_RECONNECT) {
-                    backoff.doSleep();
-
-                    synchronized (Connection.this) {
-                        // Check if we no longer need to connect.
-                        if (mStatus != State.WAITING_TO_RECONNECT) {
-                            break;
-                        }
-                        mStatus = State.CONNECTING;
-                    }
-                    connectSocket(true);
-                }
-            }).start();
+        synchronized (this) {
+            // The listener may have reconnected or disconnected already.
+            if (mStatus == State.WAITING_TO_RECONNECT && mReconnectTask == null) {
+                scheduleReconnect(now);
+            }
         }
     }
 
-    @Override
-    public void onError(Exception ex) {
-        Log.w(TAG, "Websocket error", ex);
+    // Receives events of the current transport. Events of transports replaced by a newer attempt are ignored.
+    private class TransportListener implements Transport.Listener {
+        @Override
+        public void onOpen(Transport transport) {
+            if (transport == mTransport) {
+                Connection.this.onOpen();
+            } else {
+                transport.abort(CloseFrame.ABNORMAL_CLOSE, "replaced");
+            }
+        }
 
-        if (mListener != null) {
-            mListener.onError(this, ex);
+        @Override
+        public void onMessage(Transport transport, String message) {
+            if (transport == mTransport && mListener != null) {
+                mListener.onMessage(Connection.this, message);
+            }
+        }
+
+        @Override
+        public void onMessage(Transport transport, ByteBuffer message) {
+            // Server sends binary frames only if a binary wire encoding was negotiated.
+            if (transport == mTransport && mListener != null) {
+                mListener.onMessage(Connection.this, message);
+            }
+        }
+
+        @Override
+        public void onClose(Transport transport, int code, String reason, boolean remote) {
+            if (transport == mTransport) {
+                Connection.this.onClose(code, reason, remote);
+            }
+        }
+
+        @Override
+        public void onError(Transport transport, Exception ex) {
+            if (transport != mTransport) {
+                return;
+            }
+            Log.w(TAG, "Websocket error", ex);
+
+            if (mListener != null) {
+                mListener.onError(Connection.this, ex);
+            }
+        }
+
+        @Override
+        public void onTlsHandshake(Transport transport, long nanos, boolean resumed, boolean warm) {
+            if (transport == mTransport && mListener != null) {
+                mListener.onTlsHandshake(Connection.this, nanos, resumed, warm);
+            }
         }
     }
 
@@ -296,9 +536,21 @@ public class Connection extends WebSocketClient {
         default void onMessage(Connection conn, String message) {
         }
 
+        default void onMessage(Connection conn, ByteBuffer message) {
+        }
+
         default void onDisconnect(Connection conn, boolean byServer, int code, String reason) {
         }
 
+        // Called before an automatic reconnect attempt with the time spent waiting for it, milliseconds.
+        default void onReconnect(Connection conn, long backoff) {
+        }
+
+        // Called when the TLS handshake is completed with its duration in nanoseconds: resumed is true if
+        // a cached session was used, warm is true if the socket was opened ahead of time by warmUp().
+        default void onTlsHandshake(Connection conn, long nanos, boolean resumed, boolean warm) {
+        }
+
         default void onError(Connection conn, Exception err) {
         }
     }
@@ -0,0 +1,162 @@
+package co.tinode.tinodesdk;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set of listeners with copy-on-write snapshots per event.
+ * <p>
+ * Listener interfaces in the SDK declare events as default no-op methods. A listener is subscribed
+ * only to the events which its class actually implements, so a listener interested in {data} is never
+ * invoked for {pres}. Snapshots are rebuilt when listeners are added or removed and are read without
+ * locking or copying when the event is fired.
+ * <p>
+ * Events are matched to the listener methods by name when the listeners are added, so the names of the
+ * listener methods must be kept by code shrinkers, see proguard-rules.pro.
+ *
+ * @param <L> type of listeners.
+ */
+final class EventBus<L> {
+    /**
+     * Listeners of one event.
+     */
+    static final class Event<L> {
+        private final Method mMethod;
+        private volatile L[] mListeners;
+
+        private Event(Method method, L[] listeners) {
+            mMethod = method;
+            mListeners = listeners;
+        }
+
+        /**
+         * Get listeners subscribed to the event in the order they were added.
+         * The returned array is shared and must not be modified.
+         */
+        L[] listeners() {
+            return mListeners;
+        }
+
+        // Check if the listener implements the event method rather than inheriting the default one.
+        private boolean isImplementedBy(Object listener) {
+            Class<?> base = mMethod.getDeclaringClass();
+            if (!base.isInstance(listener)) {
+                return false;
+            }
+            try {
+                return listener.getClass().getMethod(mMethod.getName(), mMethod.getParameterTypes())
+                        .getDeclaringClass() != base;
+            } catch (NoSuchMethodException ignored) {
+                return false;
+            }
+        }
+    }
+
+    private final Class<L> mType;
+    private final List<Event<L>> mEvents = new ArrayList<>();
+    private final L[] mEmpty;
+    // All listeners in the order they were added. Guarded by 'this'.
+    private L[] mAll;
+
+    EventBus(Class<L> type) {
+        mType = type;
+        mEmpty = newArray(0);
+        mAll = mEmpty;
+    }
+
+    /**
+     * Register event fired by calling the given listener method.
+     *
+     * @param type   class which declares the default implementation of the method.
+     * @param name   name of the method.
+     * @param params parameter types of the method.
+     * @return handle for obtaining listeners of the event.
+     */
+    synchronized Event<L> event(Class<?> type, String name, Class<?>... params) {
+        Method method;
+        try {
+            method = type.getMethod(name, params);
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException("No event method " + type.getName() + "." + name, ex);
+        }
+        Event<L> event = new Event<>(method, mEmpty);
+        event.mListeners = filter(event);
+        mEvents.add(event);
+        return event;
+    }
+
+    /**
+     * Add listener. Nothing is done if the listener is already added.
+     *
+     * @return true if the listener was added.
+     */
+    synchronized boolean add(L listener) {
+        if (contains(listener)) {
+            return false;
+        }
+        L[] all = Arrays.copyOf(mAll, mAll.length + 1);
+        all[mAll.length] = listener;
+        update(all);
+        return true;
+    }
+
+    /**
+     * Remove listener.
+     *
+     * @return true if the listener was found and removed.
+     */
+    synchronized boolean remove(L listener) {
+        int index = indexOf(listener);
+        if (index < 0) {
+            return false;
+        }
+        L[] all = newArray(mAll.length - 1);
+        System.arraycopy(mAll, 0, all, 0, index);
+        System.arraycopy(mAll, index + 1, all, index, all.length - index);
+        update(all);
+        return true;
+    }
+
+    synchronized boolean contains(L listener) {
+        return indexOf(listener) >= 0;
+    }
+
+    synchronized void clear() {
+        update(mEmpty);
+    }
+
+    private int indexOf(L listener) {
+        for (int i = 0; i < mAll.length; i++) {
+            if (mAll[i].equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void update(L[] all) {
+        mAll = all;
+        for (Event<L> event : mEvents) {
+            event.mListeners = filter(event);
+        }
+    }
+
+    private L[] filter(Event<L> event) {
+        int count = 0;
+        L[] result = newArray(mAll.length);
+        for (L l : mAll) {
+            if (event.isImplementedBy(l)) {
+                result[count++] = l;
+            }
+        }
+        return count == 0 ? mEmpty : count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    @SuppressWarnings("unchecked")
+    private L[] newArray(int size) {
+        return (L[]) Array.newInstance(mType, size);
+    }
+}
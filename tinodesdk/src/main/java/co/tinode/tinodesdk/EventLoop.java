@@ -0,0 +1,184 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector thread serving many non-blocking sockets. A small process-wide group of loops is shared by
+ * all {@link NioTransport} connections: each connection is bound to one loop for its lifetime and all
+ * socket operations of the connection run on the loop thread.
+ * <p>
+ * Handlers must not block: a blocked handler stalls every socket of the loop.
+ */
+final class EventLoop implements Runnable {
+    private static final String TAG = "EventLoop";
+
+    private static final String THREAD_NAME = "tinode-nio-";
+    // Number of loops shared by all connections.
+    private static final int LOOP_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    // Size of the buffer the sockets of the loop read into.
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receiver of socket readiness events.
+     */
+    interface Handler {
+        /**
+         * Called on the loop thread when the channel is ready for some of its interest operations.
+         *
+         * @param key selection key of the channel.
+         */
+        void onReady(SelectionKey key);
+    }
+
+    private static volatile EventLoop[] sLoops = null;
+    private static final AtomicInteger sNext = new AtomicInteger();
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    // True if the selector was woken up and has not yet picked up the tasks.
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+    // Buffers shared by all sockets of the loop, used on the loop thread only.
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteBuffer mTlsAppBuffer = null;
+    private ByteBuffer mTlsNetBuffer = null;
+
+    private EventLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Get a loop for a new connection. Connections are spread over the loops round-robin.
+     */
+    static EventLoop next() {
+        EventLoop[] loops = sLoops;
+        if (loops == null) {
+            synchronized (EventLoop.class) {
+                loops = sLoops;
+                if (loops == null) {
+                    loops = new EventLoop[LOOP_COUNT];
+                    try {
+                        for (int i = 0; i < loops.length; i++) {
+                            loops[i] = new EventLoop(THREAD_NAME + (i + 1));
+                        }
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException("Failed to open selector", ex);
+                    }
+                    sLoops = loops;
+                }
+            }
+        }
+        return loops[Math.floorMod(sNext.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Run the task on the loop thread after the current batch of events.
+     */
+    void execute(Runnable task) {
+        mTasks.add(task);
+        if (Thread.currentThread() != mThread && mWakeupPending.compareAndSet(false, true)) {
+            mSelector.wakeup();
+        }
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Register channel with the loop's selector. Must be called on the loop thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(mSelector, ops, handler);
+    }
+
+    /**
+     * Buffer for reading from sockets. The content is valid until the handler returns.
+     */
+    ByteBuffer readBuffer() {
+        mReadBuffer.clear();
+        return mReadBuffer;
+    }
+
+    /**
+     * Buffer for decrypted TLS data of at least the given size. The content is valid until the handler returns.
+     */
+    ByteBuffer tlsAppBuffer(int size) {
+        if (mTlsAppBuffer == null || mTlsAppBuffer.capacity() < size) {
+            mTlsAppBuffer = ByteBuffer.allocate(size);
+        }
+        mTlsAppBuffer.clear();
+        return mTlsAppBuffer;
+    }
+
+    /**
+     * Buffer for encrypted TLS data of at least the given size. The content is valid until the handler returns.
+     */
+    ByteBuffer tlsNetBuffer(int size) {
+        if (mTlsNetBuffer == null || mTlsNetBuffer.capacity() < size) {
+            mTlsNetBuffer = ByteBuffer.allocate(size);
+        }
+        mTlsNetBuffer.clear();
+        return mTlsNetBuffer;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (mTasks.isEmpty()) {
+                    mSelector.select();
+                } else {
+                    // Tasks queued by the loop thread itself: don't wait.
+                    mSelector.selectNow();
+                }
+                mWakeupPending.set(false);
+                runTasks();
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        ((Handler) key.attachment()).onReady(key);
+                    } catch (Exception ex) {
+                        Log.w(TAG, "Unhandled exception in socket handler", ex);
+                    }
+                }
+            } catch (IOException ex) {
+                Log.w(TAG, "Selector failed", ex);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                Log.w(TAG, "Unhandled exception in loop task", ex);
+            }
+        }
+    }
+}
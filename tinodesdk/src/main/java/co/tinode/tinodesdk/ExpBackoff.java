@@ -3,76 +3,50 @@ package co.tinode.tinodesdk;
 import java.util.Random;
 
 /**
- * Exponential backoff for reconnects.
+ * Exponential backoff for reconnects with decorrelated jitter: each delay is random between the
+ * base delay and three times the previous delay, so clients disconnected at the same time do not
+ * reconnect in lockstep.
  */
 public class ExpBackoff {
-    // Minimum delay = 1000ms, expected ~1500ms;
+    // Minimum delay = 1000ms.
     private static final int BASE_SLEEP_MS = 1000;
-    // Maximum delay 2^10 ~ 2000 seconds ~ 34 min.
+    // Maximum delay 2^10 = 1024 seconds ~ 17 min.
     private static final int MAX_SHIFT = 10;
 
+    // Maximum delay in milliseconds.
+    private static final long MAX_SLEEP_MS = (long) BASE_SLEEP_MS << MAX_SHIFT;
+
     private final Random random = new Random();
     private int attempt;
+    // Previous delay in milliseconds.
+    private long prevDelay = BASE_SLEEP_MS;
 
     @SuppressWarnings("WeakerAccess")
     public ExpBackoff() {
         this.attempt = 0;
     }
 
-    private Thread currentThread = null;
-
     /**
      * Increment attempt counter and return time to sleep in milliseconds
      * @return time to sleep in milliseconds
      */
     @SuppressWarnings("WeakerAccess")
-    public long getNextDelay() {
-        if (attempt > MAX_SHIFT) {
-            attempt = MAX_SHIFT;
+    public synchronized long getNextDelay() {
+        long upper = Math.min(MAX_SLEEP_MS, prevDelay * 3);
+        long delay = BASE_SLEEP_MS + (long) (random.nextDouble() * (upper - BASE_SLEEP_MS));
+        prevDelay = Math.max(delay, BASE_SLEEP_MS);
+        if (attempt < Integer.MAX_VALUE) {
+            attempt++;
         }
-
-        long delay = (long) BASE_SLEEP_MS * (1L << attempt) + random.nextInt(BASE_SLEEP_MS * (1 << attempt));
-        attempt++;
-
         return delay;
     }
 
-    /**
-     * Pause the current thread for the appropriate number of milliseconds.
-     * This method cannot be synchronized!
-     *
-     * @return false if the sleep was interrupted, true otherwise
-     */
-    @SuppressWarnings({"WeakerAccess", "UnusedReturnValue"})
-    public boolean doSleep() {
-        boolean result;
-        try {
-            currentThread = Thread.currentThread();
-            Thread.sleep(getNextDelay());
-            result = true;
-        } catch (InterruptedException e) {
-            result = false;
-        } finally {
-            currentThread = null;
-        }
-        return result;
-    }
-
-    public void reset() {
+    public synchronized void reset() {
         this.attempt = 0;
+        this.prevDelay = BASE_SLEEP_MS;
     }
 
     public int getAttemptCount() {
         return attempt;
     }
-
-    @SuppressWarnings({"WeakerAccess", "UnusedReturnValue"})
-    synchronized public boolean wakeUp() {
-        reset();
-        if (currentThread != null) {
-            currentThread.interrupt();
-            return true;
-        }
-        return false;
-    }
 }
@@ -0,0 +1,104 @@
+package co.tinode.tinodesdk;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous host name resolution for {@link NioTransport}. Lookups block, so they run on threads of their
+ * own instead of the {@link SharedScheduler#blocking()} pool. Results are cached for a short time and
+ * concurrent lookups of the same name are merged: many clients connecting to one server resolve its name once.
+ */
+final class HostResolver {
+    private static final String THREAD_NAME = "tinode-dns-";
+    // Maximum number of lookups running at the same time.
+    private static final int THREADS = 2;
+    // Idle threads are stopped after this many seconds.
+    private static final long KEEP_ALIVE = 30L;
+    // Successful lookups are reused for this long.
+    private static final long TTL = TimeUnit.SECONDS.toNanos(60);
+    // Failed lookups are reused for this long.
+    private static final long NEGATIVE_TTL = TimeUnit.SECONDS.toNanos(5);
+    // Expired entries are removed when the cache grows above this size.
+    private static final int MAX_ENTRIES = 256;
+
+    // Lookup of one name, running or completed.
+    private static final class Lookup {
+        final CompletableFuture<InetAddress> address = new CompletableFuture<>();
+        // Time when the result expires, System.nanoTime(). Valid once the lookup is completed.
+        volatile long expires;
+
+        boolean isExpired(long now) {
+            return address.isDone() && now - expires > 0;
+        }
+
+        void run(String host) {
+            try {
+                InetAddress result = InetAddress.getByName(host);
+                expires = System.nanoTime() + TTL;
+                address.complete(result);
+            } catch (UnknownHostException | SecurityException ex) {
+                expires = System.nanoTime() + NEGATIVE_TTL;
+                address.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Lookup> sCache = new ConcurrentHashMap<>();
+    private static volatile ExecutorService sPool = null;
+
+    private HostResolver() {
+    }
+
+    /**
+     * Resolve host name.
+     *
+     * @param host name or address literal.
+     * @return address of the host; completes exceptionally with {@link UnknownHostException} if the name
+     * can't be resolved.
+     */
+    static CompletableFuture<InetAddress> resolve(String host) {
+        long now = System.nanoTime();
+        Lookup[] started = new Lookup[1];
+        Lookup lookup = sCache.compute(host, (key, cached) -> {
+            if (cached != null && !cached.isExpired(now)) {
+                return cached;
+            }
+            return started[0] = new Lookup();
+        });
+        if (lookup == started[0]) {
+            if (sCache.size() > MAX_ENTRIES) {
+                sCache.values().removeIf(l -> l.isExpired(now));
+            }
+            pool().execute(() -> lookup.run(host));
+        }
+        return lookup.address;
+    }
+
+    private static ExecutorService pool() {
+        ExecutorService instance = sPool;
+        if (instance == null) {
+            synchronized (HostResolver.class) {
+                instance = sPool;
+                if (instance == null) {
+                    final AtomicInteger counter = new AtomicInteger();
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+                            KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, THREAD_NAME + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    sPool = instance = executor;
+                }
+            }
+        }
+        return instance;
+    }
+}
@@ -0,0 +1,1549 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.Subscription;
+
+/**
+ * Implementation of {@link Storage} which keeps everything in memory. Use it for headless clients, bots and
+ * tests, or as a baseline when measuring a persistent store. Nothing survives the process.
+ * <p>
+ * The semantics follow the SQLite store of the Android app: message statuses, temporary seq IDs of unsent
+ * messages, deletion markers and message edits behave the same way. Each topic keeps its messages in
+ * primitive int maps sorted by seq and effective seq, pending deletions as a sorted list of ranges, and
+ * messages waiting to be sent in a separate queue, so range queries cost a binary search plus the size of
+ * the result regardless of the number of messages in the topic.
+ * <p>
+ * Topic descriptions are kept by reference: {@link #topicGetAll} creates new topics with the values of
+ * the topics last passed to {@link #topicAdd} or {@link #topicUpdate}.
+ * <p>
+ * Persistent stores, such as {@link MappedStore}, use the same indexes and save the changes in the package-private
+ * hooks called after each change.
+ * <p>
+ * All methods are synchronized on the store.
+ */
+public class InMemoryStore implements Storage {
+    private static final String TAG = "InMemoryStore";
+
+    // Message status values, same as used by the app's database.
+    static final int STATUS_UNDEFINED = 0;
+    static final int STATUS_DRAFT = 10;
+    static final int STATUS_QUEUED = 20;
+    static final int STATUS_SENDING = 30;
+    static final int STATUS_FAILED = 40;
+    static final int STATUS_SYNCED = 50;
+    static final int STATUS_DELETED_HARD = 60;
+    static final int STATUS_DELETED_SOFT = 70;
+    static final int STATUS_DELETED_SYNCED = 80;
+
+    // Unsent messages are assigned temporary seq IDs starting with this value.
+    static final int UNSENT_ID_START = 2_000_000_000;
+
+    static final int MESSAGE_PREVIEW_LENGTH = 80;
+
+    // Last used date of topics which were never touched.
+    private static final Date NEVER_USED = new Date(1414213562373L);
+
+    String mMyUid = null;
+    String mServerURI = null;
+    String[] mCredMethods = null;
+    String mDeviceToken = null;
+    // UID of the account which owns the stored topics, users and messages.
+    String mDataOwner = null;
+    private long mTimeAdjustment = 0;
+
+    // Source of record IDs for topics, users, subscriptions and messages.
+    long mNextId = 1;
+
+    final Map<String, StoredTopic> mTopics = new HashMap<>();
+    final Map<String, StoredUser> mUsers = new HashMap<>();
+    final Map<Long, StoredMessage> mMessages = new HashMap<>();
+
+    public InMemoryStore() {
+    }
+
+    @Override
+    public synchronized String getMyUid() {
+        return mMyUid;
+    }
+
+    @Override
+    public synchronized void setMyUid(String uid, String hostURI) {
+        if (uid == null) {
+            mMyUid = null;
+            mServerURI = null;
+        } else {
+            if (mDataOwner != null && !mDataOwner.equals(uid)) {
+                // Data of another account.
+                clear();
+            }
+            mDataOwner = uid;
+            mMyUid = uid;
+            mServerURI = hostURI;
+        }
+        mCredMethods = null;
+        onAccountChanged();
+    }
+
+    @Override
+    public synchronized void updateCredentials(String[] credRequired) {
+        mCredMethods = credRequired;
+        onAccountChanged();
+    }
+
+    @Override
+    public synchronized void deleteAccount(String uid) {
+        if (uid == null) {
+            return;
+        }
+        if (uid.equals(mDataOwner)) {
+            clear();
+            mDataOwner = null;
+        }
+        if (uid.equals(mMyUid)) {
+            mMyUid = null;
+            mServerURI = null;
+            mCredMethods = null;
+        }
+        onAccountChanged();
+    }
+
+    @Override
+    public synchronized String getServerURI() {
+        return mServerURI;
+    }
+
+    @Override
+    public synchronized String getDeviceToken() {
+        return mDeviceToken;
+    }
+
+    @Override
+    public synchronized void saveDeviceToken(String token) {
+        mDeviceToken = token;
+        onAccountChanged();
+    }
+
+    @Override
+    public synchronized void logout() {
+        mMyUid = null;
+        mServerURI = null;
+        mCredMethods = null;
+        mDataOwner = null;
+        clear();
+        onAccountChanged();
+    }
+
+    @Override
+    public synchronized void setTimeAdjustment(long adjustment) {
+        mTimeAdjustment = adjustment;
+    }
+
+    // Readers see the whole batch or none of it.
+    @Override
+    public synchronized void runBatch(Runnable updates) {
+        updates.run();
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return mMyUid != null && (mCredMethods == null || mCredMethods.length == 0);
+    }
+
+    @Override
+    public synchronized Topic[] topicGetAll(Tinode tinode) {
+        if (mTopics.isEmpty()) {
+            return null;
+        }
+
+        List<StoredTopic> stored = new ArrayList<>(mTopics.values());
+        // Pinned first, then most recently used.
+        stored.sort((a, b) -> {
+            int pinned = Integer.compare(b.topic.getPinnedRank(), a.topic.getPinnedRank());
+            return pinned != 0 ? pinned : b.lastUsed.compareTo(a.lastUsed);
+        });
+        Topic[] topics = new Topic[stored.size()];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = restore(tinode, stored.get(i));
+        }
+        return topics;
+    }
+
+    @Override
+    public synchronized Topic topicGet(Tinode tinode, String name) {
+        StoredTopic st = mTopics.get(name);
+        return st != null ? restore(tinode, st) : null;
+    }
+
+    @Override
+    public synchronized long topicAdd(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st != null) {
+            return st.id;
+        }
+
+        StoredTopic old = mTopics.get(topic.getName());
+        if (old != null) {
+            // Topic was soft-deleted earlier.
+            removeTopic(old);
+        }
+
+        st = new StoredTopic(mNextId++, topic.getName());
+        st.topic = topic;
+        st.status = topic.isNew() ? STATUS_QUEUED : STATUS_SYNCED;
+        st.lastUsed = topic.getTouched() != null ? topic.getTouched() : NEVER_USED;
+        st.read = topic.getRead();
+        st.recv = topic.getRecv();
+        st.seq = topic.getSeq();
+        st.maxDel = topic.getMaxDel();
+        mTopics.put(st.name, st);
+        topic.setLocal(st);
+        onTopicChanged(st);
+        return st.id;
+    }
+
+    @Override
+    public synchronized boolean topicUpdate(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || mTopics.get(st.name) != st) {
+            return false;
+        }
+
+        if (st.status == STATUS_QUEUED && !topic.isNew()) {
+            // The server has assigned a permanent name to the topic.
+            st.status = STATUS_SYNCED;
+            if (!st.name.equals(topic.getName())) {
+                mTopics.remove(st.name);
+                st.name = topic.getName();
+                mTopics.put(st.name, st);
+            }
+        }
+        st.topic = topic;
+        if (topic.getTouched() != null) {
+            st.lastUsed = topic.getTouched();
+        }
+        onTopicChanged(st);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean topicDelete(Topic topic, boolean hard) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return false;
+        }
+
+        if (hard) {
+            removeTopic(st);
+        } else {
+            st.status = STATUS_DELETED_HARD;
+            onTopicChanged(st);
+        }
+        topic.setLocal(null);
+        return true;
+    }
+
+    @Override
+    public synchronized long subAdd(Topic topic, Subscription sub) {
+        return subInsert(topic, sub, STATUS_SYNCED);
+    }
+
+    @Override
+    public synchronized boolean subUpdate(Topic topic, Subscription sub) {
+        StoredSubscription ss = (StoredSubscription) sub.getLocal();
+        if (ss == null || !ss.isStored()) {
+            return false;
+        }
+
+        StoredUser su = mUsers.get(ss.sub.user);
+        if (su != null) {
+            su.update(sub.updated, sub.pub);
+            onUserChanged(su);
+        }
+        //noinspection unchecked
+        ss.sub = new Subscription<>(sub);
+        ss.status = STATUS_SYNCED;
+        onSubChanged(ss);
+        return true;
+    }
+
+    @Override
+    public synchronized long subNew(Topic topic, Subscription sub) {
+        return subInsert(topic, sub, STATUS_QUEUED);
+    }
+
+    @Override
+    public synchronized boolean subDelete(Topic topic, Subscription sub) {
+        StoredSubscription ss = (StoredSubscription) sub.getLocal();
+        if (ss == null || !ss.isStored()) {
+            return false;
+        }
+        ss.topic.subs.remove(ss.sub.user);
+        onSubRemoved(ss);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized Collection<Subscription> getSubscriptions(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || st.subs.isEmpty()) {
+            return null;
+        }
+
+        Collection<Subscription> result = new ArrayList<>(st.subs.size());
+        for (StoredSubscription ss : st.subs.values()) {
+            Subscription sub = new Subscription<>(ss.sub);
+            StoredUser su = mUsers.get(ss.sub.user);
+            if (su != null) {
+                sub.pub = su.pub;
+            }
+            sub.topic = st.name;
+            sub.seq = st.topic.getSeq();
+            sub.setLocal(ss);
+            result.add(sub);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized User userGet(String uid) {
+        StoredUser su = mUsers.get(uid);
+        if (su == null) {
+            return null;
+        }
+        User user = new User(uid);
+        user.updated = su.updated;
+        user.pub = su.pub;
+        user.setLocal(su);
+        return user;
+    }
+
+    @Override
+    public synchronized long userAdd(User user) {
+        StoredUser su = mUsers.get(user.uid);
+        if (su == null) {
+            su = userInsert(user.uid, user.updated, user.pub);
+        }
+        user.setLocal(su);
+        return su.id;
+    }
+
+    @Override
+    public synchronized boolean userUpdate(User user) {
+        StoredUser su = (StoredUser) user.getLocal();
+        if (su == null || mUsers.get(su.uid) != su) {
+            return false;
+        }
+        su.update(user.updated, user.pub);
+        onUserChanged(su);
+        return true;
+    }
+
+    @Override
+    public synchronized Message msgReceived(Topic topic, Subscription sub, MsgServerData m) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            Log.w(TAG, "Failed to save message, topic not stored " + topic.getName());
+            return null;
+        }
+
+        if (m.from != null && !mUsers.containsKey(m.from)) {
+            // Placeholder for the sender.
+            if (sub != null && m.from.equals(sub.user)) {
+                userInsert(sub.user, sub.updated, sub.pub);
+            } else {
+                userInsert(m.from, m.ts, null);
+            }
+        }
+
+        StoredMessage msg = new StoredMessage(m);
+        msg.status = STATUS_SYNCED;
+        boolean inserted = insert(st, msg) > 0;
+        StoredMessage result = msg.copy(this, -1);
+        if (inserted) {
+            topicMsgReceived(st, msg.ts, msg.seq);
+            onMessageInserted(st, msg);
+        }
+        return result;
+    }
+
+    // Readers see the whole batch or none of it.
+    @Override
+    public synchronized Message[] msgReceived(Topic topic, List<MsgServerData> batch) {
+        return Storage.super.msgReceived(topic, batch);
+    }
+
+    @Override
+    public synchronized Message msgSend(Topic topic, Drafty data, Map<String, Object> head) {
+        return insertLocal(topic, data, head, STATUS_SENDING);
+    }
+
+    @Override
+    public synchronized Message msgDraft(Topic topic, Drafty data, Map<String, Object> head) {
+        return insertLocal(topic, data, head, STATUS_DRAFT);
+    }
+
+    @Override
+    public synchronized boolean msgDraftUpdate(Topic topic, long dbMessageId, Drafty data) {
+        return update(dbMessageId, STATUS_UNDEFINED, data);
+    }
+
+    @Override
+    public synchronized boolean msgReady(Topic topic, long dbMessageId, Drafty data) {
+        return update(dbMessageId, STATUS_QUEUED, data);
+    }
+
+    @Override
+    public synchronized boolean msgSyncing(Topic topic, long dbMessageId, boolean sync) {
+        return update(dbMessageId, sync ? STATUS_SENDING : STATUS_QUEUED, null);
+    }
+
+    @Override
+    public synchronized boolean msgFailed(Topic topic, long dbMessageId) {
+        return update(dbMessageId, STATUS_FAILED, null);
+    }
+
+    @Override
+    public synchronized boolean msgPruneFailed(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || !pruneFailed(st)) {
+            return false;
+        }
+        onFailedPruned(st);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgDiscard(Topic topic, long dbMessageId) {
+        StoredMessage msg = mMessages.get(dbMessageId);
+        if (msg == null) {
+            return false;
+        }
+        StoredTopic st = msg.owner;
+        remove(st, msg);
+        onMessageRemoved(st, msg);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgDiscardSeq(Topic topic, int seq) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return false;
+        }
+        StoredMessage msg = st.messages.get(seq);
+        if (msg == null) {
+            return false;
+        }
+        remove(st, msg);
+        onMessageRemoved(st, msg);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgDelivered(Topic topic, long dbMessageId, Date timestamp, int seq) {
+        StoredMessage msg = mMessages.get(dbMessageId);
+        if (msg == null || !delivered(msg, timestamp, seq)) {
+            return false;
+        }
+        onMessageDelivered(msg.owner, msg);
+        return true;
+    }
+
+    // Update the sent message with the values assigned by the server.
+    boolean delivered(StoredMessage msg, Date timestamp, int seq) {
+        StoredTopic st = msg.owner;
+        int effSeq = msg.replacesSeq > 0 ? msg.replacesSeq : seq;
+        StoredMessage other = st.messages.get(seq);
+        StoredMessage otherEff = st.effective.get(effSeq);
+        if ((other != null && other != msg) || (otherEff != null && otherEff != msg)) {
+            // The same as a unique constraint violation in a database.
+            Log.w(TAG, "Delivered message collides with a stored one topic='" + st.name + "' seq=" + seq);
+            return false;
+        }
+
+        st.messages.remove(msg.seq);
+        if (msg.status == STATUS_QUEUED) {
+            st.outbox.remove(msg.seq);
+        }
+        if (msg.effSeq > 0 && st.effective.get(msg.effSeq) == msg) {
+            st.effective.remove(msg.effSeq);
+        }
+
+        msg.status = STATUS_SYNCED;
+        msg.ts = timestamp;
+        msg.seq = seq;
+        if (msg.effTs <= 0) {
+            msg.effTs = timestamp.getTime();
+        }
+        msg.effSeq = effSeq;
+        st.messages.put(seq, msg);
+        st.effective.put(effSeq, msg);
+        if (msg.replacesSeq > 0) {
+            // Keep versions ordered by seq.
+            List<StoredMessage> versions = st.edits.get(msg.replacesSeq);
+            versions.remove(msg);
+            addVersion(versions, msg);
+        }
+
+        topicMsgReceived(st, timestamp, seq);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgMarkToDelete(Topic topic, int fromId, int toId, boolean markAsHard) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return false;
+        }
+        deleteOrMarkDeleted(st, -1, fromId, toId, markAsHard);
+        onMessagesDeleted(st, -1, fromId, toId, markAsHard);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgMarkToDelete(Topic topic, MsgRange[] ranges, boolean markAsHard) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return false;
+        }
+        for (MsgRange r : ranges) {
+            deleteOrMarkDeleted(st, -1, r.getLower(), r.getUpper(), markAsHard);
+            onMessagesDeleted(st, -1, r.getLower(), r.getUpper(), markAsHard);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgDelete(Topic topic, int delId, int fromId, int toId) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return false;
+        }
+        if (toId <= 0) {
+            toId = st.maxLocalSeq + 1;
+        }
+        topicMsgDeleted(st, delId, fromId, toId);
+        onDeletionReceived(st, delId, fromId, toId);
+        deleteOrMarkDeleted(st, delId, fromId, toId, false);
+        onMessagesDeleted(st, delId, fromId, toId, false);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgDelete(Topic topic, int delId, MsgRange[] ranges) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return false;
+        }
+        ranges = MsgRange.collapse(ranges);
+        MsgRange span = MsgRange.enclosing(ranges);
+        if (span == null) {
+            return false;
+        }
+        topicMsgDeleted(st, delId, span.getLower(), span.getUpper());
+        onDeletionReceived(st, delId, span.getLower(), span.getUpper());
+        for (MsgRange r : ranges) {
+            deleteOrMarkDeleted(st, delId, r.getLower(), r.getUpper(), false);
+            onMessagesDeleted(st, delId, r.getLower(), r.getUpper(), false);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgRecvByRemote(Subscription sub, int recv) {
+        StoredSubscription ss = (StoredSubscription) sub.getLocal();
+        if (ss == null || !ss.isStored() || recv <= ss.sub.recv) {
+            return false;
+        }
+        ss.sub.recv = recv;
+        onSubChanged(ss);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgReadByRemote(Subscription sub, int read) {
+        StoredSubscription ss = (StoredSubscription) sub.getLocal();
+        if (ss == null || !ss.isStored() || read <= ss.sub.read) {
+            return false;
+        }
+        ss.sub.read = read;
+        onSubChanged(ss);
+        return true;
+    }
+
+    @Override
+    public synchronized MsgRange[] msgIsCached(Topic topic, MsgRange[] ranges) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return null;
+        }
+
+        List<MsgRange> found = new ArrayList<>();
+        for (MsgRange r : ranges) {
+            int low = r.low;
+            int hi = r.hi != null ? r.hi : low + 1;
+            // Stored messages: consecutive seq IDs are merged into one range.
+            MsgRange run = null;
+            for (int i = st.messages.ceilingIndex(low); i < st.messages.size(); i++) {
+                int seq = st.messages.keyAt(i);
+                if (seq >= hi) {
+                    break;
+                }
+                if (run != null && run.getUpper() == seq) {
+                    run.hi = seq + 1;
+                } else {
+                    run = new MsgRange(seq);
+                    found.add(run);
+                }
+            }
+            // Deletion markers overlapping with the range.
+            for (DelRange d : st.deleted) {
+                if (d.low >= hi) {
+                    break;
+                }
+                if (d.high > low) {
+                    found.add(new MsgRange(d.low, d.high));
+                }
+            }
+        }
+        Collections.sort(found);
+        return MsgRange.collapse(found.toArray(new MsgRange[0]));
+    }
+
+    @Override
+    public synchronized MsgRange getCachedMessagesRange(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st != null) {
+            return new MsgRange(st.minLocalSeq, st.maxLocalSeq + 1);
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Looks at up to <code>pageSize</code> stored messages and deletion markers next to <code>startFrom</code>.
+     * Unsent messages are not counted: their seq IDs are temporary.
+     */
+    @Override
+    public synchronized MsgRange[] getMissingRanges(Topic topic, int startFrom, int pageSize, boolean newer) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return null;
+        }
+
+        IntSortedMap<StoredMessage> messages = st.messages;
+        List<DelRange> deleted = st.deleted;
+        List<MsgRange> found = new ArrayList<>();
+        if (newer) {
+            // Messages and markers which end after startFrom, in ascending order.
+            int i = messages.ceilingIndex(startFrom);
+            int j = 0;
+            while (found.size() < pageSize) {
+                int seq = i < messages.size() ? messages.keyAt(i) : UNSENT_ID_START;
+                while (j < deleted.size() && deleted.get(j).high <= startFrom) {
+                    j++;
+                }
+                DelRange d = j < deleted.size() ? deleted.get(j) : null;
+                if (d != null && d.low <= seq) {
+                    found.add(new MsgRange(d.low, d.high));
+                    j++;
+                } else if (seq < UNSENT_ID_START) {
+                    found.add(new MsgRange(seq));
+                    i++;
+                } else {
+                    break;
+                }
+            }
+        } else {
+            // Messages and markers which end before startFrom, in descending order.
+            int i = messages.ceilingIndex(Math.min(startFrom - 1, UNSENT_ID_START)) - 1;
+            int j = deleted.size() - 1;
+            while (found.size() < pageSize) {
+                int seq = i >= 0 ? messages.keyAt(i) : Integer.MIN_VALUE;
+                while (j >= 0 && deleted.get(j).high >= startFrom) {
+                    j--;
+                }
+                DelRange d = j >= 0 ? deleted.get(j) : null;
+                if (d != null && d.low >= seq) {
+                    found.add(new MsgRange(d.low, d.high));
+                    j--;
+                } else if (i >= 0) {
+                    found.add(new MsgRange(seq));
+                    i--;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        Collections.sort(found);
+        MsgRange[] gaps = MsgRange.gaps(MsgRange.collapse(found.toArray(new MsgRange[0])));
+        return gaps.length > 0 ? gaps : null;
+    }
+
+    @Override
+    public synchronized boolean setRead(Topic topic, int read) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || read <= st.read) {
+            return false;
+        }
+        st.read = read;
+        onCountersChanged(st);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setRecv(Topic topic, int recv) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || recv <= st.recv) {
+            return false;
+        }
+        st.recv = recv;
+        onCountersChanged(st);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <T extends Message> T getMessageById(long dbMessageId) {
+        StoredMessage msg = mMessages.get(dbMessageId);
+        return msg != null ? (T) msg.copy(this, -1) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <T extends Message> T getMessagePreviewById(long dbMessageId) {
+        StoredMessage msg = mMessages.get(dbMessageId);
+        return msg != null ? (T) msg.copy(this, MESSAGE_PREVIEW_LENGTH) : null;
+    }
+
+    @Override
+    public synchronized int[] getAllMsgVersions(Topic topic, int seq, int limit) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return null;
+        }
+        List<StoredMessage> versions = st.edits.get(seq);
+        if (versions == null) {
+            return new int[0];
+        }
+        int count = limit > 0 ? Math.min(limit, versions.size()) : versions.size();
+        int[] ids = new int[count];
+        // Newest first.
+        for (int i = 0; i < count; i++) {
+            ids[i] = versions.get(versions.size() - 1 - i).seq;
+        }
+        return ids;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <R extends Iterator<Message> & Closeable> R getLatestMessagePreviews() {
+        List<Message> latest = new ArrayList<>();
+        for (StoredTopic st : mTopics.values()) {
+            StoredMessage msg = st.effective.last();
+            if (msg != null) {
+                latest.add(msg.copy(this, MESSAGE_PREVIEW_LENGTH));
+            }
+        }
+        return latest.isEmpty() ? null : (R) new MessageList(latest);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <R extends Iterator<Message> & Closeable> R getQueuedMessages(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || st.outbox.isEmpty()) {
+            return null;
+        }
+        List<Message> queued = new ArrayList<>(st.outbox.size());
+        for (int i = 0; i < st.outbox.size(); i++) {
+            queued.add(st.outbox.valueAt(i).copy(this, -1));
+        }
+        return (R) new MessageList(queued);
+    }
+
+    @Override
+    public synchronized MsgRange[] getQueuedMessageDeletes(Topic topic, boolean hard) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return null;
+        }
+        int status = hard ? STATUS_DELETED_HARD : STATUS_DELETED_SOFT;
+        List<MsgRange> ranges = new ArrayList<>();
+        for (DelRange d : st.deleted) {
+            if (d.status == status) {
+                ranges.add(new MsgRange(d.low, d.high));
+            }
+        }
+        return ranges.isEmpty() ? null : ranges.toArray(new MsgRange[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <T extends Message> T getMessageBySeq(Topic topic, int seq) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            return null;
+        }
+        StoredMessage msg = st.effective.get(seq);
+        return msg != null ? (T) msg.copy(this, -1) : null;
+    }
+
+    /**
+     * Copy head and content of the stored message to the copy returned to the caller.
+     */
+    void loadBody(StoredMessage stored, StoredMessage copy) {
+        copy.head = stored.head;
+        copy.content = stored.content;
+    }
+
+    // Hooks for persistent stores. Called with the store lock held after the change was made in memory.
+
+    void onAccountChanged() {
+    }
+
+    // Topic was added or its description or status changed.
+    void onTopicChanged(StoredTopic st) {
+    }
+
+    void onTopicRemoved(StoredTopic st) {
+    }
+
+    // Values set by setRead or setRecv changed.
+    void onCountersChanged(StoredTopic st) {
+    }
+
+    void onSubChanged(StoredSubscription ss) {
+    }
+
+    void onSubRemoved(StoredSubscription ss) {
+    }
+
+    void onUserChanged(StoredUser su) {
+    }
+
+    void onMessageInserted(StoredTopic st, StoredMessage msg) {
+    }
+
+    void onMessageUpdated(StoredTopic st, StoredMessage msg, boolean contentChanged) {
+    }
+
+    void onMessageDelivered(StoredTopic st, StoredMessage msg) {
+    }
+
+    void onMessageRemoved(StoredTopic st, StoredMessage msg) {
+    }
+
+    void onFailedPruned(StoredTopic st) {
+    }
+
+    // Server reported deletion of messages, called before the messages are deleted.
+    void onDeletionReceived(StoredTopic st, int delId, int fromId, int toId) {
+    }
+
+    void onMessagesDeleted(StoredTopic st, int delId, int fromId, int toId, boolean markAsHard) {
+    }
+
+    // Message is being dropped from the indexes for any reason, including deletion of a range.
+    void onUnlinked(StoredTopic st, StoredMessage msg) {
+    }
+
+    // All topics, users and messages were dropped.
+    void onCleared() {
+    }
+
+    // Drop all topics, users and messages.
+    private void clear() {
+        mTopics.clear();
+        mUsers.clear();
+        mMessages.clear();
+        onCleared();
+    }
+
+    // Create a new topic object with the values of the stored topic.
+    @SuppressWarnings("unchecked")
+    private Topic restore(Tinode tinode, StoredTopic st) {
+        Topic src = st.topic;
+        Topic topic = Tinode.newTopic(tinode, st.name, null);
+
+        topic.setUpdated(src.getUpdated());
+        topic.setDeleted(st.status == STATUS_DELETED_HARD || st.status == STATUS_DELETED_SOFT);
+        topic.setTouched(st.lastUsed);
+        if (topic instanceof ComTopic && src instanceof ComTopic) {
+            ((ComTopic) topic).setHasChannelAccess(((ComTopic) src).hasChannelAccess());
+        }
+
+        topic.setRead(Math.max(src.getRead(), st.read));
+        topic.setRecv(Math.max(src.getRecv(), st.recv));
+        topic.setSeq(Math.max(src.getSeq(), st.seq));
+        topic.setClear(src.getClear());
+        topic.setMaxDel(Math.max(src.getMaxDel(), st.maxDel));
+
+        topic.setTags(src.getTags());
+        topic.setAux(src.getAux());
+        if (src.getLastSeen() != null) {
+            topic.setLastSeen(src.getLastSeen(), src.getLastSeenUA());
+        }
+        if (topic instanceof MeTopic && src instanceof MeTopic) {
+            ((MeTopic) topic).setCreds(((MeTopic) src).getCreds());
+        }
+        topic.setPub(src.getPub());
+        topic.setTrusted(src.getTrusted());
+        topic.setPriv(src.getPriv());
+        topic.setAccessMode(src.getAccessMode());
+        topic.setDefacs(src.getDefacs());
+        topic.setSubCnt(src.getSubCnt());
+        topic.setPinnedRank(src.getPinnedRank());
+
+        st.topic = topic;
+        topic.setLocal(st);
+        return topic;
+    }
+
+    private void removeTopic(StoredTopic st) {
+        for (int i = 0; i < st.messages.size(); i++) {
+            mMessages.remove(st.messages.valueAt(i).dbId);
+        }
+        mTopics.remove(st.name);
+        // Make sure stale references to the topic are not used.
+        st.subs.clear();
+        st.messages.clear();
+        st.effective.clear();
+        st.edits.clear();
+        st.outbox.clear();
+        st.deleted.clear();
+        onTopicRemoved(st);
+    }
+
+    private long subInsert(Topic topic, Subscription sub, int status) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null || sub.user == null) {
+            return -1;
+        }
+
+        if (!mUsers.containsKey(sub.user)) {
+            userInsert(sub.user, sub.updated, sub.pub);
+        }
+        //noinspection unchecked
+        StoredSubscription ss = new StoredSubscription(mNextId++, st, new Subscription<>(sub), status);
+        st.subs.put(sub.user, ss);
+        sub.setLocal(ss);
+        onSubChanged(ss);
+        return ss.id;
+    }
+
+    private StoredUser userInsert(String uid, Date updated, Object pub) {
+        StoredUser su = new StoredUser(mNextId++, uid);
+        su.updated = updated;
+        su.pub = pub;
+        mUsers.put(uid, su);
+        onUserChanged(su);
+        return su;
+    }
+
+    // Save message sent by the current user.
+    private Message insertLocal(Topic topic, Drafty data, Map<String, Object> head, int initialStatus) {
+        if (topic == null) {
+            Log.w(TAG, "Failed to insert message: topic is null");
+            return null;
+        }
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st == null) {
+            Log.w(TAG, "Failed to insert message: topic not stored " + topic.getName());
+            return null;
+        }
+
+        StoredMessage msg = new StoredMessage();
+        msg.topic = topic.getName();
+        msg.from = mMyUid;
+        msg.ts = new Date(System.currentTimeMillis() + mTimeAdjustment);
+        // Seq zero: the message will be assigned a temporary seq ID.
+        msg.seq = 0;
+        msg.status = initialStatus;
+        msg.content = data;
+        msg.head = head;
+
+        if (insert(st, msg) <= 0) {
+            return null;
+        }
+        StoredMessage result = msg.copy(this, -1);
+        onMessageInserted(st, msg);
+        return result;
+    }
+
+    /**
+     * Add message to the topic's indexes. Handles message edits: a replacement message is visible at the seq ID
+     * of the message it replaces, the newest replacement wins.
+     *
+     * @return ID of the inserted message or 0 if a message with the same seq ID is already stored.
+     */
+    long insert(StoredTopic st, StoredMessage msg) {
+        if (msg.seq > 0 && st.messages.containsKey(msg.seq)) {
+            // This may happen when concurrent {sub} requests are sent.
+            Log.d(TAG, "Duplicate message topic='" + st.name + "' id=" + msg.seq);
+            return 0;
+        }
+
+        int replacesSeq = msg.head != null ? msg.getReplacementSeqId() : msg.replacesSeq;
+        int effSeq;
+        long effTs;
+        if (replacesSeq > 0) {
+            // Replacement message. If the original is stored, this version replaces it. Otherwise
+            // the replacement should not be shown to the user.
+            StoredMessage latest = st.effective.get(replacesSeq);
+            effTs = latest != null ? latest.effTs : 0;
+            if (latest != null && (msg.seq == 0 || msg.seq > latest.seq)) {
+                st.effective.remove(replacesSeq);
+                latest.effSeq = 0;
+                effSeq = replacesSeq;
+            } else {
+                effSeq = 0;
+            }
+        } else {
+            effTs = msg.ts != null ? msg.ts.getTime() : 0;
+            effSeq = msg.seq;
+            if (msg.seq > 0) {
+                // Edits may have been received before the original: show the newest one.
+                List<StoredMessage> versions = st.edits.get(msg.seq);
+                if (versions != null && !versions.isEmpty()) {
+                    StoredMessage newest = versions.get(versions.size() - 1);
+                    newest.effSeq = msg.seq;
+                    newest.effTs = effTs;
+                    st.effective.put(msg.seq, newest);
+                    effSeq = 0;
+                }
+            }
+        }
+
+        if (msg.seq == 0) {
+            msg.seq = ++st.nextUnsentSeq;
+            if (effSeq <= 0) {
+                effSeq = msg.seq;
+            }
+            msg.status = msg.status == STATUS_UNDEFINED ? STATUS_QUEUED : msg.status;
+        } else {
+            msg.status = STATUS_SYNCED;
+        }
+
+        msg.owner = st;
+        if (msg.dbId <= 0) {
+            msg.dbId = mNextId++;
+        } else {
+            // Message is being restored with its original ID.
+            mNextId = Math.max(mNextId, msg.dbId + 1);
+        }
+        msg.replacesSeq = replacesSeq;
+        msg.effSeq = effSeq;
+        msg.effTs = effTs;
+
+        st.messages.put(msg.seq, msg);
+        if (effSeq > 0) {
+            st.effective.put(effSeq, msg);
+        }
+        if (replacesSeq > 0) {
+            List<StoredMessage> versions = st.edits.get(replacesSeq);
+            if (versions == null) {
+                versions = new ArrayList<>(2);
+                st.edits.put(replacesSeq, versions);
+            }
+            addVersion(versions, msg);
+        }
+        if (msg.status == STATUS_QUEUED) {
+            st.outbox.put(msg.seq, msg);
+        }
+        mMessages.put(msg.dbId, msg);
+        return msg.dbId;
+    }
+
+    // Insert message into a list of versions ordered by seq.
+    private static void addVersion(List<StoredMessage> versions, StoredMessage msg) {
+        int i = versions.size();
+        while (i > 0 && versions.get(i - 1).seq > msg.seq) {
+            i--;
+        }
+        versions.add(i, msg);
+    }
+
+    /**
+     * Restore message with all its index values, e.g. from a snapshot written by a persistent store.
+     * Messages must be restored in the order of their seq IDs.
+     */
+    void restore(StoredTopic st, StoredMessage msg) {
+        msg.owner = st;
+        mNextId = Math.max(mNextId, msg.dbId + 1);
+        st.messages.put(msg.seq, msg);
+        if (msg.effSeq > 0) {
+            st.effective.put(msg.effSeq, msg);
+        }
+        if (msg.replacesSeq > 0) {
+            List<StoredMessage> versions = st.edits.get(msg.replacesSeq);
+            if (versions == null) {
+                versions = new ArrayList<>(2);
+                st.edits.put(msg.replacesSeq, versions);
+            }
+            addVersion(versions, msg);
+        }
+        if (msg.status == STATUS_QUEUED) {
+            st.outbox.put(msg.seq, msg);
+        }
+        if (msg.seq >= UNSENT_ID_START && msg.seq > st.nextUnsentSeq) {
+            st.nextUnsentSeq = msg.seq;
+        }
+        mMessages.put(msg.dbId, msg);
+    }
+
+    private boolean update(long dbMessageId, int status, Drafty content) {
+        StoredMessage msg = updateStatusAndContent(dbMessageId, status, content);
+        if (msg == null) {
+            return false;
+        }
+        onMessageUpdated(msg.owner, msg, content != null);
+        return true;
+    }
+
+    StoredMessage updateStatusAndContent(long dbMessageId, int status, Drafty content) {
+        StoredMessage msg = mMessages.get(dbMessageId);
+        if (msg == null || (status == STATUS_UNDEFINED && content == null)) {
+            return null;
+        }
+        if (status != STATUS_UNDEFINED && status != msg.status) {
+            StoredTopic st = msg.owner;
+            if (msg.status == STATUS_QUEUED) {
+                st.outbox.remove(msg.seq);
+            } else if (status == STATUS_QUEUED) {
+                st.outbox.put(msg.seq, msg);
+            }
+            msg.status = status;
+        }
+        if (content != null) {
+            msg.content = content;
+        }
+        return msg;
+    }
+
+    // Remove failed unsent messages.
+    boolean pruneFailed(StoredTopic st) {
+        // Only unsent messages can fail: they all have temporary seq IDs.
+        return st.messages.removeIf(UNSENT_ID_START, Integer.MAX_VALUE, msg -> {
+            if (msg.status != STATUS_FAILED) {
+                return false;
+            }
+            if (msg.effSeq > 0 && st.effective.get(msg.effSeq) == msg) {
+                st.effective.remove(msg.effSeq);
+            }
+            unlink(st, msg);
+            return true;
+        }) > 0;
+    }
+
+    // Remove a single message from all indexes.
+    void remove(StoredTopic st, StoredMessage msg) {
+        st.messages.remove(msg.seq);
+        if (msg.effSeq > 0 && st.effective.get(msg.effSeq) == msg) {
+            st.effective.remove(msg.effSeq);
+        }
+        unlink(st, msg);
+    }
+
+    // Remove message from the indexes other than messages and effective.
+    private void unlink(StoredTopic st, StoredMessage msg) {
+        onUnlinked(st, msg);
+        mMessages.remove(msg.dbId);
+        if (msg.status == STATUS_QUEUED) {
+            st.outbox.remove(msg.seq);
+        }
+        if (msg.replacesSeq > 0) {
+            List<StoredMessage> versions = st.edits.get(msg.replacesSeq);
+            if (versions != null) {
+                versions.remove(msg);
+                if (versions.isEmpty()) {
+                    st.edits.remove(msg.replacesSeq);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete messages in range replacing them with a deletion marker.
+     *
+     * @param delId      server-issued delete ID; if delId <= 0, the deletion is not yet synced with the server.
+     * @param fromId     minimum seq value to delete, inclusive (closed); 0 to delete all earlier messages.
+     * @param toId       maximum seq value to delete, exclusive (open).
+     * @param markAsHard mark messages as hard-deleted.
+     */
+    void deleteOrMarkDeleted(StoredTopic st, int delId, int fromId, int toId, boolean markAsHard) {
+        final int low = fromId > 0 ? fromId : Integer.MIN_VALUE;
+        final int high = toId;
+
+        // 1. Delete all messages in the range (sent, unsent, failed). A message may be visible at a seq
+        // outside of the range if it's an edit of a message outside of the range and the other way around.
+        st.messages.removeIf(low, high, msg -> {
+            if (msg.effSeq > 0 && (msg.effSeq < low || msg.effSeq >= high) && st.effective.get(msg.effSeq) == msg) {
+                st.effective.remove(msg.effSeq);
+            }
+            unlink(st, msg);
+            return true;
+        });
+        st.effective.removeIf(low, high, msg -> {
+            if (msg.seq < low || msg.seq >= high) {
+                st.messages.remove(msg.seq);
+                unlink(st, msg);
+            }
+            return true;
+        });
+
+        // 2. Delete all deletion markers fully within the new range: they are superseded.
+        st.deleted.removeIf(d -> d.low >= low && d.high <= high);
+
+        // 3. Consume partially overlapping markers of the same type.
+        int status;
+        if (delId > 0) {
+            status = STATUS_DELETED_SYNCED;
+        } else {
+            status = markAsHard ? STATUS_DELETED_HARD : STATUS_DELETED_SOFT;
+        }
+        final int narrowFrom = fromId;
+        final int narrowTo = toId;
+        for (DelRange d : st.deleted) {
+            if (d.consumable(status, delId, narrowFrom, narrowTo)) {
+                fromId = Math.min(d.low, fromId);
+                toId = Math.max(d.high, toId);
+            }
+        }
+        if (fromId <= 0) {
+            fromId = 1;
+        }
+        final int wideFrom = fromId;
+        final int wideTo = toId;
+        st.deleted.removeIf(d -> d.consumable(status, delId, wideFrom, wideTo));
+
+        // 4. Insert the new marker.
+        DelRange marker = new DelRange(fromId, toId, delId, status);
+        int i = st.deleted.size();
+        while (i > 0 && st.deleted.get(i - 1).low > marker.low) {
+            i--;
+        }
+        st.deleted.add(i, marker);
+    }
+
+    // Update topic with the info of a newly stored message.
+    static void topicMsgReceived(StoredTopic st, Date timestamp, int seq) {
+        if (seq > st.maxLocalSeq) {
+            st.maxLocalSeq = seq;
+            st.recv = Math.max(st.recv, seq);
+        }
+        if (seq > 0 && (st.minLocalSeq == 0 || seq < st.minLocalSeq)) {
+            st.minLocalSeq = seq;
+        }
+        st.seq = Math.max(st.seq, seq);
+        if (timestamp != null && timestamp.after(st.lastUsed)) {
+            st.lastUsed = timestamp;
+        }
+    }
+
+    // Update topic with the info of a deletion: expand the range of cached messages when the deleted range overlaps.
+    static void topicMsgDeleted(StoredTopic st, int delId, int lowId, int hiId) {
+        st.maxDel = Math.max(st.maxDel, delId);
+
+        // If lowId is 0, all earlier messages are being deleted, set it to lowest possible value: 1.
+        if (lowId <= 0) {
+            lowId = 1;
+        }
+        if (hiId > 1) {
+            // Upper bound is exclusive. Convert to inclusive.
+            hiId--;
+        } else {
+            // If hiId is zero all later messages are being deleted, set it to highest possible value.
+            hiId = Math.max(st.topic.getSeq(), st.seq);
+        }
+
+        // When minLocalSeq is 0 then there are no locally stored messages: don't update minLocalSeq
+        // otherwise the client may miss some messages.
+        if (lowId < st.minLocalSeq && hiId >= st.minLocalSeq) {
+            st.minLocalSeq = lowId;
+        } else {
+            lowId = -1;
+        }
+        if (hiId > st.maxLocalSeq && lowId <= st.maxLocalSeq) {
+            st.maxLocalSeq = hiId;
+        }
+    }
+
+    /**
+     * Message stored in {@link InMemoryStore}. Instances returned by the store are copies: changing them
+     * does not change the stored message.
+     */
+    public static class StoredMessage extends MsgServerData implements Message {
+        long dbId;
+        int status;
+        boolean mine;
+
+        // Fields of the stored message only, not set in copies.
+        transient StoredTopic owner;
+        // Seq ID of the message this message replaces or 0.
+        int replacesSeq;
+        // Seq ID at which the message is visible or 0 if the message is hidden by a newer version.
+        int effSeq;
+        // Timestamp of the original message.
+        long effTs;
+        // Location of the head and content in a persistent store or -1 if they are kept in memory.
+        transient long location = -1;
+
+        StoredMessage() {
+        }
+
+        StoredMessage(MsgServerData m) {
+            topic = m.topic;
+            head = m.head;
+            from = m.from;
+            ts = m.ts;
+            seq = m.seq;
+            content = m.content;
+        }
+
+        // Copy of the message as seen by the user: edited messages have the seq ID and timestamp of the original.
+        StoredMessage copy(InMemoryStore store, int previewLength) {
+            StoredMessage msg = new StoredMessage();
+            msg.dbId = dbId;
+            msg.status = status;
+            msg.mine = from != null && from.equals(store.mMyUid);
+            msg.topic = owner != null ? owner.name : topic;
+            msg.from = from;
+            msg.head = head;
+            msg.seq = effSeq > 0 ? effSeq : seq;
+            msg.ts = effTs > 0 ? new Date(effTs) : ts;
+            store.loadBody(this, msg);
+            if (previewLength > 0 && msg.content != null) {
+                msg.content = msg.content.preview(previewLength);
+            }
+            return msg;
+        }
+
+        int getReplacementSeqId() {
+            String replace = getStringHeader("replace");
+            if (replace == null || replace.length() < 2 || replace.charAt(0) != ':') {
+                return 0;
+            }
+            try {
+                return Integer.parseInt(replace.substring(1));
+            } catch (NumberFormatException ignored) {
+                return 0;
+            }
+        }
+
+        @Override
+        public String getTopic() {
+            return topic;
+        }
+
+        @Override
+        public Map<String, Object> getHead() {
+            return head;
+        }
+
+        @Override
+        public Integer getIntHeader(String key) {
+            Object val = getHeader(key);
+            if (val instanceof Integer) {
+                return (Integer) val;
+            }
+            return null;
+        }
+
+        @Override
+        public Drafty getContent() {
+            return content;
+        }
+
+        @Override
+        public void setContent(Drafty content) {
+            this.content = content;
+        }
+
+        @Override
+        public long getDbId() {
+            return dbId;
+        }
+
+        @Override
+        public int getSeqId() {
+            return seq;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public boolean isMine() {
+            return mine;
+        }
+
+        @Override
+        public boolean isPending() {
+            return status == STATUS_DRAFT || status == STATUS_QUEUED || status == STATUS_SENDING;
+        }
+
+        @Override
+        public boolean isReady() {
+            return status == STATUS_QUEUED;
+        }
+
+        @Override
+        public boolean isDeleted() {
+            return status == STATUS_DELETED_SOFT || status == STATUS_DELETED_HARD;
+        }
+
+        @Override
+        public boolean isDeleted(boolean hard) {
+            return hard ? status == STATUS_DELETED_HARD : status == STATUS_DELETED_SOFT;
+        }
+
+        @Override
+        public boolean isSynced() {
+            return status == STATUS_SYNCED;
+        }
+    }
+
+    // Topic record and indexes of the topic's messages.
+    static class StoredTopic implements LocalData.Payload {
+        final long id;
+        String name;
+        // Topic object with the latest values.
+        Topic topic;
+        int status;
+        Date lastUsed;
+        // Seq values of the earliest and the latest cached messages.
+        int minLocalSeq = 0;
+        int maxLocalSeq = 0;
+        int nextUnsentSeq = UNSENT_ID_START;
+        // Counters updated by the store.
+        int read;
+        int recv;
+        int seq;
+        int maxDel;
+
+        // All messages by seq.
+        final IntSortedMap<StoredMessage> messages = new IntSortedMap<>();
+        // Visible messages by effective seq.
+        final IntSortedMap<StoredMessage> effective = new IntSortedMap<>();
+        // Edits by seq of the replaced message, ordered by seq.
+        final IntSortedMap<List<StoredMessage>> edits = new IntSortedMap<>();
+        // Messages ready to be sent by temporary seq.
+        final IntSortedMap<StoredMessage> outbox = new IntSortedMap<>();
+        // Deletion markers ordered by low.
+        final List<DelRange> deleted = new ArrayList<>();
+        // Subscriptions by user ID.
+        final Map<String, StoredSubscription> subs = new LinkedHashMap<>();
+
+        StoredTopic(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    static class StoredSubscription implements LocalData.Payload {
+        final long id;
+        final StoredTopic topic;
+        Subscription sub;
+        int status;
+
+        StoredSubscription(long id, StoredTopic topic, Subscription sub, int status) {
+            this.id = id;
+            this.topic = topic;
+            this.sub = sub;
+            this.status = status;
+        }
+
+        // Check if the subscription was not deleted.
+        boolean isStored() {
+            return topic.subs.get(sub.user) == this;
+        }
+    }
+
+    static class StoredUser implements LocalData.Payload {
+        final long id;
+        final String uid;
+        Date updated;
+        Object pub;
+
+        StoredUser(long id, String uid) {
+            this.id = id;
+            this.uid = uid;
+        }
+
+        void update(Date updated, Object pub) {
+            if (updated != null) {
+                this.updated = updated;
+            }
+            if (pub != null) {
+                this.pub = pub;
+            }
+        }
+    }
+
+    // Range of deleted messages [low, high).
+    static class DelRange {
+        final int low;
+        final int high;
+        final int delId;
+        final int status;
+
+        DelRange(int low, int high, int delId, int status) {
+            this.low = low;
+            this.high = high;
+            this.delId = delId;
+            this.status = status;
+        }
+
+        // Check if this marker should be merged into a new marker of the given status and range.
+        boolean consumable(int status, int delId, int fromId, int toId) {
+            if (this.status != status || (delId > 0 && this.delId >= delId)) {
+                return false;
+            }
+            return (fromId <= 0 || high >= fromId) && low <= toId;
+        }
+    }
+
+    private static class MessageList implements Iterator<Message>, Closeable {
+        private final Iterator<Message> mIterator;
+
+        MessageList(List<Message> list) {
+            mIterator = list.iterator();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mIterator.hasNext();
+        }
+
+        @Override
+        public Message next() {
+            return mIterator.next();
+        }
+    }
+}
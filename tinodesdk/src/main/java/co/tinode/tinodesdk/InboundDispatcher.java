@@ -0,0 +1,298 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Second stage of inbound packet processing: routing of decoded packets to topics.
+ * <p>
+ * Handlers submitted with the same key (topic name) run one at a time in submission order, handlers
+ * with different keys run in parallel on a small pool of worker threads. This way a slow listener or
+ * a database stall in one topic does not hold up the socket or the other topics.
+ * <p>
+ * Workers are either owned by the dispatcher or come from a pool shared by many dispatchers, see
+ * {@link SharedScheduler#inbound()}.
+ * <p>
+ * The number of queued handlers is bounded. When the limit is reached the submitting thread (websocket
+ * reader) blocks, which stops reading from the socket and pushes back on the server. Threads which must not
+ * block, like the selector threads of {@link NioTransport}, use {@link #offer(String, Runnable)} instead and
+ * pause reading until {@link #whenAvailable(Runnable)} reports free capacity.
+ */
+class InboundDispatcher {
+    private static final String TAG = "InboundDispatcher";
+
+    // Number of handlers to run from one lane before yielding the worker to other lanes.
+    private static final int LANE_BATCH = 32;
+    // Idle worker threads are stopped after this many seconds.
+    private static final long WORKER_KEEP_ALIVE = 30L;
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    // Queue of handlers for one key.
+    private static class Lane {
+        final String key;
+        final ArrayDeque<Job> jobs = new ArrayDeque<>();
+        boolean scheduled = false;
+
+        Lane(String key) {
+            this.key = key;
+        }
+    }
+
+    private record Job(Runnable task, boolean bounded) {}
+
+    private final Executor mWorkers;
+    // Pool created by this dispatcher, null if the pool is shared.
+    private final ExecutorService mOwnWorkers;
+    private final Semaphore mCapacity;
+    // Free capacity at which callbacks waiting for capacity are called.
+    private final int mResumeAt;
+    // Callbacks waiting for free capacity. Guarded by 'this'.
+    private List<Runnable> mWaiting = null;
+    // Lanes with pending handlers. Guarded by 'this'.
+    private final Map<String, Lane> mLanes = new HashMap<>();
+    // Number of handlers queued or running. Guarded by 'this'.
+    private int mPending = 0;
+
+    /**
+     * Create dispatcher with its own worker threads.
+     *
+     * @param workers  number of worker threads.
+     * @param capacity maximum number of queued handlers before {@link #execute(String, Runnable)} blocks.
+     */
+    InboundDispatcher(int workers, int capacity) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "tinode-inbound-" + sThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        mWorkers = mOwnWorkers = pool;
+        mCapacity = new Semaphore(capacity);
+        mResumeAt = Math.max(1, capacity / 2);
+    }
+
+    /**
+     * Create dispatcher which runs handlers on a shared pool.
+     *
+     * @param workers  pool to run handlers on; it's not shut down by {@link #shutdown()}.
+     * @param capacity maximum number of queued handlers before {@link #execute(String, Runnable)} blocks.
+     */
+    InboundDispatcher(Executor workers, int capacity) {
+        mWorkers = workers;
+        mOwnWorkers = null;
+        mCapacity = new Semaphore(capacity);
+        mResumeAt = Math.max(1, capacity / 2);
+    }
+
+    /**
+     * Queue handler for execution after all previously queued handlers with the same key.
+     * Blocks if too many handlers are already queued.
+     *
+     * @param key  ordering key, e.g. topic name.
+     * @param task handler to execute.
+     * @throws InterruptedException if the calling thread was interrupted while waiting for capacity.
+     */
+    void execute(String key, Runnable task) throws InterruptedException {
+        mCapacity.acquire();
+        enqueue(key, new Job(task, true));
+    }
+
+    /**
+     * Queue handler without blocking. The handler is queued even if the dispatcher is full.
+     *
+     * @param key  ordering key, e.g. topic name.
+     * @param task handler to execute.
+     * @return false if the dispatcher is full: the caller should stop submitting handlers until
+     * {@link #whenAvailable(Runnable)} reports free capacity.
+     */
+    boolean offer(String key, Runnable task) {
+        if (mCapacity.tryAcquire()) {
+            enqueue(key, new Job(task, true));
+            return true;
+        }
+        enqueue(key, new Job(task, false));
+        return false;
+    }
+
+    /**
+     * Call the callback once at least half of the capacity is free. The callback is called on the calling
+     * thread if the capacity is free already, otherwise on a worker thread.
+     *
+     * @param callback callback to call, e.g. to resume reading from the socket.
+     */
+    void whenAvailable(Runnable callback) {
+        synchronized (this) {
+            if (mCapacity.availablePermits() < mResumeAt) {
+                if (mWaiting == null) {
+                    mWaiting = new ArrayList<>();
+                }
+                mWaiting.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Queue handler without waiting for capacity. To be used by the handlers themselves, e.g. to
+     * forward a packet to another topic: a handler blocked on capacity could deadlock the dispatcher.
+     *
+     * @param key  ordering key, e.g. topic name.
+     * @param task handler to execute.
+     */
+    void post(String key, Runnable task) {
+        enqueue(key, new Job(task, false));
+    }
+
+    /**
+     * Wait until all queued handlers have completed.
+     *
+     * @param timeout maximum time to wait in milliseconds.
+     * @return true if the dispatcher is idle, false if the wait timed out.
+     */
+    synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (mPending > 0) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Call the callback after all handlers queued so far have completed. Does not wait: handlers queued later
+     * do not delay the callback. The callback runs on a worker thread, or on the calling thread if no handlers
+     * are queued.
+     *
+     * @param callback callback to call.
+     */
+    void afterQueued(Runnable callback) {
+        List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<>(mLanes.keySet());
+        }
+        if (keys.isEmpty()) {
+            callback.run();
+            return;
+        }
+        AtomicInteger left = new AtomicInteger(keys.size());
+        for (String key : keys) {
+            post(key, () -> {
+                if (left.decrementAndGet() == 0) {
+                    callback.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop worker threads after all queued handlers have completed. A shared pool is left running.
+     */
+    void shutdown() {
+        if (mOwnWorkers != null) {
+            mOwnWorkers.shutdown();
+        }
+    }
+
+    private void enqueue(String key, Job job) {
+        if (key == null) {
+            key = "";
+        }
+        Lane lane;
+        synchronized (this) {
+            lane = mLanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                mLanes.put(key, lane);
+            }
+            lane.jobs.add(job);
+            mPending++;
+            if (lane.scheduled) {
+                return;
+            }
+            lane.scheduled = true;
+        }
+        schedule(lane);
+    }
+
+    private void schedule(Lane lane) {
+        try {
+            mWorkers.execute(() -> drain(lane));
+        } catch (Exception ex) {
+            // The dispatcher is shut down. Run handlers on the calling thread to preserve order.
+            Log.w(TAG, "Dispatcher is shut down, running handlers inline", ex);
+            drain(lane);
+        }
+    }
+
+    private void drain(Lane lane) {
+        for (int i = 0; i < LANE_BATCH; i++) {
+            Job job;
+            synchronized (this) {
+                job = lane.jobs.poll();
+                if (job == null) {
+                    lane.scheduled = false;
+                    mLanes.remove(lane.key);
+                    return;
+                }
+            }
+
+            try {
+                job.task.run();
+            } catch (Exception ex) {
+                Log.w(TAG, "Exception in packet handler for '" + lane.key + "'", ex);
+            } finally {
+                List<Runnable> available = null;
+                if (job.bounded) {
+                    mCapacity.release();
+                }
+                synchronized (this) {
+                    mPending--;
+                    if (mPending == 0) {
+                        notifyAll();
+                    }
+                    if (mWaiting != null && mCapacity.availablePermits() >= mResumeAt) {
+                        available = mWaiting;
+                        mWaiting = null;
+                    }
+                }
+                if (available != null) {
+                    for (Runnable callback : available) {
+                        try {
+                            callback.run();
+                        } catch (Exception ex) {
+                            Log.w(TAG, "Exception in capacity callback", ex);
+                        }
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (lane.jobs.isEmpty()) {
+                lane.scheduled = false;
+                mLanes.remove(lane.key);
+                return;
+            }
+        }
+        // Let other lanes run.
+        schedule(lane);
+    }
+}
@@ -0,0 +1,170 @@
+package co.tinode.tinodesdk;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Map of primitive int keys to values, sorted by key. Keys and values are kept in two parallel
+ * arrays: lookups are binary searches, range scans walk the arrays in order.
+ * <p>
+ * Appending a key greater than all existing keys is O(1): this is the common case for message seq IDs.
+ * Inserting or removing in the middle shifts the tail of the arrays. Use {@link #removeIf} to remove
+ * many entries in one pass.
+ * <p>
+ * Not thread-safe.
+ *
+ * @param <V> type of values.
+ */
+final class IntSortedMap<V> {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    IntSortedMap() {
+        mKeys = new int[INITIAL_CAPACITY];
+        mValues = new Object[INITIAL_CAPACITY];
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Find position of the key.
+     *
+     * @return index of the key if found, otherwise <code>-(insertion point) - 1</code>.
+     */
+    int indexOf(int key) {
+        // Fast path for appends and lookups of the newest key.
+        if (mSize == 0 || key > mKeys[mSize - 1]) {
+            return -mSize - 1;
+        }
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    /**
+     * Index of the first key greater than or equal to the given key, or size() if there is no such key.
+     */
+    int ceilingIndex(int key) {
+        int idx = indexOf(key);
+        return idx >= 0 ? idx : -idx - 1;
+    }
+
+    int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+        return (V) mValues[index];
+    }
+
+    V get(int key) {
+        int idx = indexOf(key);
+        return idx >= 0 ? valueAt(idx) : null;
+    }
+
+    boolean containsKey(int key) {
+        return indexOf(key) >= 0;
+    }
+
+    V first() {
+        return mSize > 0 ? valueAt(0) : null;
+    }
+
+    V last() {
+        return mSize > 0 ? valueAt(mSize - 1) : null;
+    }
+
+    /**
+     * Add or replace value.
+     *
+     * @return previous value of the key or null.
+     */
+    V put(int key, V value) {
+        int idx = indexOf(key);
+        if (idx >= 0) {
+            V old = valueAt(idx);
+            mValues[idx] = value;
+            return old;
+        }
+
+        idx = -idx - 1;
+        if (mSize == mKeys.length) {
+            int capacity = mSize + (mSize >> 1) + 1;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+        if (idx < mSize) {
+            System.arraycopy(mKeys, idx, mKeys, idx + 1, mSize - idx);
+            System.arraycopy(mValues, idx, mValues, idx + 1, mSize - idx);
+        }
+        mKeys[idx] = key;
+        mValues[idx] = value;
+        mSize++;
+        return null;
+    }
+
+    /**
+     * Remove key.
+     *
+     * @return removed value or null if the key was not found.
+     */
+    V remove(int key) {
+        int idx = indexOf(key);
+        if (idx < 0) {
+            return null;
+        }
+        V old = valueAt(idx);
+        removeAt(idx);
+        return old;
+    }
+
+    void removeAt(int index) {
+        mSize--;
+        if (index < mSize) {
+            System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index);
+            System.arraycopy(mValues, index + 1, mValues, index, mSize - index);
+        }
+        mValues[mSize] = null;
+    }
+
+    /**
+     * Remove all entries with keys in the range [fromKey, toKey) accepted by the filter.
+     * The filter is called once per entry in key order. It must not modify this map.
+     *
+     * @return number of removed entries.
+     */
+    int removeIf(int fromKey, int toKey, Predicate<? super V> filter) {
+        int start = ceilingIndex(fromKey);
+        int end = ceilingIndex(toKey);
+        int dst = start;
+        for (int src = start; src < end; src++) {
+            if (!filter.test(valueAt(src))) {
+                mKeys[dst] = mKeys[src];
+                mValues[dst] = mValues[src];
+                dst++;
+            }
+        }
+        int removed = end - dst;
+        if (removed > 0) {
+            System.arraycopy(mKeys, end, mKeys, dst, mSize - end);
+            System.arraycopy(mValues, end, mValues, dst, mSize - end);
+            Arrays.fill(mValues, mSize - removed, mSize, null);
+            mSize -= removed;
+        }
+        return removed;
+    }
+
+    void clear() {
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+}
@@ -0,0 +1,48 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * WireCodec backed by a Jackson data format factory.
+ */
+final class JacksonCodec implements WireCodec {
+    static final JacksonCodec JSON = new JacksonCodec("json", Tinode.getJsonMapper().getFactory(), false);
+    static final JacksonCodec CBOR = new JacksonCodec("cbor", new CBORFactory(), true);
+
+    private final String mName;
+    private final JsonFactory mFactory;
+    private final boolean mBinary;
+
+    private JacksonCodec(String name, JsonFactory factory, boolean binary) {
+        mName = name;
+        mFactory = factory;
+        mBinary = binary;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return mBinary;
+    }
+
+    @Override
+    public JsonParser createParser(byte[] data, int offset, int len) throws IOException {
+        return mFactory.createParser(data, offset, len);
+    }
+
+    @Override
+    public JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return mFactory.createGenerator(out, JsonEncoding.UTF8);
+    }
+}
@@ -0,0 +1,166 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.TextFrame;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Default transport based on Java-WebSocket. Each open connection has a reader and a writer thread.
+ * Supports permessage-deflate, sockets opened ahead of time and TLS session resumption
+ * through {@link WarmSocketFactory}.
+ */
+final class JavaWebSocketTransport implements Transport {
+    private static final String TAG = "JavaWebSocketTransport";
+
+    static final Factory FACTORY = JavaWebSocketTransport::new;
+
+    private final URI mEndpoint;
+    private final int mTimeout;
+    private final Client mClient;
+
+    private JavaWebSocketTransport(URI endpoint, Map<String, String> headers, int timeout, Listener listener) {
+        mEndpoint = endpoint;
+        mTimeout = timeout;
+        mClient = new Client(endpoint, headers, timeout, listener);
+    }
+
+    @Override
+    public void connect() {
+        // Connecting blocks until the handshake completes or times out: run it on the shared pool.
+        SharedScheduler.blocking().execute(() -> {
+            try {
+                if (!mClient.connectBlocking(mTimeout, TimeUnit.MILLISECONDS)) {
+                    // Failure is reported by the client.
+                    return;
+                }
+
+                if ("wss".equals(mEndpoint.getScheme())) {
+                    // SNI: Verify server host name.
+                    SSLSession sess = ((SSLSocket) mClient.getSocket()).getSession();
+                    String hostName = mEndpoint.getHost();
+                    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(hostName, sess)) {
+                        mClient.close();
+                        throw new SSLHandshakeException("SNI verification failed. Expected: '" + hostName +
+                                "', actual: '" + sess.getPeerPrincipal() + "'");
+                    }
+                }
+            } catch (Exception ex) {
+                Log.w(TAG, "WS connection failed", ex);
+                mClient.mListener.onError(this, ex);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mClient.close();
+    }
+
+    @Override
+    public void abort(int code, String reason) {
+        mClient.closeConnection(code, reason);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mClient.isOpen();
+    }
+
+    @Override
+    public void send(String text) {
+        try {
+            mClient.send(text);
+        } catch (WebsocketNotConnectedException ex) {
+            throw new NotConnectedException(ex);
+        }
+    }
+
+    @Override
+    public void sendText(ByteBuffer payload) {
+        sendPayload(new TextFrame(), payload);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer payload) {
+        sendPayload(new BinaryFrame(), payload);
+    }
+
+    private void sendPayload(DataFrame frame, ByteBuffer payload) {
+        frame.setPayload(exact(payload));
+        frame.setFin(true);
+        try {
+            mClient.sendFrame(frame);
+        } catch (WebsocketNotConnectedException ex) {
+            throw new NotConnectedException(ex);
+        }
+    }
+
+    // Permessage-deflate compresses the whole backing array of the payload, not just the bytes between
+    // position and limit: pass views of larger buffers as a copy of the exact size.
+    private static ByteBuffer exact(ByteBuffer payload) {
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0 &&
+                payload.limit() == payload.array().length) {
+            return payload;
+        }
+        byte[] copy = new byte[payload.remaining()];
+        payload.duplicate().get(copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    private class Client extends WebSocketClient {
+        private final Listener mListener;
+
+        Client(URI endpoint, Map<String, String> headers, int timeout, Listener listener) {
+            super(endpoint, new Draft_6455(new PerMessageDeflateExtension()), headers, timeout);
+            setReuseAddr(true);
+            mListener = listener;
+
+            // Shared TLS session cache and sockets opened ahead of time by warmUp().
+            setSocketFactory(new WarmSocketFactory(endpoint.getHost(), endpoint.getPort(),
+                    "wss".equals(endpoint.getScheme()), timeout, (nanos, resumed, warm) ->
+                    listener.onTlsHandshake(JavaWebSocketTransport.this, nanos, resumed, warm)));
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshakeData) {
+            mListener.onOpen(JavaWebSocketTransport.this);
+        }
+
+        @Override
+        public void onMessage(String message) {
+            mListener.onMessage(JavaWebSocketTransport.this, message);
+        }
+
+        @Override
+        public void onMessage(ByteBuffer blob) {
+            mListener.onMessage(JavaWebSocketTransport.this, blob);
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            mListener.onClose(JavaWebSocketTransport.this, code, reason, remote);
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            mListener.onError(JavaWebSocketTransport.this, ex);
+        }
+    }
+}
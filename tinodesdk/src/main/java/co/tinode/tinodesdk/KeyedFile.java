@@ -0,0 +1,161 @@
+package co.tinode.tinodesdk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small persistent map of string keys to byte values stored in a {@link SegmentLog}. Every change is appended
+ * to the log, the latest record of a key wins. The index of keys is kept in memory, values are read from
+ * the mapped log. The log is rewritten when it holds more outdated records than live ones.
+ * <p>
+ * Meant for records which change rarely compared to their number, such as topics, users and subscriptions.
+ * Not thread-safe.
+ */
+final class KeyedFile implements Closeable {
+    private static final int SEGMENT_SIZE = 4 << 20;
+    // Do not compact logs with less garbage than this.
+    private static final long MIN_GARBAGE = 256 * 1024;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private SegmentLog mLog;
+    // Locations of live records by key.
+    private final Map<String, Long> mIndex = new HashMap<>();
+    // Size of live records.
+    private long mLiveBytes = 0;
+    private ByteBuffer mBuffer = ByteBuffer.allocate(1024);
+
+    private KeyedFile(SegmentLog log) {
+        mLog = log;
+    }
+
+    static KeyedFile open(File dir) throws IOException {
+        KeyedFile file = new KeyedFile(SegmentLog.open(dir, SEGMENT_SIZE));
+        file.mLog.replay((location, payload) -> {
+            String key = readKey(payload);
+            Long old = payload.get() == OP_PUT ? file.mIndex.put(key, location) : file.mIndex.remove(key);
+            if (old != null) {
+                file.mLiveBytes -= file.mLog.recordSize(old);
+            }
+            if (file.mIndex.get(key) != null) {
+                file.mLiveBytes += file.mLog.recordSize(location);
+            }
+        });
+        return file;
+    }
+
+    /**
+     * Get value of the key.
+     *
+     * @return read-only slice of the mapped file with the value or null if the key is not found.
+     */
+    ByteBuffer get(String key) {
+        Long location = mIndex.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer payload = mLog.read(location);
+        readKey(payload);
+        payload.get();
+        return payload.slice();
+    }
+
+    /**
+     * Get keys which start with the given prefix.
+     */
+    List<String> keys(String prefix) {
+        List<String> keys = new ArrayList<>();
+        for (String key : mIndex.keySet()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    void put(String key, byte[] value) throws IOException {
+        long location = append(key, OP_PUT, value);
+        Long old = mIndex.put(key, location);
+        if (old != null) {
+            mLiveBytes -= mLog.recordSize(old);
+        }
+        mLiveBytes += mLog.recordSize(location);
+        maybeCompact();
+    }
+
+    void remove(String key) throws IOException {
+        Long old = mIndex.remove(key);
+        if (old != null) {
+            mLiveBytes -= mLog.recordSize(old);
+            append(key, OP_REMOVE, null);
+            maybeCompact();
+        }
+    }
+
+    /**
+     * Remove all keys.
+     */
+    void clear() throws IOException {
+        SegmentLog next = mLog.rewrite();
+        mLog.supersede(next);
+        mLog = next;
+        mIndex.clear();
+        mLiveBytes = 0;
+    }
+
+    void force() {
+        mLog.force();
+    }
+
+    @Override
+    public void close() {
+        mLog.close();
+    }
+
+    // Rewrite the log with only live records when it's mostly garbage.
+    private void maybeCompact() throws IOException {
+        long garbage = mLog.size() - mLiveBytes;
+        if (garbage < MIN_GARBAGE || garbage < mLiveBytes) {
+            return;
+        }
+
+        SegmentLog next = mLog.rewrite();
+        Map<String, Long> locations = new HashMap<>();
+        for (Map.Entry<String, Long> entry : mIndex.entrySet()) {
+            locations.put(entry.getKey(), next.append(mLog.read(entry.getValue())));
+        }
+        mLog.supersede(next);
+        mLog = next;
+        mIndex.putAll(locations);
+    }
+
+    private long append(String key, byte op, byte[] value) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int size = 2 + bytes.length + 1 + (value != null ? value.length : 0);
+        if (mBuffer.capacity() < size) {
+            mBuffer = ByteBuffer.allocate(Math.max(size, mBuffer.capacity() * 2));
+        }
+        mBuffer.clear();
+        mBuffer.putShort((short) bytes.length).put(bytes).put(op);
+        if (value != null) {
+            mBuffer.put(value);
+        }
+        mBuffer.flip();
+        return mLog.append(mBuffer);
+    }
+
+    private static String readKey(ByteBuffer payload) {
+        int length = payload.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,1044 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.tinode.tinodesdk.model.Acs;
+import co.tinode.tinodesdk.model.Defacs;
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.Subscription;
+
+/**
+ * Persistent implementation of {@link Storage} for JVM clients such as bots, gateways and load generators.
+ * Does not need SQLite: data is kept in memory-mapped files in the given directory.
+ * <p>
+ * Topics, users, subscriptions and the account are stored in a small keyed file, one record per object.
+ * Messages are stored in a per-topic append-only log of operations: a message was received, sent, updated,
+ * delivered, a range of messages was deleted, etc. When the store is opened, the logs are replayed to rebuild
+ * the same in-memory indexes as {@link InMemoryStore} uses. Heads and contents of messages are not kept
+ * in memory: the index holds the location of the message in the log, the message is parsed directly
+ * from the mapped file when it's returned to the caller.
+ * <p>
+ * Logs survive crashes of the process: an incomplete record at the end of a log is dropped when the store
+ * is opened. Call {@link #flush()} to make sure the data survives a crash of the device. When more than half
+ * of a topic's log is taken by deleted or replaced messages, the log is compacted in the background: live
+ * messages and deletion markers are written to a new log which then replaces the old one.
+ * <p>
+ * All methods are synchronized on the store; compaction writes the new log without holding the lock.
+ * Errors writing the files are logged: the change is kept in memory.
+ */
+public class MappedStore extends InMemoryStore implements Closeable {
+    private static final String TAG = "MappedStore";
+
+    private static final String META_DIR = "meta";
+    private static final String TOPICS_DIR = "topics";
+
+    // Maximum size of a single segment of a topic log.
+    private static final int SEGMENT_SIZE = 16 << 20;
+    // Do not compact topic logs with less garbage than this.
+    private static final long COMPACT_MIN_GARBAGE = 1 << 20;
+
+    // Keys in the keyed file.
+    private static final String KEY_ACCOUNT = "account";
+    private static final String PREFIX_TOPIC = "t:";
+    private static final String PREFIX_USER = "u:";
+    private static final String PREFIX_SUB = "s:";
+
+    // Types of records in topic logs. Records with message content start with the length of the content.
+    // Message received from the server or created locally.
+    private static final byte REC_INSERT = 1;
+    // Status or content of the message changed.
+    private static final byte REC_UPDATE = 2;
+    // Message was assigned a seq ID by the server.
+    private static final byte REC_DELIVERED = 3;
+    private static final byte REC_DISCARD = 4;
+    private static final byte REC_PRUNE_FAILED = 5;
+    // Server reported deletion of a range of messages.
+    private static final byte REC_DELETION_RECEIVED = 6;
+    // Messages deleted or marked for deletion.
+    private static final byte REC_DELETE = 7;
+    // Read and recv values set by the client.
+    private static final byte REC_COUNTERS = 8;
+    // Snapshot records written by compaction.
+    private static final byte REC_SNAPSHOT_TOPIC = 9;
+    private static final byte REC_SNAPSHOT_MESSAGE = 10;
+    private static final byte REC_SNAPSHOT_RANGE = 11;
+
+    private final File mTopicsDir;
+    private final KeyedFile mMeta;
+    // Logs of topics by topic ID.
+    private final Map<Long, TopicLog> mLogs = new HashMap<>();
+    private final ObjectMapper mMapper = Tinode.getJsonMapper();
+    private ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+    // Deduplicated sender IDs, used while the logs are replayed.
+    private Map<String, String> mSenders = new HashMap<>();
+    private boolean mRecovering = true;
+    private boolean mClosed = false;
+
+    /**
+     * Open the store in the given directory. The directory is created if it does not exist.
+     */
+    public MappedStore(File dir) throws IOException {
+        mTopicsDir = new File(dir, TOPICS_DIR);
+        if (!mTopicsDir.isDirectory() && !mTopicsDir.mkdirs()) {
+            throw new IOException("Failed to create " + mTopicsDir);
+        }
+        mMeta = KeyedFile.open(new File(dir, META_DIR));
+        try {
+            recover();
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+        mRecovering = false;
+        mSenders = null;
+        for (TopicLog tl : mLogs.values()) {
+            maybeCompact(tl);
+        }
+    }
+
+    /**
+     * Write all changes to disk.
+     */
+    public synchronized void flush() {
+        if (mClosed) {
+            return;
+        }
+        mMeta.force();
+        for (TopicLog tl : mLogs.values()) {
+            tl.log.force();
+        }
+    }
+
+    /**
+     * Compact logs of all topics which have deleted or replaced messages. Other calls to the store
+     * are not blocked while the new logs are written.
+     */
+    public void compact() {
+        List<TopicLog> logs;
+        synchronized (this) {
+            logs = new ArrayList<>(mLogs.values());
+        }
+        for (TopicLog tl : logs) {
+            compact(tl, true);
+        }
+    }
+
+    /**
+     * Write all changes to disk and close the files. The store cannot be used after it's closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        flush();
+        mClosed = true;
+        mMeta.close();
+        for (TopicLog tl : mLogs.values()) {
+            tl.log.close();
+        }
+        mLogs.clear();
+    }
+
+    @Override
+    void loadBody(StoredMessage stored, StoredMessage copy) {
+        if (stored.location < 0 || stored.content != null) {
+            super.loadBody(stored, copy);
+            return;
+        }
+        TopicLog tl = mLogs.get(stored.owner.id);
+        if (tl == null) {
+            return;
+        }
+        Body body = readBody(tl.log.read(stored.location));
+        copy.head = body.head;
+        copy.content = body.content;
+    }
+
+    @Override
+    void onAccountChanged() {
+        persist("account", () -> {
+            ObjectNode node = mMapper.createObjectNode();
+            node.put("uid", mMyUid);
+            node.put("uri", mServerURI);
+            if (mCredMethods != null) {
+                ArrayNode creds = node.putArray("creds");
+                for (String method : mCredMethods) {
+                    creds.add(method);
+                }
+            }
+            node.put("token", mDeviceToken);
+            node.put("owner", mDataOwner);
+            mMeta.put(KEY_ACCOUNT, mMapper.writeValueAsBytes(node));
+        });
+    }
+
+    @Override
+    void onTopicChanged(StoredTopic st) {
+        persist("topic", () -> mMeta.put(PREFIX_TOPIC + st.id, writeTopic(st)));
+    }
+
+    @Override
+    void onTopicRemoved(StoredTopic st) {
+        persist("topic", () -> {
+            mMeta.remove(PREFIX_TOPIC + st.id);
+            for (String key : mMeta.keys(PREFIX_SUB + st.id + ":")) {
+                mMeta.remove(key);
+            }
+            TopicLog tl = mLogs.remove(st.id);
+            if (tl != null) {
+                tl.log.delete();
+            }
+        });
+    }
+
+    @Override
+    void onCountersChanged(StoredTopic st) {
+        persist("counters", () -> {
+            ByteBuffer buf = startRecord(REC_COUNTERS, 8);
+            buf.putInt(st.read).putInt(st.recv);
+            append(st, buf);
+        });
+    }
+
+    @Override
+    void onSubChanged(StoredSubscription ss) {
+        persist("subscription", () -> mMeta.put(subKey(ss.topic.id, ss.sub.user), writeSub(ss)));
+    }
+
+    @Override
+    void onSubRemoved(StoredSubscription ss) {
+        persist("subscription", () -> mMeta.remove(subKey(ss.topic.id, ss.sub.user)));
+    }
+
+    @Override
+    void onUserChanged(StoredUser su) {
+        persist("user", () -> {
+            ObjectNode node = mMapper.createObjectNode();
+            node.put("id", su.id);
+            node.put("uid", su.uid);
+            putDate(node, "updated", su.updated);
+            node.put("pub", typed(su.pub));
+            mMeta.put(PREFIX_USER + su.uid, mMapper.writeValueAsBytes(node));
+        });
+    }
+
+    @Override
+    void onMessageInserted(StoredTopic st, StoredMessage msg) {
+        persist("message", () -> {
+            byte[] from = stringBytes(msg.from);
+            ByteBuffer buf = startMessageRecord(REC_INSERT, writeBody(msg.head, msg.content), 25 + stringSize(from));
+            buf.putLong(msg.dbId).putInt(msg.seq).put((byte) msg.status).putInt(msg.replacesSeq);
+            putDate(buf, msg.ts);
+            putString(buf, from);
+            setLocation(st, msg, append(st, buf));
+        });
+    }
+
+    @Override
+    void onMessageUpdated(StoredTopic st, StoredMessage msg, boolean contentChanged) {
+        persist("message", () -> {
+            byte[] body = null;
+            if (contentChanged) {
+                // Head is not changed by the update: take it from the stored version.
+                Map<String, Object> head = msg.location >= 0 ?
+                        readBody(topicLog(st).log.read(msg.location)).head : msg.head;
+                body = writeBody(head, msg.content);
+            }
+            ByteBuffer buf = startMessageRecord(REC_UPDATE, body, 12);
+            buf.putLong(msg.dbId).putInt(msg.status);
+            long location = append(st, buf);
+            if (contentChanged) {
+                setLocation(st, msg, location);
+            }
+        });
+    }
+
+    @Override
+    void onMessageDelivered(StoredTopic st, StoredMessage msg) {
+        persist("message", () -> {
+            ByteBuffer buf = startRecord(REC_DELIVERED, 20);
+            buf.putLong(msg.dbId).putInt(msg.seq);
+            putDate(buf, msg.ts);
+            append(st, buf);
+        });
+    }
+
+    @Override
+    void onMessageRemoved(StoredTopic st, StoredMessage msg) {
+        persist("message", () -> {
+            ByteBuffer buf = startRecord(REC_DISCARD, 8);
+            buf.putLong(msg.dbId);
+            append(st, buf);
+        });
+    }
+
+    @Override
+    void onFailedPruned(StoredTopic st) {
+        persist("message", () -> append(st, startRecord(REC_PRUNE_FAILED, 0)));
+    }
+
+    @Override
+    void onDeletionReceived(StoredTopic st, int delId, int fromId, int toId) {
+        persist("deletion", () -> {
+            ByteBuffer buf = startRecord(REC_DELETION_RECEIVED, 12);
+            buf.putInt(delId).putInt(fromId).putInt(toId);
+            append(st, buf);
+        });
+    }
+
+    @Override
+    void onMessagesDeleted(StoredTopic st, int delId, int fromId, int toId, boolean markAsHard) {
+        persist("deletion", () -> {
+            ByteBuffer buf = startRecord(REC_DELETE, 13);
+            buf.putInt(delId).putInt(fromId).putInt(toId).put((byte) (markAsHard ? 1 : 0));
+            append(st, buf);
+        });
+    }
+
+    @Override
+    void onUnlinked(StoredTopic st, StoredMessage msg) {
+        TopicLog tl = mLogs.get(st.id);
+        if (tl != null && msg.location >= 0) {
+            tl.liveBytes -= tl.log.recordSize(msg.location);
+            maybeCompact(tl);
+        }
+    }
+
+    @Override
+    void onCleared() {
+        persist("data", () -> {
+            for (TopicLog tl : mLogs.values()) {
+                tl.log.delete();
+            }
+            mLogs.clear();
+            mMeta.clear();
+        });
+    }
+
+    // Read all records and the topic logs.
+    private void recover() throws IOException {
+        ByteBuffer value = mMeta.get(KEY_ACCOUNT);
+        if (value != null) {
+            JsonNode node = readTree(value);
+            mMyUid = text(node, "uid");
+            mServerURI = text(node, "uri");
+            JsonNode creds = node.get("creds");
+            if (creds != null && creds.isArray()) {
+                mCredMethods = new String[creds.size()];
+                for (int i = 0; i < mCredMethods.length; i++) {
+                    mCredMethods[i] = creds.get(i).asText();
+                }
+            }
+            mDeviceToken = text(node, "token");
+            mDataOwner = text(node, "owner");
+        }
+
+        for (String key : mMeta.keys(PREFIX_USER)) {
+            JsonNode node = readTree(mMeta.get(key));
+            StoredUser su = new StoredUser(node.path("id").asLong(), text(node, "uid"));
+            su.updated = date(node, "updated");
+            su.pub = untyped(text(node, "pub"));
+            mUsers.put(su.uid, su);
+            mNextId = Math.max(mNextId, su.id + 1);
+        }
+
+        Map<Long, StoredTopic> topics = new HashMap<>();
+        for (String key : mMeta.keys(PREFIX_TOPIC)) {
+            StoredTopic st = readTopic(readTree(mMeta.get(key)));
+            topics.put(st.id, st);
+            mTopics.put(st.name, st);
+            mNextId = Math.max(mNextId, st.id + 1);
+        }
+
+        for (String key : mMeta.keys(PREFIX_SUB)) {
+            JsonNode node = readTree(mMeta.get(key));
+            StoredTopic st = topics.get(node.path("topic").asLong());
+            if (st == null) {
+                mMeta.remove(key);
+                continue;
+            }
+            StoredSubscription ss = new StoredSubscription(node.path("id").asLong(), st, readSub(node),
+                    node.path("status").asInt());
+            st.subs.put(ss.sub.user, ss);
+            mNextId = Math.max(mNextId, ss.id + 1);
+        }
+
+        File[] dirs = mTopicsDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                StoredTopic st = null;
+                try {
+                    st = topics.get(Long.parseLong(dir.getName()));
+                } catch (NumberFormatException ignored) {
+                }
+                SegmentLog log = SegmentLog.open(dir, SEGMENT_SIZE);
+                if (st == null) {
+                    // Log of a deleted topic.
+                    log.delete();
+                    continue;
+                }
+                TopicLog tl = new TopicLog(st, log);
+                mLogs.put(st.id, tl);
+                replay(st, tl);
+            }
+        }
+    }
+
+    // Rebuild indexes of the topic's messages from the log.
+    private void replay(StoredTopic st, TopicLog tl) throws IOException {
+        tl.log.replay((location, rec) -> {
+            byte type = rec.get();
+            switch (type) {
+                case REC_INSERT -> {
+                    int bodyLength = rec.getInt();
+                    rec.position(rec.position() + bodyLength);
+                    StoredMessage msg = new StoredMessage();
+                    msg.topic = st.name;
+                    msg.dbId = rec.getLong();
+                    int seq = rec.getInt();
+                    msg.status = rec.get();
+                    msg.replacesSeq = rec.getInt();
+                    msg.ts = getDate(rec);
+                    msg.from = getString(rec);
+                    msg.location = location;
+                    if (msg.status == STATUS_SYNCED) {
+                        msg.seq = seq;
+                        if (insert(st, msg) > 0) {
+                            topicMsgReceived(st, msg.ts, seq);
+                            tl.liveBytes += tl.log.recordSize(location);
+                        }
+                    } else {
+                        // Unsent message: make sure it gets the same temporary seq ID.
+                        st.nextUnsentSeq = seq - 1;
+                        msg.seq = 0;
+                        insert(st, msg);
+                        tl.liveBytes += tl.log.recordSize(location);
+                    }
+                }
+                case REC_UPDATE -> {
+                    int bodyLength = rec.getInt();
+                    rec.position(rec.position() + bodyLength);
+                    long dbId = rec.getLong();
+                    int status = rec.getInt();
+                    StoredMessage msg = mMessages.get(dbId);
+                    if (msg != null) {
+                        updateStatusAndContent(dbId, status, null);
+                        if (bodyLength > 0) {
+                            tl.liveBytes -= tl.log.recordSize(msg.location);
+                            tl.liveBytes += tl.log.recordSize(location);
+                            msg.location = location;
+                        }
+                    }
+                }
+                case REC_DELIVERED -> {
+                    StoredMessage msg = mMessages.get(rec.getLong());
+                    int seq = rec.getInt();
+                    Date ts = getDate(rec);
+                    if (msg != null) {
+                        delivered(msg, ts, seq);
+                    }
+                }
+                case REC_DISCARD -> {
+                    StoredMessage msg = mMessages.get(rec.getLong());
+                    if (msg != null) {
+                        remove(st, msg);
+                    }
+                }
+                case REC_PRUNE_FAILED -> pruneFailed(st);
+                case REC_DELETION_RECEIVED -> topicMsgDeleted(st, rec.getInt(), rec.getInt(), rec.getInt());
+                case REC_DELETE -> deleteOrMarkDeleted(st, rec.getInt(), rec.getInt(), rec.getInt(), rec.get() != 0);
+                case REC_COUNTERS -> {
+                    st.read = Math.max(st.read, rec.getInt());
+                    st.recv = Math.max(st.recv, rec.getInt());
+                }
+                case REC_SNAPSHOT_TOPIC -> {
+                    st.minLocalSeq = rec.getInt();
+                    st.maxLocalSeq = rec.getInt();
+                    st.nextUnsentSeq = rec.getInt();
+                    st.read = Math.max(st.read, rec.getInt());
+                    st.recv = Math.max(st.recv, rec.getInt());
+                    st.seq = Math.max(st.seq, rec.getInt());
+                    st.maxDel = Math.max(st.maxDel, rec.getInt());
+                    Date lastUsed = getDate(rec);
+                    if (lastUsed != null && lastUsed.after(st.lastUsed)) {
+                        st.lastUsed = lastUsed;
+                    }
+                }
+                case REC_SNAPSHOT_MESSAGE -> {
+                    int bodyLength = rec.getInt();
+                    rec.position(rec.position() + bodyLength);
+                    StoredMessage msg = new StoredMessage();
+                    msg.topic = st.name;
+                    msg.dbId = rec.getLong();
+                    msg.seq = rec.getInt();
+                    msg.status = rec.get();
+                    msg.replacesSeq = rec.getInt();
+                    msg.effSeq = rec.getInt();
+                    msg.effTs = rec.getLong();
+                    msg.ts = getDate(rec);
+                    msg.from = getString(rec);
+                    msg.location = location;
+                    restore(st, msg);
+                    tl.liveBytes += tl.log.recordSize(location);
+                }
+                case REC_SNAPSHOT_RANGE -> st.deleted.add(new DelRange(rec.getInt(), rec.getInt(), rec.getInt(),
+                        rec.getInt()));
+                default -> throw new IOException("Unknown record type " + type + " in topic " + st.name);
+            }
+        });
+    }
+
+    // Rewrite topic log with live messages and deletion markers only: unless 'always' is set, only when
+    // the log is mostly garbage. The snapshot of the topic is taken under the lock on the store, the new log
+    // is written and forced to disk without it. Records appended to the old log in the meantime are copied
+    // to the new log under the lock when it replaces the old one.
+    private void compact(TopicLog tl, boolean always) {
+        // One compaction of the topic at a time. The lock on the store is always taken after this one.
+        synchronized (tl) {
+            Snapshot snap;
+            synchronized (this) {
+                tl.compacting = false;
+                // The log could have been compacted or deleted while the task was waiting.
+                if (mClosed || mLogs.get(tl.topic.id) != tl ||
+                        !(always ? tl.log.size() > tl.liveBytes : tl.isMostlyGarbage())) {
+                    return;
+                }
+                try {
+                    snap = snapshot(tl);
+                } catch (IOException ex) {
+                    Log.w(TAG, "Failed to compact topic " + tl.topic.name, ex);
+                    return;
+                }
+            }
+
+            SegmentLog next = snap.log.rewrite();
+            try {
+                long[] written = new long[snap.records.length];
+                for (int i = 0; i < written.length; i++) {
+                    written[i] = next.append(ByteBuffer.wrap(snap.records[i]));
+                }
+                next.force();
+
+                synchronized (this) {
+                    if (mClosed || mLogs.get(tl.topic.id) != tl || tl.log != snap.log) {
+                        next.discard();
+                        return;
+                    }
+                    swap(tl, snap, written, next);
+                }
+            } catch (IOException | RuntimeException ex) {
+                Log.w(TAG, "Failed to compact topic " + tl.topic.name, ex);
+                if (tl.log != next) {
+                    next.discard();
+                }
+            }
+        }
+    }
+
+    // Get records describing the current state of the topic.
+    private Snapshot snapshot(TopicLog tl) throws IOException {
+        StoredTopic st = tl.topic;
+        Snapshot snap = new Snapshot(tl.log, st.messages.size());
+        List<byte[]> records = new ArrayList<>();
+
+        ByteBuffer buf = startRecord(REC_SNAPSHOT_TOPIC, 36);
+        buf.putInt(st.minLocalSeq).putInt(st.maxLocalSeq).putInt(st.nextUnsentSeq)
+                .putInt(st.read).putInt(st.recv).putInt(st.seq).putInt(st.maxDel);
+        putDate(buf, st.lastUsed);
+        records.add(toBytes(buf));
+
+        for (int i = 0; i < snap.locations.length; i++) {
+            StoredMessage msg = st.messages.valueAt(i);
+            snap.locations[i] = msg.location;
+            // Content with its length.
+            ByteBuffer body;
+            if (msg.location >= 0) {
+                ByteBuffer rec = tl.log.read(msg.location);
+                rec.get();
+                body = rec.slice();
+                body.limit(4 + rec.getInt());
+            } else {
+                // Content is kept in memory: the message was not written to the log.
+                byte[] bytes = writeBody(msg.head, msg.content);
+                body = ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes);
+                body.flip();
+            }
+            byte[] from = stringBytes(msg.from);
+            buf = startRecord(REC_SNAPSHOT_MESSAGE, body.remaining() + 37 + stringSize(from));
+            buf.put(body);
+            buf.putLong(msg.dbId).putInt(msg.seq).put((byte) msg.status).putInt(msg.replacesSeq)
+                    .putInt(msg.effSeq).putLong(msg.effTs);
+            putDate(buf, msg.ts);
+            putString(buf, from);
+            records.add(toBytes(buf));
+        }
+
+        for (DelRange d : st.deleted) {
+            buf = startRecord(REC_SNAPSHOT_RANGE, 16);
+            buf.putInt(d.low).putInt(d.high).putInt(d.delId).putInt(d.status);
+            records.add(toBytes(buf));
+        }
+        snap.records = records.toArray(new byte[0][]);
+        return snap;
+    }
+
+    // Copy records appended after the snapshot to the next log, make it current and point messages to it.
+    private void swap(TopicLog tl, Snapshot snap, long[] written, SegmentLog next) throws IOException {
+        StoredTopic st = tl.topic;
+        // New locations of records by old location.
+        Map<Long, Long> moved = new HashMap<>();
+        for (int i = 0; i < snap.locations.length; i++) {
+            if (snap.locations[i] >= 0) {
+                // Message records follow the topic record.
+                moved.put(snap.locations[i], written[i + 1]);
+            }
+        }
+        tl.log.replay(snap.end, (location, rec) -> moved.put(location, next.append(rec)));
+
+        // Find new locations before the switch: it cannot be undone.
+        long live = 0;
+        long[] locations = new long[st.messages.size()];
+        for (int i = 0; i < locations.length; i++) {
+            StoredMessage msg = st.messages.valueAt(i);
+            locations[i] = -1;
+            if (msg.location >= 0) {
+                Long location = moved.get(msg.location);
+                if (location == null) {
+                    throw new IllegalStateException("Message " + msg.dbId + " is not in the snapshot");
+                }
+                locations[i] = location;
+                live += next.recordSize(location);
+            }
+        }
+
+        long before = tl.log.size();
+        tl.log.supersede(next);
+        tl.log = next;
+        tl.liveBytes = live;
+        for (int i = 0; i < locations.length; i++) {
+            st.messages.valueAt(i).location = locations[i];
+        }
+        Log.d(TAG, "Compacted topic " + st.name + " from " + before + " to " + next.size() + " bytes");
+    }
+
+    // Compact the log in the background when it's mostly garbage.
+    private void maybeCompact(TopicLog tl) {
+        if (mRecovering || tl.compacting || !tl.isMostlyGarbage()) {
+            return;
+        }
+        tl.compacting = true;
+        SharedScheduler.blocking().execute(() -> compact(tl, false));
+    }
+
+    private TopicLog topicLog(StoredTopic st) throws IOException {
+        TopicLog tl = mLogs.get(st.id);
+        if (tl == null) {
+            tl = new TopicLog(st, SegmentLog.open(new File(mTopicsDir, Long.toString(st.id)), SEGMENT_SIZE));
+            mLogs.put(st.id, tl);
+        }
+        return tl;
+    }
+
+    private long append(StoredTopic st, ByteBuffer buf) throws IOException {
+        buf.flip();
+        return topicLog(st).log.append(buf);
+    }
+
+    // Message content is now stored at the given location: drop it from memory.
+    private void setLocation(StoredTopic st, StoredMessage msg, long location) throws IOException {
+        TopicLog tl = topicLog(st);
+        if (msg.location >= 0) {
+            tl.liveBytes -= tl.log.recordSize(msg.location);
+            maybeCompact(tl);
+        }
+        tl.liveBytes += tl.log.recordSize(location);
+        msg.location = location;
+        msg.head = null;
+        msg.content = null;
+    }
+
+    private void persist(String what, IOAction action) {
+        if (mRecovering) {
+            return;
+        }
+        if (mClosed) {
+            Log.w(TAG, "Store is closed, " + what + " not saved");
+            return;
+        }
+        try {
+            action.run();
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to save " + what, ex);
+        }
+    }
+
+    // Get the buffer to write a record of the given type, the size does not include the type.
+    private ByteBuffer startRecord(byte type, int size) {
+        if (mBuffer.capacity() < size + 1) {
+            mBuffer = ByteBuffer.allocate(Math.max(size + 1, mBuffer.capacity() * 2));
+        }
+        mBuffer.clear();
+        return mBuffer.put(type);
+    }
+
+    // Copy of a record started with startRecord().
+    private static byte[] toBytes(ByteBuffer buf) {
+        buf.flip();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    // Start a record which has message head and content.
+    private ByteBuffer startMessageRecord(byte type, byte[] body, int size) {
+        int length = body != null ? body.length : 0;
+        ByteBuffer buf = startRecord(type, 4 + length + size);
+        buf.putInt(length);
+        if (body != null) {
+            buf.put(body);
+        }
+        return buf;
+    }
+
+    private byte[] writeBody(Map<String, Object> head, Drafty content) throws IOException {
+        return mMapper.writeValueAsBytes(new Body(head, content));
+    }
+
+    // Parse head and content of the message record from the mapped file.
+    private Body readBody(ByteBuffer rec) {
+        rec.get();
+        int length = rec.getInt();
+        if (length > 0) {
+            try {
+                ByteBuffer body = rec.slice();
+                body.limit(length);
+                return mMapper.readValue(new ByteBufferInputStream(body), Body.class);
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to parse message", ex);
+            }
+        }
+        return new Body();
+    }
+
+    private byte[] writeTopic(StoredTopic st) throws IOException {
+        Topic topic = st.topic;
+        ObjectNode node = mMapper.createObjectNode();
+        node.put("id", st.id);
+        node.put("name", st.name);
+        node.put("status", st.status);
+        putDate(node, "lastUsed", st.lastUsed);
+        node.put("read", st.read);
+        node.put("recv", st.recv);
+        node.put("seq", st.seq);
+        node.put("maxDel", st.maxDel);
+
+        // Description of the topic.
+        ObjectNode desc = node.putObject("desc");
+        putDate(desc, "updated", topic.getUpdated());
+        putDate(desc, "touched", topic.getTouched());
+        if (topic instanceof ComTopic) {
+            desc.put("channelAccess", ((ComTopic) topic).hasChannelAccess());
+        }
+        desc.put("read", topic.getRead());
+        desc.put("recv", topic.getRecv());
+        desc.put("seq", topic.getSeq());
+        desc.put("clear", topic.getClear());
+        desc.put("maxDel", topic.getMaxDel());
+        Acs acs = topic.getAccessMode();
+        if (acs != null) {
+            desc.put("mode", acs.getMode());
+            desc.put("want", acs.getWant());
+            desc.put("given", acs.getGiven());
+        }
+        Defacs defacs = topic.getDefacs();
+        if (defacs != null) {
+            desc.put("auth", defacs.getAuth());
+            desc.put("anon", defacs.getAnon());
+        }
+        desc.put("tags", typed(topic.getTags()));
+        desc.put("aux", typed(topic.getAux()));
+        putDate(desc, "lastSeen", topic.getLastSeen());
+        desc.put("lastSeenUA", topic.getLastSeenUA());
+        if (topic instanceof MeTopic) {
+            desc.put("creds", typed(((MeTopic) topic).getCreds()));
+        }
+        desc.put("pub", typed(topic.getPub()));
+        desc.put("trusted", typed(topic.getTrusted()));
+        desc.put("priv", typed(topic.getPriv()));
+        desc.put("subCnt", topic.getSubCnt());
+        desc.put("pinned", topic.getPinnedRank());
+        return mMapper.writeValueAsBytes(node);
+    }
+
+    // Restore topic record. The topic object is not attached to any Tinode instance.
+    @SuppressWarnings("unchecked")
+    private StoredTopic readTopic(JsonNode node) {
+        StoredTopic st = new StoredTopic(node.path("id").asLong(), text(node, "name"));
+        st.status = node.path("status").asInt();
+        st.lastUsed = date(node, "lastUsed");
+        st.read = node.path("read").asInt();
+        st.recv = node.path("recv").asInt();
+        st.seq = node.path("seq").asInt();
+        st.maxDel = node.path("maxDel").asInt();
+
+        JsonNode desc = node.get("desc");
+        Topic topic = Tinode.newTopic(null, st.name, null);
+        topic.setUpdated(date(desc, "updated"));
+        topic.setTouched(date(desc, "touched"));
+        if (topic instanceof ComTopic && desc.has("channelAccess")) {
+            ((ComTopic) topic).setHasChannelAccess(desc.path("channelAccess").asBoolean());
+        }
+        topic.setRead(desc.path("read").asInt());
+        topic.setRecv(desc.path("recv").asInt());
+        topic.setSeq(desc.path("seq").asInt());
+        topic.setClear(desc.path("clear").asInt());
+        topic.setMaxDel(desc.path("maxDel").asInt());
+        if (desc.has("mode") || desc.has("want") || desc.has("given")) {
+            topic.setAccessMode(new Acs(text(desc, "given"), text(desc, "want"), text(desc, "mode")));
+        }
+        if (desc.has("auth") || desc.has("anon")) {
+            topic.setDefacs(new Defacs(text(desc, "auth"), text(desc, "anon")));
+        }
+        topic.setTags(untyped(text(desc, "tags")));
+        topic.setAux(untyped(text(desc, "aux")));
+        Date lastSeen = date(desc, "lastSeen");
+        if (lastSeen != null) {
+            topic.setLastSeen(lastSeen, text(desc, "lastSeenUA"));
+        }
+        if (topic instanceof MeTopic) {
+            ((MeTopic) topic).setCreds(untyped(text(desc, "creds")));
+        }
+        topic.setPub(untyped(text(desc, "pub")));
+        topic.setTrusted(untyped(text(desc, "trusted")));
+        topic.setPriv(untyped(text(desc, "priv")));
+        topic.setSubCnt(desc.path("subCnt").asInt());
+        topic.setPinnedRank(desc.path("pinned").asInt());
+        st.topic = topic;
+        return st;
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] writeSub(StoredSubscription ss) throws IOException {
+        Subscription sub = ss.sub;
+        // Values of generic types and access mode are stored separately.
+        Subscription plain = new Subscription<>(sub);
+        plain.pub = null;
+        plain.priv = null;
+        plain.trusted = null;
+        plain.acs = null;
+
+        ObjectNode node = mMapper.createObjectNode();
+        node.put("id", ss.id);
+        node.put("topic", ss.topic.id);
+        node.put("status", ss.status);
+        node.set("sub", mMapper.valueToTree(plain));
+        if (sub.acs != null) {
+            node.put("mode", sub.acs.getMode());
+            node.put("want", sub.acs.getWant());
+            node.put("given", sub.acs.getGiven());
+        }
+        node.put("pub", typed(sub.pub));
+        node.put("priv", typed(sub.priv));
+        node.put("trusted", typed(sub.trusted));
+        return mMapper.writeValueAsBytes(node);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Subscription readSub(JsonNode node) throws IOException {
+        Subscription sub = mMapper.treeToValue(node.get("sub"), Subscription.class);
+        if (node.has("mode") || node.has("want") || node.has("given")) {
+            sub.acs = new Acs(text(node, "given"), text(node, "want"), text(node, "mode"));
+        }
+        sub.pub = untyped(text(node, "pub"));
+        sub.priv = untyped(text(node, "priv"));
+        sub.trusted = untyped(text(node, "trusted"));
+        return sub;
+    }
+
+    private JsonNode readTree(ByteBuffer value) throws IOException {
+        return mMapper.readTree(new ByteBufferInputStream(value));
+    }
+
+    // Serialize object of any type as "canonical_class_name;json", same as the app's database.
+    private String typed(Object obj) throws IOException {
+        return obj != null ? obj.getClass().getCanonicalName() + ";" + mMapper.writeValueAsString(obj) : null;
+    }
+
+    private static <T> T untyped(String input) {
+        if (input == null) {
+            return null;
+        }
+        String[] parts = input.split(";", 2);
+        if (parts[0].endsWith("[]")) {
+            //noinspection unchecked
+            return (T) Tinode.jsonDeserializeArray(parts[1], parts[0].substring(0, parts[0].length() - 2));
+        }
+        return Tinode.jsonDeserialize(parts[1], parts[0]);
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value != null && !value.isNull() ? value.asText() : null;
+    }
+
+    private static Date date(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value != null && !value.isNull() ? new Date(value.asLong()) : null;
+    }
+
+    private static void putDate(ObjectNode node, String field, Date date) {
+        if (date != null) {
+            node.put(field, date.getTime());
+        }
+    }
+
+    private static void putDate(ByteBuffer buf, Date date) {
+        buf.putLong(date != null ? date.getTime() : Long.MIN_VALUE);
+    }
+
+    private static Date getDate(ByteBuffer buf) {
+        long time = buf.getLong();
+        return time != Long.MIN_VALUE ? new Date(time) : null;
+    }
+
+    private static byte[] stringBytes(String str) {
+        return str != null ? str.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    // Size of the string written by putString.
+    private static int stringSize(byte[] str) {
+        return 2 + (str != null ? str.length : 0);
+    }
+
+    private static void putString(ByteBuffer buf, byte[] str) {
+        if (str == null) {
+            buf.putShort((short) -1);
+        } else {
+            buf.putShort((short) str.length).put(str);
+        }
+    }
+
+    private String getString(ByteBuffer buf) {
+        int length = buf.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        String str = new String(bytes, StandardCharsets.UTF_8);
+        if (mSenders != null) {
+            // Share one string per sender between all messages.
+            String known = mSenders.putIfAbsent(str, str);
+            if (known != null) {
+                str = known;
+            }
+        }
+        return str;
+    }
+
+    private static String subKey(long topicId, String uid) {
+        return PREFIX_SUB + topicId + ":" + uid;
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    // Log of a topic's messages.
+    private static class TopicLog {
+        final StoredTopic topic;
+        SegmentLog log;
+        // Size of records with content of live messages.
+        long liveBytes = 0;
+        // Compaction is scheduled.
+        boolean compacting = false;
+
+        TopicLog(StoredTopic topic, SegmentLog log) {
+            this.topic = topic;
+            this.log = log;
+        }
+
+        boolean isMostlyGarbage() {
+            long garbage = log.size() - liveBytes;
+            return garbage >= COMPACT_MIN_GARBAGE && garbage >= liveBytes;
+        }
+    }
+
+    // State of a topic to be written to the next generation of its log.
+    private static class Snapshot {
+        // Log at the time of the snapshot and the location of the next record appended to it.
+        final SegmentLog log;
+        final long end;
+        // Locations of messages at the time of the snapshot.
+        final long[] locations;
+        // Topic record, one record per message, then deletion markers.
+        byte[][] records;
+
+        Snapshot(SegmentLog log, int count) {
+            this.log = log;
+            this.end = log.end();
+            this.locations = new long[count];
+        }
+    }
+
+    // Head and content of a message as stored in the log.
+    private static class Body {
+        public Map<String, Object> head;
+        public Drafty content;
+
+        Body() {
+        }
+
+        Body(Map<String, Object> head, Drafty content) {
+            this.head = head;
+            this.content = content;
+        }
+    }
+
+    // Stream over a slice of a mapped file.
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(bytes, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
@@ -7,11 +7,13 @@ import com.fasterxml.jackson.databind.JavaType;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import co.tinode.tinodesdk.model.Acs;
 import co.tinode.tinodesdk.model.AcsHelper;
@@ -34,6 +36,9 @@ import co.tinode.tinodesdk.model.Subscription;
 public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
     private static final String TAG = "MeTopic";
 
+    // Maximum number of subscriptions saved to the store at once.
+    private static final int SUB_BATCH_SIZE = 256;
+
     protected MeNotifier<DP> mMeNotifier = new MeNotifier<>(mListeners);
 
     @SuppressWarnings("WeakerAccess")
@@ -338,10 +343,13 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
         for (String topicName : newPins) {
             Topic topic = mTinode.getTopic(topicName);
             if (topic != null) {
-                topic.setPinnedRank(rank);
-                if (mStore != null) {
-                    mStore.topicUpdate(topic);
-                }
+                final int pinnedRank = rank;
+                mTinode.routeTo(topicName, () -> {
+                    topic.setPinnedRank(pinnedRank);
+                    if (mStore != null) {
+                        mStore.topicUpdate(topic);
+                    }
+                });
             }
             rank --;
         }
@@ -354,25 +362,102 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
             if (!newPins.contains(topicName)) {
                 Topic topic = mTinode.getTopic(topicName);
                 if (topic != null) {
-                    topic.setPinnedRank(0);
-                    if (mStore != null) {
-                        mStore.topicUpdate(topic);
-                    }
+                    mTinode.routeTo(topicName, () -> {
+                        topic.setPinnedRank(0);
+                        if (mStore != null) {
+                            mStore.topicUpdate(topic);
+                        }
+                    });
                 }
             }
         }
     }
 
+    /**
+     * Subscriptions are processed in batches: topics and users of a batch are saved to the store at once,
+     * then listeners are notified. The most recently touched topics go first, so the list of chats can be shown
+     * before the rest of a long list is processed.
+     * <p>
+     * Each topic is changed in order with its own packets. When packets are routed in parallel the changes are
+     * applied on the lanes of the topics, and the listeners of 'me' are notified once all topics of the batch
+     * are updated.
+     */
     @Override
     protected void routeMetaSub(MsgServerMeta<DP,PrivateType,DP,PrivateType> meta) {
-        for (Subscription<DP,PrivateType> sub : meta.sub) {
-            processOneSub(sub);
+        List<Subscription<DP,PrivateType>> subs = new ArrayList<>(Arrays.asList(meta.sub));
+        if (subs.size() > 1) {
+            subs.sort(MeTopic::compareTouched);
+        }
+
+        int start = 0;
+        do {
+            final List<Subscription<DP,PrivateType>> batch =
+                    subs.subList(start, Math.min(start + SUB_BATCH_SIZE, subs.size()));
+            // One part per topic and one for the batch itself.
+            final SubBatch done = new SubBatch(batch.size() + 1);
+            Runnable process = () -> {
+                for (Subscription<DP,PrivateType> sub : batch) {
+                    mTinode.routeTo(sub.topic, () -> {
+                        try {
+                            processOneSub(sub, done.deferred);
+                        } finally {
+                            done.countDown();
+                        }
+                    });
+                }
+            };
+            try {
+                if (mStore != null) {
+                    mStore.runBatch(process);
+                } else {
+                    process.run();
+                }
+            } finally {
+                done.countDown();
+            }
+
+            start += SUB_BATCH_SIZE;
+        } while (start < subs.size());
+    }
+
+    // Subscriptions processed together. Listeners are notified when all parts of the batch are done.
+    private class SubBatch {
+        // Notifications to send to listeners.
+        final List<Runnable> deferred = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger mLeft;
+
+        SubBatch(int parts) {
+            mLeft = new AtomicInteger(parts);
         }
-        mMeNotifier.notifySubsUpdated();
+
+        void countDown() {
+            if (mLeft.decrementAndGet() == 0) {
+                mTinode.routeTo(getName(), () -> {
+                    for (Runnable notification : deferred) {
+                        notification.run();
+                    }
+                    mMeNotifier.notifySubsUpdated();
+                });
+            }
+        }
+    }
+
+    // Most recently touched first, never touched last.
+    private static int compareTouched(Subscription<?,?> s1, Subscription<?,?> s2) {
+        if (s1.touched == null) {
+            return s2.touched == null ? 0 : 1;
+        }
+        return s2.touched == null ? -1 : s2.touched.compareTo(s1.touched);
     }
 
+    /**
+     * Update topic and user records from a subscription. Called on the thread routing packets of the topic.
+     *
+     * @param sub      subscription to process.
+     * @param deferred notifications to send to listeners when the batch of subscriptions is saved.
+     */
     @SuppressWarnings("unchecked")
-    private void processOneSub(Subscription<DP,PrivateType> sub) {
+    private void processOneSub(Subscription<DP,PrivateType> sub, List<Runnable> deferred) {
         // Handle topic.
         Topic topic = mTinode.getTopic(sub.topic);
         if (topic != null) {
@@ -390,7 +475,9 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                 // Update its record in memory and in the database.
                 if (topic.update(sub)) {
                     // Notify topic to update self.
-                    topic.mNotifier.notifyMetaDesc(topic.mDesc);
+                    final Topic updated = topic;
+                    deferred.add(() -> mTinode.routeTo(updated.getName(),
+                            () -> updated.mNotifier.notifyMetaDesc(updated.mDesc)));
                 }
             }
         } else if (sub.deleted == null) {
@@ -425,7 +512,7 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                 }
             }
         }
-        mMeNotifier.notifyMetaSub(sub);
+        deferred.add(() -> mMeNotifier.notifyMetaSub(sub));
     }
 
     private int findCredIndex(Credential other, boolean anyUnconfirmed) {
@@ -536,58 +623,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
         } else {
             Topic topic = mTinode.getTopic(pres.src);
             if (topic != null) {
-                switch (what) {
-                    case ON: // topic came online
-                        topic.setOnline(true);
-                        break;
-
-                    case OFF: // topic went offline
-                        topic.setOnline(false);
-                        topic.setLastSeen(new Date());
-                        break;
-
-                    case MSG: // new message received
-                        topic.setSeqAndFetch(pres.seq);
-                        if (pres.act == null || mTinode.isMe(pres.act)) {
-                            // Message is sent by the current user.
-                            assignRead(topic, pres.seq);
-                        }
-                        topic.setTouched(new Date());
-                        break;
-
-                    case ACS: // access mode changed
-                        if (pres.tgt == null && topic.updateAccessMode(pres.dacs) && mStore != null) {
-                            // tgt is null means permissions are for the current user.
-                            mStore.topicUpdate(topic);
-                        }
-                        break;
-
-                    case UA: // user agent changed
-                        topic.setLastSeen(new Date(), pres.ua);
-                        break;
-
-                    case RECV: // user's other session marked some messages as received
-                        assignRecv(topic, pres.seq);
-                        break;
-
-                    case READ: // user's other session marked some messages as read
-                        assignRead(topic, pres.seq);
-                        break;
-
-                    case DEL: // messages deleted
-                        // TODO(gene): add handling for del
-                        break;
-
-                    case GONE:
-                        // If topic is unknown (==null), then we don't care to unregister it.
-                        if (topic.isDeleted()) {
-                            mTinode.stopTrackingTopic(pres.src);
-                            topic.expunge( true);
-                        } else {
-                            topic.expunge(false);
-                        }
-                        break;
-                }
+                // Change the topic in order with its own packets.
+                mTinode.routeTo(topic.getName(), () -> routeTopicPres(topic, what, pres));
             } else {
                 switch (what) {
                     case ACS:
@@ -603,6 +640,9 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                         // Tags in 'me' topic updated.
                         getMeta(getMetaGetBuilder().withTags().build());
                         break;
+                    case GONE:
+                        mMeNotifier.notifySubsUpdated();
+                        break;
                     default:
                         Log.d(TAG, "Topic not found in me.routePres: " + pres.what + " in " + pres.src);
                         break;
@@ -610,12 +650,67 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
             }
         }
 
-        if (what == MsgServerPres.What.GONE) {
-            mMeNotifier.notifySubsUpdated();
-        }
         mMeNotifier.notifyPres(pres);
     }
 
+    // Apply presence notification from 'me' to the topic it's about.
+    // Called on the thread routing packets of the topic.
+    private void routeTopicPres(Topic topic, MsgServerPres.What what, MsgServerPres pres) {
+        switch (what) {
+            case ON: // topic came online
+                topic.setOnline(true);
+                break;
+
+            case OFF: // topic went offline
+                topic.setOnline(false);
+                topic.setLastSeen(new Date());
+                break;
+
+            case MSG: // new message received
+                topic.setSeqAndFetch(pres.seq);
+                if (pres.act == null || mTinode.isMe(pres.act)) {
+                    // Message is sent by the current user.
+                    assignRead(topic, pres.seq);
+                }
+                topic.setTouched(new Date());
+                break;
+
+            case ACS: // access mode changed
+                if (pres.tgt == null && topic.updateAccessMode(pres.dacs) && mStore != null) {
+                    // tgt is null means permissions are for the current user.
+                    mStore.topicUpdate(topic);
+                }
+                break;
+
+            case UA: // user agent changed
+                topic.setLastSeen(new Date(), pres.ua);
+                break;
+
+            case RECV: // user's other session marked some messages as received
+                assignRecv(topic, pres.seq);
+                break;
+
+            case READ: // user's other session marked some messages as read
+                assignRead(topic, pres.seq);
+                break;
+
+            case DEL: // messages deleted
+                // TODO(gene): add handling for del
+                break;
+
+            case GONE:
+                // If topic is unknown (==null), then we don't care to unregister it.
+                if (topic.isDeleted()) {
+                    mTinode.stopTrackingTopic(pres.src);
+                    topic.expunge( true);
+                } else {
+                    topic.expunge(false);
+                }
+                mTinode.routeTo(getName(), mMeNotifier::notifySubsUpdated);
+                break;
+        }
+    }
+
     @Override
     protected void routeInfo(MsgServerInfo info) {
         if (info.src == null) {
@@ -633,12 +728,14 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
             case Tinode.NOTE_READ:
                 Topic topic = mTinode.getTopic(info.src);
                 if (topic != null) {
-                    topic.setReadRecvByRemote(info.from, info.what, info.seq);
-                }
-
-                // If this is an update from the current user, update the contact with the new count too.
-                if (mTinode.isMe(info.from)) {
-                    setMsgReadRecv(info.src, info.what, info.seq);
+                    // Change the topic in order with its own packets.
+                    mTinode.routeTo(topic.getName(), () -> {
+                        topic.setReadRecvByRemote(info.from, info.what, info.seq);
+                        // If this is an update from the current user, update the contact with the new count too.
+                        if (mTinode.isMe(info.from)) {
+                            setMsgReadRecv(info.src, info.what, info.seq);
+                        }
+                    });
                 }
                 break;
 
@@ -675,6 +772,7 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                 return;
             }
 
+            // Called on the thread routing packets of the topic.
             switch (what) {
                 case Tinode.NOTE_RECV:
                     assignRecv(topic, seq);
@@ -708,15 +806,17 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
 
     public static class MeNotifier<DP>
             extends Topic.ListenerNotifier<Listener<DP,PrivateType,DP,PrivateType>, DP,PrivateType,DP,PrivateType> {
-        MeNotifier(List<Listener<DP, PrivateType,DP,PrivateType>> initialListeners) {
-            super(initialListeners);
+        private final EventBus.Event<Listener<DP,PrivateType,DP,PrivateType>> credUpdatedEvent;
+
+        MeNotifier(EventBus<Listener<DP,PrivateType,DP,PrivateType>> listeners) {
+            super(listeners);
+            credUpdatedEvent = listeners.event(MeListener.class, "onCredUpdated", Credential[].class);
         }
 
+        @SuppressWarnings("unchecked")
         public void notifyCredUpdated(Credential[] cred) {
-            for (Listener<DP, PrivateType,DP,PrivateType> l : snapshot()) {
-                if (l instanceof MeListener) {
-                    ((MeListener<DP>)l).onCredUpdated(cred);
-                }
+            for (Listener<DP,PrivateType,DP,PrivateType> l : credUpdatedEvent.listeners()) {
+                ((MeListener<DP>) l).onCredUpdated(cred);
             }
         }
     }
@@ -0,0 +1,280 @@
+package co.tinode.tinodesdk;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import co.tinode.tinodesdk.model.ClientMessage;
+import co.tinode.tinodesdk.model.ServerMessage;
+
+/**
+ * Protocol metrics collected by {@link Tinode}: packet and byte counts, request round-trip time,
+ * reconnects, TLS handshakes, request timeouts and latency of saving messages to {@link Storage}.
+ * <p>
+ * Metrics are updated without locking. Reading them is done with {@link #snapshot()}, which returns
+ * an immutable copy suitable for logging or sending to a server.
+ */
+public final class Metrics {
+    // Inbound packet types.
+    private static final String[] IN_TYPES = {"ctrl", "data", "meta", "pres", "info"};
+    // Outbound packet types.
+    private static final String[] OUT_TYPES = {"hi", "acc", "login", "sub", "leave", "pub", "get", "set", "del", "note"};
+
+    private final LongAdder[] mPacketsIn = newCounters(IN_TYPES.length);
+    private final LongAdder[] mPacketsOut = newCounters(OUT_TYPES.length);
+    private final LongAdder mBytesIn = new LongAdder();
+    private final LongAdder mBytesOut = new LongAdder();
+    private final LongAdder mReconnects = new LongAdder();
+    private final LongAdder mBackoffMillis = new LongAdder();
+    private final LongAdder mTimeouts = new LongAdder();
+    private final LongAdder mTlsResumed = new LongAdder();
+    private final LongAdder mWarmConnects = new LongAdder();
+    private final Histogram mRoundTrip = new Histogram();
+    private final Histogram mStorage = new Histogram();
+    private final Histogram mTlsHandshake = new Histogram();
+
+    Metrics() {
+    }
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    void packetIn(ServerMessage pkt) {
+        int index = pkt.ctrl != null ? 0 :
+                pkt.data != null ? 1 :
+                pkt.meta != null ? 2 :
+                pkt.pres != null ? 3 :
+                pkt.info != null ? 4 : -1;
+        if (index >= 0) {
+            mPacketsIn[index].increment();
+        }
+    }
+
+    void packetOut(ClientMessage msg) {
+        int index = msg.hi != null ? 0 :
+                msg.acc != null ? 1 :
+                msg.login != null ? 2 :
+                msg.sub != null ? 3 :
+                msg.leave != null ? 4 :
+                msg.pub != null ? 5 :
+                msg.get != null ? 6 :
+                msg.set != null ? 7 :
+                msg.del != null ? 8 :
+                msg.note != null ? 9 : -1;
+        if (index >= 0) {
+            mPacketsOut[index].increment();
+        }
+    }
+
+    void bytesIn(long count) {
+        mBytesIn.add(count);
+    }
+
+    void bytesOut(long count) {
+        mBytesOut.add(count);
+    }
+
+    /**
+     * Record reconnect attempt.
+     *
+     * @param backoff time spent waiting before the attempt, milliseconds.
+     */
+    void reconnect(long backoff) {
+        mReconnects.increment();
+        mBackoffMillis.add(backoff);
+    }
+
+    void timeout() {
+        mTimeouts.increment();
+    }
+
+    /**
+     * Record completed TLS handshake.
+     *
+     * @param nanos   duration of the handshake in nanoseconds.
+     * @param resumed handshake resumed a cached session.
+     * @param warm    connection was opened ahead of time.
+     */
+    void tlsHandshake(long nanos, boolean resumed, boolean warm) {
+        mTlsHandshake.record(nanos);
+        if (resumed) {
+            mTlsResumed.increment();
+        }
+        if (warm) {
+            mWarmConnects.increment();
+        }
+    }
+
+    /**
+     * Record time between sending a request and receiving the response.
+     *
+     * @param nanos round-trip time in nanoseconds.
+     */
+    void roundTrip(long nanos) {
+        mRoundTrip.record(nanos);
+    }
+
+    /**
+     * Record duration of a storage call.
+     *
+     * @param start value of {@link System#nanoTime()} taken before the call.
+     */
+    void storage(long start) {
+        mStorage.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Get immutable copy of current values.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    // Lock-free histogram with power of two buckets: bucket i counts values in [2^i, 2^(i+1)) microseconds.
+    private static class Histogram {
+        private static final int BUCKETS = 32;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder mSum = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            mBuckets.incrementAndGet(bucket);
+            mSum.add(micros);
+        }
+    }
+
+    /**
+     * Distribution of durations at the time of the snapshot.
+     */
+    public static final class Distribution {
+        /** Number of recorded values. */
+        public final long count;
+        /** Sum of all recorded values, microseconds. */
+        public final long sumMicros;
+        // Counts of values in power of two buckets.
+        private final long[] mBuckets;
+
+        private Distribution(Histogram histogram) {
+            mBuckets = new long[Histogram.BUCKETS];
+            long total = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] = histogram.mBuckets.get(i);
+                total += mBuckets[i];
+            }
+            count = total;
+            sumMicros = histogram.mSum.sum();
+        }
+
+        /**
+         * Get mean value.
+         *
+         * @return mean in microseconds or 0 if nothing was recorded.
+         */
+        public long meanMicros() {
+            return count > 0 ? sumMicros / count : 0;
+        }
+
+        /**
+         * Get approximate percentile: the upper bound of the bucket containing it.
+         *
+         * @param p percentile between 0 and 100.
+         * @return upper bound of the percentile in microseconds or 0 if nothing was recorded.
+         */
+        public long percentileMicros(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, p)) / 100d);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << (i + 1);
+                }
+            }
+            return 1L << mBuckets.length;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "{count=" + count + ", mean=" + meanMicros() + "us, p50=" + percentileMicros(50) +
+                    "us, p99=" + percentileMicros(99) + "us}";
+        }
+    }
+
+    /**
+     * Immutable copy of metrics.
+     */
+    public static final class Snapshot {
+        /** Number of received packets by type: ctrl, data, meta, pres, info. */
+        public final Map<String, Long> packetsIn;
+        /** Number of sent packets by type: hi, acc, login, sub, leave, pub, get, set, del, note. */
+        public final Map<String, Long> packetsOut;
+        /** Number of bytes received in websocket frames. */
+        public final long bytesIn;
+        /** Number of bytes sent in websocket frames. */
+        public final long bytesOut;
+        /** Number of automatic reconnect attempts. */
+        public final long reconnects;
+        /** Total time spent waiting before reconnect attempts, milliseconds. */
+        public final long backoffMillis;
+        /** Number of requests rejected because the server did not respond in time. */
+        public final long timeouts;
+        /** Time between sending a request and receiving the response. */
+        public final Distribution roundTrip;
+        /** Duration of calls to {@link Storage} which save sent, delivered and received messages. */
+        public final Distribution storage;
+        /** Duration of TLS handshakes. */
+        public final Distribution tlsHandshake;
+        /** Number of TLS handshakes which resumed a cached session. */
+        public final long tlsResumed;
+        /** Number of connections which used a socket opened ahead of time. */
+        public final long warmConnects;
+
+        private Snapshot(Metrics m) {
+            packetsIn = toMap(IN_TYPES, m.mPacketsIn);
+            packetsOut = toMap(OUT_TYPES, m.mPacketsOut);
+            bytesIn = m.mBytesIn.sum();
+            bytesOut = m.mBytesOut.sum();
+            reconnects = m.mReconnects.sum();
+            backoffMillis = m.mBackoffMillis.sum();
+            timeouts = m.mTimeouts.sum();
+            roundTrip = new Distribution(m.mRoundTrip);
+            storage = new Distribution(m.mStorage);
+            tlsHandshake = new Distribution(m.mTlsHandshake);
+            tlsResumed = m.mTlsResumed.sum();
+            warmConnects = m.mWarmConnects.sum();
+        }
+
+        private static Map<String, Long> toMap(String[] types, LongAdder[] counters) {
+            Map<String, Long> map = new LinkedHashMap<>();
+            for (int i = 0; i < types.length; i++) {
+                map.put(types[i], counters[i].sum());
+            }
+            return Collections.unmodifiableMap(map);
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "Metrics{in=" + packetsIn + ", out=" + packetsOut +
+                    ", bytesIn=" + bytesIn + ", bytesOut=" + bytesOut +
+                    ", reconnects=" + reconnects + ", backoff=" + backoffMillis + "ms" +
+                    ", timeouts=" + timeouts + ", rtt=" + roundTrip + ", storage=" + storage +
+                    ", tls=" + tlsHandshake + ", tlsResumed=" + tlsResumed + ", warm=" + warmConnects + "}";
+        }
+    }
+}
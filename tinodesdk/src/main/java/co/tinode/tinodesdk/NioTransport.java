@@ -0,0 +1,851 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import org.java_websocket.framing.CloseFrame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Websocket transport on non-blocking sockets. All connections in the process are served by a few
+ * shared selector threads, see {@link EventLoop}, so the number of threads does not grow with the
+ * number of connections. Intended for running many clients in one process: bots, load generation,
+ * tests. Use {@link Tinode#setTransportFactory(Transport.Factory)} to enable.
+ * <p>
+ * Messages are delivered to the listener on the selector thread, so the listener must not block:
+ * it should call {@link #pauseReading()} when it can't keep up.
+ * Close and error events are delivered on a pooled thread after all messages.
+ * Binary messages are delivered in a buffer which is valid only during the listener call.
+ * <p>
+ * Compared to the default transport: permessage-deflate is not negotiated and sockets are not
+ * opened ahead of time. TLS uses the same shared context and session cache.
+ */
+public final class NioTransport implements Transport, EventLoop.Handler {
+    private static final String TAG = "NioTransport";
+
+    private static final Factory FACTORY = NioTransport::new;
+
+    // Websocket opcodes.
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    // Maximum size of a message, larger messages close the connection.
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    // Maximum size of the HTTP response to the upgrade request.
+    private static final int MAX_HANDSHAKE_SIZE = 16 * 1024;
+    private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private enum State {
+        // Created, connect() not called yet.
+        NEW,
+        // Opening TCP connection and completing TLS handshake.
+        CONNECTING,
+        // Waiting for response to the HTTP upgrade request.
+        UPGRADING,
+        OPEN,
+        // Close frame is sent, waiting for the server to confirm.
+        CLOSING,
+        CLOSED
+    }
+
+    private final URI mEndpoint;
+    private final Map<String, String> mHeaders;
+    private final int mTimeout;
+    private final Listener mListener;
+    private final EventLoop mLoop;
+    private final boolean mSecure;
+
+    private volatile State mState = State.NEW;
+
+    // Fields below are used on the loop thread only.
+    private SocketChannel mChannel = null;
+    private SelectionKey mKey = null;
+    private SSLEngine mEngine = null;
+    // Start of the TLS handshake, System.nanoTime(); zero once the handshake is completed.
+    private long mTlsStart = 0;
+    // Expected value of the Sec-WebSocket-Accept header.
+    private String mAccept = null;
+    // Received bytes not yet processed: incomplete frame or HTTP response. Kept ready for reading.
+    private ByteBuffer mIn = null;
+    // Received TLS bytes not yet decrypted.
+    private ByteBuffer mNetIn = null;
+    // Encrypted bytes not yet written to the socket.
+    private ByteBuffer mNetOut = null;
+    // Collected fragments of a fragmented message and opcode of the message.
+    private ByteBuffer mFragments = null;
+    private int mFragmentsOpcode = 0;
+    // Reading from the socket is paused by the listener.
+    private boolean mReadPaused = false;
+
+    // Frames waiting to be written, encoded and masked.
+    private final Queue<ByteBuffer> mOut = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private ScheduledFuture<?> mTimeoutTask = null;
+
+    private NioTransport(URI endpoint, Map<String, String> headers, int timeout, Listener listener) {
+        mEndpoint = endpoint;
+        mHeaders = headers;
+        mTimeout = timeout;
+        mListener = listener;
+        mLoop = EventLoop.next();
+        mSecure = "wss".equals(endpoint.getScheme());
+    }
+
+    /**
+     * Get factory of transports to pass to {@link Tinode#setTransportFactory(Transport.Factory)}.
+     */
+    public static Factory factory() {
+        return FACTORY;
+    }
+
+    @Override
+    public void connect() {
+        synchronized (this) {
+            if (mState != State.NEW) {
+                return;
+            }
+            mState = State.CONNECTING;
+            // Covers name resolution, TCP and TLS handshakes and the upgrade request.
+            mTimeoutTask = SharedScheduler.get().schedule(() -> mLoop.execute(() -> {
+                if (mState == State.CONNECTING || mState == State.UPGRADING) {
+                    fail(new SocketTimeoutException("Connection timed out"));
+                }
+            }), mTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        // Name resolution may block, it runs on the resolver threads.
+        HostResolver.resolve(mEndpoint.getHost()).whenComplete((address, err) -> mLoop.execute(() -> {
+            if (err != null) {
+                fail(new UnknownHostException(mEndpoint.getHost()));
+            } else {
+                open(new InetSocketAddress(address, mEndpoint.getPort()));
+            }
+        }));
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            switch (mState) {
+                case OPEN:
+                    mState = State.CLOSING;
+                    enqueue(closeFrame(CloseFrame.NORMAL, ""));
+                    // Messages are no longer delivered: read the server's close frame.
+                    resumeReading();
+                    // Don't wait for the server forever.
+                    SharedScheduler.get().schedule(() -> mLoop.execute(() ->
+                            abort(CloseFrame.ABNORMAL_CLOSE, "close timeout")), mTimeout, TimeUnit.MILLISECONDS);
+                    return;
+                case CLOSING:
+                case CLOSED:
+                    return;
+                default:
+                    // Not open yet: report below.
+            }
+        }
+        finish(CloseFrame.NEVER_CONNECTED, "closed before opening", false, null);
+    }
+
+    @Override
+    public void abort(int code, String reason) {
+        finish(code, reason, false, null);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mState == State.OPEN;
+    }
+
+    @Override
+    public boolean canPauseReading() {
+        return true;
+    }
+
+    @Override
+    public void pauseReading() {
+        inLoop(() -> {
+            mReadPaused = true;
+            if (mKey != null && mKey.isValid()) {
+                mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    @Override
+    public void resumeReading() {
+        inLoop(() -> {
+            mReadPaused = false;
+            if (mKey != null && mKey.isValid()) {
+                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    // Run the task on the loop thread: right away if called on the loop thread.
+    private void inLoop(Runnable task) {
+        if (mLoop.inLoop()) {
+            task.run();
+        } else {
+            mLoop.execute(task);
+        }
+    }
+
+    @Override
+    public void send(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        sendFrame(OP_TEXT, ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void sendText(ByteBuffer payload) {
+        sendFrame(OP_TEXT, payload);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer payload) {
+        sendFrame(OP_BINARY, payload);
+    }
+
+    private void sendFrame(int opcode, ByteBuffer payload) {
+        if (mState != State.OPEN) {
+            throw new NotConnectedException();
+        }
+        enqueue(encodeFrame(opcode, payload));
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        mOut.add(frame);
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mLoop.execute(() -> {
+                mFlushScheduled.set(false);
+                try {
+                    flush();
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            });
+        }
+    }
+
+    // Encode client frame: clients must mask the payload.
+    private static ByteBuffer encodeFrame(int opcode, ByteBuffer payload) {
+        int len = payload.remaining();
+        int header = len < 126 ? 2 : len <= 0xFFFF ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + 4 + len);
+        frame.put((byte) (0x80 | opcode));
+        if (len < 126) {
+            frame.put((byte) (0x80 | len));
+        } else if (len <= 0xFFFF) {
+            frame.put((byte) (0x80 | 126));
+            frame.putShort((short) len);
+        } else {
+            frame.put((byte) (0x80 | 127));
+            frame.putLong(len);
+        }
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+        frame.put(mask);
+        for (int i = 0, pos = payload.position(); i < len; i++) {
+            frame.put((byte) (payload.get(pos + i) ^ mask[i & 3]));
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer closeFrame(int code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + Math.min(text.length, 123));
+        payload.putShort((short) code);
+        payload.put(text, 0, payload.remaining());
+        payload.flip();
+        return encodeFrame(OP_CLOSE, payload);
+    }
+
+    // Open TCP connection. Runs on the loop thread.
+    private void open(InetSocketAddress address) {
+        if (mState != State.CONNECTING) {
+            // Aborted.
+            return;
+        }
+        try {
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            mKey = mLoop.register(mChannel, 0, this);
+            if (mChannel.connect(address)) {
+                onConnected();
+            } else {
+                mKey.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | GeneralSecurityException ex) {
+            fail(ex);
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (!mChannel.finishConnect()) {
+                    return;
+                }
+                onConnected();
+            }
+            if (key.isValid() && key.isReadable() && !mReadPaused) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException | GeneralSecurityException ex) {
+            fail(ex);
+        }
+    }
+
+    // TCP connection is established: start TLS handshake if needed and send the upgrade request.
+    private void onConnected() throws IOException, GeneralSecurityException {
+        mKey.interestOps(SelectionKey.OP_READ);
+        if (mSecure) {
+            mEngine = WarmSocketFactory.getTlsContext().createSSLEngine(mEndpoint.getHost(), mEndpoint.getPort());
+            mEngine.setUseClientMode(true);
+            SSLParameters params = mEngine.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            mEngine.setSSLParameters(params);
+            mTlsStart = System.nanoTime();
+            mEngine.beginHandshake();
+        }
+
+        synchronized (this) {
+            if (mState != State.CONNECTING) {
+                return;
+            }
+            mState = State.UPGRADING;
+        }
+        // Queued until the TLS handshake is completed.
+        mOut.add(upgradeRequest());
+        flush();
+    }
+
+    private ByteBuffer upgradeRequest() throws GeneralSecurityException {
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+        mAccept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+                .digest((key + WS_GUID).getBytes(StandardCharsets.US_ASCII)));
+
+        String path = mEndpoint.getRawPath();
+        if (mEndpoint.getRawQuery() != null) {
+            path += "?" + mEndpoint.getRawQuery();
+        }
+        int port = mEndpoint.getPort();
+        boolean defaultPort = port == (mSecure ? 443 : 80);
+        StringBuilder sb = new StringBuilder(256)
+                .append("GET ").append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(mEndpoint.getHost()).append(defaultPort ? "" : ":" + port).append("\r\n")
+                .append("Upgrade: websocket\r\n")
+                .append("Connection: Upgrade\r\n")
+                .append("Sec-WebSocket-Key: ").append(key).append("\r\n")
+                .append("Sec-WebSocket-Version: 13\r\n");
+        if (mHeaders != null) {
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        sb.append("\r\n");
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = mLoop.readBuffer();
+        int count = mChannel.read(buffer);
+        if (count < 0) {
+            switch (mState) {
+                case CLOSING:
+                    finish(CloseFrame.NORMAL, "", false, null);
+                    break;
+                case OPEN:
+                    finish(CloseFrame.ABNORMAL_CLOSE, "connection closed by server", true, null);
+                    break;
+                default:
+                    fail(new IOException("Connection closed during handshake"));
+            }
+            return;
+        }
+        buffer.flip();
+        if (mEngine != null) {
+            decrypt(buffer);
+        } else {
+            receive(buffer);
+        }
+    }
+
+    // Decrypt received TLS records and process the plaintext.
+    private void decrypt(ByteBuffer src) throws IOException {
+        ByteBuffer net = src;
+        if (mNetIn != null) {
+            mNetIn = append(mNetIn, src);
+            net = mNetIn;
+        }
+
+        while (mState != State.CLOSED) {
+            ByteBuffer app = mLoop.tlsAppBuffer(mEngine.getSession().getApplicationBufferSize());
+            SSLEngineResult result = mEngine.unwrap(net, app);
+            app.flip();
+            if (app.hasRemaining()) {
+                receive(app);
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                finish(CloseFrame.ABNORMAL_CLOSE, "TLS closed by server", true, null);
+                return;
+            }
+            boolean progress = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            SSLEngineResult.HandshakeStatus hs = mEngine.getHandshakeStatus();
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                onTlsHandshake();
+                // Send the upgrade request queued during the handshake.
+                flush();
+            } else if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK ||
+                    hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                flush();
+                progress = true;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || !progress || !net.hasRemaining()) {
+                break;
+            }
+        }
+
+        if (net.hasRemaining()) {
+            if (net == src) {
+                mNetIn = append(null, src);
+            }
+        } else {
+            mNetIn = null;
+        }
+    }
+
+    private void onTlsHandshake() throws IOException {
+        if (mTlsStart == 0) {
+            // Post-handshake messages, like session tickets, are reported as FINISHED too.
+            return;
+        }
+        SSLSession session = mEngine.getSession();
+        // SNI: Verify server host name.
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(mEndpoint.getHost(), session)) {
+            throw new SSLHandshakeException("SNI verification failed. Expected: '" + mEndpoint.getHost() +
+                    "', actual: '" + session.getPeerPrincipal() + "'");
+        }
+        long nanos = System.nanoTime() - mTlsStart;
+        mTlsStart = 0;
+        // Resumed session keeps the creation time of the original session.
+        boolean resumed = session.getCreationTime() < System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(nanos);
+        mListener.onTlsHandshake(this, nanos, resumed, false);
+    }
+
+    // Process received plaintext: HTTP response to the upgrade request then websocket frames.
+    private void receive(ByteBuffer src) throws IOException {
+        ByteBuffer in = src;
+        if (mIn != null) {
+            mIn = append(mIn, src);
+            in = mIn;
+        }
+
+        boolean more = true;
+        while (more && in.hasRemaining()) {
+            switch (mState) {
+                case UPGRADING:
+                    more = parseUpgradeResponse(in);
+                    break;
+                case OPEN:
+                case CLOSING:
+                    more = parseFrame(in);
+                    break;
+                default:
+                    // Closed.
+                    return;
+            }
+        }
+
+        if (in.hasRemaining()) {
+            if (in == src) {
+                mIn = append(null, src);
+            }
+        } else {
+            mIn = null;
+        }
+    }
+
+    private boolean parseUpgradeResponse(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int end = -1;
+        for (int i = start; i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                end = i + 4;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (in.remaining() > MAX_HANDSHAKE_SIZE) {
+                throw new ProtocolException("Upgrade response is too long");
+            }
+            return false;
+        }
+
+        byte[] bytes = new byte[end - start];
+        in.get(bytes);
+        String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2 || !"101".equals(status[1])) {
+            throw new ProtocolException("Upgrade rejected: " + lines[0]);
+        }
+        String accept = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && "sec-websocket-accept".equals(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT))) {
+                accept = lines[i].substring(colon + 1).trim();
+            }
+        }
+        if (!mAccept.equals(accept)) {
+            throw new ProtocolException("Invalid Sec-WebSocket-Accept");
+        }
+
+        synchronized (this) {
+            if (mState != State.UPGRADING) {
+                return false;
+            }
+            mState = State.OPEN;
+            if (mTimeoutTask != null) {
+                mTimeoutTask.cancel(false);
+                mTimeoutTask = null;
+            }
+        }
+        mListener.onOpen(this);
+        return true;
+    }
+
+    // Parse and handle one frame if it's received completely.
+    private boolean parseFrame(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int available = in.remaining();
+        if (available < 2) {
+            return false;
+        }
+        int b0 = in.get(start) & 0xFF;
+        int b1 = in.get(start + 1) & 0xFF;
+        if ((b0 & 0x70) != 0) {
+            throw new ProtocolException("Unexpected RSV bits");
+        }
+        boolean fin = (b0 & 0x80) != 0;
+        int opcode = b0 & 0x0F;
+        boolean masked = (b1 & 0x80) != 0;
+        long len = b1 & 0x7F;
+        int header = 2;
+        if (len == 126) {
+            if (available < 4) {
+                return false;
+            }
+            len = in.getShort(start + 2) & 0xFFFF;
+            header = 4;
+        } else if (len == 127) {
+            if (available < 10) {
+                return false;
+            }
+            len = in.getLong(start + 2);
+            header = 10;
+        }
+        if (len < 0 || len > MAX_MESSAGE_SIZE) {
+            tooBig();
+            return false;
+        }
+        int maskAt = header;
+        if (masked) {
+            header += 4;
+        }
+        if (available < header + len) {
+            return false;
+        }
+
+        in.position(start + header);
+        ByteBuffer payload = in.slice();
+        payload.limit((int) len);
+        in.position(start + header + (int) len);
+        if (masked) {
+            // Servers don't mask frames, but accept them anyway.
+            byte[] unmasked = new byte[(int) len];
+            for (int i = 0; i < len; i++) {
+                unmasked[i] = (byte) (payload.get(i) ^ in.get(start + maskAt + (i & 3)));
+            }
+            payload = ByteBuffer.wrap(unmasked);
+        }
+        onFrame(fin, opcode, payload);
+        return mState != State.CLOSED;
+    }
+
+    private void onFrame(boolean fin, int opcode, ByteBuffer payload) throws IOException {
+        switch (opcode) {
+            case OP_TEXT:
+            case OP_BINARY:
+                if (mFragments != null) {
+                    throw new ProtocolException("Expected continuation frame");
+                }
+                if (fin) {
+                    deliver(opcode, payload);
+                } else {
+                    mFragmentsOpcode = opcode;
+                    mFragments = append(null, payload);
+                }
+                break;
+            case OP_CONTINUATION:
+                if (mFragments == null) {
+                    throw new ProtocolException("Unexpected continuation frame");
+                }
+                if (mFragments.remaining() + payload.remaining() > MAX_MESSAGE_SIZE) {
+                    tooBig();
+                    return;
+                }
+                mFragments = append(mFragments, payload);
+                if (fin) {
+                    ByteBuffer message = mFragments;
+                    mFragments = null;
+                    deliver(mFragmentsOpcode, message);
+                }
+                break;
+            case OP_PING:
+                if (mState == State.OPEN) {
+                    enqueue(encodeFrame(OP_PONG, payload));
+                }
+                break;
+            case OP_PONG:
+                break;
+            case OP_CLOSE:
+                int code = CloseFrame.NOCODE;
+                String reason = "";
+                if (payload.remaining() >= 2) {
+                    code = payload.getShort() & 0xFFFF;
+                    reason = StandardCharsets.UTF_8.decode(payload).toString();
+                }
+                boolean remote;
+                synchronized (this) {
+                    remote = mState == State.OPEN;
+                    if (remote) {
+                        mState = State.CLOSING;
+                    }
+                }
+                if (remote) {
+                    // Confirm and close the socket.
+                    mOut.add(code == CloseFrame.NOCODE ? encodeFrame(OP_CLOSE, EMPTY) : closeFrame(code, ""));
+                    flush();
+                }
+                finish(code, reason, remote, null);
+                break;
+            default:
+                throw new ProtocolException("Unknown opcode " + opcode);
+        }
+    }
+
+    private void deliver(int opcode, ByteBuffer message) {
+        if (mState != State.OPEN) {
+            // Messages received after close() are dropped.
+            return;
+        }
+        if (opcode == OP_TEXT) {
+            mListener.onMessage(this, new String(message.array(), message.arrayOffset() + message.position(),
+                    message.remaining(), StandardCharsets.UTF_8));
+        } else {
+            mListener.onMessage(this, message);
+        }
+    }
+
+    private void tooBig() {
+        synchronized (this) {
+            if (mState == State.OPEN) {
+                mState = State.CLOSING;
+                mOut.add(closeFrame(CloseFrame.TOOBIG, "message too big"));
+            }
+        }
+        try {
+            flush();
+        } catch (IOException ignored) {
+        }
+        finish(CloseFrame.TOOBIG, "message too big", false, null);
+    }
+
+    // Write queued frames. Runs on the loop thread.
+    private void flush() throws IOException {
+        if (mChannel == null || !mChannel.isConnected() || mState == State.CLOSED) {
+            // Frames are written once connected.
+            return;
+        }
+        boolean done = mEngine != null ? flushTls() : flushPlain();
+        if (mKey.isValid()) {
+            int read = mReadPaused ? 0 : SelectionKey.OP_READ;
+            mKey.interestOps(done ? read : read | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private boolean flushPlain() throws IOException {
+        ByteBuffer head;
+        while ((head = mOut.peek()) != null) {
+            mChannel.write(head);
+            if (head.hasRemaining()) {
+                return false;
+            }
+            mOut.poll();
+        }
+        return true;
+    }
+
+    private boolean flushTls() throws IOException {
+        if (mNetOut != null) {
+            mChannel.write(mNetOut);
+            if (mNetOut.hasRemaining()) {
+                return false;
+            }
+            mNetOut = null;
+        }
+
+        while (true) {
+            SSLEngineResult.HandshakeStatus hs = mEngine.getHandshakeStatus();
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                // Certificate checks: short enough to run on the loop.
+                Runnable task;
+                while ((task = mEngine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                continue;
+            }
+
+            ByteBuffer src;
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                src = EMPTY;
+            } else if (hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                src = mOut.peek();
+                if (src == null) {
+                    return true;
+                }
+            } else {
+                // Waiting for data from the server.
+                return true;
+            }
+
+            ByteBuffer net = mLoop.tlsNetBuffer(mEngine.getSession().getPacketBufferSize());
+            SSLEngineResult result = mEngine.wrap(src, net);
+            if (src != EMPTY && !src.hasRemaining()) {
+                mOut.poll();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection closed");
+            }
+            net.flip();
+            mChannel.write(net);
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                onTlsHandshake();
+            }
+            if (net.hasRemaining()) {
+                mNetOut = append(null, net);
+                return false;
+            }
+        }
+    }
+
+    private void fail(Exception ex) {
+        finish(mState == State.OPEN || mState == State.CLOSING ? CloseFrame.ABNORMAL_CLOSE : CloseFrame.NEVER_CONNECTED,
+                ex.getMessage(), false, ex);
+    }
+
+    // Close the socket and report the result. Events are reported once.
+    private void finish(int code, String reason, boolean remote, Exception error) {
+        synchronized (this) {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mState = State.CLOSED;
+            if (mTimeoutTask != null) {
+                mTimeoutTask.cancel(false);
+                mTimeoutTask = null;
+            }
+        }
+        // Socket and key are closed on the loop to avoid racing with reads and writes.
+        mLoop.execute(this::closeChannel);
+
+        Runnable report = () -> {
+            if (error != null) {
+                Log.w(TAG, "Connection failed", error);
+                mListener.onError(this, error);
+            }
+            mListener.onClose(this, code, reason, remote);
+        };
+        if (mLoop.inLoop()) {
+            // The listener may block on disconnect, keep the loop free.
+            SharedScheduler.blocking().execute(report);
+        } else {
+            report.run();
+        }
+    }
+
+    private void closeChannel() {
+        if (mEngine != null) {
+            mEngine.closeOutbound();
+        }
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mOut.clear();
+        mIn = mNetIn = mNetOut = mFragments = null;
+    }
+
+    // Append bytes to a buffer kept ready for reading, growing it as needed.
+    private static ByteBuffer append(ByteBuffer pending, ByteBuffer src) {
+        if (pending == null) {
+            pending = ByteBuffer.allocate(Math.max(src.remaining(), 256));
+        } else if (pending.capacity() - pending.remaining() < src.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.remaining() + src.remaining()));
+            grown.put(pending);
+            pending = grown;
+        } else {
+            pending.compact();
+        }
+        pending.put(src);
+        pending.flip();
+        return pending;
+    }
+}
@@ -0,0 +1,214 @@
+package co.tinode.tinodesdk;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalescer of outbound {note} packets. Notes are held for a short window and only the one with
+ * the highest seq is sent for each topic and kind of note, e.g. a page of 100 received messages
+ * produces one {note what="recv"} instead of 100.
+ * <p>
+ * Pending notes are sent when the window expires, before the topic is left, and before a graceful
+ * disconnect. If the connection is lost, 'read' and 'recv' notes are retained and sent when the
+ * topic is subscribed again, see {@link #flush(String)}; typing notifications are dropped. Retained notes
+ * are kept in memory for a limited time and up to a limited number. The read and recv values are saved
+ * by the store, and a topic sends them again if the server has older ones when the topic is attached, so
+ * dropped notes and notes lost on restart are recovered from the store.
+ */
+class NoteCoalescer {
+    interface Sender {
+        /**
+         * Send note to the server.
+         *
+         * @throws NotConnectedException if there is no connection.
+         */
+        void sendNote(String topic, String what, int seq) throws NotConnectedException;
+    }
+
+    // Unsent 'read' and 'recv' notes are dropped after this many milliseconds.
+    private static final long RETAIN_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+    // Maximum number of unsent notes retained, the oldest ones are dropped.
+    private static final int MAX_RETAINED = 1024;
+
+    private record Key(String topic, String what) {
+    }
+
+    private final Sender mSender;
+    private final ScheduledExecutorService mScheduler;
+    // Pending notes in order of arrival: note -> the highest seq.
+    private final LinkedHashMap<Key, Integer> mPending = new LinkedHashMap<>();
+    // Pending notes which could not be sent: note -> time of the first failure, System.nanoTime().
+    private final LinkedHashMap<Key, Long> mRetained = new LinkedHashMap<>();
+    // Topics which have been detached by a lost connection: their notes wait until the topic is subscribed again.
+    private final Set<String> mDetached = new HashSet<>();
+    private final long mRetainTimeout;
+    private final int mMaxRetained;
+
+    private long mWindow;
+    private ScheduledFuture<?> mFlushTask = null;
+
+    NoteCoalescer(Sender sender, ScheduledExecutorService scheduler, long window) {
+        this(sender, scheduler, window, RETAIN_TIMEOUT, MAX_RETAINED);
+    }
+
+    NoteCoalescer(Sender sender, ScheduledExecutorService scheduler, long window, long retainTimeout,
+                  int maxRetained) {
+        mSender = sender;
+        mScheduler = scheduler;
+        mWindow = window;
+        mRetainTimeout = TimeUnit.MILLISECONDS.toNanos(retainTimeout);
+        mMaxRetained = maxRetained;
+    }
+
+    /**
+     * Set coalescing window. If the window is zero or negative, notes are sent immediately.
+     *
+     * @param window duration of the window in milliseconds.
+     */
+    synchronized void setWindow(long window) {
+        mWindow = window;
+    }
+
+    /**
+     * Queue note for sending or send it immediately if coalescing is disabled.
+     */
+    void note(String topic, String what, int seq) {
+        synchronized (this) {
+            if (mWindow > 0) {
+                mPending.merge(new Key(topic, what), seq, Math::max);
+                if (mFlushTask == null) {
+                    mFlushTask = mScheduler.schedule(() -> flush(), mWindow, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+
+        try {
+            mSender.sendNote(topic, what, seq);
+        } catch (NotConnectedException ignored) {
+        }
+    }
+
+    /**
+     * Send pending notes, except for the topics which have not been subscribed again since the connection
+     * was lost.
+     */
+    void flush() {
+        send(null);
+    }
+
+    /**
+     * Send pending notes for the given topic, e.g. when the topic is attached or left.
+     */
+    void flush(String topic) {
+        synchronized (this) {
+            mDetached.remove(topic);
+        }
+        send(topic);
+    }
+
+    /**
+     * Connection was lost: drop ephemeral notes, keep read and recv until their topics are subscribed again.
+     */
+    synchronized void onDisconnect() {
+        cancelFlushTask();
+        mPending.keySet().removeIf(key -> !isPersistent(key.what));
+        mRetained.keySet().retainAll(mPending.keySet());
+        mDetached.clear();
+        for (Key key : mPending.keySet()) {
+            mDetached.add(key.topic);
+        }
+    }
+
+    // Send pending notes for one or all topics. Notes which could not be sent because of a missing
+    // connection are put back.
+    private void send(String topic) {
+        List<Map.Entry<Key, Integer>> batch = new ArrayList<>();
+        synchronized (this) {
+            expire();
+            Iterator<Map.Entry<Key, Integer>> it = mPending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Integer> entry = it.next();
+                String name = entry.getKey().topic;
+                if (topic == null ? !mDetached.contains(name) : topic.equals(name)) {
+                    batch.add(Map.entry(entry.getKey(), entry.getValue()));
+                    it.remove();
+                }
+            }
+            if (topic == null || mPending.isEmpty()) {
+                cancelFlushTask();
+            }
+        }
+
+        int sent = 0;
+        for (; sent < batch.size(); sent++) {
+            Key key = batch.get(sent).getKey();
+            try {
+                mSender.sendNote(key.topic, key.what, batch.get(sent).getValue());
+            } catch (NotConnectedException ex) {
+                break;
+            }
+        }
+        if (!batch.isEmpty()) {
+            retain(batch.subList(0, sent), batch.subList(sent, batch.size()));
+        }
+    }
+
+    // Forget sent notes, put back the unsent ones.
+    private synchronized void retain(List<Map.Entry<Key, Integer>> sent, List<Map.Entry<Key, Integer>> unsent) {
+        for (Map.Entry<Key, Integer> entry : sent) {
+            mRetained.remove(entry.getKey());
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<Key, Integer> entry : unsent) {
+            if (isPersistent(entry.getKey().what)) {
+                mPending.merge(entry.getKey(), entry.getValue(), Math::max);
+                mRetained.putIfAbsent(entry.getKey(), now);
+                // No connection: the topic must be subscribed again.
+                mDetached.add(entry.getKey().topic);
+            } else {
+                mRetained.remove(entry.getKey());
+            }
+        }
+        // Drop the oldest notes over the limit.
+        Iterator<Key> it = mRetained.keySet().iterator();
+        while (mRetained.size() > mMaxRetained) {
+            mPending.remove(it.next());
+            it.remove();
+        }
+    }
+
+    // Drop notes which could not be sent for too long. Called with the lock held.
+    private void expire() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Key, Long>> it = mRetained.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Long> entry = it.next();
+            if (now - entry.getValue() < mRetainTimeout) {
+                // The rest were retained later.
+                break;
+            }
+            mPending.remove(entry.getKey());
+            it.remove();
+        }
+    }
+
+    private void cancelFlushTask() {
+        if (mFlushTask != null) {
+            mFlushTask.cancel(false);
+            mFlushTask = null;
+        }
+    }
+
+    private static boolean isPersistent(String what) {
+        return Tinode.NOTE_READ.equals(what) || Tinode.NOTE_RECV.equals(what);
+    }
+}
@@ -0,0 +1,119 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable per-thread buffer for serializing outbound packets directly to bytes.
+ * The packet is written once into the buffer and then copied once into the websocket frame.
+ */
+class OutboundBuffer extends OutputStream {
+    private static final int INITIAL_SIZE = 1024;
+    // Buffers which grew larger than this are dropped after use to avoid pinning memory.
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<OutboundBuffer> sPool = ThreadLocal.withInitial(OutboundBuffer::new);
+
+    private byte[] mBuffer = new byte[INITIAL_SIZE];
+    private int mCount = 0;
+    private boolean mInUse = false;
+
+    private OutboundBuffer() {
+    }
+
+    /**
+     * Get buffer for the current thread. Must be returned with {@link #release()} after use.
+     */
+    static OutboundBuffer obtain() {
+        OutboundBuffer buf = sPool.get();
+        if (buf.mInUse) {
+            // Re-entrant use on the same thread, e.g. from a listener: don't clobber the outer buffer.
+            buf = new OutboundBuffer();
+        }
+        buf.mInUse = true;
+        buf.mCount = 0;
+        return buf;
+    }
+
+    /**
+     * Return buffer to the pool.
+     */
+    void release() {
+        mInUse = false;
+        if (mBuffer.length > MAX_RETAINED_SIZE) {
+            mBuffer = new byte[INITIAL_SIZE];
+        }
+    }
+
+    /**
+     * Serialize object as JSON into the buffer replacing the old content.
+     *
+     * @return view of the serialized bytes; valid until the buffer is reused or released.
+     */
+    ByteBuffer serialize(@NotNull ObjectMapper mapper, @NotNull Object value) throws JsonProcessingException {
+        return serialize(mapper, WireCodec.json(), value);
+    }
+
+    /**
+     * Serialize object into the buffer using the given wire encoding replacing the old content.
+     *
+     * @return view of the serialized bytes; valid until the buffer is reused or released.
+     */
+    ByteBuffer serialize(@NotNull ObjectMapper mapper, @NotNull WireCodec codec, @NotNull Object value)
+            throws JsonProcessingException {
+        mCount = 0;
+        try (JsonGenerator gen = codec.createGenerator(this)) {
+            mapper.writeValue(gen, value);
+        } catch (JsonProcessingException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            // Should not happen: writing to memory.
+            throw JsonMappingException.fromUnexpectedIOE(ex);
+        }
+        return ByteBuffer.wrap(mBuffer, 0, mCount);
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(mCount + 1);
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(mCount + len);
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    // ObjectMapper closes the stream after writing the value. The buffer remains usable.
+    @Override
+    public void close() {
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length << 1, required));
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return new String(mBuffer, 0, mCount, StandardCharsets.UTF_8);
+    }
+}
@@ -3,7 +3,16 @@ package co.tinode.tinodesdk;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 
 /**
  * A very simple thanable promise. It has no facility for execution. It can only be
@@ -20,6 +29,10 @@ import java.util.concurrent.CountDownLatch;
  * Alternatively, one can use a blocking call getResult. It will block until the promise is either
  * resolved or rejected.
  * <p>
+ * Promises can be combined with {@link #allOf}, {@link #anyOf} and {@link #withTimeout} and converted
+ * to and from {@link CompletableFuture}. Combinators observe completion of the input promises without
+ * taking part in their thenApply chains and do not block or start threads.
+ * <p>
  * The promise can be created in either WAITING or RESOLVED state by using an appropriate constructor.
  * <p>
  * The onSuccess/onFailure handlers will be called:
@@ -67,6 +80,9 @@ public class PromisedReply<T> {
 
     private PromisedReply<T> mNextPromise = null;
 
+    // Callbacks which observe completion without taking part in the thenApply chain.
+    private ArrayList<Runnable> mObservers = null;
+
     private final CountDownLatch mDoneSignal;
 
     /**
@@ -106,43 +122,122 @@ public class PromisedReply<T> {
      * @param waitFor promises to wait for.
      * @return PromisedReply which is resolved when all inputs are resolved or rejected when any one is rejected.
      */
+    @SuppressWarnings("unchecked")
     public static <T> PromisedReply<T[]> allOf(PromisedReply<T>[] waitFor) {
+        return allOf(waitFor, size -> (T[]) new Object[size]);
+    }
+
+    /**
+     * Same as {@link #allOf(PromisedReply[])} but the result is an array of the given type.
+     *
+     * @param waitFor promises to wait for.
+     * @param generator function which allocates array for the results, e.g. {@code String[]::new}.
+     * @return PromisedReply which is resolved when all inputs are resolved or rejected when any one is rejected.
+     */
+    public static <T> PromisedReply<T[]> allOf(PromisedReply<T>[] waitFor, IntFunction<T[]> generator) {
         final PromisedReply<T[]> done = new PromisedReply<>();
-        // Create a separate thread and wait for all promises to resolve.
-        new Thread(() -> {
-            for (PromisedReply p : waitFor) {
-                if (p != null) {
-                    try {
-                        p.mDoneSignal.await();
-                        if (p.mState == State.REJECTED) {
-                            done.reject(p.mException);
-                        }
-                    } catch (InterruptedException ex) {
-                        try {
-                            done.reject(ex);
-                        } catch (Exception ignored) {}
-                        return;
-                    } catch (Exception ignored) {
-                        return;
-                    }
-                }
+        final AtomicInteger remaining = new AtomicInteger(waitFor.length + 1);
+        final Runnable onInputDone = () -> {
+            if (remaining.decrementAndGet() != 0) {
+                return;
+            }
+            T[] result = generator.apply(waitFor.length);
+            for (int i = 0; i < waitFor.length; i++) {
+                result[i] = waitFor[i] != null ? waitFor[i].mResult : null;
             }
+            done.tryComplete(result, null);
+        };
 
-            ArrayList<T> result = new ArrayList<>();
-            for (PromisedReply<T> p : waitFor) {
-                if (p != null) {
-                    result.add(p.mResult);
+        for (PromisedReply<T> p : waitFor) {
+            if (p == null) {
+                onInputDone.run();
+                continue;
+            }
+            p.whenDone(() -> {
+                if (p.mState == State.REJECTED) {
+                    done.tryComplete(null, p.mException);
                 } else {
-                    result.add(null);
+                    onInputDone.run();
                 }
+            });
+        }
+        // Count for the registration loop: prevents resolving before all observers are added.
+        onInputDone.run();
+        return done;
+    }
+
+    /**
+     * Returns a new PromisedReply that is completed when any of the given PromisedReply completes,
+     * with the same result or exception.
+     *
+     * @param waitFor promises to wait for; null values are ignored.
+     * @return PromisedReply which is completed together with the first completed input.
+     */
+    @SafeVarargs
+    public static <T> PromisedReply<T> anyOf(PromisedReply<T>... waitFor) {
+        final PromisedReply<T> done = new PromisedReply<>();
+        for (PromisedReply<T> p : waitFor) {
+            if (p != null) {
+                p.whenDone(() -> done.tryComplete(p.mResult, p.mException));
             }
+        }
+        return done;
+    }
 
-            // If it throws then nothing we can do about it.
-            try {
-                // noinspection unchecked
-                done.resolve((T[]) result.toArray());
-            } catch (Exception ignored) {}
-        }).start();
+    /**
+     * Returns a new PromisedReply which is completed together with this promise or rejected with
+     * {@link TimeoutException} if this promise is not completed in time. This promise is not affected.
+     *
+     * @param timeout time to wait in milliseconds.
+     * @return PromisedReply completed with the result of this promise or rejected on timeout.
+     */
+    public PromisedReply<T> withTimeout(long timeout) {
+        final PromisedReply<T> done = new PromisedReply<>();
+        final ScheduledFuture<?> timer = SharedScheduler.get().schedule(() ->
+                done.tryComplete(null, new TimeoutException("Promise timed out after " + timeout + "ms")),
+                timeout, TimeUnit.MILLISECONDS);
+        whenDone(() -> {
+            timer.cancel(false);
+            done.tryComplete(mResult, mException);
+        });
+        return done;
+    }
+
+    /**
+     * Get CompletableFuture which is completed together with this promise.
+     *
+     * @return CompletableFuture completed with the result or the exception of this promise.
+     */
+    public CompletableFuture<T> toCompletableFuture() {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        whenDone(() -> {
+            if (mState == State.RESOLVED) {
+                future.complete(mResult);
+            } else {
+                future.completeExceptionally(mException);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Create PromisedReply which is completed together with the given CompletionStage.
+     *
+     * @param stage completion stage to follow.
+     * @return PromisedReply completed with the result or the exception of the stage.
+     */
+    public static <T> PromisedReply<T> fromCompletionStage(CompletionStage<T> stage) {
+        final PromisedReply<T> done = new PromisedReply<>();
+        stage.whenComplete((result, err) -> {
+            if (err == null) {
+                done.tryComplete(result, null);
+                return;
+            }
+            if ((err instanceof CompletionException || err instanceof ExecutionException) && err.getCause() != null) {
+                err = err.getCause();
+            }
+            done.tryComplete(null, err instanceof Exception ? (Exception) err : new ExecutionException(err));
+        });
         return done;
     }
 
@@ -253,20 +348,24 @@ public class PromisedReply<T> {
      * @throws Exception if anything goes wrong during resolution.
      */
     public void resolve(final T result) throws Exception {
-        synchronized (this) {
-            if (mState == State.WAITING) {
-                mState = State.RESOLVED;
+        try {
+            synchronized (this) {
+                if (mState == State.WAITING) {
+                    mState = State.RESOLVED;
 
-                mResult = result;
-                try {
-                    callOnSuccess(result);
-                } finally {
+                    mResult = result;
+                    try {
+                        callOnSuccess(result);
+                    } finally {
+                        mDoneSignal.countDown();
+                    }
+                } else {
                     mDoneSignal.countDown();
+                    throw new IllegalStateException("Promise is already completed");
                 }
-            } else {
-                mDoneSignal.countDown();
-                throw new IllegalStateException("Promise is already completed");
             }
+        } finally {
+            notifyObservers();
         }
     }
 
@@ -277,19 +376,72 @@ public class PromisedReply<T> {
      * @throws Exception if anything goes wrong during rejection.
      */
     public void reject(final Exception err) throws Exception {
+        try {
+            synchronized (this) {
+                if (mState == State.WAITING) {
+                    mState = State.REJECTED;
+
+                    mException = err;
+                    try {
+                        callOnFailure(err);
+                    } finally {
+                        mDoneSignal.countDown();
+                    }
+                } else {
+                    mDoneSignal.countDown();
+                    throw new IllegalStateException("Promise is already completed");
+                }
+            }
+        } finally {
+            notifyObservers();
+        }
+    }
+
+    // Resolve or reject the promise unless it's already completed. Exceptions thrown by handlers are logged.
+    private void tryComplete(T result, Exception err) {
+        synchronized (this) {
+            if (mState != State.WAITING) {
+                return;
+            }
+            try {
+                if (err == null) {
+                    resolve(result);
+                } else {
+                    reject(err);
+                }
+            } catch (Exception ex) {
+                Log.w(TAG, "Unhandled exception in promise handler", ex);
+            }
+        }
+    }
+
+    // Call the observer when the promise is completed, or right away if it's already completed.
+    private void whenDone(Runnable observer) {
         synchronized (this) {
             if (mState == State.WAITING) {
-                mState = State.REJECTED;
+                if (mObservers == null) {
+                    mObservers = new ArrayList<>(1);
+                }
+                mObservers.add(observer);
+                return;
+            }
+        }
+        observer.run();
+    }
 
-                mException = err;
+    private void notifyObservers() {
+        ArrayList<Runnable> observers;
+        synchronized (this) {
+            observers = mObservers;
+            mObservers = null;
+        }
+        if (observers != null) {
+            for (Runnable observer : observers) {
                 try {
-                    callOnFailure(err);
-                } finally {
-                    mDoneSignal.countDown();
+                    observer.run();
+                } catch (Exception ex) {
+                    Log.w(TAG, "Exception in promise observer", ex);
                 }
-            } else {
-                mDoneSignal.countDown();
-                throw new IllegalStateException("Promise is already completed");
             }
         }
     }
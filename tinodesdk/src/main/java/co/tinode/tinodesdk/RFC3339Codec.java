@@ -0,0 +1,276 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Immutable thread-safe parser and formatter of RFC 3339 timestamps, e.g. 2016-09-07T17:29:49.100Z.
+ * <p>
+ * Parses timestamps with or without fractional seconds (any number of digits, precision is truncated
+ * to milliseconds) and with 'Z' or numeric time zone offset. Formats timestamps in UTC with milliseconds,
+ * which is what the server expects. Does not use Calendar or SimpleDateFormat.
+ */
+public final class RFC3339Codec {
+    // Length of the formatted timestamp: yyyy-MM-ddTHH:mm:ss.SSSZ
+    public static final int LENGTH = 24;
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    // Days between 0000-03-01 and 1970-01-01.
+    private static final long EPOCH_SHIFT = 719_468L;
+
+    private RFC3339Codec() {
+    }
+
+    /**
+     * Format timestamp.
+     *
+     * @param date timestamp to format.
+     * @return timestamp formatted as yyyy-MM-ddTHH:mm:ss.SSSZ in UTC.
+     */
+    public static String format(Date date) {
+        char[] buf = new char[LENGTH];
+        format(date.getTime(), buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Format timestamp into the given buffer.
+     *
+     * @param millis milliseconds since epoch.
+     * @param buf    buffer to write to, must have at least {@link #LENGTH} characters after offset.
+     * @param offset position in the buffer to start at.
+     * @throws IllegalArgumentException if the year is outside of 0000-9999 range.
+     */
+    public static void format(long millis, char[] buf, int offset) {
+        long days = Math.floorDiv(millis, MILLIS_PER_DAY);
+        int msOfDay = (int) Math.floorMod(millis, MILLIS_PER_DAY);
+
+        // Civil date from days since epoch, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + EPOCH_SHIFT;
+        long era = Math.floorDiv(z, 146_097L);
+        int doe = (int) (z - era * 146_097L);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146_096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            throw new IllegalArgumentException("Year " + year + " cannot be represented in RFC 3339");
+        }
+
+        put4(buf, offset, (int) year);
+        buf[offset + 4] = '-';
+        put2(buf, offset + 5, month);
+        buf[offset + 7] = '-';
+        put2(buf, offset + 8, day);
+        buf[offset + 10] = 'T';
+        put2(buf, offset + 11, msOfDay / 3_600_000);
+        buf[offset + 13] = ':';
+        put2(buf, offset + 14, msOfDay / 60_000 % 60);
+        buf[offset + 16] = ':';
+        put2(buf, offset + 17, msOfDay / 1000 % 60);
+        buf[offset + 19] = '.';
+        int ms = msOfDay % 1000;
+        buf[offset + 20] = (char) ('0' + ms / 100);
+        put2(buf, offset + 21, ms % 100);
+        buf[offset + 23] = 'Z';
+    }
+
+    /**
+     * Parse timestamp.
+     *
+     * @param text timestamp to parse.
+     * @return parsed timestamp.
+     * @throws ParseException if the text is not a valid RFC 3339 timestamp.
+     */
+    public static Date parse(CharSequence text) throws ParseException {
+        return new Date(parseMillis(text, 0, text.length()));
+    }
+
+    /**
+     * Parse timestamp in the given range of characters.
+     *
+     * @param text  text containing timestamp.
+     * @param start index of the first character of the timestamp.
+     * @param end   index after the last character of the timestamp.
+     * @return milliseconds since epoch.
+     * @throws ParseException if the range does not contain a valid RFC 3339 timestamp.
+     */
+    public static long parseMillis(CharSequence text, int start, int end) throws ParseException {
+        // yyyy-MM-ddTHH:mm:ssZ is the shortest valid timestamp.
+        if (end - start < 20) {
+            throw new ParseException("Timestamp is too short: '" + text.subSequence(start, end) + "'", start);
+        }
+
+        int year = digits(text, start, 4);
+        expect(text, start + 4, '-');
+        int month = digits(text, start + 5, 2);
+        expect(text, start + 7, '-');
+        int day = digits(text, start + 8, 2);
+        char t = text.charAt(start + 10);
+        if (t != 'T' && t != 't' && t != ' ') {
+            throw new ParseException("Expected 'T' at " + (start + 10), start + 10);
+        }
+        int hour = digits(text, start + 11, 2);
+        expect(text, start + 13, ':');
+        int minute = digits(text, start + 14, 2);
+        expect(text, start + 16, ':');
+        // Allow leap second: it's rolled over into the next minute.
+        int second = digits(text, start + 17, 2);
+
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ||
+                hour > 23 || minute > 59 || second > 60) {
+            throw new ParseException("Field out of range: '" + text.subSequence(start, end) + "'", start);
+        }
+
+        int pos = start + 19;
+        int millis = 0;
+        if (text.charAt(pos) == '.') {
+            pos++;
+            int first = pos;
+            int scale = 100;
+            while (pos < end && isDigit(text.charAt(pos))) {
+                millis += (text.charAt(pos) - '0') * scale;
+                scale /= 10;
+                pos++;
+            }
+            if (pos == first) {
+                throw new ParseException("Expected fraction digits at " + pos, pos);
+            }
+        }
+
+        if (pos >= end) {
+            throw new ParseException("Missing time zone offset", pos);
+        }
+        int offsetMinutes;
+        char tz = text.charAt(pos);
+        if (tz == 'Z' || tz == 'z') {
+            offsetMinutes = 0;
+            pos++;
+        } else if ((tz == '+' || tz == '-') && end - pos >= 6) {
+            int offHour = digits(text, pos + 1, 2);
+            expect(text, pos + 3, ':');
+            int offMinute = digits(text, pos + 4, 2);
+            if (offHour > 23 || offMinute > 59) {
+                throw new ParseException("Time zone offset out of range at " + pos, pos);
+            }
+            offsetMinutes = (offHour * 60 + offMinute) * (tz == '-' ? -1 : 1);
+            pos += 6;
+        } else {
+            throw new ParseException("Invalid time zone offset at " + pos, pos);
+        }
+        if (pos != end) {
+            throw new ParseException("Unexpected trailing characters at " + pos, pos);
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return days * MILLIS_PER_DAY + (hour * 3600L + (minute - offsetMinutes) * 60L + second) * 1000L + millis;
+    }
+
+    // Days since epoch from civil date, see http://howardhinnant.github.io/date_algorithms.html
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yoe = y - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146_097L + doe - EPOCH_SHIFT;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    private static int digits(CharSequence text, int pos, int count) throws ParseException {
+        int value = 0;
+        for (int i = pos; i < pos + count; i++) {
+            char c = text.charAt(i);
+            if (!isDigit(c)) {
+                throw new ParseException("Expected digit at " + i, i);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void expect(CharSequence text, int pos, char expected) throws ParseException {
+        if (text.charAt(pos) != expected) {
+            throw new ParseException("Expected '" + expected + "' at " + pos, pos);
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static void put2(char[] buf, int offset, int value) {
+        buf[offset] = (char) ('0' + value / 10);
+        buf[offset + 1] = (char) ('0' + value % 10);
+    }
+
+    private static void put4(char[] buf, int offset, int value) {
+        put2(buf, offset, value / 100);
+        put2(buf, offset + 2, value % 100);
+    }
+
+    /**
+     * Jackson serializer of Date as RFC 3339 string.
+     */
+    public static class Serializer extends StdSerializer<Date> {
+        public Serializer() {
+            super(Date.class);
+        }
+
+        @Override
+        public void serialize(Date value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            char[] buf = new char[LENGTH];
+            format(value.getTime(), buf, 0);
+            gen.writeString(buf, 0, LENGTH);
+        }
+    }
+
+    /**
+     * Jackson deserializer of Date from RFC 3339 string or milliseconds since epoch.
+     */
+    public static class Deserializer extends StdDeserializer<Date> {
+        public Deserializer() {
+            super(Date.class);
+        }
+
+        @Override
+        public Date deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            JsonToken token = p.currentToken();
+            if (token == JsonToken.VALUE_NUMBER_INT) {
+                return new Date(p.getLongValue());
+            }
+            if (token != JsonToken.VALUE_STRING) {
+                return (Date) ctxt.handleUnexpectedToken(Date.class, p);
+            }
+
+            // Parse the parser's buffer directly instead of materializing the string.
+            CharBuffer text = CharBuffer.wrap(p.getTextCharacters(), p.getTextOffset(), p.getTextLength());
+            if (text.length() == 0) {
+                return null;
+            }
+            try {
+                return new Date(parseMillis(text, 0, text.length()));
+            } catch (ParseException ex) {
+                return (Date) ctxt.handleWeirdStringValue(Date.class, text.toString(), ex.getMessage());
+            }
+        }
+    }
+}
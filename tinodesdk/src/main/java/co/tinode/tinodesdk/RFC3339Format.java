@@ -2,37 +2,42 @@ package co.tinode.tinodesdk;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.text.FieldPosition;
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
 
 /**
- * Augmented SimpleDateFormat for handling optional milliseconds in RFC3339 timestamps.
+ * SimpleDateFormat adapter for {@link RFC3339Codec}: handles optional milliseconds in RFC3339 timestamps.
+ * Kept for compatibility, use {@link RFC3339Codec} directly.
  */
 public class RFC3339Format extends SimpleDateFormat {
-    private final SimpleDateFormat mShortDate;
-
     public RFC3339Format() {
-        super("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'",Locale.US);
-        mShortDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-
+        super("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
         setTimeZone(TimeZone.getTimeZone("UTC"));
-        mShortDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    public StringBuffer format(@NotNull Date date, @NotNull StringBuffer toAppendTo, @NotNull FieldPosition pos) {
+        char[] buf = new char[RFC3339Codec.LENGTH];
+        RFC3339Codec.format(date.getTime(), buf, 0);
+        return toAppendTo.append(buf);
     }
 
     // Server may generate timestamps without milliseconds.
-    // SDF cannot parse optional millis. Must treat them explicitly.
     @Override
-    public Date parse(@NotNull String text) throws ParseException {
-        Date date;
+    public Date parse(@NotNull String text, @NotNull ParsePosition pos) {
+        int start = pos.getIndex();
         try {
-            date = super.parse(text);
-        } catch (ParseException ignore) {
-            date = mShortDate.parse(text);
+            Date date = new Date(RFC3339Codec.parseMillis(text, start, text.length()));
+            pos.setIndex(text.length());
+            return date;
+        } catch (ParseException | IndexOutOfBoundsException ex) {
+            pos.setErrorIndex(ex instanceof ParseException ? ((ParseException) ex).getErrorOffset() : start);
+            return null;
         }
-        return date;
     }
 }
-
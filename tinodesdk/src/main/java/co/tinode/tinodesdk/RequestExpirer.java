@@ -0,0 +1,111 @@
+package co.tinode.tinodesdk;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expirer of requests waiting for a server response. Deadlines are kept in a priority queue ordered
+ * by monotonic time and one task on the shared scheduler is armed for the earliest deadline, so each
+ * run visits only the due entries.
+ * <p>
+ * Entries are not removed when the response arrives. They are discarded once due, and the callback
+ * is expected to ignore requests which are already completed.
+ *
+ * @param <T> type of the request handle passed back to the callback.
+ */
+class RequestExpirer<T> {
+    interface Callback<T> {
+        void onExpired(String id, T request);
+    }
+
+    private record Deadline<T>(long at, String id, T request) implements Comparable<Deadline<T>> {
+        @Override
+        public int compareTo(Deadline<T> other) {
+            return Long.compare(at, other.at);
+        }
+    }
+
+    private final PriorityQueue<Deadline<T>> mQueue = new PriorityQueue<>();
+    private final ScheduledExecutorService mScheduler;
+    private final Callback<T> mCallback;
+
+    private ScheduledFuture<?> mTask = null;
+    // Deadline the task is armed for, System.nanoTime().
+    private long mTaskAt = 0;
+
+    RequestExpirer(ScheduledExecutorService scheduler, Callback<T> callback) {
+        mScheduler = scheduler;
+        mCallback = callback;
+    }
+
+    /**
+     * Start tracking the request.
+     *
+     * @param id      request ID.
+     * @param request request handle to pass to the callback.
+     * @param timeout milliseconds to wait before the request expires.
+     */
+    synchronized void add(String id, T request, long timeout) {
+        long at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        mQueue.add(new Deadline<>(at, id, request));
+        if (mTask == null || at - mTaskAt < 0) {
+            arm(at);
+        }
+    }
+
+    /**
+     * Stop tracking all requests.
+     */
+    synchronized void clear() {
+        mQueue.clear();
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    /**
+     * Number of tracked entries, including entries of already completed requests.
+     */
+    synchronized int size() {
+        return mQueue.size();
+    }
+
+    private void arm(long at) {
+        if (mTask != null) {
+            mTask.cancel(false);
+        }
+        mTaskAt = at;
+        mTask = mScheduler.schedule(() -> expire(at), Math.max(0, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private void expire(long armedAt) {
+        long now = System.nanoTime();
+        Deadline<T> due;
+        while ((due = poll(now, armedAt)) != null) {
+            try {
+                mCallback.onExpired(due.id, due.request);
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    // Get the next due entry or re-arm the timer for the next deadline if nothing is due.
+    private synchronized Deadline<T> poll(long now, long armedAt) {
+        if (mTask == null || mTaskAt != armedAt) {
+            // Cleared or superseded by a timer for an earlier deadline.
+            return null;
+        }
+        Deadline<T> head = mQueue.peek();
+        if (head != null && head.at - now <= 0) {
+            return mQueue.poll();
+        }
+        mTask = null;
+        if (head != null) {
+            arm(head.at);
+        }
+        return null;
+    }
+}
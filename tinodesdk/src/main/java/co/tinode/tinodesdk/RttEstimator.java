@@ -0,0 +1,78 @@
+package co.tinode.tinodesdk;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smoothed round-trip time estimator, same as TCP's SRTT/RTTVAR (RFC 6298): each sample moves the
+ * smoothed RTT by 1/8 of the error and the mean deviation by 1/4 of the change. The retransmission
+ * timeout is the smoothed RTT plus four deviations, so it stays tight on stable links and grows
+ * quickly on jittery ones.
+ */
+class RttEstimator {
+    // Timeout before the first sample, milliseconds.
+    static final long INITIAL_RTO = 1_000L;
+    // Bounds of the timeout, milliseconds.
+    static final long MIN_RTO = 200L;
+    static final long MAX_RTO = 60_000L;
+    // Clock granularity, microseconds.
+    private static final long GRANULARITY = 10_000L;
+
+    // Smoothed RTT and RTT variance in microseconds, 0 before the first sample.
+    private long mSrtt = 0;
+    private long mRttVar = 0;
+    private int mSamples = 0;
+
+    /**
+     * Add measured round-trip time.
+     *
+     * @param nanos time between sending a request and receiving the response, nanoseconds.
+     */
+    synchronized void sample(long nanos) {
+        long rtt = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (mSamples == 0) {
+            mSrtt = rtt;
+            mRttVar = rtt / 2;
+        } else {
+            mRttVar = mRttVar - (mRttVar >> 2) + (Math.abs(mSrtt - rtt) >> 2);
+            mSrtt = mSrtt - (mSrtt >> 3) + (rtt >> 3);
+        }
+        if (mSamples < Integer.MAX_VALUE) {
+            mSamples++;
+        }
+    }
+
+    /**
+     * Forget all samples, e.g. when the network has changed.
+     */
+    synchronized void reset() {
+        mSrtt = 0;
+        mRttVar = 0;
+        mSamples = 0;
+    }
+
+    synchronized boolean hasSamples() {
+        return mSamples > 0;
+    }
+
+    /**
+     * Get smoothed round-trip time.
+     *
+     * @return smoothed RTT in milliseconds or -1 if there are no samples.
+     */
+    synchronized long srtt() {
+        return mSamples > 0 ? TimeUnit.MICROSECONDS.toMillis(mSrtt) : -1;
+    }
+
+    /**
+     * Get time after which a response should be considered lost.
+     *
+     * @return timeout in milliseconds.
+     */
+    synchronized long rto() {
+        if (mSamples == 0) {
+            return INITIAL_RTO;
+        }
+        long rto = TimeUnit.MICROSECONDS.toMillis(mSrtt + Math.max(GRANULARITY, 4 * mRttVar));
+        return Math.min(MAX_RTO, Math.max(MIN_RTO, rto));
+    }
+}
@@ -0,0 +1,443 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records in memory-mapped segment files. Each record is stored as the length of the payload,
+ * the CRC32 of the payload and the payload itself. Records are addressed by location: index of the segment
+ * in the upper 32 bits, offset of the record in the lower 32 bits. Reads return slices of the mapped files.
+ * <p>
+ * Segments belong to a generation. A log is compacted by writing live records into the next generation with
+ * {@link #rewrite()} and switching to it with {@link #supersede(SegmentLog)}: the number of the current generation
+ * is stored in the CURRENT file which is replaced atomically. Files of other generations are deleted on open.
+ * <p>
+ * When the log is opened, records are validated. The log is cut at the first record which is incomplete
+ * or fails the checksum, such as the record being written when the process was killed. Data is written to disk
+ * by the OS at any time after the write; call {@link #force()} to make sure it survives a crash of the device.
+ * <p>
+ * Not thread-safe.
+ */
+final class SegmentLog implements Closeable {
+    private static final String TAG = "SegmentLog";
+
+    private static final String CURRENT = "CURRENT";
+    private static final String SUFFIX = ".seg";
+
+    // Length and checksum of the payload.
+    static final int HEADER_SIZE = 8;
+    // Segments are mapped in chunks of at least this size, then grow by doubling.
+    private static final int MIN_MAPPED_SIZE = 64 * 1024;
+
+    private final File mDir;
+    private final int mGeneration;
+    private final int mMaxSegmentSize;
+    private final List<Segment> mSegments = new ArrayList<>();
+    private final CRC32 mCrc = new CRC32();
+    // Total size of records in all segments.
+    private long mSize = 0;
+
+    interface RecordConsumer {
+        /**
+         * Called for each record of the log in order.
+         *
+         * @param location location of the record.
+         * @param payload  read-only slice of the record's payload.
+         */
+        void accept(long location, ByteBuffer payload) throws IOException;
+    }
+
+    private SegmentLog(File dir, int generation, int maxSegmentSize) {
+        mDir = dir;
+        mGeneration = generation;
+        mMaxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Open the log in the given directory, create the directory if it does not exist.
+     *
+     * @param dir            directory with the log files.
+     * @param maxSegmentSize size of a segment after which a new segment is started.
+     */
+    static SegmentLog open(File dir, int maxSegmentSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        int generation = 0;
+        File current = new File(dir, CURRENT);
+        if (current.exists()) {
+            try {
+                generation = Integer.parseInt(new String(Files.readAllBytes(current.toPath()),
+                        StandardCharsets.US_ASCII).trim());
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid " + current, ex);
+            }
+        }
+
+        SegmentLog log = new SegmentLog(dir, generation, maxSegmentSize);
+        List<File> segments = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(CURRENT)) {
+                    continue;
+                }
+                if (name.startsWith(generation + "-") && name.endsWith(SUFFIX)) {
+                    segments.add(file);
+                } else if (!file.delete()) {
+                    // Leftover of an interrupted compaction or of an older generation.
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+            }
+        }
+        segments.sort((a, b) -> Integer.compare(segmentIndex(a), segmentIndex(b)));
+
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                File file = segments.get(i);
+                if (segmentIndex(file) != i) {
+                    Log.w(TAG, "Missing segment " + i + " in " + dir + ", later segments are dropped");
+                    deleteFrom(segments, i);
+                    break;
+                }
+                Segment seg = new Segment(file, 0);
+                log.mSegments.add(seg);
+                if (!log.validate(seg)) {
+                    // Records after a broken record cannot be trusted.
+                    deleteFrom(segments, i + 1);
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            log.close();
+            throw ex;
+        }
+        return log;
+    }
+
+    /**
+     * Start the next generation of the log. The new log is empty. The current log remains valid
+     * until {@link #supersede(SegmentLog)} is called.
+     */
+    SegmentLog rewrite() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            String prefix = (mGeneration + 1) + "-";
+            for (File file : files) {
+                if (file.getName().startsWith(prefix)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        return new SegmentLog(mDir, mGeneration + 1, mMaxSegmentSize);
+    }
+
+    /**
+     * Replace this log with the next generation of the log created by {@link #rewrite()}. The next log is
+     * forced to disk and made current, then this log is closed and its files are deleted.
+     */
+    void supersede(SegmentLog next) throws IOException {
+        if (next.mDir != mDir || next.mGeneration != mGeneration + 1) {
+            throw new IllegalArgumentException("Not the next generation of the log");
+        }
+        next.force();
+
+        File tmp = new File(mDir, CURRENT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Integer.toString(next.mGeneration).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(mDir, CURRENT).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        close();
+        for (Segment seg : mSegments) {
+            if (!seg.file.delete()) {
+                Log.w(TAG, "Failed to delete " + seg.file);
+            }
+        }
+        mSegments.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param payload content of the record from its position to limit. The position is not changed.
+     * @return location of the record.
+     */
+    long append(ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        int size = HEADER_SIZE + length;
+
+        Segment seg = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (seg == null || (seg.position > 0 && seg.position + size > mMaxSegmentSize)) {
+            seg = new Segment(new File(mDir, mGeneration + "-" + mSegments.size() + SUFFIX),
+                    Math.max(Math.min(MIN_MAPPED_SIZE, mMaxSegmentSize), size));
+            mSegments.add(seg);
+        }
+        seg.ensureCapacity(size, mMaxSegmentSize);
+
+        int offset = seg.position;
+        mCrc.reset();
+        mCrc.update(payload.duplicate());
+        ByteBuffer dst = seg.buffer.duplicate();
+        dst.position(offset + HEADER_SIZE);
+        dst.put(payload.duplicate());
+        seg.buffer.putInt(offset + 4, (int) mCrc.getValue());
+        // Length is written last: a record with zero length marks the end of the segment.
+        seg.buffer.putInt(offset, length);
+        seg.position += size;
+        seg.dirty = true;
+        mSize += size;
+        return location(mSegments.size() - 1, offset);
+    }
+
+    /**
+     * Get payload of the record at the given location.
+     *
+     * @return read-only slice of the mapped file. It remains valid until the log is closed.
+     */
+    ByteBuffer read(long location) {
+        Segment seg = mSegments.get((int) (location >>> 32));
+        int offset = (int) location;
+        int length = seg.buffer.getInt(offset);
+        ByteBuffer payload = seg.buffer.duplicate();
+        payload.limit(offset + HEADER_SIZE + length).position(offset + HEADER_SIZE);
+        return payload.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get size of the record at the given location including the header.
+     */
+    int recordSize(long location) {
+        return HEADER_SIZE + mSegments.get((int) (location >>> 32)).buffer.getInt((int) location);
+    }
+
+    /**
+     * Pass all records to the consumer in the order they were appended.
+     */
+    void replay(RecordConsumer consumer) throws IOException {
+        replay(0, consumer);
+    }
+
+    /**
+     * Pass records starting at the given location to the consumer in the order they were appended.
+     *
+     * @param from location of the first record, such as a value returned by {@link #end()}.
+     */
+    void replay(long from, RecordConsumer consumer) throws IOException {
+        int offset = (int) from;
+        for (int i = (int) (from >>> 32); i < mSegments.size(); i++) {
+            Segment seg = mSegments.get(i);
+            while (offset < seg.position) {
+                long location = location(i, offset);
+                consumer.accept(location, read(location));
+                offset += recordSize(location);
+            }
+            offset = 0;
+        }
+    }
+
+    /**
+     * Get the location after the last record: records appended later are replayed from here.
+     */
+    long end() {
+        if (mSegments.isEmpty()) {
+            return 0;
+        }
+        int last = mSegments.size() - 1;
+        return location(last, mSegments.get(last).position);
+    }
+
+    /**
+     * Total size of records in the log in bytes.
+     */
+    long size() {
+        return mSize;
+    }
+
+    /**
+     * Write changes to disk.
+     */
+    void force() {
+        for (Segment seg : mSegments) {
+            seg.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+        for (Segment seg : mSegments) {
+            seg.close();
+        }
+    }
+
+    /**
+     * Close the log and delete its segments. Used to abandon a failed rewrite, other generations are not touched.
+     */
+    void discard() {
+        for (Segment seg : mSegments) {
+            seg.close();
+            if (!seg.file.delete()) {
+                Log.w(TAG, "Failed to delete " + seg.file);
+            }
+        }
+        mSegments.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Close the log and delete all its files.
+     */
+    void delete() {
+        close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        if (!mDir.delete()) {
+            Log.w(TAG, "Failed to delete " + mDir);
+        }
+        mSegments.clear();
+        mSize = 0;
+    }
+
+    // Find the end of valid records in the segment. Returns false if a broken record was found.
+    private boolean validate(Segment seg) throws IOException {
+        ByteBuffer buffer = seg.buffer;
+        int capacity = buffer.capacity();
+        int offset = 0;
+        boolean valid = true;
+        while (offset + HEADER_SIZE <= capacity) {
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > capacity - offset - HEADER_SIZE) {
+                valid = false;
+                break;
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(offset + HEADER_SIZE + length).position(offset + HEADER_SIZE);
+            mCrc.reset();
+            mCrc.update(payload);
+            if ((int) mCrc.getValue() != buffer.getInt(offset + 4)) {
+                valid = false;
+                break;
+            }
+            offset += HEADER_SIZE + length;
+        }
+
+        if (!valid) {
+            Log.w(TAG, "Broken record in " + seg.file + " at " + offset + ", the rest of the log is dropped");
+            // Clear the tail, otherwise leftovers of the broken record may look valid after new records are added.
+            for (int i = offset; i < capacity; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            seg.dirty = true;
+        }
+        seg.position = offset;
+        mSize += offset;
+        return valid;
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentIndex(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException ignored) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static void deleteFrom(List<File> files, int start) {
+        for (int i = start; i < files.size(); i++) {
+            if (!files.get(i).delete()) {
+                Log.w(TAG, "Failed to delete " + files.get(i));
+            }
+        }
+    }
+
+    // Single memory-mapped file.
+    private static class Segment {
+        final File file;
+        final FileChannel channel;
+        MappedByteBuffer buffer;
+        // End of the last record.
+        int position = 0;
+        // The buffer has changes not yet forced to disk.
+        boolean dirty = false;
+
+        Segment(File file, int capacity) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                map((int) Math.max(channel.size(), capacity));
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        // Make sure there is space for a record of the given size, grow the mapping if needed.
+        void ensureCapacity(int size, int maxSize) throws IOException {
+            int required = position + size;
+            if (required <= buffer.capacity()) {
+                return;
+            }
+            int capacity = Math.max(buffer.capacity(), 1024);
+            while (capacity < required) {
+                capacity = capacity < maxSize / 2 ? capacity * 2 : Math.max(maxSize, required);
+            }
+            force();
+            map(capacity);
+        }
+
+        void force() {
+            if (dirty) {
+                buffer.force();
+                dirty = false;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to close " + file, ex);
+            }
+        }
+
+        private void map(int capacity) throws IOException {
+            // The file is extended to the size of the mapping. The old mapping is released by GC.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package co.tinode.tinodesdk;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide scheduler for SDK timers. It's shared by all Tinode instances, so the number of
+ * timer threads does not grow with the number of instances. Scheduled tasks must be short and must not block.
+ * Blocking work, like opening a socket, is handed over to the {@link #blocking()} pool, routing of inbound
+ * packets may run on the {@link #inbound()} pool.
+ */
+final class SharedScheduler {
+    private static final String THREAD_NAME = "tinode-scheduler-";
+    private static final String BLOCKING_THREAD_NAME = "tinode-blocking-";
+    // Maximum number of threads running blocking tasks at the same time. A connection attempt of the
+    // default transport holds a thread for up to the connection timeout, so the pool is sized for
+    // many Tinode instances connecting at once. Idle threads are stopped, so the size costs nothing when idle.
+    private static final int BLOCKING_THREADS = 32;
+    // Idle threads of the blocking pool are stopped after this many seconds.
+    private static final long BLOCKING_KEEP_ALIVE = 30L;
+    private static final String INBOUND_THREAD_NAME = "tinode-inbound-";
+    // Number of threads routing inbound packets of all Tinode instances.
+    private static final int INBOUND_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private static volatile ScheduledExecutorService sInstance = null;
+    private static volatile ExecutorService sBlocking = null;
+    private static volatile ExecutorService sInbound = null;
+
+    private SharedScheduler() {
+    }
+
+    static ScheduledExecutorService get() {
+        ScheduledExecutorService instance = sInstance;
+        if (instance == null) {
+            synchronized (SharedScheduler.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    final AtomicInteger counter = new AtomicInteger();
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                        Thread t = new Thread(r, THREAD_NAME + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    // Cancelled timers are removed right away instead of waiting for their deadline.
+                    executor.setRemoveOnCancelPolicy(true);
+                    sInstance = instance = executor;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Get pool for short blocking tasks such as connection attempts. Threads are created on demand
+     * and stopped when idle. At most {@link #BLOCKING_THREADS} tasks run at the same time, the rest wait
+     * in the queue: with every thread busy in a connection attempt, the next attempt starts after up to
+     * one connection timeout.
+     */
+    static ExecutorService blocking() {
+        ExecutorService instance = sBlocking;
+        if (instance == null) {
+            synchronized (SharedScheduler.class) {
+                instance = sBlocking;
+                if (instance == null) {
+                    final AtomicInteger counter = new AtomicInteger();
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(BLOCKING_THREADS, BLOCKING_THREADS,
+                            BLOCKING_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, BLOCKING_THREAD_NAME + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    sBlocking = instance = executor;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Get pool for routing inbound packets to topics, shared by {@link InboundDispatcher}s of all Tinode instances.
+     * Threads are created on demand and stopped when idle.
+     */
+    static ExecutorService inbound() {
+        ExecutorService instance = sInbound;
+        if (instance == null) {
+            synchronized (SharedScheduler.class) {
+                instance = sInbound;
+                if (instance == null) {
+                    final AtomicInteger counter = new AtomicInteger();
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(INBOUND_THREADS, INBOUND_THREADS,
+                            BLOCKING_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, INBOUND_THREAD_NAME + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    sInbound = instance = executor;
+                }
+            }
+        }
+        return instance;
+    }
+}
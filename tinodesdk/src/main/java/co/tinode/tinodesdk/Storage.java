@@ -4,6 +4,7 @@ import java.io.Closeable;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import co.tinode.tinodesdk.model.Drafty;
@@ -36,6 +37,22 @@ public interface Storage {
 
     boolean isReady();
 
+    /**
+     * Run a batch of updates, such as saving a long list of subscriptions, at once, e.g. in one transaction.
+     *
+     * @param updates calls to this storage to run as a batch.
+     */
+    default void runBatch(Runnable updates) {
+        updates.run();
+    }
+
+    /**
+     * Wait until updates made so far are saved. Storage which saves updates in the background must implement it,
+     * e.g. to make sure nothing is lost on logout.
+     */
+    default void flush() {
+    }
+
     // Fetch all topics
     Topic[] topicGetAll(Tinode tinode);
     // Fetch one topic by name
@@ -80,6 +97,23 @@ public interface Storage {
      */
     Message msgReceived(Topic topic, Subscription sub, MsgServerData msg);
 
+    /**
+     * A batch of messages received from the server, such as a page of messages requested by
+     * {@link Topic#getMeta}. Implementations should save the batch at once, e.g. in one transaction.
+     *
+     * @param topic topic which received the messages
+     * @param batch messages in the order of arrival
+     * @return saved messages in the same order as the batch; an element is null if the message was not saved.
+     */
+    default Message[] msgReceived(Topic topic, List<MsgServerData> batch) {
+        Message[] saved = new Message[batch.size()];
+        for (int i = 0; i < saved.length; i++) {
+            MsgServerData msg = batch.get(i);
+            saved[i] = msgReceived(topic, topic.getSubscription(msg.from), msg);
+        }
+        return saved;
+    }
+
     /**
      * Save message to DB as "sending".
      *
@@ -7,6 +7,7 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
@@ -15,7 +16,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -27,6 +30,7 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -40,11 +44,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -129,14 +134,38 @@ public class Tinode {
     // Audio call is audio-only.
     public static final String CALL_AUDIO_ONLY = "aonly";
 
+    /**
+     * Value for {@link #setInboundConcurrency(int)}: route inbound packets on the pool shared by all Tinode instances.
+     * <p>
+     * Packets are routed on the websocket thread unless {@link #setInboundConcurrency(int)} is called: listeners
+     * written for earlier versions of the SDK expect to be called from one thread at a time.
+     */
+    public static final int INBOUND_SHARED_POOL = -1;
+
     // Delay in milliseconds between sending two key press notifications on the
     // same topic.
     private static final long NOTE_KP_DELAY = 3000L;
+    // Default window for coalescing outgoing {note} packets, milliseconds.
+    private static final long NOTE_COALESCE_WINDOW = 300L;
+
+    // Maximum number of inbound packets waiting to be routed before the websocket stops reading.
+    private static final int INBOUND_QUEUE_CAPACITY = 512;
 
     // Reject unresolved futures after this many milliseconds.
     private static final long EXPIRE_FUTURES_TIMEOUT = 5_000L;
-    // Periodicity of garbage collection of unresolved futures.
-    private static final long EXPIRE_FUTURES_PERIOD = 1_000L;
+    // Timeout for requests which may take the server longer to process: fetching
+    // message pages or sending references to uploaded attachments.
+    private static final long EXPIRE_FUTURES_TIMEOUT_LONG = 15_000L;
+    // On slow links requests time out after this many RTOs (RttEstimator.rto()) if that is longer
+    // than the timeouts above, up to the bounds below, milliseconds. Slow requests get
+    // SLOW_REQUEST_FACTOR times more.
+    private static final int REQUEST_RTO_FACTOR = 4;
+    private static final int SLOW_REQUEST_FACTOR = 3;
+    private static final long MAX_REQUEST_TIMEOUT = 30_000L;
+    private static final long MAX_SLOW_REQUEST_TIMEOUT = 90_000L;
+    // If nothing is received within REQUEST_RTO_FACTOR RTOs after a request is sent, but no less than
+    // this many milliseconds, the connection is checked with a network probe.
+    private static final long MIN_LIVENESS_TIMEOUT = 1_000L;
 
     private static final ObjectMapper sJsonMapper;
     protected static final TypeFactory sTypeFactory;
@@ -172,8 +201,11 @@ public class Tinode {
         sDateFormat = new RFC3339Format();
         sJsonMapper.setDateFormat(sDateFormat);
 
-        // Add custom serializer for MsgSetMeta.
         SimpleModule module = new SimpleModule();
+        // Thread-safe RFC3339 codec for Date values: every {data}, {pres} and {meta} has timestamps.
+        module.addSerializer(Date.class, new RFC3339Codec.Serializer());
+        module.addDeserializer(Date.class, new RFC3339Codec.Deserializer());
+        // Add custom serializer for MsgSetMeta.
         module.addSerializer(new MsgSetMetaSerializer());
         module.addSerializer(new MsgClientSetSerializer());
         sJsonMapper.registerModule(module);
@@ -189,8 +221,27 @@ public class Tinode {
     private final String mAppName;
     private final ListenerNotifier mNotifier;
     private final ConcurrentMap<String, FutureHolder> mFutures;
+    private final RequestExpirer<FutureHolder> mFuturesExpirer;
+    // Checks the connection when requests stay unanswered for longer than the round-trip time suggests.
+    private final RequestExpirer<FutureHolder> mLivenessChecker;
     private final ConcurrentHashMap<String, Pair<Topic, Storage.Message>> mTopics;
     private final ConcurrentHashMap<String, User> mUsers;
+    private final NoteCoalescer mNotes;
+    private final Metrics mMetrics;
+    // Round-trip time estimate for request timeouts and detection of dead connections.
+    private final RttEstimator mRtt = new RttEstimator();
+    // Time when the last frame was received from the server, System.nanoTime().
+    private volatile long mLastReceived = 0;
+    // Time when the unanswered network probe was sent, System.nanoTime(); 0 if none.
+    private volatile long mProbeSent = 0;
+    // Liveness check of the connection is in progress.
+    private final AtomicBoolean mCheckingLiveness = new AtomicBoolean();
+    // Send {login} and the initial requests without waiting for the {hi} response.
+    private volatile boolean mPipelinedHandshake = false;
+    // Requests to send right after automatic login.
+    private volatile Runnable mHandshakeRequests = null;
+    // Routing stage of inbound packets; null to route on the websocket thread.
+    private volatile InboundDispatcher mInbound = null;
 
     private JavaType mDefaultTypeOfMetaPacket = null;
     private URI mServerURI = null;
@@ -205,6 +256,8 @@ public class Tinode {
     private boolean mFgConnection = false;
     // Connector object.
     private Connection mConnection = null;
+    // Creates websocket transports; null for the default.
+    private Transport.Factory mTransportFactory = null;
     // Listener of connection events.
     private ConnectedWsListener mConnectionListener = null;
     // True is connection is authenticated
@@ -229,6 +282,11 @@ public class Tinode {
 
     private Map<String, Object> mServerParams = null;
 
+    // Binary wire encoding to use if the server supports it.
+    private WireCodec mPreferredCodec = null;
+    // Wire encoding of the current connection.
+    private volatile WireCodec mCodec = WireCodec.json();
+
     /**
      * Initialize Tinode package
      *
@@ -248,27 +306,31 @@ public class Tinode {
         }
 
         mTypeOfMetaPacket = new HashMap<>();
+        mMetrics = new Metrics();
 
         mFutures = new ConcurrentHashMap<>(16, 0.75f, 4);
-        Timer futuresExpirer = new Timer("futures_expirer");
-        futuresExpirer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                Date expiration = new Date(new Date().getTime() - EXPIRE_FUTURES_TIMEOUT);
-                for (Map.Entry<String, FutureHolder> entry : mFutures.entrySet()) {
-                    FutureHolder fh = entry.getValue();
-                    if (fh.timestamp.before(expiration)) {
-                        mFutures.remove(entry.getKey());
-                        try {
-                            fh.future.reject(new ServerResponseException(504, "timeout id=" + entry.getKey()));
-                        } catch (Exception ignored) {
-                        }
-                    }
+        mFuturesExpirer = new RequestExpirer<>(SharedScheduler.get(), (id, fh) -> {
+            // Reject only if the request is still waiting: the entry may belong to a completed request.
+            if (mFutures.remove(id, fh)) {
+                mMetrics.timeout();
+                try {
+                    fh.future.reject(new ServerResponseException(504, "timeout id=" + id));
+                } catch (Exception ignored) {
+                }
+                if (mLastReceived - fh.sent < 0) {
+                    // Nothing was received since the request was sent: the connection may be dead.
+                    checkLiveness();
                 }
             }
-        }, EXPIRE_FUTURES_TIMEOUT, EXPIRE_FUTURES_PERIOD);
+        });
+        mLivenessChecker = new RequestExpirer<>(SharedScheduler.get(), (id, fh) -> {
+            if (mFutures.get(id) == fh && mLastReceived - fh.sent < 0) {
+                checkLiveness();
+            }
+        });
         mTopics = new ConcurrentHashMap<>();
         mUsers = new ConcurrentHashMap<>();
+        mNotes = new NoteCoalescer(this::sendNote, SharedScheduler.get(), NOTE_COALESCE_WINDOW);
 
         mStore = store;
         if (mStore != null) {
@@ -656,7 +718,7 @@ public class Tinode {
             mConnectionListener.addPromise(completion);
 
             if (mConnection == null) {
-                mConnection = new Connection(mServerURI, mApiKey, mConnectionListener);
+                mConnection = new Connection(mServerURI, mApiKey, mConnectionListener, mTransportFactory);
             }
             mConnection.connect(true, background);
 
@@ -726,6 +788,31 @@ public class Tinode {
         }
     }
 
+    /**
+     * Start opening the network connection to the server in the background if the connection is likely
+     * to be needed soon, e.g. when a push notification is received. The next call to connect or
+     * {@link #reconnectNow(boolean, boolean, boolean)} then skips TCP and TLS handshakes.
+     * Does nothing if already connected or the server address is unknown.
+     */
+    public void warmUp() {
+        URI connectTo;
+        synchronized (mConnLock) {
+            if (mConnection != null && mConnection.isConnected()) {
+                return;
+            }
+            connectTo = mServerURI;
+        }
+        if (connectTo == null && mStore != null) {
+            String savedUri = mStore.getServerURI();
+            if (savedUri != null) {
+                connectTo = URI.create(savedUri);
+            }
+        }
+        if (connectTo != null) {
+            Connection.warmUp(connectTo);
+        }
+    }
+
     // Mark connection as foreground-connected.
     private void pinConnectionToFg() {
         synchronized (mConnLock) {
@@ -756,6 +843,8 @@ public class Tinode {
 
             mConnAuth = false;
             if (mConnection != null) {
+                // Send pending notes while the connection is still up.
+                mNotes.flush();
                 mConnection.disconnect();
             }
         }
@@ -766,9 +855,88 @@ public class Tinode {
      * It does not check connection for validity before sending. Use {@link #isConnected} first.
      */
     public void networkProbe() {
+        if (mProbeSent == 0) {
+            // Measure time to the reply of the earliest unanswered probe.
+            mProbeSent = System.nanoTime();
+        }
         mConnection.send("1");
     }
 
+    /**
+     * Get smoothed round-trip time to the server measured from responses to requests and network probes.
+     *
+     * @return round-trip time in milliseconds or -1 if not measured yet.
+     */
+    public long getRoundTripTime() {
+        return mRtt.srtt();
+    }
+
+    // Send network probe and drop the connection if nothing is received before the probe times out.
+    // A live server answers probes right away, so a missing reply means the connection is dead.
+    private void checkLiveness() {
+        final Connection conn;
+        synchronized (mConnLock) {
+            conn = mConnection;
+        }
+        if (conn == null || !conn.isConnected() || !mCheckingLiveness.compareAndSet(false, true)) {
+            return;
+        }
+
+        final long probeSent = System.nanoTime();
+        final long timeout = mRtt.rto();
+        try {
+            networkProbe();
+        } catch (Exception ex) {
+            mCheckingLiveness.set(false);
+            return;
+        }
+        SharedScheduler.get().schedule(() -> {
+            mCheckingLiveness.set(false);
+            if (mLastReceived - probeSent < 0 && conn.isConnected()) {
+                Log.i(TAG, "No response to network probe in " + timeout + "ms, reconnecting");
+                conn.dropConnection("network probe timeout");
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    // Timeout of a request: fixed, or longer on a slow link. A dead connection is detected by
+    // the liveness check, so the timeout does not shrink on fast links.
+    private long requestTimeout(boolean slow) {
+        if (!mRtt.hasSamples()) {
+            return slow ? EXPIRE_FUTURES_TIMEOUT_LONG : EXPIRE_FUTURES_TIMEOUT;
+        }
+        long timeout = mRtt.rto() * REQUEST_RTO_FACTOR;
+        if (slow) {
+            return Math.min(MAX_SLOW_REQUEST_TIMEOUT,
+                    Math.max(EXPIRE_FUTURES_TIMEOUT_LONG, timeout * SLOW_REQUEST_FACTOR));
+        }
+        return Math.min(MAX_REQUEST_TIMEOUT, Math.max(EXPIRE_FUTURES_TIMEOUT, timeout));
+    }
+
+    // Time to wait for any packet after sending a request before probing the connection; -1 if the
+    // round-trip time is not measured yet: the request timeout triggers the probe then.
+    private long livenessTimeout() {
+        if (!mRtt.hasSamples()) {
+            return -1;
+        }
+        return Math.max(MIN_LIVENESS_TIMEOUT, mRtt.rto() * REQUEST_RTO_FACTOR);
+    }
+
+    // Whether the response time of the request reflects the network rather than the server's work:
+    // login checks credentials, {acc}, {set} and {del} write to the database, and so on.
+    private static boolean isQuickRequest(ClientMessage msg) {
+        return msg.hi != null || msg.leave != null ||
+                (msg.get != null && msg.get.data == null) ||
+                (msg.sub != null && msg.sub.set == null && (msg.sub.get == null || msg.sub.get.data == null));
+    }
+
+    // Record round-trip time of a request or a probe.
+    private void roundTrip(long sent) {
+        long rtt = System.nanoTime() - sent;
+        mMetrics.roundTrip(rtt);
+        mRtt.sample(rtt);
+    }
+
     /**
      * Get configured server address as an HTTP(S) URL.
      *
@@ -829,24 +997,45 @@ public class Tinode {
 
         mServerBuild = null;
         mServerVersion = null;
+        // Handshake on the next connection is always in JSON.
+        mCodec = WireCodec.json();
 
         mFgConnection = false;
         mBkgConnCounter = 0;
 
-        // Reject all pending promises.
-        ServerResponseException ex = new ServerResponseException(503, "disconnected");
-        for (FutureHolder fh : mFutures.values()) {
-            try {
-                fh.future.reject(ex);
-            } catch (Exception ignored) {
+        mNotes.onDisconnect();
+        // The next connection may use a different network.
+        mRtt.reset();
+        mProbeSent = 0;
+
+        // Reject all pending promises. Responses received before the disconnect may still be queued for routing:
+        // reject the promises once the queued packets are routed, without blocking the websocket thread.
+        final Map<String, FutureHolder> pending = new HashMap<>(mFutures);
+        mFuturesExpirer.clear();
+        mLivenessChecker.clear();
+        Runnable reject = () -> {
+            ServerResponseException ex = new ServerResponseException(503, "disconnected");
+            for (Map.Entry<String, FutureHolder> entry : pending.entrySet()) {
+                // Promises of the next connection are left alone.
+                if (mFutures.remove(entry.getKey(), entry.getValue())) {
+                    try {
+                        entry.getValue().future.reject(ex);
+                    } catch (Exception ignored) {
+                    }
+                }
             }
+        };
+        InboundDispatcher inbound = mInbound;
+        if (inbound != null) {
+            inbound.afterQueued(reject);
+        } else {
+            reject.run();
         }
 
-        mFutures.clear();
-
-        // Mark all topics as un-attached.
+        // Mark all topics as un-attached, after the packets received before the disconnect.
         for (Pair<Topic, ?> pair : mTopics.values()) {
-            pair.first.topicLeft(false, 503, "disconnected");
+            final Topic topic = pair.first;
+            routeTo(topic.getName(), () -> topic.topicLeft(false, 503, "disconnected"));
         }
 
         mNotifier.onDisconnect(byServer, code, reason);
@@ -858,19 +1047,30 @@ public class Tinode {
      * {@link Connection.WsListener#onMessage(String)}
      * *
      *
+     * @param source  connection the message was received from; null if the message is replayed.
      * @param message message to be parsed dispatched
      */
     @SuppressWarnings("unchecked")
-    private void dispatchPacket(String message) throws Exception {
+    private void dispatchPacket(Connection source, String message) throws Exception {
         if (message == null || message.isEmpty())
             return;
 
         Log.d(TAG, "in: " + message);
 
-        mNotifier.onRawMessage(message);
+        mLastReceived = System.nanoTime();
+        mMetrics.bytesIn(utf8Length(message));
+        if (source != null) {
+            // Replayed frames are not reported: a recorder would record them again.
+            mNotifier.onRawMessage(message);
+        }
 
         if (message.length() == 1 && message.charAt(0) == '0') {
-            // This is a network probe. No further processing is necessary.
+            // This is a reply to network probe. No further processing is necessary.
+            long sent = mProbeSent;
+            if (sent != 0) {
+                mProbeSent = 0;
+                roundTrip(sent);
+            }
             return;
         }
 
@@ -880,14 +1080,111 @@ public class Tinode {
             return;
         }
 
+        dispatchPacket(source, pkt);
+    }
+
+    /**
+     * Parse a binary frame using the negotiated wire encoding and dispatch the packet.
+     *
+     * @param source  connection the message was received from.
+     * @param message binary frame to parse and dispatch.
+     */
+    private void dispatchPacket(Connection source, ByteBuffer message) throws Exception {
+        WireCodec codec = mCodec;
+        if (!codec.isBinary()) {
+            Log.w(TAG, "Binary message received while using '" + codec.getName() + "' encoding");
+            return;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "in: " + codec.getName() + ", " + message.remaining() + " bytes");
+        }
+
+        mLastReceived = System.nanoTime();
+        mMetrics.bytesIn(message.remaining());
+
+        ServerMessage pkt = parseServerMessage(codec, message);
+        if (pkt == null) {
+            Log.w(TAG, "Failed to parse packet");
+            return;
+        }
+
+        dispatchPacket(source, pkt);
+    }
+
+    // Hand parsed packet over to the routing stage. Packets addressed to the same topic are routed
+    // in the order of arrival, packets for different topics are routed in parallel.
+    private void dispatchPacket(Connection source, ServerMessage pkt) throws Exception {
+        mMetrics.packetIn(pkt);
+
+        InboundDispatcher inbound = mInbound;
+        if (inbound == null) {
+            routePacket(pkt);
+            return;
+        }
+
+        Runnable task = () -> {
+            try {
+                routePacket(pkt);
+            } catch (Exception ex) {
+                Log.w(TAG, "Exception in dispatchPacket: ", ex);
+            }
+        };
+        if (source != null && source.canPauseReading()) {
+            // The thread is shared with other connections and must not block: stop reading from
+            // the socket while the dispatcher is full.
+            if (!inbound.offer(pkt.getTopic(), task)) {
+                source.pauseReading();
+                inbound.whenAvailable(source::resumeReading);
+            }
+        } else {
+            inbound.execute(pkt.getTopic(), task);
+        }
+    }
+
+    // Length of the string in UTF-8 encoding without encoding it.
+    private static int utf8Length(String str) {
+        int len = str.length();
+        int bytes = len;
+        for (int i = 0; i < len; i++) {
+            char ch = str.charAt(i);
+            if (ch >= 0x80) {
+                if (ch < 0x800) {
+                    bytes++;
+                } else if (Character.isHighSurrogate(ch)) {
+                    // Surrogate pair: 2 chars, 4 bytes.
+                    bytes += 2;
+                    i++;
+                } else {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // Route parsed packet to topics and notify listeners.
+    @SuppressWarnings("unchecked")
+    private void routePacket(ServerMessage pkt) throws Exception {
         mNotifier.onMessage(pkt);
 
+        if (pkt.data == null) {
+            // Buffered {data} messages must be routed before any other update to the topic.
+            Topic topic = getTopic(pkt.getTopic());
+            if (topic != null) {
+                topic.flushData();
+            }
+        }
+
         if (pkt.ctrl != null) {
             mNotifier.onCtrlMessage(pkt.ctrl);
 
             if (pkt.ctrl.id != null) {
                 FutureHolder fh = mFutures.remove(pkt.ctrl.id);
                 if (fh != null) {
+                    if (fh.quick) {
+                        roundTrip(fh.sent);
+                    }
                     if (pkt.ctrl.code >= ServerMessage.STATUS_OK &&
                             pkt.ctrl.code < ServerMessage.STATUS_BAD_REQUEST) {
                         fh.future.resolve(pkt);
@@ -917,8 +1214,12 @@ public class Tinode {
                 }
             }
         } else if (pkt.meta != null) {
-            FutureHolder fh = mFutures.remove(pkt.meta.id);
+            // Unsolicited {meta} has no id.
+            FutureHolder fh = pkt.meta.id != null ? mFutures.remove(pkt.meta.id) : null;
             if (fh != null) {
+                if (fh.quick) {
+                    roundTrip(fh.sent);
+                }
                 fh.future.resolve(pkt);
             }
 
@@ -950,7 +1251,7 @@ public class Tinode {
                 if (TOPIC_ME.equals(pkt.pres.topic) && Topic.getTopicTypeByName(pkt.pres.src) == Topic.TopicType.P2P) {
                     Topic forwardTo = getTopic(pkt.pres.src);
                     if (forwardTo != null) {
-                        forwardTo.routePres(pkt.pres);
+                        routeTo(forwardTo.getName(), () -> forwardTo.routePres(pkt.pres));
                     }
                 }
             }
@@ -970,13 +1271,15 @@ public class Tinode {
 
     /**
      * Out of band notification handling. Called externally by the FCM push service.
-     * Must not be called on the UI thread.
+     * Does not block: connecting, login and fetching of the missing data are chained on the returned promise.
      *
      * @param data FCM payload.
      * @param authToken authentication token to use in case login is needed.
      * @param keepConnection if <code>true</code> do not terminate new connection.
+     * @return promise resolved when the missing data is fetched, rejected if failed to connect or login.
      */
-    public void oobNotification(Map<String, String> data, String authToken, boolean keepConnection) {
+    public PromisedReply<ServerMessage> oobNotification(Map<String, String> data, String authToken,
+                                                        boolean keepConnection) {
         // This log entry is permanent, not just temporary for debugging.
         Log.d(TAG, "oob: " + data);
 
@@ -1014,40 +1317,26 @@ public class Tinode {
                 }
 
                 if (topic.getSeq() < seq) {
-                    if (!syncLogin(authToken)) {
-                        // Failed to connect or login.
-                        break;
-                    }
-
-                    String senderId = data.get("xfrom");
-                    if (senderId != null && getUser(senderId) == null) {
-                        // If sender is not found, try to fetch description from the server.
-                        // OK to send without subscription.
-                        getMeta(senderId, MsgGetMeta.desc());
-                    }
-
-                    // Check again if topic has attached while we tried to connect. It does not guarantee that there
-                    // is no race condition to subscribe.
-                    if (!topic.isAttached()) {
-                        try {
-                            // noinspection unchecked
-                            topic.subscribe(null, builder.withLaterDel(DEFAULT_MESSAGE_PAGE).build()).getResult();
-                            // Wait for the messages to download.
-                            topic.getMeta(builder.reset().withLaterData(DEFAULT_MESSAGE_PAGE).build()).getResult();
-
-                            // Notify the server than the message was received.
-                            topic.noteRecv();
-                            if (!keepConnection) {
-                                // Leave the topic before disconnecting.
-                                topic.leave().getResult();
-                            }
-                        } catch (Exception ignored) {}
-                    }
-
-                    if (keepConnection) {
-                        pinConnectionToFg();
-                    }
-                    maybeDisconnect(true);
+                    final Topic fetchTopic = topic;
+                    final Topic.MetaGetBuilder fetchBuilder = builder;
+                    // Fails if failed to connect or login.
+                    return PromisedReply.fromCompletionStage(loginInBackground(authToken).toCompletableFuture()
+                            .thenCompose(ignored -> {
+                                fetchSender(data.get("xfrom"));
+
+                                // Check again if topic has attached while we tried to connect. It does not
+                                // guarantee that there is no race condition to subscribe.
+                                CompletableFuture<ServerMessage> fetched = fetchTopic.isAttached() ?
+                                        CompletableFuture.completedFuture(null) :
+                                        // Leave the topic before disconnecting.
+                                        fetchLaterMessages(fetchTopic, fetchBuilder, !keepConnection)
+                                                .toCompletableFuture();
+                                // Failure to fetch the messages is ignored.
+                                return fetched.handleAsync((msg, err) -> {
+                                    releaseOobConnection(keepConnection);
+                                    return msg;
+                                }, SharedScheduler.blocking());
+                            }));
                 }
                 break;
             case "read":
@@ -1064,49 +1353,113 @@ public class Tinode {
                 break;
             case "sub":
                 if (topic == null) {
-                    if (!syncLogin(authToken)) {
-                        // Failed to connect or login.
-                        break;
-                    }
-                    // New topic subscription, fetch topic description.
-                    try {
-                        getMeta(topicName, MsgGetMeta.desc()).getResult();
-                    } catch (Exception ignored) {}
-
-                    String senderId = data.get("xfrom");
-                    if (senderId != null && getUser(senderId) == null) {
-                        // If sender is not found, try to fetch description from the server.
-                        // OK to send without subscription.
-                        getMeta(senderId, MsgGetMeta.desc());
-                    }
-
-                    if (keepConnection) {
-                        pinConnectionToFg();
-                    }
-                    maybeDisconnect(true);
+                    // Fails if failed to connect or login.
+                    return PromisedReply.fromCompletionStage(loginInBackground(authToken).toCompletableFuture()
+                            // New topic subscription, fetch topic description. Failure to fetch is ignored.
+                            .thenCompose(ignored -> getMeta(topicName, MsgGetMeta.desc()).toCompletableFuture()
+                                    .handleAsync((msg, err) -> {
+                                        fetchSender(data.get("xfrom"));
+                                        releaseOobConnection(keepConnection);
+                                        return msg;
+                                    }, SharedScheduler.blocking())));
                 }
                 break;
             default:
                 break;
         }
+        return new PromisedReply<>((ServerMessage) null);
+    }
+
+    // If sender of the out of band notification is not found, try to fetch description from the server.
+    // OK to send without subscription.
+    private void fetchSender(String senderId) {
+        if (senderId != null && getUser(senderId) == null) {
+            getMeta(senderId, MsgGetMeta.desc());
+        }
     }
 
-    // Synchronous (blocking) token login using stored parameters.
-    // Returns true if a connection was established, false if failed to connect.
-    @SuppressWarnings("BooleanMethodIsAlwaysInverted")
-    private boolean syncLogin(String authToken) {
+    // Keep or close the connection opened to handle an out of band notification.
+    private void releaseOobConnection(boolean keepConnection) {
+        if (keepConnection) {
+            pinConnectionToFg();
+        }
+        maybeDisconnect(true);
+    }
+
+    // Asynchronous background connection and token login using stored parameters.
+    private PromisedReply<ServerMessage> loginInBackground(String authToken) {
         if (mStore == null) {
-            return false;
+            return new PromisedReply<>(new IllegalStateException("Storage is not available"));
         }
 
+        URI connectTo;
         try {
-            URI connectTo = new URI(mStore.getServerURI());
-            connect(connectTo, true).getResult();
-            loginToken(authToken).getResult();
-        } catch (Exception ignored) {
-            return false;
+            connectTo = new URI(mStore.getServerURI());
+        } catch (Exception ex) {
+            return new PromisedReply<>(ex);
         }
-        return true;
+        return connect(connectTo, true).thenApply(new PromisedReply.SuccessListener<>() {
+            @Override
+            public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
+                return loginToken(authToken);
+            }
+        });
+    }
+
+    // Subscribe to topic, download messages newer than the cached ones, notify the server that the messages
+    // were received and optionally leave the topic. Nothing blocks.
+    @SuppressWarnings("unchecked")
+    private PromisedReply<ServerMessage> fetchLaterMessages(final Topic topic, final Topic.MetaGetBuilder builder,
+                                                           final boolean leave) {
+        return topic.subscribe(null, builder.withLaterDel(DEFAULT_MESSAGE_PAGE).build()).thenApply(
+                new PromisedReply.SuccessListener<ServerMessage>() {
+                    @Override
+                    public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
+                        return topic.getMeta(builder.reset().withLaterData(DEFAULT_MESSAGE_PAGE).build());
+                    }
+                }).thenApply(new PromisedReply.SuccessListener<ServerMessage>() {
+                    @Override
+                    public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
+                        topic.noteRecv();
+                        return leave ? topic.leave() : null;
+                    }
+                });
+    }
+
+    /**
+     * Download new messages for the given topics in the background: connect and login if needed, then
+     * for each topic which is not attached subscribe, download messages newer than the cached ones,
+     * notify the server that the messages were received and leave the topic. Topics are synchronized
+     * in parallel without blocking any threads.
+     *
+     * @param authToken  authentication token to use in case login is needed.
+     * @param topicNames names of topics to synchronize; unknown topics are created.
+     * @return promise resolved when all topics are synchronized or rejected if any one fails.
+     */
+    public PromisedReply<ServerMessage[]> syncTopicsInBackground(String authToken, String... topicNames) {
+        return PromisedReply.fromCompletionStage(loginInBackground(authToken).toCompletableFuture()
+                .thenCompose(ignored -> {
+                    @SuppressWarnings("unchecked")
+                    PromisedReply<ServerMessage>[] syncs = new PromisedReply[topicNames.length];
+                    for (int i = 0; i < topicNames.length; i++) {
+                        syncs[i] = syncTopicInBackground(topicNames[i]);
+                    }
+                    return PromisedReply.allOf(syncs, ServerMessage[]::new).toCompletableFuture();
+                }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private PromisedReply<ServerMessage> syncTopicInBackground(String topicName) {
+        Topic topic = getTopic(topicName);
+        if (topic == null) {
+            topic = newTopic(topicName, null);
+            return fetchLaterMessages(topic, topic.getMetaGetBuilder().withDesc().withSub(), true);
+        }
+        if (topic.isAttached()) {
+            // Already subscribed, the messages are delivered as they arrive.
+            return new PromisedReply<>((ServerMessage) null);
+        }
+        return fetchLaterMessages(topic, topic.getMetaGetBuilder(), true);
     }
 
     /**
@@ -1382,6 +1735,41 @@ public class Tinode {
         }
     }
 
+    /**
+     * Enable binary wire encoding: it will be used if the server advertises support for it in
+     * response to {hi}. Otherwise the connection uses JSON.
+     * Takes effect on the next connection.
+     *
+     * @param codec binary codec to use, such as {@link WireCodec#cbor()}, or null to always use JSON.
+     */
+    public void setPreferredWireCodec(@Nullable WireCodec codec) {
+        mPreferredCodec = codec;
+    }
+
+    /**
+     * Get wire encoding used by the current connection.
+     *
+     * @return codec in use.
+     */
+    public @NotNull WireCodec getWireCodec() {
+        return mCodec;
+    }
+
+    // Switch to the preferred binary encoding if the server supports it.
+    private void negotiateWireCodec(@Nullable Map<String, Object> params) {
+        WireCodec codec = WireCodec.json();
+        if (mPreferredCodec != null && params != null) {
+            Object supported = params.get("wire");
+            if (supported instanceof Collection && ((Collection<?>) supported).contains(mPreferredCodec.getName())) {
+                codec = mPreferredCodec;
+            }
+        }
+        if (codec != mCodec) {
+            Log.d(TAG, "Using wire encoding '" + codec.getName() + "'");
+        }
+        mCodec = codec;
+    }
+
     /**
      * Set device language
      *
@@ -1429,6 +1817,7 @@ public class Tinode {
                                 }
                             }
                         }
+                        negotiateWireCodec(params);
                         return null;
                     }
                 });
@@ -1625,7 +2014,7 @@ public class Tinode {
 
         mAuthToken = ctrl.getStringParam("token", null);
         if (mAuthToken != null) {
-            mAuthTokenExpires = sDateFormat.parse(ctrl.getStringParam("expires", ""));
+            mAuthTokenExpires = RFC3339Codec.parse(ctrl.getStringParam("expires", ""));
         } else {
             mAuthTokenExpires = null;
         }
@@ -1782,7 +2171,11 @@ public class Tinode {
         if (set != null && set.desc != null && set.desc.attachments != null) {
             msg.extra = new MsgClientExtra(set.desc.attachments);
         }
-        return sendWithPromise(msg, msg.sub.id);
+        long timeout = requestTimeout(get != null && get.data != null || msg.extra != null);
+        if (get != null && get.data != null) {
+            expectDataPage(topicName, timeout);
+        }
+        return sendWithPromise(msg, msg.sub.id, timeout);
     }
 
     /**
@@ -1794,6 +2187,8 @@ public class Tinode {
      */
     @SuppressWarnings("WeakerAccess")
     public PromisedReply<ServerMessage> leave(final String topicName, boolean unsub) {
+        // Notes must be sent before leaving the topic.
+        mNotes.flush(topicName);
         ClientMessage msg = new ClientMessage(new MsgClientLeave(getNextId(), topicName, unsub));
         return sendWithPromise(msg, msg.leave.id);
     }
@@ -1812,6 +2207,7 @@ public class Tinode {
         ClientMessage msg = new ClientMessage(new MsgClientPub(getNextId(), topicName, true, data, head));
         if (attachments != null && attachments.length > 0) {
             msg.extra = new MsgClientExtra(attachments);
+            return sendWithPromise(msg, msg.pub.id, requestTimeout(true));
         }
         return sendWithPromise(msg, msg.pub.id);
     }
@@ -1826,7 +2222,19 @@ public class Tinode {
      */
     public PromisedReply<ServerMessage> getMeta(final String topicName, final MsgGetMeta query) {
         ClientMessage msg = new ClientMessage(new MsgClientGet(getNextId(), topicName, query));
-        return sendWithPromise(msg, msg.get.id);
+        long timeout = requestTimeout(msg.get.data != null);
+        if (msg.get.data != null) {
+            expectDataPage(topicName, timeout);
+        }
+        return sendWithPromise(msg, msg.get.id, timeout);
+    }
+
+    // Let the topic save the requested page of messages in batches.
+    private void expectDataPage(String topicName, long timeout) {
+        Topic topic = getTopic(topicName);
+        if (topic != null) {
+            topic.expectDataPage(timeout);
+        }
     }
 
     /**
@@ -1842,6 +2250,7 @@ public class Tinode {
         ClientMessage msg = new ClientMessage(new MsgClientSet<>(getNextId(), topicName, meta));
         if (meta.desc != null && meta.desc.attachments != null && meta.desc.attachments.length > 0) {
             msg.extra = new MsgClientExtra(meta.desc.attachments);
+            return sendWithPromise(msg, msg.set.id, requestTimeout(true));
         }
         return sendWithPromise(msg, msg.set.id);
     }
@@ -1953,7 +2362,8 @@ public class Tinode {
      * Inform all other topic subscribers of activity, such as receiving/reading a message or a
      * typing notification.
      * This method does not return a PromisedReply because the server does not acknowledge {note}
-     * packets.
+     * packets. Notes are coalesced: within a short window only the note with the highest seq is
+     * sent for each topic and kind, see {@link #setNoteCoalescingWindow(long)}.
      *
      * @param topicName name of the topic to inform
      * @param what      one or "read", "recv", "kp"
@@ -1961,12 +2371,177 @@ public class Tinode {
      */
     @SuppressWarnings("WeakerAccess")
     protected void note(String topicName, String what, int seq) {
+        mNotes.note(topicName, what, seq);
+    }
+
+    // Send {note} to the server right away.
+    private void sendNote(String topicName, String what, int seq) throws NotConnectedException {
         try {
             send(new ClientMessage(new MsgClientNote(topicName, what, seq)));
-        } catch (JsonProcessingException | NotConnectedException ignored) {
+        } catch (JsonProcessingException ignored) {
+        }
+    }
+
+    /**
+     * Send pending {note} packets for the given topic.
+     *
+     * @param topicName name of the topic to send notes for.
+     */
+    void flushNotes(String topicName) {
+        mNotes.flush(topicName);
+    }
+
+    /**
+     * Set the websocket transport, e.g. {@link NioTransport#factory()} to run many instances in one process
+     * on a few shared threads. Takes effect when a new connection is created: call it before connecting.
+     *
+     * @param factory creates transports; null to use the default Java-WebSocket transport.
+     */
+    public void setTransportFactory(Transport.Factory factory) {
+        synchronized (mConnLock) {
+            mTransportFactory = factory;
+        }
+    }
+
+    /**
+     * Enable or disable pipelined handshake. When enabled and automatic login is configured,
+     * {hi}, {login} and the requests set by {@link #setHandshakeRequests(Runnable)} are written to the
+     * socket back-to-back instead of waiting for each response in turn. This saves two round trips
+     * on connect. If {hi} or {login} fails, the requests written after it fail as well.
+     *
+     * @param enabled true to send handshake requests without waiting for responses.
+     */
+    public void setPipelinedHandshake(boolean enabled) {
+        mPipelinedHandshake = enabled;
+    }
+
+    /**
+     * Set requests to send as a part of the connection handshake right after automatic login, such as
+     * subscriptions to 'me' and the currently open topic. With pipelined handshake the requests are
+     * sent without waiting for the {login} response, otherwise after the login succeeds.
+     *
+     * @param requests callback which sends the requests, e.g. by calling {@link Topic#subscribe(MsgSetMeta, MsgGetMeta)};
+     *                 null to clear.
+     */
+    public void setHandshakeRequests(@Nullable Runnable requests) {
+        mHandshakeRequests = requests;
+    }
+
+    private void sendHandshakeRequests() {
+        Runnable requests = mHandshakeRequests;
+        if (requests != null) {
+            try {
+                requests.run();
+            } catch (Exception ex) {
+                Log.w(TAG, "Failed to send handshake requests", ex);
+            }
+        }
+    }
+
+    /**
+     * Get protocol metrics: packet counts, round-trip time, reconnects, timeouts, storage latency.
+     * Use {@link Metrics#snapshot()} to read the values.
+     *
+     * @return metrics collected by this instance.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set the number of threads routing inbound packets to topics. Packets for the same topic are
+     * always processed in the order of arrival. By default packets are routed on the websocket thread.
+     * <p>
+     * When packets are routed in parallel, topic listeners and {@link EventListener}s are called
+     * concurrently from several threads, for different topics at the same time, and must be thread-safe.
+     * Listeners of one topic are never called concurrently with each other.
+     *
+     * @param workers number of threads to create for this instance; zero routes packets on the websocket thread,
+     *                {@link #INBOUND_SHARED_POOL} routes them on the pool shared by all Tinode instances.
+     */
+    public void setInboundConcurrency(int workers) {
+        InboundDispatcher old = mInbound;
+        if (workers > 0) {
+            mInbound = new InboundDispatcher(workers, INBOUND_QUEUE_CAPACITY);
+        } else if (workers == INBOUND_SHARED_POOL) {
+            mInbound = new InboundDispatcher(SharedScheduler.inbound(), INBOUND_QUEUE_CAPACITY);
+        } else {
+            mInbound = null;
+        }
+        if (old != null) {
+            old.shutdown();
         }
     }
 
+    /**
+     * Process recorded inbound frame as if it was received from the server. Used by {@link WireReplay}.
+     * Like with frames from the websocket, an exception thrown while routing the frame is logged and ignored.
+     *
+     * @param message text frame to parse and dispatch.
+     */
+    void replayPacket(String message) throws InterruptedException {
+        try {
+            dispatchPacket(null, message);
+        } catch (InterruptedException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            Log.w(TAG, "Exception in dispatchPacket: ", ex);
+        }
+    }
+
+    /**
+     * Run task in order with the inbound packets of the topic. Used by timers which must not block
+     * the scheduler thread.
+     *
+     * @param topicName name of the topic.
+     * @param task      task to run.
+     */
+    void routeLater(String topicName, Runnable task) {
+        InboundDispatcher inbound = mInbound;
+        if (inbound != null) {
+            inbound.post(topicName, task);
+        } else {
+            SharedScheduler.blocking().execute(task);
+        }
+    }
+
+    /**
+     * Run task in order with the inbound packets of the topic. Used to apply changes to a topic while
+     * routing a packet addressed to another topic. If packets are routed in parallel, the task is queued
+     * after the packets of the topic, otherwise it runs on the calling thread right away.
+     *
+     * @param topicName name of the topic.
+     * @param task      task to run.
+     */
+    void routeTo(String topicName, Runnable task) {
+        InboundDispatcher inbound = mInbound;
+        if (inbound != null) {
+            inbound.post(topicName, task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Wait until all dispatched packets are routed to topics.
+     *
+     * @param timeout maximum time to wait in milliseconds.
+     * @return true if all packets are routed, false if the wait timed out.
+     */
+    boolean awaitRouted(long timeout) throws InterruptedException {
+        InboundDispatcher inbound = mInbound;
+        return inbound == null || inbound.awaitIdle(timeout);
+    }
+
+    /**
+     * Set duration of the window for coalescing read, received and typing notifications.
+     *
+     * @param window duration of the window in milliseconds; zero disables coalescing.
+     */
+    public void setNoteCoalescingWindow(long window) {
+        mNotes.setWindow(window);
+    }
+
     /**
      * Send typing notification to all other topic subscribers.
      * This method does not return a PromisedReply because the server does not acknowledge {note} packets.
@@ -2040,12 +2615,36 @@ public class Tinode {
     }
 
     /**
-     * Takes {@link ClientMessage}, converts it to string writes to websocket.
+     * Takes {@link ClientMessage}, serializes it using the current wire encoding and writes to websocket:
+     * JSON is sent as a text frame, binary encodings as binary frames.
+     * The message is serialized into a reusable buffer without creating an intermediate String.
      *
-     * @param message string to write to websocket
+     * @param message message to write to websocket
      */
     protected void send(ClientMessage message) throws JsonProcessingException {
-        send(Tinode.getJsonMapper().writeValueAsString(message));
+        if (mConnection == null || !mConnection.isConnected()) {
+            throw new NotConnectedException("No connection");
+        }
+        WireCodec codec = mCodec;
+        OutboundBuffer out = OutboundBuffer.obtain();
+        try {
+            ByteBuffer payload = out.serialize(sJsonMapper, codec, message);
+            mMetrics.packetOut(message);
+            mMetrics.bytesOut(payload.remaining());
+            if (codec.isBinary()) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "out: " + codec.getName() + ", " + out.size() + " bytes");
+                }
+                mConnection.sendBinary(payload);
+            } else {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "out: " + out);
+                }
+                mConnection.sendText(payload);
+            }
+        } finally {
+            out.release();
+        }
     }
 
     /**
@@ -2056,11 +2655,31 @@ public class Tinode {
      * @return PromisedReply of the reply ctrl message
      */
     protected PromisedReply<ServerMessage> sendWithPromise(ClientMessage message, String id) {
+        return sendWithPromise(message, id, requestTimeout(false));
+    }
+
+    /**
+     * Takes {@link ClientMessage}, converts it to string writes to websocket.
+     *
+     * @param message string to write to websocket.
+     * @param id      string used to identify message response so the promise can be resolved.
+     * @param timeout milliseconds to wait for the response before rejecting the promise with 504.
+     * @return PromisedReply of the reply ctrl message
+     */
+    protected PromisedReply<ServerMessage> sendWithPromise(ClientMessage message, String id, long timeout) {
         PromisedReply<ServerMessage> future = new PromisedReply<>();
+        FutureHolder fh = new FutureHolder(future, System.nanoTime(), isQuickRequest(message));
+        // Register the future before sending: the reply may arrive before send() returns.
+        mFutures.put(id, fh);
         try {
             send(message);
-            mFutures.put(id, new FutureHolder(future, new Date()));
+            mFuturesExpirer.add(id, fh, timeout);
+            long liveness = livenessTimeout();
+            if (liveness > 0 && liveness < timeout) {
+                mLivenessChecker.add(id, fh, liveness);
+            }
         } catch (Exception ex1) {
+            mFutures.remove(id);
             try {
                 future.reject(ex1);
             } catch (Exception ex2) {
@@ -2387,59 +3006,235 @@ public class Tinode {
      */
     @SuppressWarnings("WeakerAccess")
     protected ServerMessage parseServerMessageFromJson(String jsonMessage) {
+        try (JsonParser parser = sJsonMapper.getFactory().createParser(jsonMessage)) {
+            return parseServerMessage(parser, () -> sJsonMapper.getFactory().createParser(jsonMessage));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to parse message", e);
+        }
+        return null;
+    }
+
+    /**
+     * Parse UTF-8 encoded JSON received from the server into {@link ServerMessage} without
+     * converting it to String first.
+     *
+     * @param data   buffer with the message to parse
+     * @param offset offset of the first byte of the message in the buffer
+     * @param len    length of the message in bytes
+     * @return ServerMessage or {@code null}
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected ServerMessage parseServerMessageFromJson(byte[] data, int offset, int len) {
+        try (JsonParser parser = sJsonMapper.getFactory().createParser(data, offset, len)) {
+            return parseServerMessage(parser, () -> sJsonMapper.getFactory().createParser(data, offset, len));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to parse message", e);
+        }
+        return null;
+    }
+
+    /**
+     * Parse packet encoded with the given wire codec into {@link ServerMessage}.
+     *
+     * @param codec   wire encoding of the packet.
+     * @param message packet to parse.
+     * @return ServerMessage or {@code null}
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected ServerMessage parseServerMessage(WireCodec codec, ByteBuffer message) {
+        byte[] data;
+        int offset;
+        int len = message.remaining();
+        if (message.hasArray()) {
+            data = message.array();
+            offset = message.arrayOffset() + message.position();
+        } else {
+            data = new byte[len];
+            message.duplicate().get(data);
+            offset = 0;
+        }
+
+        try (JsonParser parser = codec.createParser(data, offset, len)) {
+            return parseServerMessage(parser, () -> codec.createParser(data, offset, len));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to parse message", e);
+        }
+        return null;
+    }
+
+    // Creates a new parser over the same packet.
+    private interface ParserSource {
+        JsonParser create() throws IOException;
+    }
+
+    // Bind packet content directly from the token stream: the packet is parsed only once and no
+    // intermediate tree is created. If a value fails to bind, the packet is parsed again from the
+    // source, field by field.
+    private ServerMessage parseServerMessage(JsonParser parser, ParserSource source) throws IOException {
+        // Sanity check: verify that we got "Json Object":
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Packet must start with an object",
+                    parser.currentLocation());
+        }
+
         ServerMessage msg = new ServerMessage();
-        try {
-            ObjectMapper mapper = Tinode.getJsonMapper();
-            JsonParser parser = mapper.getFactory().createParser(jsonMessage);
-
-            // Sanity check: verify that we got "Json Object":
-            if (parser.nextToken() != JsonToken.START_OBJECT) {
-                throw new JsonParseException(parser, "Packet must start with an object",
-                        parser.currentLocation());
-            }
-            // Iterate over object fields:
-            while (parser.nextToken() != JsonToken.END_OBJECT) {
-                String name = parser.currentName();
-                parser.nextToken();
-                JsonNode node = mapper.readTree(parser);
-                try {
-                    switch (name) {
-                        case "ctrl":
-                            msg.ctrl = mapper.readValue(node.traverse(), MsgServerCtrl.class);
-                            break;
-                        case "pres":
-                            msg.pres = mapper.readValue(node.traverse(), MsgServerPres.class);
-                            break;
-                        case "info":
-                            msg.info = mapper.readValue(node.traverse(), MsgServerInfo.class);
-                            break;
-                        case "data":
-                            msg.data = mapper.readValue(node.traverse(), MsgServerData.class);
-                            break;
-                        case "meta":
-                            if (node.has("topic")) {
-                                msg.meta = mapper.readValue(node.traverse(),
-                                        getTypeOfMetaPacket(node.get("topic").asText()));
-                            } else {
-                                Log.w(TAG, "Failed to parse {meta}: missing topic name");
-                            }
-                            break;
-                        default:  // Unrecognized field, ignore
-                            Log.w(TAG, "Unknown field in packet: '" + name + "'");
-                            break;
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Failed to deserialize network message", e);
+        // Iterate over object fields:
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            try {
+                switch (name) {
+                    case "ctrl":
+                        msg.ctrl = sJsonMapper.readValue(parser, MsgServerCtrl.class);
+                        break;
+                    case "pres":
+                        msg.pres = sJsonMapper.readValue(parser, MsgServerPres.class);
+                        break;
+                    case "info":
+                        msg.info = sJsonMapper.readValue(parser, MsgServerInfo.class);
+                        break;
+                    case "data":
+                        msg.data = sJsonMapper.readValue(parser, MsgServerData.class);
+                        break;
+                    case "meta":
+                        msg.meta = parseMetaPacket(parser);
+                        break;
+                    default:  // Unrecognized field, ignore
+                        Log.w(TAG, "Unknown field in packet: '" + name + "'");
+                        parser.skipChildren();
+                        break;
+                }
+            } catch (Exception e) {
+                // The parser is positioned somewhere inside the failed value and cannot be resumed.
+                Log.w(TAG, "Failed to deserialize '" + name + "', parsing packet by field", e);
+                try (JsonParser retry = source.create()) {
+                    return parseServerMessageByField(retry);
                 }
             }
-            parser.close(); // important to close both parser and underlying reader
-        } catch (IOException e) {
-            Log.w(TAG, "Failed to parse message", e);
         }
 
         return msg.isValid() ? msg : null;
     }
 
+    // Slow path for packets with malformed values: read the packet into a tree and bind each field
+    // separately. Fields which fail to bind are logged and skipped, the rest of the packet is kept.
+    private ServerMessage parseServerMessageByField(JsonParser parser) throws IOException {
+        JsonNode tree = sJsonMapper.readTree(parser);
+        if (tree == null || !tree.isObject()) {
+            return null;
+        }
+
+        ServerMessage msg = new ServerMessage();
+        Iterator<Map.Entry<String, JsonNode>> fields = tree.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode node = field.getValue();
+            try {
+                switch (field.getKey()) {
+                    case "ctrl":
+                        msg.ctrl = sJsonMapper.treeToValue(node, MsgServerCtrl.class);
+                        break;
+                    case "pres":
+                        msg.pres = sJsonMapper.treeToValue(node, MsgServerPres.class);
+                        break;
+                    case "info":
+                        msg.info = sJsonMapper.treeToValue(node, MsgServerInfo.class);
+                        break;
+                    case "data":
+                        msg.data = sJsonMapper.treeToValue(node, MsgServerData.class);
+                        break;
+                    case "meta":
+                        msg.meta = parseMetaByField(node);
+                        break;
+                    default:  // Unrecognized field, ignore
+                        Log.w(TAG, "Unknown field in packet: '" + field.getKey() + "'");
+                        break;
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to deserialize network message", e);
+            }
+        }
+
+        return msg.isValid() ? msg : null;
+    }
+
+    // Bind {meta} dropping values which fail to bind: single elements of arrays such as 'sub',
+    // other fields such as 'desc' whole.
+    private MsgServerMeta parseMetaByField(JsonNode node) throws IOException {
+        JsonNode topic = node.get("topic");
+        if (!node.isObject() || topic == null) {
+            Log.w(TAG, "Failed to parse {meta}: missing topic name");
+            return null;
+        }
+
+        JavaType type = getTypeOfMetaPacket(topic.asText());
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (field.getValue().isArray()) {
+                Iterator<JsonNode> elements = field.getValue().elements();
+                while (elements.hasNext()) {
+                    ObjectNode probe = sJsonMapper.createObjectNode().set("topic", topic);
+                    probe.putArray(field.getKey()).add(elements.next());
+                    if (!canBind(probe, type, field.getKey())) {
+                        elements.remove();
+                    }
+                }
+            } else {
+                ObjectNode probe = sJsonMapper.createObjectNode().set("topic", topic);
+                probe.set(field.getKey(), field.getValue());
+                if (!canBind(probe, type, field.getKey())) {
+                    fields.remove();
+                }
+            }
+        }
+        return sJsonMapper.readerFor(type).readValue(node);
+    }
+
+    private static boolean canBind(JsonNode node, JavaType type, String field) {
+        try {
+            sJsonMapper.readerFor(type).readValue(node);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to parse {meta} '" + field + "', skipped", e);
+            return false;
+        }
+    }
+
+    // The type of {meta} depends on the topic name. Tokens preceding the 'topic' field are buffered
+    // (the server sends 'id' and 'topic' first, so it's usually just one field), then the buffered
+    // tokens and the rest of the stream are bound as one object.
+    private MsgServerMeta parseMetaPacket(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            Log.w(TAG, "Failed to parse {meta}: not an object");
+            return null;
+        }
+
+        TokenBuffer prefix = new TokenBuffer(parser);
+        prefix.writeStartObject();
+        String topicName = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("topic".equals(field) && parser.currentToken() == JsonToken.VALUE_STRING) {
+                topicName = parser.getText();
+                prefix.writeStringField(field, topicName);
+                break;
+            }
+            prefix.writeFieldName(field);
+            prefix.copyCurrentStructure(parser);
+        }
+
+        if (topicName == null) {
+            Log.w(TAG, "Failed to parse {meta}: missing topic name");
+            return null;
+        }
+
+        JsonParser combined = JsonParserSequence.createFlattened(false, prefix.asParser(parser), parser);
+        combined.nextToken();
+        return sJsonMapper.readValue(combined, getTypeOfMetaPacket(topicName));
+    }
 
     /**
      * Checks if URL is a relative url, i.e. has no 'scheme://', including the case of missing scheme '//'.
@@ -2565,9 +3360,8 @@ public class Tinode {
         }
 
         /**
-         * Handle unparsed message. Default handler calls {@code #dispatchPacket(...)} on a
-         * websocket thread.
-         * A subclassed listener may wish to call {@code dispatchPacket()} on a UI thread
+         * Handle unparsed message. Called on the websocket thread. Other handlers are called
+         * on the thread routing packets of the topic, see {@link #setInboundConcurrency(int)}.
          *
          * @param msg message to be processed
          */
@@ -2616,120 +3410,107 @@ public class Tinode {
     }
 
     // Helper class which calls given method of all added EventListener(s).
+    // Listeners are called in reverse order of addition, only for the events they implement.
     private static class ListenerNotifier {
-        private final Vector<EventListener> listeners;
+        private final EventBus<EventListener> listeners;
+        private final EventBus.Event<EventListener> connectEvent;
+        private final EventBus.Event<EventListener> disconnectEvent;
+        private final EventBus.Event<EventListener> loginEvent;
+        private final EventBus.Event<EventListener> messageEvent;
+        private final EventBus.Event<EventListener> rawMessageEvent;
+        private final EventBus.Event<EventListener> ctrlMessageEvent;
+        private final EventBus.Event<EventListener> dataMessageEvent;
+        private final EventBus.Event<EventListener> infoMessageEvent;
+        private final EventBus.Event<EventListener> metaMessageEvent;
+        private final EventBus.Event<EventListener> presMessageEvent;
 
         ListenerNotifier() {
-            listeners = new Vector<>();
+            listeners = new EventBus<>(EventListener.class);
+            connectEvent = listeners.event(EventListener.class, "onConnect", int.class, String.class, Map.class);
+            disconnectEvent = listeners.event(EventListener.class, "onDisconnect", boolean.class, int.class, String.class);
+            loginEvent = listeners.event(EventListener.class, "onLogin", int.class, String.class);
+            messageEvent = listeners.event(EventListener.class, "onMessage", ServerMessage.class);
+            rawMessageEvent = listeners.event(EventListener.class, "onRawMessage", String.class);
+            ctrlMessageEvent = listeners.event(EventListener.class, "onCtrlMessage", MsgServerCtrl.class);
+            dataMessageEvent = listeners.event(EventListener.class, "onDataMessage", MsgServerData.class);
+            infoMessageEvent = listeners.event(EventListener.class, "onInfoMessage", MsgServerInfo.class);
+            metaMessageEvent = listeners.event(EventListener.class, "onMetaMessage", MsgServerMeta.class);
+            presMessageEvent = listeners.event(EventListener.class, "onPresMessage", MsgServerPres.class);
         }
 
-        synchronized void addListener(EventListener l) {
-            if (!listeners.contains(l)) {
-                listeners.add(l);
-            }
+        void addListener(EventListener l) {
+            listeners.add(l);
         }
 
-        synchronized boolean delListener(EventListener l) {
+        boolean delListener(EventListener l) {
             return listeners.remove(l);
         }
 
         void onConnect(int code, String reason, Map<String, Object> params) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
-
+            EventListener[] local = connectEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onConnect(code, reason, params);
             }
         }
 
         void onDisconnect(boolean byServer, int code, String reason) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
-
+            EventListener[] local = disconnectEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onDisconnect(byServer, code, reason);
             }
         }
 
         void onLogin(int code, String text) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
+            EventListener[] local = loginEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onLogin(code, text);
             }
         }
 
         void onMessage(ServerMessage msg) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
+            EventListener[] local = messageEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onMessage(msg);
             }
         }
 
         void onRawMessage(String msg) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
+            EventListener[] local = rawMessageEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onRawMessage(msg);
             }
         }
 
         void onCtrlMessage(MsgServerCtrl ctrl) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
+            EventListener[] local = ctrlMessageEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onCtrlMessage(ctrl);
             }
         }
 
         void onDataMessage(MsgServerData data) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
+            EventListener[] local = dataMessageEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onDataMessage(data);
             }
         }
 
         void onInfoMessage(MsgServerInfo info) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
+            EventListener[] local = infoMessageEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onInfoMessage(info);
             }
         }
 
         void onMetaMessage(MsgServerMeta meta) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
+            EventListener[] local = metaMessageEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onMetaMessage(meta);
             }
         }
 
         void onPresMessage(MsgServerPres pres) {
-            EventListener[] local;
-            synchronized (this) {
-                local = listeners.toArray(new EventListener[]{});
-            }
+            EventListener[] local = presMessageEvent.listeners();
             for (int i = local.length - 1; i >= 0; i--) {
                 local[i].onPresMessage(pres);
             }
@@ -2739,8 +3520,9 @@ public class Tinode {
     private record LoginCredentials(String scheme, String secret) {
     }
 
-    // Container for storing unresolved futures.
-        private record FutureHolder(PromisedReply<ServerMessage> future, Date timestamp) {
+    // Container for storing unresolved futures. Responses to quick requests are used to measure
+    // the round-trip time, see isQuickRequest().
+        private record FutureHolder(PromisedReply<ServerMessage> future, long sent, boolean quick) {
     }
 
     // Class which listens for websocket to connect.
@@ -2757,13 +3539,25 @@ public class Tinode {
 
         @Override
         public void onConnect(final Connection conn, final boolean background) {
+            final boolean doLogin = mAutologin && mLoginCredentials != null;
+
             // Connection established, send handshake, inform listener on success
-            hello(background).thenApply(
+            PromisedReply<ServerMessage> hi = hello(background);
+
+            // Pipelined handshake: send {login} and the initial requests right after {hi} without
+            // waiting for the responses. The server processes them in order.
+            final PromisedReply<ServerMessage> pipelinedLogin;
+            if (doLogin && mPipelinedHandshake) {
+                pipelinedLogin = login(mLoginCredentials.scheme, mLoginCredentials.secret, null);
+                sendHandshakeRequests();
+            } else {
+                pipelinedLogin = null;
+            }
+
+            hi.thenApply(
                     new PromisedReply.SuccessListener<>() {
                         @Override
                         public PromisedReply<ServerMessage> onSuccess(ServerMessage pkt) throws Exception {
-                            boolean doLogin = mAutologin && mLoginCredentials != null;
-
                             // Success. Reset backoff counter.
                             conn.backoffReset();
 
@@ -2785,21 +3579,37 @@ public class Tinode {
                             // Resolve outstanding promises;
                             if (!doLogin) {
                                 resolvePromises(pkt);
+                                return null;
                             }
 
                             // Login automatically if it's enabled.
-                            if (doLogin) {
-                                return login(mLoginCredentials.scheme, mLoginCredentials.secret, null)
-                                        .thenApply(new PromisedReply.SuccessListener<>() {
-                                            @Override
-                                            public PromisedReply<ServerMessage> onSuccess(ServerMessage pkt) throws Exception {
-                                                resolvePromises(pkt);
-                                                return null;
+                            PromisedReply<ServerMessage> login = pipelinedLogin != null ? pipelinedLogin :
+                                    login(mLoginCredentials.scheme, mLoginCredentials.secret, null);
+                            return login.thenApply(new PromisedReply.SuccessListener<>() {
+                                        @Override
+                                        public PromisedReply<ServerMessage> onSuccess(ServerMessage pkt) throws Exception {
+                                            if (pipelinedLogin == null) {
+                                                sendHandshakeRequests();
                                             }
-                                        });
-                            } else {
-                                return null;
-                            }
+                                            resolvePromises(pkt);
+                                            return null;
+                                        }
+                                    },
+                                    new PromisedReply.FailureListener<>() {
+                                        @Override
+                                        public PromisedReply<ServerMessage> onFailure(Exception err) throws Exception {
+                                            rejectPromises(err);
+                                            return null;
+                                        }
+                                    });
+                        }
+                    },
+                    new PromisedReply.FailureListener<>() {
+                        @Override
+                        public PromisedReply<ServerMessage> onFailure(Exception err) throws Exception {
+                            // {login} and requests sent after {hi} fail on their own.
+                            rejectPromises(err);
+                            return null;
                         }
                     }
             );
@@ -2808,7 +3618,16 @@ public class Tinode {
         @Override
         public void onMessage(Connection conn, String message) {
             try {
-                dispatchPacket(message);
+                dispatchPacket(conn, message);
+            } catch (Exception ex) {
+                Log.w(TAG, "Exception in dispatchPacket: ", ex);
+            }
+        }
+
+        @Override
+        public void onMessage(Connection conn, ByteBuffer message) {
+            try {
+                dispatchPacket(conn, message);
             } catch (Exception ex) {
                 Log.w(TAG, "Exception in dispatchPacket: ", ex);
             }
@@ -2825,6 +3644,16 @@ public class Tinode {
             }
         }
 
+        @Override
+        public void onReconnect(Connection conn, long backoff) {
+            mMetrics.reconnect(backoff);
+        }
+
+        @Override
+        public void onTlsHandshake(Connection conn, long nanos, boolean resumed, boolean warm) {
+            mMetrics.tlsHandshake(nanos, resumed, warm);
+        }
+
         @Override
         public void onError(Connection conn, Exception err) {
             // No need to call handleDisconnect here. It will be called from onDisconnect().
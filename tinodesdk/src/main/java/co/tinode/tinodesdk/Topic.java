@@ -13,12 +13,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
@@ -57,6 +58,11 @@ import co.tinode.tinodesdk.model.TrustedType;
 public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     private static final String TAG = "Topic";
 
+    // Maximum number of {data} messages of a requested page saved to the store at once.
+    private static final int MAX_DATA_BATCH = 1024;
+    // Buffered {data} messages are saved at most this many milliseconds after the first one arrived.
+    private static final long DATA_BATCH_WINDOW = 250L;
+
     protected final Tinode mTinode;
     protected String mName;
     // The bulk of topic data
@@ -76,7 +82,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     protected int mPinned = 0;
     // The topic is subscribed/online.
     protected int mAttached = 0;
-    protected List<Listener<DP, DR, SP, SR>> mListeners = Collections.synchronizedList(new ArrayList<>());
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected EventBus<Listener<DP, DR, SP, SR>> mListeners = new EventBus<>((Class) Listener.class);
     protected ListenerNotifier<Listener<DP, DR, SP, SR>, DP, DR, SP, SR> mNotifier = new ListenerNotifier<>(mListeners);
     // Timestamp of the last key press that the server was notified of, milliseconds
     protected long mLastKeyPress = 0;
@@ -91,6 +98,19 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     Storage mStore = null;
     private Payload mLocal = null;
 
+    // Held while a batch of {data} messages is saved: a batch flushed by the timer is saved before
+    // the packets which follow it are routed. Not taken by the UI thread.
+    private final Object mFlushLock = new Object();
+    // Guards the fields below. Not held while messages are saved or listeners are notified.
+    private final Object mDataLock = new Object();
+    // Number of requested pages of messages not yet closed by {ctrl what="data"}.
+    private int mDataPages = 0;
+    // Requested pages are considered lost after this time, System.nanoTime().
+    private long mDataPagesExpire = 0;
+    // {data} messages of the requested pages waiting to be saved.
+    private List<MsgServerData> mDataBatch = null;
+    private ScheduledFuture<?> mDataFlushTask = null;
+
     Topic(Tinode tinode, String name) {
         mTinode = tinode;
         setName(name);
@@ -1087,6 +1107,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                             }
 
                             mNotifier.notifySubscribe(msg.ctrl.code, msg.ctrl.text);
+                            // Send read and recv notes left over from the previous connection.
+                            mTinode.flushNotes(getName());
                         } else {
                             mAttached++;
                         }
@@ -1162,7 +1184,10 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                 setSeq(seq);
                 setTouched(ctrl.ts);
                 if (id > 0 && mStore != null) {
-                    if (mStore.msgDelivered(this, id, ctrl.ts, seq)) {
+                    long start = System.nanoTime();
+                    boolean delivered = mStore.msgDelivered(this, id, ctrl.ts, seq);
+                    mTinode.getMetrics().storage(start);
+                    if (delivered) {
                         setRecv(seq);
                     }
                 } else {
@@ -1250,7 +1275,9 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
 
         final Storage.Message msg;
         if (mStore != null) {
+            long start = System.nanoTime();
             msg = mStore.msgSend(this, content, head);
+            mTinode.getMetrics().storage(start);
         } else {
             msg = null;
         }
@@ -2103,6 +2130,12 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @param reason usually "OK"
      */
     protected void topicLeft(boolean unsub, int code, String reason) {
+        synchronized (mDataLock) {
+            // Pages which are still open will not be completed.
+            mDataPages = 0;
+        }
+        flushData();
+
         if (mAttached > 0) {
             mAttached = 0;
 
@@ -2135,7 +2168,19 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     }
 
     protected void routeMetaDesc(MsgServerMeta<DP, DR, SP, SR> meta) {
+        // Read and recv values saved by the store may not have reached the server if the connection
+        // was lost before the notes were sent.
+        int read = getRead();
+        int recv = getRecv();
         update(meta.desc);
+        if (isAttached()) {
+            if (meta.desc.recv < recv) {
+                mTinode.noteRecv(getName(), recv);
+            }
+            if (meta.desc.read < read) {
+                mTinode.noteRead(getName(), read);
+            }
+        }
 
         if (getTopicType() == TopicType.P2P) {
             mTinode.updateUser(getName(), meta.desc);
@@ -2216,8 +2261,33 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     }
 
     protected void routeData(MsgServerData data) {
+        boolean batched = false;
+        synchronized (mDataLock) {
+            if (mStore != null && mDataPages > 0) {
+                if (System.nanoTime() - mDataPagesExpire < 0) {
+                    if (!batchData(data)) {
+                        return;
+                    }
+                    // The batch is full.
+                    batched = true;
+                } else {
+                    // The page was not closed in time, the request probably failed.
+                    mDataPages = 0;
+                }
+            }
+        }
+        flushData();
+        if (!batched) {
+            routeOne(data);
+        }
+    }
+
+    // Save one {data} message and notify listeners.
+    private void routeOne(MsgServerData data) {
         if (mStore != null) {
+            long start = System.nanoTime();
             Storage.Message msg = mStore.msgReceived(this, getSubscription(data.from), data);
+            mTinode.getMetrics().storage(start);
             if (msg != null) {
                 mTinode.setLastMessage(getName(), msg);
                 noteRecv(mTinode.isMe(data.from));
@@ -2247,7 +2317,113 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
     }
 
+    /**
+     * A page of messages was requested from the server. The {data} messages of the page are saved to
+     * the store in batches until the page is closed by {ctrl what="data"}.
+     *
+     * @param timeout milliseconds to wait for the end of the page before routing messages one by one again.
+     */
+    void expectDataPage(long timeout) {
+        synchronized (mDataLock) {
+            mDataPages++;
+            mDataPagesExpire = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+    }
+
+    /**
+     * Save buffered {data} messages of requested pages and notify listeners. Called before routing any
+     * other packet of the topic to keep the order of updates.
+     */
+    void flushData() {
+        synchronized (mFlushLock) {
+            List<MsgServerData> batch;
+            synchronized (mDataLock) {
+                if (mDataFlushTask != null) {
+                    mDataFlushTask.cancel(false);
+                    mDataFlushTask = null;
+                }
+                batch = mDataBatch;
+                mDataBatch = null;
+            }
+            if (batch != null) {
+                routeBatch(batch);
+            }
+        }
+    }
+
+    // Buffer {data} message of a requested page. The batch is saved when it's full or when the window expires.
+    // Called with mDataLock held. Returns true if the batch is full and must be flushed.
+    private boolean batchData(MsgServerData data) {
+        if (mDataBatch == null) {
+            mDataBatch = new ArrayList<>();
+            // Save the batch on the routing thread of the topic, not on the timer thread.
+            mDataFlushTask = SharedScheduler.get().schedule(() -> mTinode.routeLater(getName(), this::flushData),
+                    DATA_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+        mDataBatch.add(data);
+        return mDataBatch.size() >= MAX_DATA_BATCH;
+    }
+
+    // Save a batch of {data} messages in one transaction, then update the topic and notify listeners
+    // as if only the latest message was received.
+    private void routeBatch(List<MsgServerData> batch) {
+        long start = System.nanoTime();
+        Storage.Message[] saved = mStore.msgReceived(this, batch);
+        mTinode.getMetrics().storage(start);
+
+        MsgServerData latest = null;
+        Storage.Message latestSaved = null;
+        boolean allMine = true;
+        // The highest seq of messages from other users: the sender has read them all.
+        Map<String, Integer> readBy = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            MsgServerData data = batch.get(i);
+            if (latest == null || data.seq > latest.seq) {
+                latest = data;
+            }
+            if (saved[i] != null && (latestSaved == null || saved[i].getSeqId() > latestSaved.getSeqId())) {
+                latestSaved = saved[i];
+            }
+            boolean mine = mTinode.isMe(data.from);
+            allMine = allMine && mine;
+            if (data.from != null && !mine) {
+                readBy.merge(data.from, data.seq, Math::max);
+            }
+            setTouched(data.ts);
+        }
+
+        if (latestSaved != null) {
+            // Nothing new was saved otherwise.
+            mTinode.setLastMessage(getName(), latestSaved);
+            setSeq(latest.seq);
+            noteRecv(allMine);
+        }
+
+        if (!isChannel(getName())) {
+            for (Map.Entry<String, Integer> entry : readBy.entrySet()) {
+                MsgServerInfo info = new MsgServerInfo();
+                info.what = Tinode.NOTE_READ;
+                info.from = entry.getKey();
+                info.seq = entry.getValue();
+                routeInfo(info);
+            }
+        }
+
+        mNotifier.notifyData(latest);
+
+        MeTopic me = mTinode.getMeTopic();
+        if (me != null) {
+            me.setMsgReadRecv(getName(), "", 0);
+        }
+    }
+
     protected void allMessagesReceived(Integer count) {
+        synchronized (mDataLock) {
+            if (mDataPages > 0) {
+                mDataPages--;
+            }
+        }
+        flushData();
         mNotifier.notifyAllMessagesReceived(count);
     }
 
@@ -2511,17 +2687,45 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
     }
 
+    // Helper class which calls given method of all added listeners, in the order of addition, only for
+    // the events the listeners implement.
     protected static class ListenerNotifier<L extends Listener<DP, DR, SP, SR>, DP, DR, SP, SR> {
-        private final List<L> listeners;
-
-        ListenerNotifier(List<L> initialListeners) {
-            listeners = initialListeners;
+        protected final EventBus<L> listeners;
+        private final EventBus.Event<L> subscribeEvent;
+        private final EventBus.Event<L> leaveEvent;
+        private final EventBus.Event<L> dataEvent;
+        private final EventBus.Event<L> allMessagesReceivedEvent;
+        private final EventBus.Event<L> infoEvent;
+        private final EventBus.Event<L> metaEvent;
+        private final EventBus.Event<L> metaSubEvent;
+        private final EventBus.Event<L> metaDescEvent;
+        private final EventBus.Event<L> metaTagsEvent;
+        private final EventBus.Event<L> metaAuxEvent;
+        private final EventBus.Event<L> subsUpdatedEvent;
+        private final EventBus.Event<L> presEvent;
+        private final EventBus.Event<L> onlineEvent;
+        private final EventBus.Event<L> contUpdatedEvent;
+
+        ListenerNotifier(EventBus<L> listeners) {
+            this.listeners = listeners;
+            subscribeEvent = listeners.event(Listener.class, "onSubscribe", int.class, String.class);
+            leaveEvent = listeners.event(Listener.class, "onLeave", boolean.class, int.class, String.class);
+            dataEvent = listeners.event(Listener.class, "onData", MsgServerData.class);
+            allMessagesReceivedEvent = listeners.event(Listener.class, "onAllMessagesReceived", Integer.class);
+            infoEvent = listeners.event(Listener.class, "onInfo", MsgServerInfo.class);
+            metaEvent = listeners.event(Listener.class, "onMeta", MsgServerMeta.class);
+            metaSubEvent = listeners.event(Listener.class, "onMetaSub", Subscription.class);
+            metaDescEvent = listeners.event(Listener.class, "onMetaDesc", Description.class);
+            metaTagsEvent = listeners.event(Listener.class, "onMetaTags", String[].class);
+            metaAuxEvent = listeners.event(Listener.class, "onMetaAux", Map.class);
+            subsUpdatedEvent = listeners.event(Listener.class, "onSubsUpdated");
+            presEvent = listeners.event(Listener.class, "onPres", MsgServerPres.class);
+            onlineEvent = listeners.event(Listener.class, "onOnline", boolean.class);
+            contUpdatedEvent = listeners.event(Listener.class, "onContUpdated", String.class);
         }
 
         void addListener(L l) {
-            if (!isListening(l)) {
-                listeners.add(l);
-            }
+            listeners.add(l);
         }
 
         void remListener(L l) {
@@ -2536,93 +2740,86 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             listeners.clear();
         }
 
-        // Allow subclasses to obtain a safe snapshot to iterate over.
-        protected List<L> snapshot() {
-            synchronized (listeners) {
-                return new ArrayList<>(listeners);
-            }
-        }
-
         void notifySubscribe(int code, String text) {
-            for (L l : snapshot()) {
+            for (L l : subscribeEvent.listeners()) {
                 l.onSubscribe(code, text);
             }
         }
 
         void notifyLeave(boolean unsub, int code, String text) {
-            for (L l : snapshot()) {
+            for (L l : leaveEvent.listeners()) {
                 l.onLeave(unsub, code, text);
             }
         }
 
         void notifyData(MsgServerData data) {
-            for (L l : snapshot()) {
+            for (L l : dataEvent.listeners()) {
                 l.onData(data);
             }
         }
 
         void notifyAllMessagesReceived(Integer count) {
-            for (L l : snapshot()) {
+            for (L l : allMessagesReceivedEvent.listeners()) {
                 l.onAllMessagesReceived(count);
             }
         }
 
         void notifyInfo(MsgServerInfo info) {
-            for (L l : snapshot()) {
+            for (L l : infoEvent.listeners()) {
                 l.onInfo(info);
             }
         }
 
         void notifyMeta(MsgServerMeta<DP, DR, SP, SR> meta) {
-            for (L l : snapshot()) {
+            for (L l : metaEvent.listeners()) {
                 l.onMeta(meta);
             }
         }
 
         void notifyMetaSub(Subscription<SP, SR> sub) {
-            for (L l : snapshot()) {
+            for (L l : metaSubEvent.listeners()) {
                 l.onMetaSub(sub);
             }
         }
 
         void notifyMetaDesc(Description<DP, DR> desc) {
-            for (L l : snapshot()) {
+            for (L l : metaDescEvent.listeners()) {
                 l.onMetaDesc(desc);
             }
         }
 
         void notifyMetaTags(String[] tags) {
-            for (L l : snapshot()) {
+            for (L l : metaTagsEvent.listeners()) {
                 l.onMetaTags(tags);
             }
         }
 
         void notifyMetaAux(Map<String,Object> aux) {
-            for (L l : snapshot()) {
+            for (L l : metaAuxEvent.listeners()) {
                 l.onMetaAux(aux);
             }
         }
 
         void notifySubsUpdated() {
-            for (L l : snapshot()) {
+            for (L l : subsUpdatedEvent.listeners()) {
                 l.onSubsUpdated();
             }
         }
 
         void notifyPres(MsgServerPres pres) {
-            for (L l : snapshot()) {
+            for (L l : presEvent.listeners()) {
                 l.onPres(pres);
             }
         }
 
         void notifyOnline(boolean online) {
-            for (L l : snapshot()) {
+            for (L l : onlineEvent.listeners()) {
                 l.onOnline(online);
             }
         }
 
         void notifyContUpdated(String contact) {
-            for (L l : snapshot()) {
+            for (L l : contUpdatedEvent.listeners()) {
                 l.onContUpdated(contact);
             }
         }
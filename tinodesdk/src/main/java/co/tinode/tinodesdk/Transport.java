@@ -0,0 +1,129 @@
+package co.tinode.tinodesdk;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * One websocket connection attempt to the server. {@link Connection} handles reconnects, backoff and
+ * connection state and creates a new transport for every attempt.
+ * <p>
+ * Two implementations are available: the default one based on Java-WebSocket, with two threads per
+ * connection, and {@link NioTransport} which multiplexes many connections on a few shared threads.
+ * <p>
+ * Transport methods may be called from any thread and must not block. Events are reported through
+ * {@link Listener}: either {@link Listener#onOpen} followed by messages and then {@link Listener#onClose},
+ * or {@link Listener#onError} followed by {@link Listener#onClose} if the connection fails.
+ */
+public interface Transport {
+    /**
+     * Receiver of transport events. Messages are delivered one at a time in the order of arrival.
+     */
+    interface Listener {
+        void onOpen(Transport transport);
+
+        void onMessage(Transport transport, String message);
+
+        void onMessage(Transport transport, ByteBuffer message);
+
+        /**
+         * The connection is closed or the attempt to open it failed.
+         *
+         * @param code   websocket close code; negative if the connection was never opened.
+         * @param reason reason for closing the connection.
+         * @param remote true if the connection was closed by the server.
+         */
+        void onClose(Transport transport, int code, String reason, boolean remote);
+
+        void onError(Transport transport, Exception ex);
+
+        // Called when the TLS handshake is completed with its duration in nanoseconds: resumed is true if
+        // a cached session was used, warm is true if the socket was opened ahead of time.
+        default void onTlsHandshake(Transport transport, long nanos, boolean resumed, boolean warm) {
+        }
+    }
+
+    /**
+     * Creates transports.
+     */
+    interface Factory {
+        /**
+         * Create a transport. The connection is not opened until {@link Transport#connect()} is called.
+         *
+         * @param endpoint websocket URI, ws:// or wss:// with the port set.
+         * @param headers  HTTP headers to send with the upgrade request.
+         * @param timeout  connection and handshake timeout, milliseconds.
+         * @param listener receiver of events.
+         */
+        Transport create(URI endpoint, Map<String, String> headers, int timeout, Listener listener);
+    }
+
+    /**
+     * Start opening the connection. The call returns right away; the result is reported to the listener.
+     * A transport is opened at most once.
+     */
+    void connect();
+
+    /**
+     * Start the closing handshake. Does nothing if the connection is already closed.
+     */
+    void close();
+
+    /**
+     * Close the connection right away without the closing handshake.
+     *
+     * @param code   close code to report to the listener.
+     * @param reason reason to report to the listener.
+     */
+    void abort(int code, String reason);
+
+    /**
+     * Check if the connection is open.
+     */
+    boolean isOpen();
+
+    /**
+     * Check if the transport supports {@link #pauseReading()}. Such transports deliver messages on a thread
+     * shared by many connections, so the listener must push back on the server by pausing reading instead
+     * of blocking the thread.
+     */
+    default boolean canPauseReading() {
+        return false;
+    }
+
+    /**
+     * Stop reading from the socket until {@link #resumeReading()} is called. The server is pushed back by
+     * TCP flow control. Messages already received may still be delivered.
+     */
+    default void pauseReading() {
+    }
+
+    /**
+     * Resume reading from the socket after {@link #pauseReading()}.
+     */
+    default void resumeReading() {
+    }
+
+    /**
+     * Send text frame.
+     *
+     * @throws NotConnectedException if the connection is not open.
+     */
+    void send(String text);
+
+    /**
+     * Send UTF-8 encoded text as a single text frame. The payload is copied before the call returns,
+     * so the caller may reuse the buffer.
+     *
+     * @throws NotConnectedException if the connection is not open.
+     */
+    void sendText(ByteBuffer payload);
+
+    /**
+     * Send bytes as a single binary frame. The payload is copied before the call returns,
+     * so the caller may reuse the buffer.
+     *
+     * @throws NotConnectedException if the connection is not open.
+     */
+    void sendBinary(ByteBuffer payload);
+}
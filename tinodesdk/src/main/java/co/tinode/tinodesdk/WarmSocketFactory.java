@@ -0,0 +1,281 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Socket factory for websocket connections.
+ * <p>
+ * All connections share one SSLContext, so TLS sessions (session IDs and tickets) are cached across
+ * {@link Connection} instances and reconnects use abbreviated handshakes. Sockets are returned connected
+ * and with the TLS handshake completed, which makes it possible to open them ahead of time: see
+ * {@link #warmUp(String, int, boolean, int)}.
+ */
+final class WarmSocketFactory extends SocketFactory {
+    private static final String TAG = "WarmSocketFactory";
+
+    // Warm sockets not picked up within this time are closed: servers and NATs drop idle connections.
+    private static final long WARM_SOCKET_TTL = 20_000L;
+    // Number of cached TLS sessions and their lifetime in seconds.
+    private static final int SESSION_CACHE_SIZE = 16;
+    private static final int SESSION_TIMEOUT = 24 * 3600;
+
+    /**
+     * Receives time spent on TLS handshakes.
+     */
+    interface HandshakeListener {
+        /**
+         * Called when a TLS socket is handed to the websocket.
+         *
+         * @param nanos   duration of the TLS handshake.
+         * @param resumed true if the handshake resumed a cached session.
+         * @param warm    true if the socket was opened ahead of time by {@link #warmUp}.
+         */
+        void onHandshake(long nanos, boolean resumed, boolean warm);
+    }
+
+    private record Opened(Socket socket, long handshakeNanos, boolean resumed) {}
+
+    private record Warm(CompletableFuture<Opened> opened, long createdAt) {
+        boolean isExpired() {
+            return System.currentTimeMillis() - createdAt > WARM_SOCKET_TTL;
+        }
+    }
+
+    private static volatile SSLContext sTlsContext = null;
+    // Sockets being opened or already opened ahead of time, by host:port.
+    private static final Map<String, Warm> sWarm = new ConcurrentHashMap<>();
+
+    private final String mHost;
+    private final int mPort;
+    private final boolean mSecure;
+    private final int mTimeout;
+    private final HandshakeListener mListener;
+
+    /**
+     * Create factory for connections to one endpoint.
+     *
+     * @param host     server host name.
+     * @param port     server port.
+     * @param secure   use TLS.
+     * @param timeout  connection and handshake timeout, milliseconds.
+     * @param listener receiver of handshake durations, could be null.
+     */
+    WarmSocketFactory(String host, int port, boolean secure, int timeout, HandshakeListener listener) {
+        mHost = host;
+        mPort = port;
+        mSecure = secure;
+        mTimeout = timeout;
+        mListener = listener;
+    }
+
+    /**
+     * Get SSLContext shared by all connections.
+     */
+    static SSLContext getTlsContext() throws GeneralSecurityException {
+        SSLContext context = sTlsContext;
+        if (context == null) {
+            synchronized (WarmSocketFactory.class) {
+                context = sTlsContext;
+                if (context == null) {
+                    context = SSLContext.getInstance("TLS");
+                    context.init(null, null, null);
+                    configure(context);
+                    sTlsContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Replace shared SSLContext, e.g. to use custom trust managers. Cached sessions and warm sockets are dropped.
+     */
+    static void setTlsContext(SSLContext context) {
+        synchronized (WarmSocketFactory.class) {
+            if (context != null) {
+                configure(context);
+            }
+            sTlsContext = context;
+        }
+        for (String key : sWarm.keySet()) {
+            discard(sWarm.remove(key));
+        }
+    }
+
+    private static void configure(SSLContext context) {
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+    }
+
+    /**
+     * Start opening connection in the background so the next call to {@link #createSocket()} for the
+     * same endpoint gets a socket with TCP and TLS handshakes already done. Nothing is done if a warm
+     * socket for the endpoint exists or is being opened.
+     *
+     * @param host    server host name.
+     * @param port    server port.
+     * @param secure  use TLS.
+     * @param timeout connection and handshake timeout, milliseconds.
+     */
+    static void warmUp(String host, int port, boolean secure, int timeout) {
+        String key = key(host, port, secure);
+        Warm existing = sWarm.get(key);
+        if (existing != null && !existing.isExpired()) {
+            return;
+        }
+        Warm warm = new Warm(new CompletableFuture<>(), System.currentTimeMillis());
+        if (existing != null ? !sWarm.replace(key, existing, warm) : sWarm.putIfAbsent(key, warm) != null) {
+            // Someone else is warming up the same endpoint.
+            return;
+        }
+        discard(existing);
+
+        SharedScheduler.blocking().execute(() -> {
+            try {
+                warm.opened.complete(open(host, port, secure, timeout));
+            } catch (Exception ex) {
+                Log.i(TAG, "Warm-up failed for " + key, ex);
+                sWarm.remove(key, warm);
+                warm.opened.completeExceptionally(ex);
+            }
+        });
+        // Close the socket if nobody picks it up.
+        SharedScheduler.get().schedule(() -> {
+            if (sWarm.remove(key, warm)) {
+                discard(warm);
+            }
+        }, WARM_SOCKET_TTL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get connected socket: either the one opened by {@link #warmUp} or a new one.
+     *
+     * @return connected socket with TLS handshake completed if the endpoint is secure.
+     */
+    @Override
+    public Socket createSocket() throws IOException {
+        Warm warm = sWarm.remove(key(mHost, mPort, mSecure));
+        if (warm != null && !warm.isExpired()) {
+            try {
+                // The warm-up may still be in progress; it's at least as far along as a new attempt would be.
+                Opened opened = warm.opened.get(mTimeout, TimeUnit.MILLISECONDS);
+                if (opened.socket.isConnected() && !opened.socket.isClosed()) {
+                    report(opened, true);
+                    return opened.socket;
+                }
+            } catch (Exception ex) {
+                Log.i(TAG, "Warm socket is unusable", ex);
+            }
+        }
+        discard(warm);
+
+        Opened opened = open(mHost, mPort, mSecure, mTimeout);
+        report(opened, false);
+        return opened.socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return delegate().createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return delegate().createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return delegate().createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return delegate().createSocket(address, port, localAddress, localPort);
+    }
+
+    private SocketFactory delegate() throws IOException {
+        if (!mSecure) {
+            return SocketFactory.getDefault();
+        }
+        try {
+            return getTlsContext().getSocketFactory();
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private void report(Opened opened, boolean warm) {
+        if (mListener != null && mSecure) {
+            mListener.onHandshake(opened.handshakeNanos, opened.resumed, warm);
+        }
+    }
+
+    // Open TCP connection and complete TLS handshake if needed.
+    private static Opened open(String host, int port, boolean secure, int timeout) throws IOException {
+        Socket tcp = new Socket();
+        try {
+            tcp.setTcpNoDelay(true);
+            tcp.connect(new InetSocketAddress(host, port), timeout);
+            if (!secure) {
+                return new Opened(tcp, 0, false);
+            }
+
+            SSLSocket tls = (SSLSocket) getTlsContext().getSocketFactory().createSocket(tcp, host, port, true);
+            SSLParameters params = tls.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            tls.setSSLParameters(params);
+
+            long startWall = System.currentTimeMillis();
+            long start = System.nanoTime();
+            tls.setSoTimeout(timeout);
+            tls.startHandshake();
+            tls.setSoTimeout(0);
+            long elapsed = System.nanoTime() - start;
+
+            // Resumed session keeps the creation time of the original session.
+            SSLSession session = tls.getSession();
+            boolean resumed = session.getCreationTime() < startWall;
+            return new Opened(tls, elapsed, resumed);
+        } catch (GeneralSecurityException ex) {
+            tcp.close();
+            throw new IOException(ex);
+        } catch (IOException | RuntimeException ex) {
+            tcp.close();
+            throw ex;
+        }
+    }
+
+    private static void discard(Warm warm) {
+        if (warm == null) {
+            return;
+        }
+        warm.opened.thenAccept(opened -> {
+            try {
+                opened.socket.close();
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    private static String key(String host, int port, boolean secure) {
+        return (secure ? "wss://" : "ws://") + host + ":" + port;
+    }
+}
@@ -0,0 +1,45 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encoding of protocol packets on the wire. Packets are always (de)serialized by the Tinode
+ * ObjectMapper, the codec only provides the token-level format.
+ * <p>
+ * JSON is always used for the {hi} handshake. A binary codec is used only if it's enabled with
+ * {@link Tinode#setPreferredWireCodec(WireCodec)} and the server lists it in the "wire" parameter
+ * of the {ctrl} response to {hi}.
+ */
+public interface WireCodec {
+    /**
+     * Name of the encoding as used in the handshake, e.g. "json" or "cbor".
+     */
+    String getName();
+
+    /**
+     * Packets in this encoding are sent as binary websocket frames.
+     */
+    boolean isBinary();
+
+    JsonParser createParser(byte[] data, int offset, int len) throws IOException;
+
+    JsonGenerator createGenerator(OutputStream out) throws IOException;
+
+    /**
+     * Default text encoding.
+     */
+    static WireCodec json() {
+        return JacksonCodec.JSON;
+    }
+
+    /**
+     * Concise Binary Object Representation, RFC 8949.
+     */
+    static WireCodec cbor() {
+        return JacksonCodec.CBOR;
+    }
+}
@@ -0,0 +1,102 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recorder of inbound websocket traffic. Add it with {@link Tinode#addListener(Tinode.EventListener)}
+ * and every text frame received from the server is written to the stream with its arrival time.
+ * The recording is played back by {@link WireReplay}.
+ * <p>
+ * Format: magic "TNWR", version byte, wall clock time of the start of the recording (8 bytes,
+ * milliseconds), then frames. A frame is the time since the previous frame in microseconds and the
+ * length of the frame in bytes, both unsigned varints, followed by the frame in UTF-8.
+ * <p>
+ * Binary frames (see {@link Tinode#setPreferredWireCodec}) are not recorded.
+ */
+public class WireRecorder implements Tinode.EventListener, Closeable {
+    private static final String TAG = "WireRecorder";
+
+    static final byte[] MAGIC = {'T', 'N', 'W', 'R'};
+    static final int VERSION = 1;
+
+    private final DataOutputStream mOut;
+    private long mLastFrame;
+    private int mFrames = 0;
+    // Set when writing failed or the recorder was closed.
+    private boolean mStopped = false;
+
+    /**
+     * Start recording.
+     *
+     * @param out stream to write to; it's closed when the recorder is closed.
+     * @throws IOException if the header cannot be written.
+     */
+    public WireRecorder(OutputStream out) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mOut.write(MAGIC);
+        mOut.writeByte(VERSION);
+        mOut.writeLong(System.currentTimeMillis());
+        mLastFrame = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void onRawMessage(String msg) {
+        if (mStopped || msg == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        byte[] frame = msg.getBytes(StandardCharsets.UTF_8);
+        try {
+            writeVarint(mOut, TimeUnit.NANOSECONDS.toMicros(now - mLastFrame));
+            writeVarint(mOut, frame.length);
+            mOut.write(frame);
+            mLastFrame = now;
+            mFrames++;
+        } catch (IOException ex) {
+            Log.w(TAG, "Recording stopped", ex);
+            mStopped = true;
+        }
+    }
+
+    /**
+     * Get number of frames recorded so far.
+     */
+    public synchronized int getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Write buffered frames to the underlying stream.
+     */
+    public synchronized void flush() throws IOException {
+        if (!mStopped) {
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Stop recording and close the stream. Remove the recorder from {@link Tinode} listeners as well.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        mStopped = true;
+        mOut.close();
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,178 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Player of traffic recorded by {@link WireRecorder}. Frames are fed to {@link Tinode} as if they were
+ * received from the server: parsed, routed to topics and persisted to the {@link Storage} the Tinode
+ * instance was created with. No connection is needed. The account is the one the storage is set up for;
+ * the recorded {ctrl} replies to {login} and other requests are not matched to any request and are ignored.
+ * <p>
+ * Frames are replayed either with the recorded timing or back-to-back, which measures throughput of
+ * parsing, routing and persistence.
+ */
+public class WireReplay implements Closeable {
+    private static final String TAG = "WireReplay";
+
+    // Time to wait for routing of the replayed frames to complete, milliseconds.
+    private static final long ROUTING_TIMEOUT = 60_000L;
+    // Frames longer than this are treated as a corrupted recording.
+    private static final int MAX_FRAME_SIZE = 64 << 20;
+
+    /**
+     * Recorded frame.
+     *
+     * @param offset time since the start of the recording, nanoseconds.
+     * @param text   content of the frame.
+     */
+    public record Frame(long offset, String text) {}
+
+    /**
+     * Outcome of a replay.
+     *
+     * @param frames  number of replayed frames.
+     * @param bytes   total size of the frames in UTF-8.
+     * @param elapsed time from the first frame until all frames were routed, nanoseconds.
+     */
+    public record Result(int frames, long bytes, long elapsed) {
+        public double framesPerSecond() {
+            return elapsed > 0 ? frames * 1e9 / elapsed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d frames, %d bytes in %dms, %.0f frames/s", frames, bytes,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), framesPerSecond());
+        }
+    }
+
+    private final DataInputStream mIn;
+    private final long mStartedAt;
+    private long mOffset = 0;
+    // Size of the last frame in bytes.
+    private int mLength = 0;
+    private byte[] mBuffer = new byte[4096];
+
+    /**
+     * Open recording.
+     *
+     * @param in stream with the recording; it's closed when the replay is closed.
+     * @throws IOException if the stream is not a recording or its version is not supported.
+     */
+    public WireReplay(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[WireRecorder.MAGIC.length];
+        mIn.readFully(magic);
+        if (!Arrays.equals(magic, WireRecorder.MAGIC)) {
+            throw new IOException("Not a wire recording");
+        }
+        int version = mIn.readUnsignedByte();
+        if (version != WireRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        mStartedAt = mIn.readLong();
+    }
+
+    /**
+     * Get wall clock time when the recording started, milliseconds.
+     */
+    public long getStartedAt() {
+        return mStartedAt;
+    }
+
+    /**
+     * Read next frame.
+     *
+     * @return next frame or null if there are no more frames. A frame cut short by the end of the stream,
+     * e.g. because the recording app was killed, or a frame with an invalid length is treated as the end
+     * of the recording.
+     */
+    public Frame next() throws IOException {
+        try {
+            int first = mIn.read();
+            if (first < 0) {
+                return null;
+            }
+            long delta = readVarint(first);
+            long size = readVarint(mIn.readUnsignedByte());
+            if (size < 0 || size > MAX_FRAME_SIZE) {
+                throw new EOFException("Invalid frame length " + size);
+            }
+            int length = (int) size;
+            if (mBuffer.length < length) {
+                mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+            }
+            mIn.readFully(mBuffer, 0, length);
+            mOffset += TimeUnit.MICROSECONDS.toNanos(delta);
+            mLength = length;
+            return new Frame(mOffset, new String(mBuffer, 0, length, StandardCharsets.UTF_8));
+        } catch (EOFException ex) {
+            Log.i(TAG, "Recording is truncated: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Feed all remaining frames to Tinode and wait until they are routed. Replayed frames are not passed to
+     * {@link Tinode.EventListener#onRawMessage(String)}, so a {@link WireRecorder} does not record them again.
+     *
+     * @param tinode   instance to feed frames to, normally not connected.
+     * @param realTime true to replay with the recorded timing, false to replay as fast as possible.
+     * @return number of frames and time it took.
+     */
+    public Result replay(Tinode tinode, boolean realTime) throws Exception {
+        int frames = 0;
+        long bytes = 0;
+        long start = System.nanoTime();
+        long base = -1;
+        Frame frame;
+        while ((frame = next()) != null) {
+            if (realTime) {
+                if (base < 0) {
+                    base = frame.offset;
+                }
+                long wait = frame.offset - base - (System.nanoTime() - start);
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            tinode.replayPacket(frame.text);
+            frames++;
+            bytes += mLength;
+        }
+        if (!tinode.awaitRouted(ROUTING_TIMEOUT)) {
+            Log.w(TAG, "Routing of replayed frames timed out");
+        }
+        return new Result(frames, bytes, System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private long readVarint(int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 63) {
+                throw new IOException("Malformed varint");
+            }
+            b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,677 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.Subscription;
+
+/**
+ * Storage which writes updates received from the server in the background. New messages, deletions and
+ * read notifications are queued and applied to the wrapped storage by a single writer thread in the order
+ * they were made. The thread which routes packets does not wait for the disk. Values of the topic which the
+ * wrapped storage reads when saving messages and deletions are captured when the write is queued.
+ * <p>
+ * Calls which return a value needed right away, such as {@link #topicAdd} or {@link #msgSend}, and updates
+ * of topics, subscriptions and users, which read the objects being updated, run on the writer thread after
+ * the queued writes, the caller waits for them.
+ * <p>
+ * Reads see the writes made before them. A read of a topic waits until the queued writes to the topic are
+ * applied. Messages queued for saving are returned by {@link #getMessageBySeq} and counted by
+ * {@link #getCachedMessagesRange} without waiting for the writer. Reads which are not specific to a topic
+ * wait for all queued writes. Use {@link #flush()} to wait for the writes explicitly, e.g. before reading
+ * the wrapped storage directly.
+ * <p>
+ * The wrapped storage must allow reads from other threads while the writer thread is writing.
+ */
+public class WriteBehindStore implements Storage, Closeable {
+    private static final String TAG = "WriteBehindStore";
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    private final Storage mStore;
+    private final ExecutorService mWriter;
+    private volatile Thread mWriterThread = null;
+    private volatile String mMyUid;
+
+    // Fields below are guarded by 'this'.
+    // Number of queued writes.
+    private int mPending = 0;
+    // Number of queued writes which make reads of the topic wait, by topic name.
+    private final Map<String, Integer> mPendingByTopic = new HashMap<>();
+    // Received messages queued for saving by topic name, then by seq.
+    private final Map<String, TreeMap<Integer, InMemoryStore.StoredMessage>> mOverlay = new HashMap<>();
+
+    /**
+     * Create storage which writes to the given storage in the background.
+     *
+     * @param store storage to write to.
+     */
+    public WriteBehindStore(Storage store) {
+        mStore = store;
+        mMyUid = store.getMyUid();
+        mWriter = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "tinode-store-" + sThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            mWriterThread = thread;
+            return thread;
+        });
+    }
+
+    /**
+     * Wait until all queued writes are applied to the wrapped storage.
+     */
+    @Override
+    public synchronized void flush() {
+        if (onWriter()) {
+            return;
+        }
+        boolean interrupted = false;
+        while (mPending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Apply queued writes and stop the writer thread. Writes made after closing are dropped.
+     */
+    @Override
+    public void close() {
+        flush();
+        mWriter.shutdown();
+    }
+
+    @Override
+    public String getMyUid() {
+        return mMyUid;
+    }
+
+    @Override
+    public void setMyUid(String uid, String hostURI) {
+        call(() -> {
+            mStore.setMyUid(uid, hostURI);
+            return null;
+        });
+        mMyUid = uid;
+    }
+
+    @Override
+    public void updateCredentials(String[] credRequired) {
+        write(null, () -> mStore.updateCredentials(credRequired));
+    }
+
+    @Override
+    public void deleteAccount(String uid) {
+        call(() -> {
+            mStore.deleteAccount(uid);
+            return null;
+        });
+        mMyUid = mStore.getMyUid();
+    }
+
+    @Override
+    public String getServerURI() {
+        flush();
+        return mStore.getServerURI();
+    }
+
+    @Override
+    public String getDeviceToken() {
+        flush();
+        return mStore.getDeviceToken();
+    }
+
+    @Override
+    public void saveDeviceToken(String token) {
+        write(null, () -> mStore.saveDeviceToken(token));
+    }
+
+    @Override
+    public void logout() {
+        call(() -> {
+            mStore.logout();
+            return null;
+        });
+        mMyUid = mStore.getMyUid();
+    }
+
+    @Override
+    public void setTimeAdjustment(long adjustment) {
+        write(null, () -> mStore.setTimeAdjustment(adjustment));
+    }
+
+    @Override
+    public boolean isReady() {
+        flush();
+        return mStore.isReady();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The updates run on the writer thread in one batch of the wrapped storage. The caller waits for them.
+     */
+    @Override
+    public void runBatch(Runnable updates) {
+        call(() -> {
+            mStore.runBatch(updates);
+            return null;
+        });
+    }
+
+    @Override
+    public Topic[] topicGetAll(Tinode tinode) {
+        flush();
+        return mStore.topicGetAll(tinode);
+    }
+
+    @Override
+    public Topic topicGet(Tinode tinode, String name) {
+        flush();
+        return mStore.topicGet(tinode, name);
+    }
+
+    @Override
+    public long topicAdd(Topic topic) {
+        return call(() -> mStore.topicAdd(topic));
+    }
+
+    @Override
+    public boolean topicUpdate(Topic topic) {
+        return call(() -> mStore.topicUpdate(topic));
+    }
+
+    @Override
+    public boolean topicDelete(Topic topic, boolean hard) {
+        return call(() -> mStore.topicDelete(topic, hard));
+    }
+
+    @Override
+    public long subAdd(Topic topic, Subscription sub) {
+        return call(() -> mStore.subAdd(topic, sub));
+    }
+
+    @Override
+    public boolean subUpdate(Topic topic, Subscription sub) {
+        return call(() -> mStore.subUpdate(topic, sub));
+    }
+
+    @Override
+    public long subNew(Topic topic, Subscription sub) {
+        return call(() -> mStore.subNew(topic, sub));
+    }
+
+    @Override
+    public boolean subDelete(Topic topic, Subscription sub) {
+        return call(() -> mStore.subDelete(topic, sub));
+    }
+
+    @Override
+    public Collection<Subscription> getSubscriptions(Topic topic) {
+        // Read notifications of subscribers are not attributed to topics.
+        flush();
+        return mStore.getSubscriptions(topic);
+    }
+
+    @Override
+    public User userGet(String uid) {
+        flush();
+        return mStore.userGet(uid);
+    }
+
+    @Override
+    public long userAdd(User user) {
+        return call(() -> mStore.userAdd(user));
+    }
+
+    @Override
+    public boolean userUpdate(User user) {
+        return call(() -> mStore.userUpdate(user));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The message is saved in the background. The returned message has no database ID. A message which is
+     * already saved or queued for saving is not saved again, null is returned.
+     */
+    @Override
+    public Message msgReceived(Topic topic, Subscription sub, MsgServerData msg) {
+        if (isDuplicate(topic, msg)) {
+            return null;
+        }
+        InMemoryStore.StoredMessage pending = pending(msg);
+        Topic snapshot = new TopicSnapshot(topic, Collections.emptyList());
+        writeMessages(topic, Collections.singletonList(pending), () -> mStore.msgReceived(snapshot, sub, msg));
+        return pending;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The messages are saved in the background. The returned messages have no database IDs. Messages which
+     * are already saved or queued for saving are not saved again, their entries are null.
+     */
+    @Override
+    public Message[] msgReceived(Topic topic, List<MsgServerData> batch) {
+        Message[] result = new Message[batch.size()];
+        List<MsgServerData> fresh = new ArrayList<>(batch.size());
+        List<InMemoryStore.StoredMessage> pending = new ArrayList<>(batch.size());
+        for (int i = 0; i < result.length; i++) {
+            MsgServerData msg = batch.get(i);
+            if (!isDuplicate(topic, msg)) {
+                InMemoryStore.StoredMessage saved = pending(msg);
+                fresh.add(msg);
+                pending.add(saved);
+                result[i] = saved;
+            }
+        }
+        if (!fresh.isEmpty()) {
+            Topic snapshot = new TopicSnapshot(topic, fresh);
+            writeMessages(topic, pending, () -> mStore.msgReceived(snapshot, fresh));
+        }
+        return result;
+    }
+
+    @Override
+    public Message msgSend(Topic topic, Drafty data, Map<String, Object> head) {
+        return call(() -> mStore.msgSend(topic, data, head));
+    }
+
+    @Override
+    public Message msgDraft(Topic topic, Drafty data, Map<String, Object> head) {
+        return call(() -> mStore.msgDraft(topic, data, head));
+    }
+
+    @Override
+    public boolean msgDraftUpdate(Topic topic, long dbMessageId, Drafty data) {
+        return call(() -> mStore.msgDraftUpdate(topic, dbMessageId, data));
+    }
+
+    @Override
+    public boolean msgReady(Topic topic, long dbMessageId, Drafty data) {
+        return call(() -> mStore.msgReady(topic, dbMessageId, data));
+    }
+
+    @Override
+    public boolean msgSyncing(Topic topic, long dbMessageId, boolean sync) {
+        return call(() -> mStore.msgSyncing(topic, dbMessageId, sync));
+    }
+
+    @Override
+    public boolean msgFailed(Topic topic, long dbMessageId) {
+        return call(() -> mStore.msgFailed(topic, dbMessageId));
+    }
+
+    @Override
+    public boolean msgPruneFailed(Topic topic) {
+        return call(() -> mStore.msgPruneFailed(topic));
+    }
+
+    @Override
+    public boolean msgDiscard(Topic topic, long dbMessageId) {
+        return call(() -> mStore.msgDiscard(topic, dbMessageId));
+    }
+
+    @Override
+    public boolean msgDiscardSeq(Topic topic, int seq) {
+        return call(() -> mStore.msgDiscardSeq(topic, seq));
+    }
+
+    @Override
+    public boolean msgDelivered(Topic topic, long dbMessageId, Date timestamp, int seq) {
+        return call(() -> mStore.msgDelivered(topic, dbMessageId, timestamp, seq));
+    }
+
+    @Override
+    public boolean msgMarkToDelete(Topic topic, int fromId, int toId, boolean markAsHard) {
+        return call(() -> mStore.msgMarkToDelete(topic, fromId, toId, markAsHard));
+    }
+
+    @Override
+    public boolean msgMarkToDelete(Topic topic, MsgRange[] ranges, boolean markAsHard) {
+        return call(() -> mStore.msgMarkToDelete(topic, ranges, markAsHard));
+    }
+
+    @Override
+    public boolean msgDelete(Topic topic, int delId, int fromId, int toId) {
+        Topic snapshot = new TopicSnapshot(topic, Collections.emptyList());
+        write(topic.getName(), () -> mStore.msgDelete(snapshot, delId, fromId, toId));
+        return true;
+    }
+
+    @Override
+    public boolean msgDelete(Topic topic, int delId, MsgRange[] ranges) {
+        Topic snapshot = new TopicSnapshot(topic, Collections.emptyList());
+        write(topic.getName(), () -> mStore.msgDelete(snapshot, delId, ranges));
+        return true;
+    }
+
+    @Override
+    public boolean msgRecvByRemote(Subscription sub, int recv) {
+        write(null, () -> mStore.msgRecvByRemote(sub, recv));
+        return true;
+    }
+
+    @Override
+    public boolean msgReadByRemote(Subscription sub, int read) {
+        write(null, () -> mStore.msgReadByRemote(sub, read));
+        return true;
+    }
+
+    @Override
+    public MsgRange[] msgIsCached(Topic topic, MsgRange[] ranges) {
+        awaitTopic(topic.getName(), true);
+        return mStore.msgIsCached(topic, ranges);
+    }
+
+    @Override
+    public MsgRange getCachedMessagesRange(Topic topic) {
+        awaitTopic(topic.getName(), false);
+        // Check queued messages before the storage: messages leave the queue after they are saved.
+        MsgRange pending = null;
+        synchronized (this) {
+            TreeMap<Integer, InMemoryStore.StoredMessage> messages = mOverlay.get(topic.getName());
+            if (messages != null) {
+                pending = new MsgRange(messages.firstKey(), messages.lastKey() + 1);
+            }
+        }
+        MsgRange stored = mStore.getCachedMessagesRange(topic);
+        if (pending == null) {
+            return stored;
+        }
+        if (stored == null || stored.low <= 0) {
+            return pending;
+        }
+        return new MsgRange(Math.min(stored.low, pending.low), Math.max(stored.getUpper(), pending.getUpper()));
+    }
+
+    @Override
+    public MsgRange[] getMissingRanges(Topic topic, int startFrom, int pageSize, boolean newer) {
+        awaitTopic(topic.getName(), true);
+        return mStore.getMissingRanges(topic, startFrom, pageSize, newer);
+    }
+
+    @Override
+    public boolean setRead(Topic topic, int read) {
+        write(topic.getName(), () -> mStore.setRead(topic, read));
+        return true;
+    }
+
+    @Override
+    public boolean setRecv(Topic topic, int recv) {
+        write(topic.getName(), () -> mStore.setRecv(topic, recv));
+        return true;
+    }
+
+    @Override
+    public <T extends Message> T getMessageById(long dbMessageId) {
+        flush();
+        return mStore.getMessageById(dbMessageId);
+    }
+
+    @Override
+    public <T extends Message> T getMessagePreviewById(long dbMessageId) {
+        flush();
+        return mStore.getMessagePreviewById(dbMessageId);
+    }
+
+    @Override
+    public int[] getAllMsgVersions(Topic topic, int seq, int limit) {
+        awaitTopic(topic.getName(), true);
+        return mStore.getAllMsgVersions(topic, seq, limit);
+    }
+
+    @Override
+    public <T extends Iterator<Message> & Closeable> T getLatestMessagePreviews() {
+        flush();
+        return mStore.getLatestMessagePreviews();
+    }
+
+    @Override
+    public <T extends Iterator<Message> & Closeable> T getQueuedMessages(Topic topic) {
+        awaitTopic(topic.getName(), true);
+        return mStore.getQueuedMessages(topic);
+    }
+
+    @Override
+    public MsgRange[] getQueuedMessageDeletes(Topic topic, boolean hard) {
+        awaitTopic(topic.getName(), true);
+        return mStore.getQueuedMessageDeletes(topic, hard);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Message> T getMessageBySeq(Topic topic, int seq) {
+        awaitTopic(topic.getName(), false);
+        synchronized (this) {
+            TreeMap<Integer, InMemoryStore.StoredMessage> messages = mOverlay.get(topic.getName());
+            InMemoryStore.StoredMessage pending = messages != null ? messages.get(seq) : null;
+            if (pending != null) {
+                return (T) pending;
+            }
+        }
+        return mStore.getMessageBySeq(topic, seq);
+    }
+
+    // Check if the message is saved or queued for saving. Messages leave the queue after they are saved.
+    private boolean isDuplicate(Topic topic, MsgServerData msg) {
+        if (msg.seq <= 0) {
+            return false;
+        }
+        synchronized (this) {
+            TreeMap<Integer, InMemoryStore.StoredMessage> messages = mOverlay.get(topic.getName());
+            if (messages != null && messages.containsKey(msg.seq)) {
+                return true;
+            }
+        }
+        return mStore.getMessageBySeq(topic, msg.seq) != null;
+    }
+
+    // Message as it will be saved.
+    private InMemoryStore.StoredMessage pending(MsgServerData msg) {
+        InMemoryStore.StoredMessage pending = new InMemoryStore.StoredMessage(msg);
+        pending.status = InMemoryStore.STATUS_SYNCED;
+        pending.mine = msg.from != null && msg.from.equals(mMyUid);
+        pending.replacesSeq = pending.getReplacementSeqId();
+        return pending;
+    }
+
+    // Queue saving of received messages. Messages are served from the queue until they are saved. Edits change
+    // other messages, so reads of the topic wait for them.
+    private void writeMessages(Topic topic, List<InMemoryStore.StoredMessage> messages, Runnable write) {
+        if (onWriter()) {
+            write.run();
+            return;
+        }
+
+        final String name = topic.getName();
+        boolean edits = false;
+        synchronized (this) {
+            TreeMap<Integer, InMemoryStore.StoredMessage> overlay = null;
+            for (InMemoryStore.StoredMessage msg : messages) {
+                if (msg.replacesSeq > 0) {
+                    edits = true;
+                } else if (msg.seq > 0) {
+                    if (overlay == null) {
+                        overlay = mOverlay.computeIfAbsent(name, k -> new TreeMap<>());
+                    }
+                    overlay.put(msg.seq, msg);
+                }
+            }
+        }
+
+        write(edits ? name : null, () -> {
+            try {
+                write.run();
+            } finally {
+                synchronized (this) {
+                    TreeMap<Integer, InMemoryStore.StoredMessage> overlay = mOverlay.get(name);
+                    if (overlay != null) {
+                        for (InMemoryStore.StoredMessage msg : messages) {
+                            overlay.remove(msg.seq, msg);
+                        }
+                        if (overlay.isEmpty()) {
+                            mOverlay.remove(name);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue write to the wrapped storage.
+     *
+     * @param topic name of the topic which must not be read until the write is applied or null.
+     * @param write write to apply.
+     */
+    private void write(String topic, Runnable write) {
+        if (onWriter()) {
+            // Nested call from a batch.
+            write.run();
+            return;
+        }
+
+        synchronized (this) {
+            mPending++;
+            if (topic != null) {
+                mPendingByTopic.merge(topic, 1, Integer::sum);
+            }
+        }
+        try {
+            mWriter.execute(() -> {
+                try {
+                    write.run();
+                } catch (RuntimeException ex) {
+                    Log.w(TAG, "Failed to write to storage", ex);
+                } finally {
+                    written(topic);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Storage is closed, write dropped");
+            written(topic);
+        }
+    }
+
+    private synchronized void written(String topic) {
+        mPending--;
+        if (topic != null) {
+            mPendingByTopic.computeIfPresent(topic, (k, count) -> count > 1 ? count - 1 : null);
+        }
+        notifyAll();
+    }
+
+    // Run call on the writer thread after the queued writes and wait for the result.
+    private <T> T call(Callable<T> call) {
+        if (onWriter()) {
+            try {
+                return call.call();
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        Future<T> future = mWriter.submit(call);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException ex) {
+                    // The call must complete to keep the order of writes.
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Wait until the queued writes which change the topic are applied.
+    private synchronized void awaitTopic(String topic, boolean withMessages) {
+        if (onWriter()) {
+            return;
+        }
+        boolean interrupted = false;
+        while (mPendingByTopic.containsKey(topic) || (withMessages && mOverlay.containsKey(topic))) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean onWriter() {
+        return Thread.currentThread() == mWriterThread;
+    }
+
+    // Values of the topic which the wrapped storage reads when saving messages and deletions. The topic in
+    // memory moves on to the new seq and delete IDs before the write is applied.
+    private static final class TopicSnapshot extends Topic<Object, Object, Object, Object> {
+        // Subscriptions of message senders.
+        private final Map<String, Subscription<Object, Object>> mSenders = new HashMap<>();
+
+        @SuppressWarnings("unchecked")
+        TopicSnapshot(Topic topic, List<MsgServerData> messages) {
+            super(null, topic.getName());
+            setSeq(topic.getSeq());
+            setMaxDel(topic.getMaxDel());
+            setLocal(topic.getLocal());
+            for (MsgServerData msg : messages) {
+                if (msg.from != null && !mSenders.containsKey(msg.from)) {
+                    mSenders.put(msg.from, topic.getSubscription(msg.from));
+                }
+            }
+        }
+
+        @Override
+        public Subscription<Object, Object> getSubscription(String key) {
+            return mSenders.get(key);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package co.tinode.tinodesdk.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.io.Serializable;
 
 /**
@@ -78,4 +80,28 @@ public class ServerMessage<DP, DR, SP, SR> implements Serializable {
         return count == 1;
     }
 
+    /**
+     * Get name of the topic the message is addressed to.
+     *
+     * @return topic name or null if the message is not topic-specific, like a response to {hi} or {login}.
+     */
+    @JsonIgnore
+    public String getTopic() {
+        if (data != null) {
+            return data.topic;
+        }
+        if (meta != null) {
+            return meta.topic;
+        }
+        if (ctrl != null) {
+            return ctrl.topic;
+        }
+        if (pres != null) {
+            return pres.topic;
+        }
+        if (info != null) {
+            return info.topic;
+        }
+        return null;
+    }
 }
@@ -0,0 +1,127 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+
+/**
+ * Bytes allocated per operation on hot paths, measured with per-thread allocation counters.
+ * <p>
+ * Budgets are set above the current cost with some headroom for JDK differences. A failure means
+ * a change added allocations to the path: either remove them or raise the budget deliberately.
+ */
+public class AllocationBudgetTest {
+    private static final int WARMUP = 5_000;
+    private static final int ITERATIONS = 500;
+
+    // Budgets, bytes per operation.
+    private static final long DATA_DISPATCH_BUDGET = 2 * 1024;
+    private static final long DRAFTY_PARSE_BUDGET = 48 * 1024;
+    private static final long DRAFTY_PREVIEW_BUDGET = 96 * 1024;
+    private static final long RANGE_COLLAPSE_BUDGET = 12 * 1024;
+
+    private static final String TEXT = "Hi @alice, the *trail map* is at https://tinode.co/maps and _parking_ " +
+            "is free before 9am. Bring `water`!";
+
+    private static com.sun.management.ThreadMXBean sThreads;
+
+    @BeforeClass
+    public static void setUp() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue("Allocation counters are not available",
+                threads instanceof com.sun.management.ThreadMXBean &&
+                        ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        sThreads = (com.sun.management.ThreadMXBean) threads;
+        sThreads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testDataDispatch() throws Exception {
+        Tinode tinode = new Tinode("alloc-test", "apikey");
+        // Route on the calling thread, otherwise allocations are counted against the worker.
+        tinode.setInboundConcurrency(0);
+        Topic topic = tinode.newTopic("grpkMNIAf6gEsA", null);
+
+        String[] packets = new String[WARMUP + ITERATIONS];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = "{\"data\":{\"topic\":\"grpkMNIAf6gEsA\",\"from\":\"usrCUdPHIMk0Q4\"," +
+                    "\"ts\":\"2024-03-05T04:28:52.148Z\",\"seq\":" + (i + 1) + "," +
+                    "\"content\":\"Hello, see you at the trailhead at 9\"}}";
+        }
+        long bytes = allocatedPerOp(i -> {
+            try {
+                tinode.replayPacket(packets[i]);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        // Make sure packets were routed to the topic and not dropped early.
+        assertEquals(packets.length, topic.getSeq());
+        assertBudget("{data} dispatch", DATA_DISPATCH_BUDGET, bytes);
+    }
+
+    @Test
+    public void testDraftyParse() {
+        long bytes = allocatedPerOp(i -> Drafty.parse(TEXT));
+        assertBudget("Drafty.parse", DRAFTY_PARSE_BUDGET, bytes);
+    }
+
+    @Test
+    public void testDraftyPreview() {
+        Drafty drafty = Drafty.parse(TEXT);
+        long bytes = allocatedPerOp(i -> drafty.preview(80));
+        assertBudget("Drafty.preview", DRAFTY_PREVIEW_BUDGET, bytes);
+    }
+
+    @Test
+    public void testRangeCollapse() {
+        // 1k sorted overlapping ranges. MsgRange.collapse() modifies the input so each call gets its own copy,
+        // made before measurement.
+        Random random = new Random(42);
+        MsgRange[] src = new MsgRange[1024];
+        int low = 1;
+        for (int i = 0; i < src.length; i++) {
+            int len = 1 + random.nextInt(20);
+            src[i] = new MsgRange(low, low + len);
+            low += random.nextInt(len + 10);
+        }
+        Arrays.sort(src);
+        MsgRange[][] inputs = new MsgRange[WARMUP + ITERATIONS][];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new MsgRange[src.length];
+            for (int j = 0; j < src.length; j++) {
+                inputs[i][j] = new MsgRange(src[j]);
+            }
+        }
+        long bytes = allocatedPerOp(i -> MsgRange.collapse(inputs[i]));
+        assertBudget("MsgRange.collapse", RANGE_COLLAPSE_BUDGET, bytes);
+    }
+
+    // Run the operation WARMUP times to let the JIT settle, then return average bytes allocated
+    // by the next ITERATIONS calls.
+    private static long allocatedPerOp(IntConsumer op) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.accept(i);
+        }
+        long tid = Thread.currentThread().getId();
+        long before = sThreads.getThreadAllocatedBytes(tid);
+        for (int i = WARMUP; i < WARMUP + ITERATIONS; i++) {
+            op.accept(i);
+        }
+        return (sThreads.getThreadAllocatedBytes(tid) - before) / ITERATIONS;
+    }
+
+    private static void assertBudget(String what, long budget, long actual) {
+        assertTrue(what + " allocates " + actual + " bytes/op, budget is " + budget, actual <= budget);
+    }
+}
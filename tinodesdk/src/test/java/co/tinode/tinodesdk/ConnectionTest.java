@@ -0,0 +1,104 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Test;
+
+public class ConnectionTest {
+    private WebSocketServer mServer;
+    private Connection mConnection;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mConnection != null) {
+            mConnection.disconnect();
+        }
+        if (mServer != null) {
+            mServer.stop(1000);
+        }
+    }
+
+    @Test
+    public void testRetryNowSkipsBackoff() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger opened = new AtomicInteger();
+        final CountDownLatch serverOpened = new CountDownLatch(2);
+        // Drops the first connection, keeps the rest.
+        mServer = new WebSocketServer(new InetSocketAddress("localhost", 0)) {
+            @Override
+            public void onOpen(WebSocket conn, ClientHandshake handshake) {
+                if (opened.incrementAndGet() == 1) {
+                    conn.close();
+                }
+                serverOpened.countDown();
+            }
+
+            @Override
+            public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+            }
+
+            @Override
+            public void onError(WebSocket conn, Exception ex) {
+            }
+
+            @Override
+            public void onStart() {
+                started.countDown();
+            }
+        };
+        mServer.setReuseAddr(true);
+        mServer.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch connected = new CountDownLatch(2);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final AtomicInteger reconnects = new AtomicInteger();
+        mConnection = new Connection(new URI("ws://localhost:" + mServer.getPort() + "/v0/"), "apikey",
+                new Connection.WsListener() {
+                    @Override
+                    public void onConnect(Connection conn, boolean background) {
+                        conn.backoffReset();
+                        connected.countDown();
+                    }
+
+                    @Override
+                    public void onDisconnect(Connection conn, boolean byServer, int code, String reason) {
+                        disconnected.countDown();
+                    }
+
+                    @Override
+                    public void onReconnect(Connection conn, long backoff) {
+                        reconnects.incrementAndGet();
+                    }
+                });
+        mConnection.connect(true, false);
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(mConnection.isWaitingToReconnect());
+
+        // Minimum backoff is 1 second: reconnecting sooner means the retry did not wait for the timer.
+        long start = System.nanoTime();
+        mConnection.retryNow();
+        mConnection.retryNow();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertEquals(1, reconnects.get());
+        // The server may see the connection after the client does.
+        assertTrue(serverOpened.await(5, TimeUnit.SECONDS));
+        assertEquals(2, opened.get());
+        assertTrue(mConnection.isConnected());
+    }
+}
@@ -0,0 +1,141 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.MsgGetMeta;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.Subscription;
+import co.tinode.tinodesdk.sim.SimServer;
+import co.tinode.tinodesdk.sim.SimWorld;
+
+public class DataBatchTest {
+    private static final int HISTORY = 1000;
+    private static final String TOPIC = "grpSim0";
+
+    // Store which counts calls.
+    private static class CountingStore extends InMemoryStore {
+        final AtomicInteger single = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+        private boolean mInBatch = false;
+
+        @Override
+        public synchronized Message msgReceived(Topic topic, Subscription sub, MsgServerData msg) {
+            if (!mInBatch) {
+                single.incrementAndGet();
+            }
+            return super.msgReceived(topic, sub, msg);
+        }
+
+        @Override
+        public synchronized Message[] msgReceived(Topic topic, List<MsgServerData> batch) {
+            batches.incrementAndGet();
+            mInBatch = true;
+            try {
+                return super.msgReceived(topic, batch);
+            } finally {
+                mInBatch = false;
+            }
+        }
+    }
+
+    private SimServer mServer;
+    private CountingStore mStore;
+    private Tinode mTinode;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new SimServer(SimWorld.generate(2, 1, 2, HISTORY, 1), 0);
+        mServer.startAndWait();
+        mStore = new CountingStore();
+        mTinode = SimServer.configure(new Tinode("batch-test", "apikey", mStore, null));
+        SimWorld.Account account = mServer.world().account(0);
+        mTinode.connect(mServer.address(), false, false).getResult();
+        mTinode.loginBasic(account.login(), account.password()).getResult();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mTinode.maybeDisconnect(false);
+        mServer.shutdown();
+    }
+
+    // A page of messages is saved at once and listeners are notified once.
+    @Test
+    public void testPage() throws Exception {
+        final AtomicInteger data = new AtomicInteger();
+        final AtomicInteger lastSeq = new AtomicInteger();
+        final CountDownLatch pages = new CountDownLatch(1);
+        Topic topic = mTinode.newTopic(TOPIC, new Topic.Listener() {
+            @Override
+            public void onData(MsgServerData msg) {
+                data.incrementAndGet();
+                lastSeq.set(msg.seq);
+            }
+
+            @Override
+            public void onAllMessagesReceived(Integer count) {
+                pages.countDown();
+            }
+        });
+        MsgGetMeta get = new MsgGetMeta();
+        get.setData(null, null, HISTORY);
+        topic.subscribe(null, get).getResult();
+        // Subscription is confirmed before the page arrives.
+        assertTrue(pages.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, mStore.batches.get());
+        assertEquals(0, mStore.single.get());
+        assertEquals(1, data.get());
+        assertEquals(HISTORY, lastSeq.get());
+        assertEquals(HISTORY, topic.getSeq());
+        assertEquals(new MsgRange(1, HISTORY + 1), mStore.getCachedMessagesRange(topic));
+        assertEquals(HISTORY, mTinode.getLastMessage(TOPIC).getSeqId());
+    }
+
+    // Buffered messages are saved when the window expires, messages outside of pages are not buffered.
+    @Test
+    public void testWindow() throws Exception {
+        final BlockingQueue<MsgServerData> data = new LinkedBlockingQueue<>();
+        Topic topic = mTinode.newTopic(TOPIC, new Topic.Listener() {
+            @Override
+            public void onData(MsgServerData msg) {
+                data.add(msg);
+            }
+        });
+        topic.persist();
+
+        topic.expectDataPage(10_000);
+        mTinode.replayPacket(dataFrame(1));
+        mTinode.replayPacket(dataFrame(2));
+        assertTrue(mTinode.awaitRouted(5_000));
+        assertTrue(data.isEmpty());
+        MsgServerData msg = data.poll(5, TimeUnit.SECONDS);
+        assertNotNull(msg);
+        assertEquals(2, msg.seq);
+        assertEquals(1, mStore.batches.get());
+
+        mTinode.replayPacket("{\"ctrl\":{\"topic\":\"" + TOPIC + "\",\"code\":200,\"params\":{\"what\":\"data\"}}}");
+        mTinode.replayPacket(dataFrame(3));
+        assertTrue(mTinode.awaitRouted(5_000));
+        assertEquals(3, data.poll(5, TimeUnit.SECONDS).seq);
+        assertEquals(1, mStore.batches.get());
+        assertEquals(1, mStore.single.get());
+    }
+
+    private static String dataFrame(int seq) {
+        return "{\"data\":{\"topic\":\"" + TOPIC + "\",\"from\":\"usrOther\",\"ts\":\"2024-01-01T00:00:0" + seq +
+                ".000Z\",\"seq\":" + seq + ",\"content\":\"message " + seq + "\"}}";
+    }
+}
@@ -0,0 +1,87 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.Credential;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.MsgServerInfo;
+import co.tinode.tinodesdk.model.MsgServerPres;
+
+public class EventBusTest {
+    private static class DataListener implements Topic.Listener<String, String, String, String> {
+        final List<MsgServerData> received = new ArrayList<>();
+
+        @Override
+        public void onData(MsgServerData data) {
+            received.add(data);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static EventBus<Topic.Listener> newBus() {
+        return new EventBus<>(Topic.Listener.class);
+    }
+
+    @Test
+    public void testTypedSubscription() {
+        EventBus<Topic.Listener> bus = newBus();
+        EventBus.Event<Topic.Listener> data = bus.event(Topic.Listener.class, "onData", MsgServerData.class);
+        EventBus.Event<Topic.Listener> pres = bus.event(Topic.Listener.class, "onPres", MsgServerPres.class);
+
+        DataListener listener = new DataListener();
+        assertTrue(bus.add(listener));
+        assertFalse(bus.add(listener));
+        assertEquals(1, data.listeners().length);
+        assertEquals(0, pres.listeners().length);
+
+        // Events registered after the listener was added.
+        EventBus.Event<Topic.Listener> online = bus.event(Topic.Listener.class, "onOnline", boolean.class);
+        assertEquals(0, online.listeners().length);
+        EventBus.Event<Topic.Listener> info = bus.event(Topic.Listener.class, "onInfo", MsgServerInfo.class);
+        assertEquals(0, info.listeners().length);
+
+        Topic.Listener<String, String, String, String> all = new Topic.Listener<>() {
+            @Override
+            public void onData(MsgServerData data) {
+            }
+
+            @Override
+            public void onPres(MsgServerPres pres) {
+            }
+        };
+        bus.add(all);
+        assertArrayEquals(new Object[]{listener, all}, data.listeners());
+        assertArrayEquals(new Object[]{all}, pres.listeners());
+
+        // Snapshot taken before removal is not affected.
+        Topic.Listener[] before = data.listeners();
+        assertTrue(bus.remove(listener));
+        assertFalse(bus.remove(listener));
+        assertEquals(2, before.length);
+        assertArrayEquals(new Object[]{all}, data.listeners());
+
+        bus.clear();
+        assertEquals(0, data.listeners().length);
+        assertEquals(0, pres.listeners().length);
+    }
+
+    @Test
+    public void testSubclassEvent() {
+        EventBus<Topic.Listener> bus = newBus();
+        EventBus.Event<Topic.Listener> cred = bus.event(MeTopic.MeListener.class, "onCredUpdated", Credential[].class);
+        bus.add(new DataListener());
+        bus.add(new MeTopic.MeListener<String>());
+        assertEquals(0, cred.listeners().length);
+        bus.add(new MeTopic.MeListener<String>() {
+            @Override
+            public void onCredUpdated(Credential[] c) {
+            }
+        });
+        assertEquals(1, cred.listeners().length);
+    }
+}
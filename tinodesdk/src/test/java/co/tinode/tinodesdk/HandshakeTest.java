@@ -0,0 +1,191 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.ServerMessage;
+
+public class HandshakeTest {
+    // Delay added to every server response, milliseconds.
+    private static final long LATENCY = 100;
+
+    private static final ObjectMapper sJson = new ObjectMapper();
+
+    private StandInServer mServer;
+    private Tinode mTinode;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mTinode != null) {
+            mTinode.maybeDisconnect(false);
+            mTinode = null;
+        }
+        if (mServer != null) {
+            mServer.stop(1000);
+            mServer.delayer.shutdownNow();
+            mServer = null;
+        }
+    }
+
+    // Sequential handshake takes three round trips, pipelined takes one.
+    @Test
+    public void testPipelinedSavesRoundTrips() throws Exception {
+        startServer();
+        connectAndSubscribe(false, "token");
+        assertEquals(List.of("hi 0", "login 1", "sub 2"), mServer.requests);
+        startServer();
+        connectAndSubscribe(true, "token");
+        assertEquals(List.of("hi 0", "login 0", "sub 0"), mServer.requests);
+    }
+
+    @Test
+    public void testPipelinedLoginFailure() throws Exception {
+        startServer();
+        mTinode.setPipelinedHandshake(true);
+        mTinode.setAutoLoginToken("bad");
+        AtomicReference<PromisedReply<ServerMessage>> sub = new AtomicReference<>();
+        mTinode.setHandshakeRequests(() -> sub.set(mTinode.subscribe(Tinode.TOPIC_ME, null, null)));
+
+        try {
+            mTinode.connect("localhost:" + mServer.getPort(), false, false).getResult();
+            fail("Connect must fail when login fails");
+        } catch (ServerResponseException ex) {
+            assertEquals(ServerMessage.STATUS_UNAUTHORIZED, ex.getCode());
+        }
+        assertFalse(mTinode.isAuthenticated());
+
+        try {
+            sub.get().getResult();
+            fail("Subscription must fail when login fails");
+        } catch (ServerResponseException ex) {
+            assertEquals(ServerMessage.STATUS_UNAUTHORIZED, ex.getCode());
+        }
+    }
+
+    // Connect, login and wait until the subscription is confirmed.
+    private void connectAndSubscribe(boolean pipelined, String token) throws Exception {
+        mTinode.setPipelinedHandshake(pipelined);
+        mTinode.setAutoLoginToken(token);
+        AtomicReference<PromisedReply<ServerMessage>> sub = new AtomicReference<>();
+        mTinode.setHandshakeRequests(() -> sub.set(mTinode.subscribe(Tinode.TOPIC_ME, null, null)));
+
+        mTinode.connect("localhost:" + mServer.getPort(), false, false).getResult();
+        ServerMessage reply = sub.get().getResult();
+
+        assertTrue(mTinode.isAuthenticated());
+        assertEquals(ServerMessage.STATUS_OK, reply.ctrl.code);
+    }
+
+    private void startServer() throws InterruptedException {
+        tearDown();
+        mServer = new StandInServer();
+        mServer.setReuseAddr(true);
+        mServer.start();
+        assertTrue("Server failed to start", mServer.started.await(5, TimeUnit.SECONDS));
+        mTinode = new Tinode("test", "apikey");
+    }
+
+    // Stand-in for Tinode server which delays every response by LATENCY. Requests are processed
+    // in order, {sub} fails unless the session is authenticated.
+    private static class StandInServer extends WebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+        final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+        // Received requests as "<type> <number of responses sent before the request arrived>".
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        private final Map<WebSocket, Boolean> mAuthenticated = new HashMap<>();
+        private final AtomicInteger mSent = new AtomicInteger();
+
+        StandInServer() {
+            super(new InetSocketAddress("localhost", 0));
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onMessage(WebSocket conn, String message) {
+            try {
+                Map<String, Object> request = sJson.readValue(message, Map.class);
+                requests.add(request.keySet().iterator().next() + " " + mSent.get());
+                String reply = sJson.writeValueAsString(reply(conn, request));
+                delayer.schedule(() -> {
+                    if (conn.isOpen()) {
+                        conn.send(reply);
+                        mSent.incrementAndGet();
+                    }
+                }, LATENCY, TimeUnit.MILLISECONDS);
+            } catch (Exception ex) {
+                conn.close();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<String, Object> reply(WebSocket conn, Map<String, Object> request) {
+            String type = request.keySet().iterator().next();
+            Map<String, Object> body = (Map<String, Object>) request.get(type);
+            Map<String, Object> ctrl = new HashMap<>();
+            Map<String, Object> params = new HashMap<>();
+            ctrl.put("id", body.get("id"));
+            ctrl.put("ts", "2023-01-02T03:04:05.678Z");
+            switch (type) {
+                case "hi":
+                    ctrl.put("code", 201);
+                    params.put("ver", "0.25");
+                    break;
+                case "login":
+                    if ("bad".equals(body.get("secret"))) {
+                        ctrl.put("code", 401);
+                    } else {
+                        mAuthenticated.put(conn, true);
+                        ctrl.put("code", 200);
+                        params.put("user", "usrAlice");
+                        params.put("token", "token");
+                        params.put("expires", "2030-01-02T03:04:05.678Z");
+                    }
+                    break;
+                default:
+                    ctrl.put("topic", body.get("topic"));
+                    ctrl.put("code", mAuthenticated.containsKey(conn) ? 200 : 401);
+            }
+            ctrl.put("text", "");
+            ctrl.put("params", params);
+            Map<String, Object> packet = new HashMap<>();
+            packet.put("ctrl", ctrl);
+            return packet;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+
+public class InMemoryStoreTest {
+    private static final String TOPIC = "grpkMNIAf6gEsA";
+    private static final String ME = "usrMe";
+    private static final String ALICE = "usrAlice";
+
+    private InMemoryStore mStore;
+    private Tinode mTinode;
+    private Topic mTopic;
+
+    @Before
+    public void setUp() {
+        mStore = new InMemoryStore();
+        mStore.setMyUid(ME, "ws://localhost:6060");
+        mTinode = new Tinode("store-test", "apikey", mStore, null);
+        mTopic = mTinode.newTopic(TOPIC, null);
+        mTopic.persist();
+    }
+
+    @Test
+    public void testMissingRanges() {
+        receive(1, 10);
+        receive(20, 30);
+
+        assertEquals(new MsgRange(1, 31), mStore.getCachedMessagesRange(mTopic));
+        assertArrayEquals(new MsgRange[]{new MsgRange(11, 20)},
+                mStore.getMissingRanges(mTopic, 31, 100, false));
+        // The page is too small to reach the gap.
+        assertNull(mStore.getMissingRanges(mTopic, 31, 5, false));
+        assertArrayEquals(new MsgRange[]{new MsgRange(11, 20)},
+                mStore.getMissingRanges(mTopic, 5, 100, true));
+        assertNull(mStore.getMissingRanges(mTopic, 20, 100, true));
+
+        assertArrayEquals(new MsgRange[]{new MsgRange(5, 11), new MsgRange(20, 25)},
+                mStore.msgIsCached(mTopic, new MsgRange[]{new MsgRange(5, 25)}));
+        assertArrayEquals(new MsgRange[]{new MsgRange(7)},
+                mStore.msgIsCached(mTopic, new MsgRange[]{new MsgRange(7), new MsgRange(15)}));
+
+        // Duplicate is not stored again.
+        assertEquals(0, mStore.msgReceived(mTopic, null, data(5, "again")).getDbId());
+        assertEquals("message 5", mStore.getMessageBySeq(mTopic, 5).getContent().txt);
+    }
+
+    @Test
+    public void testDeletions() {
+        receive(1, 30);
+
+        // Local deletion: messages are removed, the range is queued for sending to the server.
+        assertTrue(mStore.msgMarkToDelete(mTopic, 5, 10, false));
+        assertNull(mStore.getMessageBySeq(mTopic, 7));
+        assertArrayEquals(new MsgRange[]{new MsgRange(5, 10)}, mStore.getQueuedMessageDeletes(mTopic, false));
+        assertNull(mStore.getQueuedMessageDeletes(mTopic, true));
+        // Deleted messages are not missing.
+        assertNull(mStore.getMissingRanges(mTopic, 31, 100, false));
+        assertArrayEquals(new MsgRange[]{new MsgRange(1, 31)},
+                mStore.msgIsCached(mTopic, new MsgRange[]{new MsgRange(1, 31)}));
+
+        // Overlapping local deletion is merged with the queued one.
+        assertTrue(mStore.msgMarkToDelete(mTopic, new MsgRange[]{new MsgRange(8, 12)}, false));
+        assertArrayEquals(new MsgRange[]{new MsgRange(5, 12)}, mStore.getQueuedMessageDeletes(mTopic, false));
+
+        // Server confirms the deletion: the queued range is superseded.
+        assertTrue(mStore.msgDelete(mTopic, 1, 5, 12));
+        assertNull(mStore.getQueuedMessageDeletes(mTopic, false));
+        assertNull(mStore.getMissingRanges(mTopic, 31, 100, false));
+
+        // Deletion of everything.
+        assertTrue(mStore.msgDelete(mTopic, 2, 0, 0));
+        assertNull(mStore.getMessageBySeq(mTopic, 30));
+        Iterator<Storage.Message> latest = mStore.getLatestMessagePreviews();
+        assertNull(latest);
+    }
+
+    @Test
+    public void testOutbox() throws Exception {
+        receive(1, 3);
+
+        Storage.Message sending = mStore.msgSend(mTopic, Drafty.fromPlainText("sending"), null);
+        Storage.Message draft = mStore.msgDraft(mTopic, Drafty.fromPlainText("draft"), null);
+        assertTrue(sending.isMine());
+        assertTrue(sending.getSeqId() >= InMemoryStore.UNSENT_ID_START);
+        assertEquals(InMemoryStore.STATUS_SENDING, sending.getStatus());
+        assertEquals(InMemoryStore.STATUS_DRAFT, draft.getStatus());
+        assertTrue(queued().isEmpty());
+
+        assertTrue(mStore.msgReady(mTopic, draft.getDbId(), Drafty.fromPlainText("ready")));
+        assertTrue(mStore.msgSyncing(mTopic, sending.getDbId(), false));
+        List<Storage.Message> queued = queued();
+        assertEquals(2, queued.size());
+        assertEquals(sending.getDbId(), queued.get(0).getDbId());
+        assertEquals("ready", queued.get(1).getContent().txt);
+
+        assertTrue(mStore.msgDelivered(mTopic, sending.getDbId(), new Date(), 4));
+        assertEquals(1, queued().size());
+        Storage.Message delivered = mStore.getMessageBySeq(mTopic, 4);
+        assertEquals(sending.getDbId(), delivered.getDbId());
+        assertTrue(delivered.isSynced());
+        assertEquals(new MsgRange(1, 5), mStore.getCachedMessagesRange(mTopic));
+
+        assertTrue(mStore.msgFailed(mTopic, draft.getDbId()));
+        assertTrue(queued().isEmpty());
+        assertTrue(mStore.msgPruneFailed(mTopic));
+        assertNull(mStore.getMessageById(draft.getDbId()));
+    }
+
+    @Test
+    public void testEdits() {
+        receive(1, 5);
+        assertNotNull(mStore.msgReceived(mTopic, null, edit(6, 3, "edit 1")));
+        assertNotNull(mStore.msgReceived(mTopic, null, edit(7, 3, "edit 2")));
+
+        // The latest version is visible at the seq of the original.
+        Storage.Message msg = mStore.getMessageBySeq(mTopic, 3);
+        assertEquals("edit 2", msg.getContent().txt);
+        assertEquals(3, msg.getSeqId());
+        assertArrayEquals(new int[]{7, 6}, mStore.getAllMsgVersions(mTopic, 3, 0));
+        assertArrayEquals(new int[]{7}, mStore.getAllMsgVersions(mTopic, 3, 1));
+
+        // Edit received before the original.
+        assertNotNull(mStore.msgReceived(mTopic, null, edit(9, 8, "edit of 8")));
+        assertNull(mStore.getMessageBySeq(mTopic, 8));
+        assertNotNull(mStore.msgReceived(mTopic, null, data(8, "original")));
+        assertEquals("edit of 8", mStore.getMessageBySeq(mTopic, 8).getContent().txt);
+
+        // Deleting the original removes the visible version too.
+        assertTrue(mStore.msgDelete(mTopic, 1, 3, 4));
+        assertNull(mStore.getMessageBySeq(mTopic, 3));
+        assertNull(mStore.getMessageBySeq(mTopic, 7));
+        assertEquals("message 4", mStore.getMessageBySeq(mTopic, 4).getContent().txt);
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        receive(1, 10);
+        mStore.setRead(mTopic, 7);
+        mTopic.setPub("public");
+        mStore.topicUpdate(mTopic);
+
+        Tinode tinode = new Tinode("store-test", "apikey", mStore, null);
+        Topic topic = tinode.getTopic(TOPIC);
+        assertNotNull(topic);
+        assertEquals("public", topic.getPub());
+        assertEquals(10, topic.getSeq());
+        assertEquals(7, topic.getRead());
+        assertEquals("message 10", tinode.getLastMessage(TOPIC).getContent().txt);
+        assertEquals(new MsgRange(1, 11), mStore.getCachedMessagesRange(topic));
+
+        // Another account does not see the data.
+        mStore.setMyUid("usrOther", "ws://localhost:6060");
+        assertNull(mStore.topicGetAll(tinode));
+    }
+
+    // A million messages with gaps. Speed of the range queries is measured by StoreBenchmark.
+    @Test
+    public void testLargeTopic() throws Exception {
+        final int count = 1_000_000;
+        MsgServerData m = data(0, "x");
+        for (int seq = 1; seq <= count; seq++) {
+            if (seq % 1000 == 0) {
+                // Leave gaps.
+                continue;
+            }
+            m.seq = seq;
+            mStore.msgReceived(mTopic, null, m);
+        }
+        for (int i = 0; i < 100; i++) {
+            mStore.msgReady(mTopic, mStore.msgDraft(mTopic, Drafty.fromPlainText("q" + i), null).getDbId(), null);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            int from = 1 + (i * 997) % (count - 200);
+            MsgRange[] missing = mStore.getMissingRanges(mTopic, from, 100, true);
+            MsgRange[] cached = mStore.msgIsCached(mTopic, new MsgRange[]{new MsgRange(from, from + 50)});
+            assertTrue(missing == null || missing.length == 1);
+            assertTrue(cached.length >= 1);
+            Iterator<Storage.Message> queued = mStore.getQueuedMessages(mTopic);
+            assertTrue(queued.hasNext());
+        }
+    }
+
+    private void receive(int from, int to) {
+        for (int seq = from; seq <= to; seq++) {
+            assertNotNull(mStore.msgReceived(mTopic, null, data(seq, "message " + seq)));
+        }
+    }
+
+    private List<Storage.Message> queued() throws Exception {
+        List<Storage.Message> list = new ArrayList<>();
+        Iterator<Storage.Message> it = mStore.getQueuedMessages(mTopic);
+        if (it != null) {
+            it.forEachRemaining(list::add);
+            ((Closeable) it).close();
+        }
+        return list;
+    }
+
+    private static MsgServerData data(int seq, String text) {
+        MsgServerData m = new MsgServerData();
+        m.topic = TOPIC;
+        m.from = ALICE;
+        m.ts = new Date(1_700_000_000_000L + seq * 1000L);
+        m.seq = seq;
+        m.content = Drafty.fromPlainText(text);
+        return m;
+    }
+
+    private static MsgServerData edit(int seq, int replaces, String text) {
+        MsgServerData m = data(seq, text);
+        m.head = Map.of("replace", ":" + replaces);
+        return m;
+    }
+}
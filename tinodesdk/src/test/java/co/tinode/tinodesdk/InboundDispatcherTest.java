@@ -0,0 +1,131 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+public class InboundDispatcherTest {
+    // Simulated cost of routing one packet: database insert and listener callbacks. Throughput is
+    // measured by InboundDispatcherBenchmark.
+    private static final long ROUTE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final int PACKETS = 2_000;
+
+    @Test
+    public void testPerKeyOrder() throws Exception {
+        InboundDispatcher dispatcher = new InboundDispatcher(4, 16);
+        Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        for (int i = 0; i < PACKETS; i++) {
+            String topic = "grp" + (i % 7);
+            final int seq = i;
+            dispatcher.execute(topic, () -> seen.computeIfAbsent(topic, k -> new ArrayList<>()).add(seq));
+        }
+        assertTrue(dispatcher.awaitIdle(5_000));
+        dispatcher.shutdown();
+
+        int total = 0;
+        for (List<Integer> list : seen.values()) {
+            for (int j = 1; j < list.size(); j++) {
+                assertTrue("Out of order: " + list, list.get(j - 1) < list.get(j));
+            }
+            total += list.size();
+        }
+        assertEquals(PACKETS, total);
+    }
+
+    @Test
+    public void testSlowTopicDoesNotBlockOthers() throws Exception {
+        InboundDispatcher dispatcher = new InboundDispatcher(2, 16);
+        Object stall = new Object();
+        synchronized (stall) {
+            dispatcher.execute("grpSlow", () -> {
+                synchronized (stall) {
+                    // Wait for the test to release the lock.
+                }
+            });
+            for (int i = 0; i < 100; i++) {
+                dispatcher.execute("grpFast", () -> LockSupport.parkNanos(ROUTE_NANOS));
+            }
+            assertFalse(dispatcher.awaitIdle(200));
+        }
+        assertTrue(dispatcher.awaitIdle(5_000));
+        dispatcher.shutdown();
+    }
+
+    // Submitting threads which must not block get a signal instead and are called back when capacity frees.
+    @Test
+    public void testOfferWhenFull() throws Exception {
+        InboundDispatcher dispatcher = new InboundDispatcher(2, 4);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch available = new CountDownLatch(1);
+        List<Integer> routed = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            final int seq = i;
+            boolean accepted = dispatcher.offer("grpFull", () -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException ignored) {
+                }
+                routed.add(seq);
+            });
+            assertEquals("Packet " + i, i < 4, accepted);
+        }
+        dispatcher.whenAvailable(available::countDown);
+        assertEquals(1, available.getCount());
+
+        gate.countDown();
+        assertTrue(available.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.awaitIdle(5_000));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5), routed);
+
+        // Capacity is free: called right away.
+        CountDownLatch now = new CountDownLatch(1);
+        dispatcher.whenAvailable(now::countDown);
+        assertEquals(0, now.getCount());
+        dispatcher.shutdown();
+    }
+
+    // Callback runs after the handlers queued before it, not after the handlers queued later.
+    @Test
+    public void testAfterQueued() throws Exception {
+        InboundDispatcher dispatcher = new InboundDispatcher(2, 16);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch later = new CountDownLatch(1);
+        CountDownLatch called = new CountDownLatch(1);
+        List<String> routed = new ArrayList<>();
+        dispatcher.execute("grpHeld", () -> {
+            try {
+                gate.await();
+            } catch (InterruptedException ignored) {
+            }
+            routed.add("held");
+        });
+        dispatcher.afterQueued(called::countDown);
+        dispatcher.execute("grpHeld", () -> {
+            try {
+                later.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        assertEquals(1, called.getCount());
+
+        gate.countDown();
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("held"), routed);
+        later.countDown();
+        assertTrue(dispatcher.awaitIdle(5_000));
+
+        // Nothing queued: called right away.
+        CountDownLatch now = new CountDownLatch(1);
+        dispatcher.afterQueued(now::countDown);
+        assertEquals(0, now.getCount());
+        dispatcher.shutdown();
+    }
+}
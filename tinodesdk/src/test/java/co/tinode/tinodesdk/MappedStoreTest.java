@@ -0,0 +1,287 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.Subscription;
+
+public class MappedStoreTest {
+    private static final String TOPIC = "grpkMNIAf6gEsA";
+    private static final String ME = "usrMe";
+    private static final String ALICE = "usrAlice";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private MappedStore mStore;
+    private Topic mTopic;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mFolder.newFolder("store");
+        mStore = new MappedStore(mDir);
+        mStore.setMyUid(ME, "ws://localhost:6060");
+        Tinode tinode = new Tinode("store-test", "apikey", mStore, null);
+        mTopic = tinode.newTopic(TOPIC, null);
+        mTopic.persist();
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testReopen() throws Exception {
+        mTopic.setPub("group");
+        mStore.topicUpdate(mTopic);
+        Subscription sub = new Subscription();
+        sub.user = ALICE;
+        sub.pub = "Alice";
+        sub.read = 3;
+        mStore.subAdd(mTopic, sub);
+        mStore.saveDeviceToken("token");
+
+        receive(1, 20);
+        mStore.msgReceived(mTopic, null, edit(21, 5, "edit of 5"));
+        assertTrue(mStore.msgDelete(mTopic, 1, 10, 12));
+        assertTrue(mStore.msgMarkToDelete(mTopic, 15, 17, true));
+        Storage.Message sent = mStore.msgSend(mTopic, Drafty.fromPlainText("sent"), null);
+        assertTrue(mStore.msgDelivered(mTopic, sent.getDbId(), new Date(), 22));
+        Storage.Message draft = mStore.msgDraft(mTopic, Drafty.fromPlainText("draft"), null);
+        assertTrue(mStore.msgReady(mTopic, draft.getDbId(), Drafty.fromPlainText("queued")));
+        assertTrue(mStore.msgDiscardSeq(mTopic, 20));
+        mStore.setRead(mTopic, 8);
+
+        Tinode tinode = reopen();
+        assertEquals(ME, mStore.getMyUid());
+        assertEquals("token", mStore.getDeviceToken());
+        Topic topic = tinode.getTopic(TOPIC);
+        assertNotNull(topic);
+        assertEquals("group", topic.getPub());
+        assertEquals(22, topic.getSeq());
+        assertEquals(8, topic.getRead());
+
+        Collection<Subscription> subs = mStore.getSubscriptions(topic);
+        assertEquals(1, subs.size());
+        Subscription restored = subs.iterator().next();
+        assertEquals(ALICE, restored.user);
+        assertEquals("Alice", restored.pub);
+        assertEquals(3, restored.read);
+        assertEquals("Alice", mStore.userGet(ALICE).pub);
+
+        assertState(topic, draft.getDbId());
+
+        // New messages continue after the restored ones.
+        Storage.Message next = mStore.msgSend(topic, Drafty.fromPlainText("next"), null);
+        assertTrue(next.getDbId() > draft.getDbId());
+        assertTrue(next.getSeqId() > InMemoryStore.UNSENT_ID_START + 1);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        String padding = "x".repeat(1000);
+        for (int seq = 1; seq <= 3000; seq++) {
+            mStore.msgReceived(mTopic, null, data(seq, seq + " " + padding));
+        }
+        File dir = topicDir();
+        long before = size(dir);
+        assertTrue(mStore.msgDelete(mTopic, 1, 1, 2500));
+        mStore.msgReceived(mTopic, null, edit(3001, 2800, "edit of 2800"));
+
+        // Compaction also starts in the background, run it right away to check the result.
+        mStore.compact();
+        assertTrue("Log was not compacted", size(dir) < before / 2);
+        assertEquals("edit of 2800", mStore.getMessageBySeq(mTopic, 2800).getContent().txt);
+        assertEquals("2900 " + padding, mStore.getMessageBySeq(mTopic, 2900).getContent().txt);
+
+        Tinode tinode = reopen();
+        Topic topic = tinode.getTopic(TOPIC);
+        assertNull(mStore.getMessageBySeq(topic, 2499));
+        assertEquals("edit of 2800", mStore.getMessageBySeq(topic, 2800).getContent().txt);
+        assertEquals("2500 " + padding, mStore.getMessageBySeq(topic, 2500).getContent().txt);
+        assertArrayEquals(new int[]{3001}, mStore.getAllMsgVersions(topic, 2800, 0));
+        assertNull(mStore.getMissingRanges(topic, 3002, 100, false));
+        assertEquals(new MsgRange(1, 3002), mStore.getCachedMessagesRange(topic));
+    }
+
+    // Messages received while the new log is being written are not lost.
+    @Test
+    public void testWriteDuringCompaction() throws Exception {
+        String padding = "x".repeat(1000);
+        for (int seq = 1; seq <= 3000; seq++) {
+            mStore.msgReceived(mTopic, null, data(seq, seq + " " + padding));
+        }
+        assertTrue(mStore.msgDelete(mTopic, 1, 1, 2500));
+
+        Thread compactor = new Thread(mStore::compact);
+        compactor.start();
+        for (int seq = 3001; seq <= 3200; seq++) {
+            mStore.msgReceived(mTopic, null, data(seq, seq + " " + padding));
+        }
+        mStore.msgReceived(mTopic, null, edit(3201, 2900, "edit of 2900"));
+        compactor.join();
+        assertEquals("3100 " + padding, mStore.getMessageBySeq(mTopic, 3100).getContent().txt);
+
+        Tinode tinode = reopen();
+        Topic topic = tinode.getTopic(TOPIC);
+        assertNull(mStore.getMessageBySeq(topic, 2499));
+        assertEquals("2500 " + padding, mStore.getMessageBySeq(topic, 2500).getContent().txt);
+        assertEquals("edit of 2900", mStore.getMessageBySeq(topic, 2900).getContent().txt);
+        assertEquals("3200 " + padding, mStore.getMessageBySeq(topic, 3200).getContent().txt);
+        assertEquals(new MsgRange(1, 3202), mStore.getCachedMessagesRange(topic));
+    }
+
+    // Process killed in the middle of writing a record.
+    @Test
+    public void testIncompleteRecord() throws Exception {
+        receive(1, 10);
+        mStore.close();
+
+        File segment = new File(topicDir(), "0-0.seg");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long end = file.length();
+            while (end > 0) {
+                file.seek(end - 1);
+                if (file.read() != 0) {
+                    break;
+                }
+                end--;
+            }
+            // Header of a record with only a part of the payload written.
+            file.seek(end);
+            file.writeInt(100);
+            file.writeInt(12345);
+            file.write(new byte[]{1, 2, 3});
+        }
+
+        Tinode tinode = reopen();
+        Topic topic = tinode.getTopic(TOPIC);
+        assertEquals("message 10", mStore.getMessageBySeq(topic, 10).getContent().txt);
+        mStore.msgReceived(topic, null, data(11, "message 11"));
+
+        tinode = reopen();
+        topic = tinode.getTopic(TOPIC);
+        assertEquals("message 10", mStore.getMessageBySeq(topic, 10).getContent().txt);
+        assertEquals("message 11", mStore.getMessageBySeq(topic, 11).getContent().txt);
+    }
+
+    @Test
+    public void testLogout() throws Exception {
+        receive(1, 5);
+        mStore.logout();
+
+        reopen();
+        assertNull(mStore.getMyUid());
+        assertNull(mStore.topicGetAll(null));
+    }
+
+    // Speed of opening and reading a large topic is measured by StoreBenchmark.
+    @Test
+    public void testLargeTopic() throws Exception {
+        final int count = 200_000;
+        MsgServerData m = data(0, "message text");
+        for (int seq = 1; seq <= count; seq++) {
+            m.seq = seq;
+            mStore.msgReceived(mTopic, null, m);
+        }
+
+        Tinode tinode = reopen();
+        Topic topic = tinode.getTopic(TOPIC);
+
+        for (int i = 0; i < 10_000; i++) {
+            int seq = 1 + (i * 7919) % count;
+            assertEquals(seq, mStore.getMessageBySeq(topic, seq).getSeqId());
+        }
+        assertEquals(new MsgRange(1, count + 1), mStore.getCachedMessagesRange(topic));
+    }
+
+    // Check the state created by testReopen.
+    private void assertState(Topic topic, long draftId) throws Exception {
+        assertEquals("message 1", mStore.getMessageBySeq(topic, 1).getContent().txt);
+        assertEquals("edit of 5", mStore.getMessageBySeq(topic, 5).getContent().txt);
+        assertArrayEquals(new int[]{21}, mStore.getAllMsgVersions(topic, 5, 0));
+        assertNull(mStore.getMessageBySeq(topic, 11));
+        assertNull(mStore.getMessageBySeq(topic, 16));
+        assertNull(mStore.getMessageBySeq(topic, 20));
+        assertEquals("sent", mStore.getMessageBySeq(topic, 22).getContent().txt);
+        assertArrayEquals(new MsgRange[]{new MsgRange(15, 17)}, mStore.getQueuedMessageDeletes(topic, true));
+        // Discarded message leaves a gap.
+        assertArrayEquals(new MsgRange[]{new MsgRange(20, 21)}, mStore.getMissingRanges(topic, 23, 100, false));
+
+        List<Storage.Message> queued = new ArrayList<>();
+        Iterator<Storage.Message> it = mStore.getQueuedMessages(topic);
+        it.forEachRemaining(queued::add);
+        ((Closeable) it).close();
+        assertEquals(1, queued.size());
+        assertEquals(draftId, queued.get(0).getDbId());
+        assertEquals("queued", queued.get(0).getContent().txt);
+        assertTrue(queued.get(0).isMine());
+    }
+
+    // Close the store and open it again.
+    private Tinode reopen() throws Exception {
+        mStore.close();
+        mStore = new MappedStore(mDir);
+        return new Tinode("store-test", "apikey", mStore, null);
+    }
+
+    private void receive(int from, int to) {
+        for (int seq = from; seq <= to; seq++) {
+            assertNotNull(mStore.msgReceived(mTopic, null, data(seq, "message " + seq)));
+        }
+    }
+
+    // Directory with the log of the test topic.
+    private File topicDir() {
+        long id = ((InMemoryStore.StoredTopic) mTopic.getLocal()).id;
+        return new File(new File(mDir, "topics"), Long.toString(id));
+    }
+
+    private static long size(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static MsgServerData data(int seq, String text) {
+        MsgServerData m = new MsgServerData();
+        m.topic = TOPIC;
+        m.from = ALICE;
+        m.ts = new Date(1_700_000_000_000L + seq * 1000L);
+        m.seq = seq;
+        m.content = Drafty.fromPlainText(text);
+        return m;
+    }
+
+    private static MsgServerData edit(int seq, int replaces, String text) {
+        MsgServerData m = data(seq, text);
+        m.head = Map.of("replace", ":" + replaces);
+        return m;
+    }
+}
@@ -0,0 +1,173 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.MsgServerPres;
+import co.tinode.tinodesdk.model.PrivateType;
+import co.tinode.tinodesdk.model.Subscription;
+import co.tinode.tinodesdk.sim.SimServer;
+
+public class MeTopicTest {
+    private static final int TOPICS = 600;
+
+    // Store which counts batches of updates.
+    private static class CountingStore extends InMemoryStore {
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger topicsInBatch = new AtomicInteger();
+        final AtomicInteger topicsOutside = new AtomicInteger();
+        private boolean mInBatch = false;
+
+        @Override
+        public synchronized void runBatch(Runnable updates) {
+            batches.incrementAndGet();
+            mInBatch = true;
+            try {
+                super.runBatch(updates);
+            } finally {
+                mInBatch = false;
+            }
+        }
+
+        @Override
+        public synchronized long topicAdd(Topic topic) {
+            (mInBatch ? topicsInBatch : topicsOutside).incrementAndGet();
+            return super.topicAdd(topic);
+        }
+    }
+
+    private CountingStore mStore;
+    private Tinode mTinode;
+
+    @Before
+    public void setUp() {
+        mStore = new CountingStore();
+        mStore.setMyUid("usrMe", "ws://localhost:6060");
+        mTinode = SimServer.configure(new Tinode("me-test", "apikey", mStore, null));
+        mTinode.setInboundConcurrency(0);
+    }
+
+    // Long list of subscriptions is saved in batches, the most recently touched topics first.
+    @Test
+    public void testSubsInBatches() throws Exception {
+        final List<String> order = new ArrayList<>();
+        final List<Integer> updates = new ArrayList<>();
+        MeTopic<?> me = new MeTopic<>(mTinode, new MeTopic.MeListener<Object>() {
+            @Override
+            public void onMetaSub(Subscription<Object, PrivateType> sub) {
+                order.add(sub.topic);
+            }
+
+            @Override
+            public void onSubsUpdated() {
+                // Topics available to the list of chats.
+                updates.add(mTinode.getFilteredTopics(t -> !((Topic) t).isMeType()).size());
+            }
+        });
+        me.persist();
+        mStore.topicsOutside.set(0);
+
+        StringBuilder meta = new StringBuilder(
+                "{\"meta\":{\"topic\":\"me\",\"ts\":\"2024-01-01T00:00:00.000Z\",\"sub\":[");
+        for (int i = 0; i < TOPICS; i++) {
+            if (i > 0) {
+                meta.append(',');
+            }
+            // Topics touched in random order.
+            int touched = (i * 7919) % TOPICS;
+            meta.append("{\"topic\":\"grp").append(touched)
+                    .append("\",\"updated\":\"2023-01-01T00:00:00.000Z\",\"touched\":\"")
+                    .append(timestamp(touched)).append("\",\"public\":{\"fn\":\"Group ").append(touched).append("\"}}");
+        }
+        meta.append("]}}");
+        mTinode.replayPacket(meta.toString());
+
+        assertEquals(3, mStore.batches.get());
+        assertEquals(TOPICS, mStore.topicsInBatch.get());
+        assertEquals(0, mStore.topicsOutside.get());
+        // Listeners are notified after each batch.
+        assertEquals(List.of(256, 512, TOPICS), updates);
+        assertEquals(TOPICS, order.size());
+        assertEquals("grp" + (TOPICS - 1), order.get(0));
+        assertEquals("grp0", order.get(TOPICS - 1));
+        // All topics are saved.
+        Tinode reloaded = SimServer.configure(new Tinode("me-test", "apikey", mStore, null));
+        assertEquals(TOPICS + 1, reloaded.getTopics().size());
+    }
+
+    // Changes to other topics made while routing 'me' are applied in order with the packets of those topics.
+    @Test
+    public void testPresForwardedToTopic() throws Exception {
+        mTinode.setInboundConcurrency(2);
+        CountDownLatch routed = new CountDownLatch(1);
+        new MeTopic<>(mTinode, new MeTopic.MeListener<Object>() {
+            @Override
+            public void onPres(MsgServerPres pres) {
+                routed.countDown();
+            }
+        });
+        Topic<?, ?, ?, ?> topic = mTinode.newTopic("grpForwarded", null);
+
+        // Hold packets of the topic.
+        CountDownLatch gate = new CountDownLatch(1);
+        mTinode.routeTo(topic.getName(), () -> {
+            try {
+                gate.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        mTinode.replayPacket("{\"pres\":{\"topic\":\"me\",\"src\":\"grpForwarded\",\"what\":\"read\",\"seq\":5}}");
+        assertTrue(routed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, topic.getRead());
+
+        gate.countDown();
+        assertTrue(mTinode.awaitRouted(5_000));
+        assertEquals(5, topic.getRead());
+        assertEquals(5, topic.getRecv());
+    }
+
+    // Subscription updates of 'me' change other topics in order with the packets of those topics.
+    @Test
+    public void testSubForwardedToTopic() throws Exception {
+        mTinode.setInboundConcurrency(2);
+        CountDownLatch updated = new CountDownLatch(1);
+        new MeTopic<>(mTinode, new MeTopic.MeListener<Object>() {
+            @Override
+            public void onSubsUpdated() {
+                updated.countDown();
+            }
+        });
+        Topic<?, ?, ?, ?> topic = mTinode.newTopic("grpForwarded", null);
+
+        // Hold packets of the topic.
+        CountDownLatch gate = new CountDownLatch(1);
+        mTinode.routeTo(topic.getName(), () -> {
+            try {
+                gate.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        mTinode.replayPacket("{\"meta\":{\"topic\":\"me\",\"ts\":\"2024-01-01T00:00:00.000Z\",\"sub\":[" +
+                "{\"topic\":\"grpForwarded\",\"updated\":\"2024-01-01T00:00:00.000Z\",\"seq\":7}]}}");
+        assertFalse(updated.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, topic.getSeq());
+
+        gate.countDown();
+        assertTrue(updated.await(5, TimeUnit.SECONDS));
+        assertEquals(7, topic.getSeq());
+    }
+
+    private static String timestamp(int minutes) {
+        return String.format("2024-01-01T%02d:%02d:00.000Z", minutes / 60, minutes % 60);
+    }
+}
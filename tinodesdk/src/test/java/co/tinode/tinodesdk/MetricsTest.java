@@ -0,0 +1,78 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.ClientMessage;
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgClientNote;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.ServerMessage;
+
+public class MetricsTest {
+    @Test
+    public void testCounters() {
+        Metrics metrics = new Metrics();
+        metrics.packetIn(new ServerMessage(new MsgServerData()));
+        metrics.packetIn(new ServerMessage(new MsgServerData()));
+        metrics.packetOut(new ClientMessage(new MsgClientNote("grpAbC", Tinode.NOTE_READ, 1)));
+        metrics.bytesIn(100);
+        metrics.reconnect(1500);
+        metrics.reconnect(3000);
+        metrics.timeout();
+
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2L, (long) snapshot.packetsIn.get("data"));
+        assertEquals(0L, (long) snapshot.packetsIn.get("ctrl"));
+        assertEquals(1L, (long) snapshot.packetsOut.get("note"));
+        assertEquals(100, snapshot.bytesIn);
+        assertEquals(2, snapshot.reconnects);
+        assertEquals(4500, snapshot.backoffMillis);
+        assertEquals(1, snapshot.timeouts);
+
+        // Snapshot is not affected by later updates.
+        metrics.timeout();
+        assertEquals(1, snapshot.timeouts);
+        assertEquals(2, metrics.snapshot().timeouts);
+    }
+
+    @Test
+    public void testDistribution() {
+        Metrics metrics = new Metrics();
+        assertEquals(0, metrics.snapshot().roundTrip.percentileMicros(50));
+        for (int i = 0; i < 99; i++) {
+            metrics.roundTrip(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        metrics.roundTrip(TimeUnit.MILLISECONDS.toNanos(50));
+
+        Metrics.Distribution rtt = metrics.snapshot().roundTrip;
+        assertEquals(100, rtt.count);
+        assertEquals(99 * 100 + 50_000, rtt.sumMicros);
+        // 100us falls into [64, 128), 50ms into [32768, 65536).
+        assertEquals(128, rtt.percentileMicros(50));
+        assertEquals(128, rtt.percentileMicros(99));
+        assertEquals(65536, rtt.percentileMicros(100));
+    }
+
+    @Test
+    public void testStorageTiming() {
+        InMemoryStore store = new InMemoryStore();
+        store.setMyUid("usrMe", "ws://localhost:6060");
+        Tinode tinode = new Tinode("metrics-test", "apikey", store, null);
+        Topic<?, ?, ?, ?> topic = tinode.newTopic("grpkMNIAf6gEsA", null);
+        topic.persist();
+
+        MsgServerData data = new MsgServerData();
+        data.topic = topic.getName();
+        data.from = "usrAlice";
+        data.ts = new Date();
+        data.seq = 1;
+        data.content = Drafty.fromPlainText("hello");
+        topic.routeData(data);
+        assertEquals(1, tinode.getMetrics().snapshot().storage.count);
+    }
+}
@@ -0,0 +1,272 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.sim.SimServer;
+import co.tinode.tinodesdk.sim.SimWorld;
+
+public class NioTransportTest {
+    private WebSocketServer mServer;
+    private final BlockingQueue<String> mServerReceived = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mApiKeys = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        // Echoes messages back. Commands: "close" closes the connection, "fragments" sends a fragmented message.
+        mServer = new WebSocketServer(new InetSocketAddress("localhost", 0)) {
+            @Override
+            public void onOpen(WebSocket conn, ClientHandshake handshake) {
+                mApiKeys.add(handshake.getFieldValue("X-Tinode-APIKey"));
+            }
+
+            @Override
+            public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+                mServerReceived.add("closed " + code);
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+                mServerReceived.add(message);
+                switch (message) {
+                    case "close" -> conn.close(CloseFrame.GOING_AWAY, "bye");
+                    case "fragments" -> {
+                        conn.sendFragmentedFrame(Opcode.TEXT, utf8("one "), false);
+                        conn.sendFragmentedFrame(Opcode.TEXT, utf8("two "), false);
+                        conn.sendFragmentedFrame(Opcode.TEXT, utf8("three"), true);
+                    }
+                    default -> conn.send(message);
+                }
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, ByteBuffer message) {
+                conn.send(message);
+            }
+
+            @Override
+            public void onError(WebSocket conn, Exception ex) {
+            }
+
+            @Override
+            public void onStart() {
+                started.countDown();
+            }
+        };
+        mServer.setReuseAddr(true);
+        mServer.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop(1000);
+    }
+
+    @Test
+    public void testMessages() throws Exception {
+        Events events = new Events();
+        Transport transport = open(events);
+        assertEquals("apikey", mApiKeys.poll(5, TimeUnit.SECONDS));
+
+        transport.send("Привет ✓");
+        assertEquals("Привет ✓", events.next());
+
+        // Large message: extended length, several socket reads.
+        String large = "x".repeat(300_000);
+        transport.sendText(utf8(large));
+        assertEquals(large, events.next());
+
+        transport.sendBinary(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        assertEquals("binary 3", events.next());
+
+        transport.send("fragments");
+        assertEquals("one two three", events.next());
+
+        transport.close();
+        assertEquals("close " + CloseFrame.NORMAL + " local", events.next());
+        assertFalse(transport.isOpen());
+        assertEquals("closed " + CloseFrame.NORMAL, poll("closed"));
+        try {
+            transport.send("after close");
+            fail("Closed transport must not send");
+        } catch (NotConnectedException ignored) {
+        }
+    }
+
+    @Test
+    public void testClosedByServer() throws Exception {
+        Events events = new Events();
+        Transport transport = open(events);
+        transport.send("close");
+        assertEquals("close " + CloseFrame.GOING_AWAY + " remote", events.next());
+        assertFalse(transport.isOpen());
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        Events events = new Events();
+        int port = mServer.getPort();
+        mServer.stop(1000);
+        Transport transport = NioTransport.factory().create(new URI("ws://localhost:" + port + "/v0/channels"),
+                Map.of(), 3000, events);
+        transport.connect();
+        assertTrue(events.next().startsWith("error "));
+        assertEquals("close " + CloseFrame.NEVER_CONNECTED + " local", events.next());
+    }
+
+    // Paused transport does not read: messages sent by the server are delivered after resuming.
+    @Test
+    public void testPauseReading() throws Exception {
+        Events events = new Events();
+        Transport transport = open(events);
+        assertTrue(transport.canPauseReading());
+        transport.pauseReading();
+        transport.send("paused");
+        assertEquals("paused", poll("paused"));
+        assertNull(events.poll(200));
+
+        transport.resumeReading();
+        assertEquals("paused", events.next());
+        transport.close();
+        assertEquals("close " + CloseFrame.NORMAL + " local", events.next());
+    }
+
+    // Concurrent lookups of one name are merged and the result is reused.
+    @Test
+    public void testHostResolver() throws Exception {
+        String host = "resolver-test.localhost";
+        assertSame(HostResolver.resolve(host), HostResolver.resolve(host));
+        assertNotNull(HostResolver.resolve("localhost").get(5, TimeUnit.SECONDS));
+        assertSame(HostResolver.resolve("localhost"), HostResolver.resolve("localhost"));
+    }
+
+    // Many clients in one process: the number of threads must not grow with the number of clients.
+    @Test
+    public void testManyClients() throws Exception {
+        final int clients = 500;
+        SimServer server = new SimServer(SimWorld.generate(clients, 10, 5, 10, 1), 0);
+        server.startAndWait();
+        List<Tinode> tinodes = new ArrayList<>();
+        try {
+            int threadsBefore = Thread.activeCount();
+            for (int i = 0; i < clients; i++) {
+                Tinode tinode = SimServer.configure(new Tinode("nio-test", "apikey"));
+                tinode.setTransportFactory(NioTransport.factory());
+                tinodes.add(tinode);
+                tinode.connect(server.address(), false, false);
+            }
+            for (int i = 0; i < clients; i++) {
+                SimWorld.Account account = server.world().account(i);
+                Tinode tinode = tinodes.get(i);
+                assertTrue(waitFor(tinode::isConnected, 10_000));
+                tinode.loginBasic(account.login(), account.password()).getResult();
+            }
+            int grown = Thread.activeCount() - threadsBefore;
+            assertTrue("Too many threads: +" + grown, grown < 40);
+        } finally {
+            for (Tinode tinode : tinodes) {
+                tinode.maybeDisconnect(false);
+            }
+            server.shutdown();
+        }
+    }
+
+    private Transport open(Events events) throws Exception {
+        Transport transport = NioTransport.factory().create(
+                new URI("ws://localhost:" + mServer.getPort() + "/v0/channels"),
+                Map.of("X-Tinode-APIKey", "apikey"), 3000, events);
+        transport.connect();
+        assertEquals("open", events.next());
+        assertTrue(transport.isOpen());
+        return transport;
+    }
+
+    private String poll(String prefix) throws InterruptedException {
+        String msg;
+        while ((msg = mServerReceived.poll(5, TimeUnit.SECONDS)) != null) {
+            if (msg.startsWith(prefix)) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private static ByteBuffer utf8(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Collects transport events as strings.
+    private static class Events implements Transport.Listener {
+        private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+
+        String poll(long timeout) throws InterruptedException {
+            return mEvents.poll(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        String next() throws InterruptedException {
+            String event = mEvents.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No event", event);
+            return event;
+        }
+
+        @Override
+        public void onOpen(Transport transport) {
+            mEvents.add("open");
+        }
+
+        @Override
+        public void onMessage(Transport transport, String message) {
+            mEvents.add(message);
+        }
+
+        @Override
+        public void onMessage(Transport transport, ByteBuffer message) {
+            mEvents.add("binary " + message.remaining());
+        }
+
+        @Override
+        public void onClose(Transport transport, int code, String reason, boolean remote) {
+            mEvents.add("close " + code + (remote ? " remote" : " local"));
+        }
+
+        @Override
+        public void onError(Transport transport, Exception ex) {
+            mEvents.add("error " + ex);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class NoteCoalescerTest {
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> mSent = new ArrayList<>();
+    private boolean mConnected = true;
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    private synchronized void send(String topic, String what, int seq) {
+        if (!mConnected) {
+            throw new NotConnectedException("No connection");
+        }
+        mSent.add(topic + ":" + what + ":" + seq);
+    }
+
+    @Test
+    public void testCoalesce() {
+        // Long window: flushed explicitly.
+        NoteCoalescer notes = new NoteCoalescer(this::send, mScheduler, 60_000);
+        for (int seq = 1; seq <= 100; seq++) {
+            notes.note("grpA", Tinode.NOTE_RECV, seq);
+        }
+        notes.note("grpA", Tinode.NOTE_READ, 50);
+        notes.note("grpA", Tinode.NOTE_READ, 40);
+        notes.note("grpB", Tinode.NOTE_RECV, 7);
+        assertTrue(mSent.isEmpty());
+
+        notes.flush("grpB");
+        assertEquals(List.of("grpB:recv:7"), mSent);
+
+        notes.flush();
+        assertEquals(List.of("grpB:recv:7", "grpA:recv:100", "grpA:read:50"), mSent);
+
+        notes.flush();
+        assertEquals(3, mSent.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        NoteCoalescer notes = new NoteCoalescer(this::send, mScheduler, 0);
+        notes.note("grpA", Tinode.NOTE_RECV, 1);
+        notes.note("grpA", Tinode.NOTE_RECV, 2);
+        assertEquals(List.of("grpA:recv:1", "grpA:recv:2"), mSent);
+    }
+
+    @Test
+    public void testTimer() throws Exception {
+        NoteCoalescer notes = new NoteCoalescer(this::send, mScheduler, 10);
+        notes.note("grpA", Tinode.NOTE_RECV, 1);
+        notes.note("grpA", Tinode.NOTE_RECV, 2);
+        for (int i = 0; i < 100; i++) {
+            synchronized (this) {
+                if (!mSent.isEmpty()) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        synchronized (this) {
+            assertEquals(List.of("grpA:recv:2"), mSent);
+        }
+    }
+
+    @Test
+    public void testRetainAcrossDisconnect() {
+        NoteCoalescer notes = new NoteCoalescer(this::send, mScheduler, 60_000);
+        notes.note("grpA", Tinode.NOTE_READ, 5);
+        notes.note("grpA", Tinode.NOTE_KP, 0);
+        notes.onDisconnect();
+
+        mConnected = false;
+        notes.note("grpA", Tinode.NOTE_RECV, 6);
+        notes.flush();
+        assertTrue(mSent.isEmpty());
+
+        mConnected = true;
+        notes.note("grpA", Tinode.NOTE_READ, 3);
+        notes.note("grpB", Tinode.NOTE_READ, 4);
+        // grpA is not subscribed again yet.
+        notes.flush();
+        assertEquals(List.of("grpB:read:4"), mSent);
+
+        notes.flush("grpA");
+        assertEquals(List.of("grpB:read:4", "grpA:read:5", "grpA:recv:6"), mSent);
+    }
+
+    @Test
+    public void testRetainLimits() {
+        // Notes which could not be sent are dropped right away.
+        NoteCoalescer notes = new NoteCoalescer(this::send, mScheduler, 60_000, 0, 10);
+        mConnected = false;
+        notes.note("grpA", Tinode.NOTE_READ, 5);
+        notes.flush();
+        mConnected = true;
+        notes.flush("grpA");
+        assertTrue(mSent.isEmpty());
+
+        // At most two notes are retained: the oldest one is dropped.
+        notes = new NoteCoalescer(this::send, mScheduler, 60_000, 60_000, 2);
+        mConnected = false;
+        notes.note("grpA", Tinode.NOTE_READ, 1);
+        notes.note("grpB", Tinode.NOTE_READ, 2);
+        notes.note("grpC", Tinode.NOTE_READ, 3);
+        notes.flush();
+        mConnected = true;
+        notes.flush("grpA");
+        notes.flush("grpB");
+        notes.flush("grpC");
+        assertEquals(List.of("grpB:read:2", "grpC:read:3"), mSent);
+    }
+}
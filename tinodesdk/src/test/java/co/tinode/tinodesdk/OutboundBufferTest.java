@@ -0,0 +1,191 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.ClientMessage;
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgClientPub;
+
+public class OutboundBufferTest {
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 20_000;
+
+    private static ClientMessage publishMessage() {
+        Drafty content = Drafty.parse("Hello *world*, this is a _typical_ chat message with a link https://tinode.co");
+        return new ClientMessage(new MsgClientPub("123456", "grpAbCdEfGhIjK", true, content, null));
+    }
+
+    @Test
+    public void testSerialize() throws Exception {
+        ClientMessage msg = publishMessage();
+        String expected = Tinode.getJsonMapper().writeValueAsString(msg);
+
+        OutboundBuffer out = OutboundBuffer.obtain();
+        try {
+            ByteBuffer payload = out.serialize(Tinode.getJsonMapper(), msg);
+            byte[] actual = new byte[payload.remaining()];
+            payload.get(actual);
+            assertEquals(expected, new String(actual, StandardCharsets.UTF_8));
+            assertEquals(expected, out.toString());
+
+            // Nested use on the same thread must not clobber the outer buffer.
+            OutboundBuffer nested = OutboundBuffer.obtain();
+            assertNotSame(out, nested);
+            nested.serialize(Tinode.getJsonMapper(), new ClientMessage());
+            nested.release();
+            assertEquals(expected, out.toString());
+        } finally {
+            out.release();
+        }
+    }
+
+    // The pooled buffer is larger than the packet. With permessage-deflate the server must receive
+    // only the packet.
+    @Test
+    public void testDeflateFrame() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        final BlockingQueue<Boolean> deflate = new LinkedBlockingQueue<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        WebSocketServer server = new WebSocketServer(new InetSocketAddress("localhost", 0),
+                Collections.singletonList(new Draft_6455(new PerMessageDeflateExtension()))) {
+            @Override
+            public void onOpen(WebSocket conn, ClientHandshake handshake) {
+                deflate.add(((Draft_6455) conn.getDraft()).getExtension() instanceof PerMessageDeflateExtension);
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onError(WebSocket conn, Exception ex) {
+            }
+
+            @Override
+            public void onStart() {
+                started.countDown();
+            }
+        };
+        server.setReuseAddr(true);
+        server.start();
+        Transport transport = null;
+        try {
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            final CountDownLatch open = new CountDownLatch(1);
+            transport = JavaWebSocketTransport.FACTORY.create(new URI("ws://localhost:" + server.getPort()),
+                    null, 5000, new Transport.Listener() {
+                        @Override
+                        public void onOpen(Transport transport) {
+                            open.countDown();
+                        }
+
+                        @Override
+                        public void onMessage(Transport transport, String message) {
+                        }
+
+                        @Override
+                        public void onMessage(Transport transport, ByteBuffer message) {
+                        }
+
+                        @Override
+                        public void onClose(Transport transport, int code, String reason, boolean remote) {
+                        }
+
+                        @Override
+                        public void onError(Transport transport, Exception ex) {
+                        }
+                    });
+            transport.connect();
+            assertTrue(open.await(5, TimeUnit.SECONDS));
+            assertEquals(Boolean.TRUE, deflate.poll(5, TimeUnit.SECONDS));
+
+            ClientMessage msg = publishMessage();
+            String expected = Tinode.getJsonMapper().writeValueAsString(msg);
+            OutboundBuffer out = OutboundBuffer.obtain();
+            try {
+                // Leave a stale tail in the pooled array.
+                out.serialize(Tinode.getJsonMapper(), "x".repeat(900));
+                transport.sendText(out.serialize(Tinode.getJsonMapper(), msg));
+            } finally {
+                out.release();
+            }
+            assertEquals(expected, received.poll(5, TimeUnit.SECONDS));
+        } finally {
+            if (transport != null) {
+                transport.close();
+            }
+            server.stop(1000);
+        }
+    }
+
+    // Compare bytes allocated per {pub} by the old String-based path (writeValueAsString followed by
+    // UTF-8 encoding in the websocket client) and by the pooled buffer.
+    @Test
+    public void testAllocationPerPublish() throws Exception {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        ClientMessage msg = publishMessage();
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += stringPath(msg) + pooledPath(msg);
+        }
+
+        final long tid = Thread.currentThread().getId();
+        long start = bean.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += stringPath(msg);
+        }
+        long before = (bean.getThreadAllocatedBytes(tid) - start) / ITERATIONS;
+
+        start = bean.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += pooledPath(msg);
+        }
+        long after = (bean.getThreadAllocatedBytes(tid) - start) / ITERATIONS;
+
+        assertTrue(sink > 0);
+        assertTrue("Pooled serialization allocates more than String path: " + after + " >= " + before,
+                after < before);
+    }
+
+    private static int stringPath(ClientMessage msg) throws Exception {
+        String json = Tinode.getJsonMapper().writeValueAsString(msg);
+        return json.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int pooledPath(ClientMessage msg) throws Exception {
+        OutboundBuffer out = OutboundBuffer.obtain();
+        try {
+            return out.serialize(Tinode.getJsonMapper(), msg).remaining();
+        } finally {
+            out.release();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class PromisedReplyTest {
+    @Test
+    public void testAllOf() throws Exception {
+        PromisedReply<String> a = new PromisedReply<>();
+        PromisedReply<String> b = new PromisedReply<>();
+        // A promise with an existing chain can still be combined.
+        PromisedReply<String> chained = b.thenApply(new PromisedReply.SuccessListener<>() {
+            @Override
+            public PromisedReply<String> onSuccess(String result) {
+                return new PromisedReply<>(result + "!");
+            }
+        });
+
+        PromisedReply<String[]> all = PromisedReply.allOf(new PromisedReply[]{a, b}, String[]::new);
+        assertFalse(all.isDone());
+        a.resolve("a");
+        assertFalse(all.isDone());
+        b.resolve("b");
+        assertArrayEquals(new String[]{"a", "b"}, all.getResult());
+        assertEquals("b!", chained.getResult());
+    }
+
+    @Test
+    public void testAllOfRejected() throws Exception {
+        PromisedReply<String> a = new PromisedReply<>();
+        PromisedReply<String> b = new PromisedReply<>();
+        PromisedReply<String[]> all = PromisedReply.allOf(new PromisedReply[]{a, b}, String[]::new);
+        try {
+            // Rejecting a promise without a failure handler rethrows the exception.
+            a.reject(new IllegalStateException("failed"));
+        } catch (IllegalStateException ignored) {}
+        assertTrue(all.isRejected());
+        b.resolve("b");
+        assertTrue(all.isRejected());
+    }
+
+    @Test
+    public void testAnyOf() throws Exception {
+        PromisedReply<String> a = new PromisedReply<>();
+        PromisedReply<String> b = new PromisedReply<>();
+        PromisedReply<String> any = PromisedReply.anyOf(a, b);
+        b.resolve("b");
+        a.resolve("a");
+        assertEquals("b", any.getResult());
+    }
+
+    @Test
+    public void testWithTimeout() throws Exception {
+        PromisedReply<String> slow = new PromisedReply<String>().withTimeout(50);
+        try {
+            slow.getResult();
+            fail("Expected timeout");
+        } catch (TimeoutException ignored) {}
+
+        PromisedReply<String> fast = new PromisedReply<>();
+        PromisedReply<String> timed = fast.withTimeout(5_000);
+        fast.resolve("done");
+        assertEquals("done", timed.getResult());
+    }
+
+    @Test
+    public void testCompletableFutureBridge() throws Exception {
+        PromisedReply<String> promise = new PromisedReply<>();
+        CompletableFuture<String> future = promise.toCompletableFuture();
+        promise.resolve("ok");
+        assertEquals("ok", future.get(1, TimeUnit.SECONDS));
+
+        PromisedReply<Integer> back = PromisedReply.fromCompletionStage(
+                CompletableFuture.supplyAsync(() -> 42));
+        assertEquals(Integer.valueOf(42), back.getResult());
+
+        CompletableFuture<String> failing = new CompletableFuture<>();
+        PromisedReply<String> rejected = PromisedReply.fromCompletionStage(failing.thenApply(s -> s));
+        failing.completeExceptionally(new IllegalArgumentException("bad"));
+        try {
+            rejected.getResult();
+            fail("Expected exception");
+        } catch (IllegalArgumentException ignored) {
+        } catch (ExecutionException ex) {
+            fail("Exception was not unwrapped");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.Description;
+
+public class RFC3339CodecTest {
+    @Test
+    public void testFormat() {
+        assertEquals("1970-01-01T00:00:00.000Z", RFC3339Codec.format(new Date(0)));
+        assertEquals("2016-09-07T17:29:49.100Z", RFC3339Codec.format(new Date(1473269389100L)));
+        assertEquals("1969-12-31T23:59:59.999Z", RFC3339Codec.format(new Date(-1)));
+        assertEquals("2024-02-29T12:00:00.005Z", RFC3339Codec.format(new Date(1709208000005L)));
+    }
+
+    @Test
+    public void testParse() throws ParseException {
+        assertEquals(1473269389100L, RFC3339Codec.parse("2016-09-07T17:29:49.100Z").getTime());
+        assertEquals(1473269389000L, RFC3339Codec.parse("2016-09-07T17:29:49Z").getTime());
+        assertEquals(1473269389120L, RFC3339Codec.parse("2016-09-07T17:29:49.12Z").getTime());
+        assertEquals(1473269389123L, RFC3339Codec.parse("2016-09-07T17:29:49.123456789Z").getTime());
+        assertEquals(1473269389100L, RFC3339Codec.parse("2016-09-07T19:29:49.100+02:00").getTime());
+        assertEquals(1473269389100L, RFC3339Codec.parse("2016-09-07T12:59:49.100-04:30").getTime());
+        assertEquals(-1L, RFC3339Codec.parse("1969-12-31T23:59:59.999Z").getTime());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        String[] invalid = {"", "2016-09-07", "2016-09-07T17:29:49", "2016-09-07T17:29:49.Z",
+                "2016-13-07T17:29:49Z", "2015-02-29T17:29:49Z", "2016-09-07T24:00:00Z",
+                "2016-09-07T17:29:49.100Zabc", "2016-09-07T17:29:49+0200", "2016/09/07T17:29:49Z"};
+        for (String text : invalid) {
+            try {
+                RFC3339Codec.parse(text);
+                fail("Parsed invalid timestamp '" + text + "'");
+            } catch (ParseException ignored) {}
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws ParseException {
+        Random random = new Random(42);
+        long max = 253402300799999L; // 9999-12-31T23:59:59.999Z
+        SimpleDateFormat legacy = legacyFormat();
+        for (int i = 0; i < 10_000; i++) {
+            long millis = Math.floorMod(random.nextLong(), max);
+            String text = RFC3339Codec.format(new Date(millis));
+            assertEquals(legacy.format(new Date(millis)), text);
+            assertEquals(millis, RFC3339Codec.parse(text).getTime());
+        }
+    }
+
+    @Test
+    public void testJackson() throws Exception {
+        ObjectMapper mapper = Tinode.getJsonMapper();
+        Description<?, ?> desc = mapper.readValue(
+                "{\"created\":\"2016-09-07T17:29:49Z\",\"updated\":\"2016-09-07T17:29:49.100Z\",\"touched\":\"bad\"}",
+                Description.class);
+        assertEquals(1473269389000L, desc.created.getTime());
+        assertEquals(1473269389100L, desc.updated.getTime());
+        assertNull(desc.touched);
+        assertEquals("\"2016-09-07T17:29:49.100Z\"", mapper.writeValueAsString(desc.updated));
+    }
+
+    private static SimpleDateFormat legacyFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
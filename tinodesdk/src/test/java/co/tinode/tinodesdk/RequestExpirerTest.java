@@ -0,0 +1,57 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RequestExpirerTest {
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void testExpireInDeadlineOrder() throws Exception {
+        final List<String> expired = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(3);
+        RequestExpirer<String> expirer = new RequestExpirer<>(mScheduler, (id, request) -> {
+            synchronized (expired) {
+                expired.add(id);
+            }
+            done.countDown();
+        });
+        expirer.add("slow", "a", 300);
+        // Earlier deadline added later must re-arm the timer.
+        expirer.add("fast", "b", 20);
+        expirer.add("medium", "c", 100);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        synchronized (expired) {
+            assertEquals(List.of("fast", "medium", "slow"), expired);
+        }
+        assertEquals(0, expirer.size());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        RequestExpirer<String> expirer = new RequestExpirer<>(mScheduler, (id, request) -> fired.countDown());
+        expirer.add("1", "a", 20);
+        expirer.clear();
+        assertEquals(0, expirer.size());
+        assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+
+        expirer.add("2", "b", 10);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+}
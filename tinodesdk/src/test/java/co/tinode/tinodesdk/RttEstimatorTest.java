@@ -0,0 +1,185 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.MsgGetMeta;
+import co.tinode.tinodesdk.model.ServerMessage;
+
+public class RttEstimatorTest {
+    private static final ObjectMapper sJson = new ObjectMapper();
+
+    private StandInServer mServer;
+    private Tinode mTinode;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mTinode != null) {
+            mTinode.maybeDisconnect(false);
+        }
+        if (mServer != null) {
+            mServer.stop(1000);
+            mServer.delayer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEstimate() {
+        RttEstimator rtt = new RttEstimator();
+        assertFalse(rtt.hasSamples());
+        assertEquals(RttEstimator.INITIAL_RTO, rtt.rto());
+
+        for (int i = 0; i < 50; i++) {
+            rtt.sample(TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        assertEquals(20, rtt.srtt());
+        // Stable fast link: the timeout is at the lower bound.
+        assertEquals(RttEstimator.MIN_RTO, rtt.rto());
+
+        // Jitter increases the timeout faster than the average.
+        for (int i = 0; i < 10; i++) {
+            rtt.sample(TimeUnit.MILLISECONDS.toNanos(i % 2 == 0 ? 100 : 900));
+        }
+        assertTrue(rtt.srtt() < 900);
+        assertTrue("Timeout must cover jitter: " + rtt.rto(), rtt.rto() > 900);
+
+        rtt.reset();
+        assertEquals(-1, rtt.srtt());
+        assertEquals(RttEstimator.INITIAL_RTO, rtt.rto());
+    }
+
+    // Server stops responding on a fast link: the connection is probed and dropped before the request times out.
+    @Test
+    public void testDeadConnectionDetected() throws Exception {
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        startServer(10);
+        mTinode.addListener(new Tinode.EventListener() {
+            @Override
+            public void onDisconnect(boolean byServer, int code, String reason) {
+                disconnected.countDown();
+            }
+        });
+        mTinode.connect("localhost:" + mServer.getPort(), false, false).getResult();
+        for (int i = 0; i < 5; i++) {
+            mTinode.getMeta("grpTest", MsgGetMeta.desc()).getResult();
+        }
+
+        mServer.silent = true;
+        try {
+            mTinode.getMeta("grpTest", MsgGetMeta.desc()).getResult();
+            fail("Request must fail");
+        } catch (ServerResponseException ex) {
+            // Rejected on disconnect, not by the 5 second timeout.
+            assertEquals(503, ex.getCode());
+        }
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+    }
+
+    // Slow link: a slow response which would have hit the fixed 5 second timeout is not rejected.
+    @Test
+    public void testSlowLinkNotRejected() throws Exception {
+        startServer(1_000);
+        mTinode.connect("localhost:" + mServer.getPort(), false, false).getResult();
+        PromisedReply<ServerMessage>[] warmUp = new PromisedReply[3];
+        for (int i = 0; i < warmUp.length; i++) {
+            warmUp[i] = mTinode.getMeta("grpTest", MsgGetMeta.desc());
+        }
+        PromisedReply.allOf(warmUp).getResult();
+        assertTrue(mTinode.getRoundTripTime() >= 1_000);
+
+        // The response arrives 5.5 seconds after the request.
+        mServer.extraDelay = 4_500;
+        ServerMessage reply = mTinode.getMeta("grpTest", MsgGetMeta.desc()).getResult();
+        assertEquals(ServerMessage.STATUS_OK, reply.ctrl.code);
+    }
+
+    private void startServer(long latency) throws InterruptedException {
+        mServer = new StandInServer(latency);
+        mServer.setReuseAddr(true);
+        mServer.start();
+        assertTrue("Server failed to start", mServer.started.await(5, TimeUnit.SECONDS));
+        mTinode = new Tinode("test", "apikey");
+    }
+
+    // Stand-in for Tinode server which delays every response by the given latency and replies
+    // to network probes. When silent, it ignores all requests on existing connections.
+    private static class StandInServer extends WebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+        final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+        final long latency;
+        volatile boolean silent = false;
+        volatile long extraDelay = 0;
+
+        StandInServer(long latency) {
+            super(new InetSocketAddress("localhost", 0));
+            this.latency = latency;
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onMessage(WebSocket conn, String message) {
+            if (silent) {
+                return;
+            }
+            try {
+                String reply;
+                long delay = latency;
+                if ("1".equals(message)) {
+                    reply = "0";
+                } else {
+                    Map<String, Object> request = sJson.readValue(message, Map.class);
+                    String type = request.keySet().iterator().next();
+                    Map<String, Object> body = (Map<String, Object>) request.get(type);
+                    Map<String, Object> ctrl = new HashMap<>();
+                    ctrl.put("id", body.get("id"));
+                    ctrl.put("code", "hi".equals(type) ? 201 : 200);
+                    ctrl.put("text", "");
+                    ctrl.put("ts", "2023-01-02T03:04:05.678Z");
+                    reply = sJson.writeValueAsString(Map.of("ctrl", ctrl));
+                    if (!"hi".equals(type)) {
+                        delay += extraDelay;
+                    }
+                }
+                delayer.schedule(() -> {
+                    if (conn.isOpen()) {
+                        conn.send(reply);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (Exception ex) {
+                conn.close();
+            }
+        }
+    }
+}
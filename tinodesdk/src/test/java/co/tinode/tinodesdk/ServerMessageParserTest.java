@@ -0,0 +1,100 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.PrivateType;
+import co.tinode.tinodesdk.model.ServerMessage;
+
+public class ServerMessageParserTest {
+    private static Tinode newTinode() {
+        Tinode tinode = new Tinode("test", "apikey");
+        tinode.setDefaultTypeOfMetaPacket(String.class, PrivateType.class);
+        tinode.setMeTypeOfMetaPacket(String.class);
+        return tinode;
+    }
+
+    @Test
+    public void testParseCtrl() {
+        ServerMessage msg = newTinode().parseServerMessageFromJson(
+                "{\"ctrl\":{\"id\":\"123\",\"topic\":\"grpAbC\",\"code\":200,\"text\":\"OK\"," +
+                        "\"params\":{\"what\":\"data\",\"count\":7},\"ts\":\"2023-01-02T03:04:05.678Z\"}}");
+        assertNotNull(msg);
+        assertNotNull(msg.ctrl);
+        assertEquals("123", msg.ctrl.id);
+        assertEquals(200, msg.ctrl.code);
+        assertEquals("data", msg.ctrl.getStringParam("what", null));
+        assertEquals(7, (int) msg.ctrl.getIntParam("count", 0));
+    }
+
+    @Test
+    public void testParseData() {
+        byte[] json = ("{\"data\":{\"topic\":\"grpAbC\",\"from\":\"usrXyZ\",\"seq\":42," +
+                "\"head\":{\"mime\":\"text/x-drafty\"},\"content\":{\"txt\":\"ĥello\"}," +
+                "\"ts\":\"2023-01-02T03:04:05Z\"}}").getBytes(StandardCharsets.UTF_8);
+        ServerMessage msg = newTinode().parseServerMessageFromJson(json, 0, json.length);
+        assertNotNull(msg);
+        assertNotNull(msg.data);
+        assertEquals("grpAbC", msg.data.topic);
+        assertEquals(42, msg.data.seq);
+        assertNotNull(msg.data.ts);
+    }
+
+    @Test
+    public void testParseMeta() {
+        // Topic is not the first field: the preceding fields must not be lost.
+        ServerMessage msg = newTinode().parseServerMessageFromJson(
+                "{\"meta\":{\"id\":\"5\",\"ts\":\"2023-01-02T03:04:05.678Z\",\"topic\":\"me\"," +
+                        "\"desc\":{\"public\":\"Alice\",\"seq\":3}," +
+                        "\"sub\":[{\"topic\":\"grpAbC\",\"public\":\"Group\",\"seq\":10}]}}");
+        assertNotNull(msg);
+        assertNotNull(msg.meta);
+        assertEquals("5", msg.meta.id);
+        assertEquals("me", msg.meta.topic);
+        assertNotNull(msg.meta.ts);
+        assertEquals("Alice", msg.meta.desc.pub);
+        assertEquals(1, msg.meta.sub.length);
+        assertEquals("Group", msg.meta.sub[0].pub);
+    }
+
+    @Test
+    public void testParseMalformedMeta() {
+        // Malformed 'desc' and one malformed 'sub' entry: the rest of the packet is kept.
+        ServerMessage msg = newTinode().parseServerMessageFromJson(
+                "{\"meta\":{\"id\":\"5\",\"topic\":\"me\",\"desc\":{\"public\":\"Alice\",\"seq\":{\"a\":1}}," +
+                        "\"sub\":[{\"topic\":\"grpAbC\",\"public\":\"Group\",\"seq\":10}," +
+                        "{\"topic\":\"grpXyZ\",\"seq\":{\"a\":1}}," +
+                        "{\"topic\":\"usrAbC\",\"public\":\"Bob\",\"seq\":2}]}}");
+        assertNotNull(msg);
+        assertNotNull(msg.meta);
+        assertEquals("5", msg.meta.id);
+        assertNull(msg.meta.desc);
+        assertEquals(2, msg.meta.sub.length);
+        assertEquals("grpAbC", msg.meta.sub[0].topic);
+        assertEquals("usrAbC", msg.meta.sub[1].topic);
+    }
+
+    @Test
+    public void testParseMalformedField() {
+        byte[] json = ("{\"ctrl\":{\"id\":\"1\",\"code\":[200]}," +
+                "\"pres\":{\"topic\":\"me\",\"src\":\"grpAbC\",\"what\":\"on\"}}").getBytes(StandardCharsets.UTF_8);
+        ServerMessage msg = newTinode().parseServerMessageFromJson(json, 0, json.length);
+        assertNotNull(msg);
+        assertNull(msg.ctrl);
+        assertNotNull(msg.pres);
+        assertEquals("grpAbC", msg.pres.src);
+    }
+
+    @Test
+    public void testParseInvalid() {
+        Tinode tinode = newTinode();
+        assertNull(tinode.parseServerMessageFromJson("[]"));
+        assertNull(tinode.parseServerMessageFromJson("{\"meta\":{\"id\":\"5\"}}"));
+        assertNull(tinode.parseServerMessageFromJson("{\"unknown\":{\"a\":[1,2]}}"));
+        assertNotNull(tinode.parseServerMessageFromJson(
+                "{\"unknown\":{\"a\":[1,2]},\"pres\":{\"topic\":\"me\",\"src\":\"grpAbC\",\"what\":\"on\"}}"));
+    }
+}
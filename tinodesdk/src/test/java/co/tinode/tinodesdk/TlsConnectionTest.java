@@ -0,0 +1,245 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TlsConnectionTest {
+    private static final char[] PASSWORD = "secret".toCharArray();
+
+    private static KeyStore sKeyStore;
+    private static HostnameVerifier sDefaultVerifier;
+
+    private WebSocketServer mServer;
+    private SSLServerSocket mTlsServer;
+    private Connection mConnection;
+
+    private record Handshake(long nanos, boolean resumed, boolean warm) {}
+
+    // Self-signed certificate for localhost.
+    @BeforeClass
+    public static void createCertificate() throws Exception {
+        File dir = Files.createTempDirectory("tls").toFile();
+        File file = new File(dir, "server.p12");
+        Process keytool = new ProcessBuilder(System.getProperty("java.home") + "/bin/keytool",
+                "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true).start();
+        Assume.assumeTrue("keytool is not available", keytool.waitFor(30, TimeUnit.SECONDS) &&
+                keytool.exitValue() == 0);
+
+        sKeyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            sKeyStore.load(in, PASSWORD);
+        }
+        file.delete();
+        dir.delete();
+
+        // The default verifier of the JVM rejects everything, Android's checks the certificate.
+        sDefaultVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+        HttpsURLConnection.setDefaultHostnameVerifier((host, session) -> "localhost".equals(host));
+    }
+
+    @AfterClass
+    public static void restoreDefaults() {
+        if (sDefaultVerifier != null) {
+            HttpsURLConnection.setDefaultHostnameVerifier(sDefaultVerifier);
+        }
+        WarmSocketFactory.setTlsContext(null);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(sKeyStore);
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, tmf.getTrustManagers(), null);
+        // Fresh context: no cached sessions from other tests.
+        WarmSocketFactory.setTlsContext(client);
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(sKeyStore, PASSWORD);
+        SSLContext server = SSLContext.getInstance("TLS");
+        server.init(kmf.getKeyManagers(), null, null);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        mServer = new WebSocketServer(new InetSocketAddress("localhost", 0)) {
+            @Override
+            public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            }
+
+            @Override
+            public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+            }
+
+            @Override
+            public void onError(WebSocket conn, Exception ex) {
+            }
+
+            @Override
+            public void onStart() {
+                started.countDown();
+            }
+        };
+        mServer.setReuseAddr(true);
+        mServer.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // TLS is terminated by the JDK server socket: the websocket library's own TLS server
+        // occasionally stalls when the HTTP upgrade arrives together with the end of the handshake.
+        mTlsServer = (SSLServerSocket) server.getServerSocketFactory()
+                .createServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptTls, "tls-proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mConnection != null) {
+            mConnection.disconnect();
+        }
+        mTlsServer.close();
+        mServer.stop(1000);
+    }
+
+    // Accept TLS connections and relay them to the websocket server.
+    private void acceptTls() {
+        try {
+            while (!mTlsServer.isClosed()) {
+                Socket tls = mTlsServer.accept();
+                Socket plain = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+                relay(tls, plain);
+                relay(plain, tls);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void relay(Socket from, Socket to) {
+        Thread pump = new Thread(() -> {
+            try (from; to) {
+                from.getInputStream().transferTo(to.getOutputStream());
+            } catch (IOException ignored) {
+            }
+        }, "tls-relay");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    @Test
+    public void testReconnectResumesSession() throws Exception {
+        BlockingQueue<Handshake> handshakes = new LinkedBlockingQueue<>();
+        connect(handshakes);
+        Handshake full = handshakes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(full);
+        assertFalse(full.resumed);
+        assertTrue(full.nanos > 0);
+
+        // New Connection instance, same as Tinode does after changing the server or on failure.
+        mConnection.disconnect();
+        connect(handshakes);
+        Handshake abbreviated = handshakes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(abbreviated);
+        assertTrue("Session was not resumed", abbreviated.resumed);
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        URI endpoint = endpoint();
+        Connection.warmUp(endpoint);
+        // Let the warm-up complete.
+        Thread.sleep(500);
+
+        BlockingQueue<Handshake> handshakes = new LinkedBlockingQueue<>();
+        connect(handshakes);
+        Handshake handshake = handshakes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(handshake);
+        assertTrue("Warm socket was not used", handshake.warm);
+
+        // The warm socket is used once.
+        mConnection.disconnect();
+        connect(handshakes);
+        handshake = handshakes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(handshake);
+        assertFalse(handshake.warm);
+    }
+
+    @Test
+    public void testNioTransport() throws Exception {
+        BlockingQueue<Handshake> handshakes = new LinkedBlockingQueue<>();
+        connect(handshakes, NioTransport.factory());
+        Handshake full = handshakes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(full);
+        assertFalse(full.resumed);
+
+        // Sessions are cached in the context shared with the default transport.
+        mConnection.disconnect();
+        connect(handshakes, NioTransport.factory());
+        Handshake abbreviated = handshakes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(abbreviated);
+        assertTrue("Session was not resumed", abbreviated.resumed);
+    }
+
+    private URI endpoint() throws Exception {
+        return new URI("wss://localhost:" + mTlsServer.getLocalPort() + "/v0/");
+    }
+
+    // Connect and wait until the websocket is open.
+    private void connect(final BlockingQueue<Handshake> handshakes) throws Exception {
+        connect(handshakes, null);
+    }
+
+    private void connect(final BlockingQueue<Handshake> handshakes, Transport.Factory transport) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        mConnection = new Connection(endpoint(), "apikey", new Connection.WsListener() {
+            @Override
+            public void onConnect(Connection conn, boolean background) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onTlsHandshake(Connection conn, long nanos, boolean resumed, boolean warm) {
+                handshakes.add(new Handshake(nanos, resumed, warm));
+            }
+        }, transport);
+        mConnection.connect(false, false);
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,176 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.MsgGetMeta;
+import co.tinode.tinodesdk.model.ServerMessage;
+
+public class WireCodecTest {
+    private static final ObjectMapper sJson = new ObjectMapper();
+    private static final ObjectMapper sCbor = new ObjectMapper(new CBORFactory());
+
+    private StandInServer mServer;
+    private Tinode mTinode;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mTinode != null) {
+            mTinode.maybeDisconnect(false);
+        }
+        if (mServer != null) {
+            mServer.stop(1000);
+        }
+    }
+
+    @Test
+    public void testJsonWhenNotAdvertised() throws Exception {
+        startServer(null);
+        mTinode.setPreferredWireCodec(WireCodec.cbor());
+        mTinode.connect("localhost:" + mServer.getPort(), false, false).getResult();
+        assertEquals("json", mTinode.getWireCodec().getName());
+
+        ServerMessage reply = mTinode.getMeta("grpAbC", MsgGetMeta.desc()).getResult();
+        assertEquals(ServerMessage.STATUS_OK, reply.ctrl.code);
+        assertEquals(0, mServer.binaryRequests.get());
+        assertEquals(2, mServer.textRequests.get());
+    }
+
+    @Test
+    public void testJsonWhenNotPreferred() throws Exception {
+        startServer(List.of("json", "cbor"));
+        mTinode.connect("localhost:" + mServer.getPort(), false, false).getResult();
+        assertEquals("json", mTinode.getWireCodec().getName());
+
+        mTinode.getMeta("grpAbC", MsgGetMeta.desc()).getResult();
+        assertEquals(0, mServer.binaryRequests.get());
+    }
+
+    @Test
+    public void testCborWhenAdvertised() throws Exception {
+        startServer(List.of("json", "cbor"));
+        mTinode.setPreferredWireCodec(WireCodec.cbor());
+        mTinode.connect("localhost:" + mServer.getPort(), false, false).getResult();
+        assertEquals("cbor", mTinode.getWireCodec().getName());
+
+        ServerMessage reply = mTinode.getMeta("grpAbC", MsgGetMeta.desc()).getResult();
+        assertEquals(ServerMessage.STATUS_OK, reply.ctrl.code);
+        assertEquals("grpAbC", reply.ctrl.topic);
+        assertNotNull(reply.ctrl.ts);
+        // {hi} is always JSON, {get} is CBOR.
+        assertEquals(1, mServer.textRequests.get());
+        assertEquals(1, mServer.binaryRequests.get());
+
+        Metrics.Snapshot metrics = mTinode.getMetrics().snapshot();
+        assertEquals(1L, (long) metrics.packetsOut.get("hi"));
+        assertEquals(1L, (long) metrics.packetsOut.get("get"));
+        assertEquals(2L, (long) metrics.packetsIn.get("ctrl"));
+        assertEquals(2, metrics.roundTrip.count);
+        assertTrue(metrics.bytesIn > 0 && metrics.bytesOut > 0);
+    }
+
+    private void startServer(List<String> wire) throws InterruptedException {
+        mServer = new StandInServer(wire);
+        mServer.setReuseAddr(true);
+        mServer.start();
+        assertTrue("Server failed to start", mServer.started.await(5, TimeUnit.SECONDS));
+        mTinode = new Tinode("test", "apikey");
+    }
+
+    // Stand-in for Tinode server: responds to every request with {ctrl} in the encoding of the request.
+    // {hi} response advertises the given wire encodings.
+    private static class StandInServer extends WebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger textRequests = new AtomicInteger();
+        final AtomicInteger binaryRequests = new AtomicInteger();
+        private final List<String> mWire;
+
+        StandInServer(List<String> wire) {
+            super(new InetSocketAddress("localhost", 0));
+            mWire = wire;
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            textRequests.incrementAndGet();
+            try {
+                conn.send(sJson.writeValueAsString(reply(sJson.readValue(message, Map.class))));
+            } catch (Exception ex) {
+                conn.close();
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+            binaryRequests.incrementAndGet();
+            try {
+                byte[] data = new byte[message.remaining()];
+                message.get(data);
+                conn.send(sCbor.writeValueAsBytes(reply(sCbor.readValue(data, Map.class))));
+            } catch (Exception ex) {
+                conn.close();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<String, Object> reply(Map<String, Object> request) {
+            Map<String, Object> ctrl = new HashMap<>();
+            ctrl.put("ts", "2023-01-02T03:04:05.678Z");
+            if (request.containsKey("hi")) {
+                Map<String, Object> hi = (Map<String, Object>) request.get("hi");
+                Map<String, Object> params = new HashMap<>();
+                params.put("ver", "0.25");
+                if (mWire != null) {
+                    params.put("wire", mWire);
+                }
+                ctrl.put("id", hi.get("id"));
+                ctrl.put("code", 201);
+                ctrl.put("text", "created");
+                ctrl.put("params", params);
+            } else {
+                Map<String, Object> body = (Map<String, Object>) request.values().iterator().next();
+                ctrl.put("id", body.get("id"));
+                ctrl.put("topic", body.get("topic"));
+                ctrl.put("code", 200);
+                ctrl.put("text", "ok");
+            }
+            Map<String, Object> packet = new HashMap<>();
+            packet.put("ctrl", ctrl);
+            return packet;
+        }
+    }
+}
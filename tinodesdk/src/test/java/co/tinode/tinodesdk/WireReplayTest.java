@@ -0,0 +1,137 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.MsgGetMeta;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.sim.SimServer;
+import co.tinode.tinodesdk.sim.SimWorld;
+
+public class WireReplayTest {
+    @Test
+    public void testFormat() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long before = System.currentTimeMillis();
+        WireRecorder recorder = new WireRecorder(out);
+        long after = System.currentTimeMillis();
+        String large = "x".repeat(100_000);
+        recorder.onRawMessage("{\"ctrl\":{}}");
+        Thread.sleep(20);
+        recorder.onRawMessage("0");
+        recorder.onRawMessage("Ünïcödé ✓");
+        recorder.onRawMessage(large);
+        assertEquals(4, recorder.getFrameCount());
+        recorder.close();
+        // Closed recorder ignores frames.
+        recorder.onRawMessage("ignored");
+
+        WireReplay replay = new WireReplay(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(replay.getStartedAt() >= before && replay.getStartedAt() <= after);
+        WireReplay.Frame first = replay.next();
+        assertEquals("{\"ctrl\":{}}", first.text());
+        WireReplay.Frame second = replay.next();
+        assertEquals("0", second.text());
+        assertTrue(second.offset() > first.offset());
+        assertEquals("Ünïcödé ✓", replay.next().text());
+        assertEquals(large, replay.next().text());
+        assertNull(replay.next());
+    }
+
+    @Test
+    public void testTruncatedRecording() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (WireRecorder recorder = new WireRecorder(out)) {
+            recorder.onRawMessage("first");
+            recorder.onRawMessage("second");
+        }
+        byte[] bytes = out.toByteArray();
+        WireReplay replay = new WireReplay(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 3)));
+        assertEquals("first", replay.next().text());
+        assertNull(replay.next());
+
+        // Corrupted length of the second frame: 2^35 bytes, zero when cast to int.
+        int second = bytes.length - "second".length() - 1;
+        byte[] corrupted = Arrays.copyOf(bytes, second + 6);
+        Arrays.fill(corrupted, second, second + 5, (byte) 0x80);
+        corrupted[second + 5] = (byte) 0x01;
+        replay = new WireReplay(new ByteArrayInputStream(corrupted));
+        assertEquals("first", replay.next().text());
+        assertNull(replay.next());
+
+        try {
+            new WireReplay(new ByteArrayInputStream("not a recording".getBytes()));
+            fail("Bad header must be rejected");
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Record a session against the simulator, then replay it into a disconnected client.
+    @Test
+    public void testReplaySession() throws Exception {
+        SimServer server = new SimServer(SimWorld.generate(10, 5, 5, 200, 1), 0);
+        server.startAndWait();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WireRecorder recorder = new WireRecorder(out);
+        Tinode live = SimServer.configure(new Tinode("replay-test", "apikey", recorder));
+        try {
+            SimWorld.Account account = server.world().account(0);
+            live.connect(server.address(), false, false).getResult();
+            live.loginBasic(account.login(), account.password()).getResult();
+            MsgGetMeta me = new MsgGetMeta();
+            me.setDesc(null);
+            me.setSub(null, null);
+            live.subscribe(Tinode.TOPIC_ME, null, me).getResult();
+            for (SimWorld.Topic topic : server.world().topicsOf(account.uid())) {
+                MsgGetMeta get = new MsgGetMeta();
+                get.setDesc(null);
+                get.setData(null, null, 200);
+                live.subscribe(topic.name, null, get).getResult();
+            }
+            // {hi} and {login} replies, {ctrl} and two {meta} for 'me', then {ctrl}, {meta}, 200 {data}
+            // and {ctrl} for each of the five topics.
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (recorder.getFrameCount() < 5 + 5 * 203 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            live.maybeDisconnect(false);
+            server.shutdown();
+        }
+        recorder.close();
+        int recorded = recorder.getFrameCount();
+        assertEquals(5 + 5 * 203, recorded);
+
+        final AtomicInteger data = new AtomicInteger();
+        final AtomicInteger raw = new AtomicInteger();
+        Tinode offline = SimServer.configure(new Tinode("replay-test", "apikey", new Tinode.EventListener() {
+            @Override
+            public void onRawMessage(String msg) {
+                raw.incrementAndGet();
+            }
+
+            @Override
+            public void onDataMessage(MsgServerData msg) {
+                data.incrementAndGet();
+            }
+        }));
+        WireReplay.Result result;
+        try (WireReplay replay = new WireReplay(new ByteArrayInputStream(out.toByteArray()))) {
+            result = replay.replay(offline, false);
+        }
+        assertEquals(recorded, result.frames());
+        assertEquals(1_000, data.get());
+        // Replayed frames are not recorded again.
+        assertEquals(0, raw.get());
+        // Topics were created from the replayed subscriptions of 'me'.
+        assertNotNull(offline.getTopic("grpSim0"));
+        assertEquals(200, offline.getTopic("grpSim0").getSeq());
+    }
+}
@@ -0,0 +1,150 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.Subscription;
+
+public class WriteBehindStoreTest {
+    private static final String TOPIC = "grpkMNIAf6gEsA";
+    private static final String ME = "usrMe";
+    private static final String ALICE = "usrAlice";
+
+    // Store which holds writes of messages until released.
+    private static class GatedStore extends InMemoryStore {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        // Seq of the topic as seen by the writes.
+        final List<Integer> topicSeq = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public Message msgReceived(Topic topic, Subscription sub, MsgServerData msg) {
+            try {
+                gate.await();
+            } catch (InterruptedException ignored) {
+            }
+            order.add(msg.seq);
+            topicSeq.add(topic.getSeq());
+            return super.msgReceived(topic, sub, msg);
+        }
+    }
+
+    private GatedStore mDelegate;
+    private WriteBehindStore mStore;
+    private Topic mTopic;
+
+    @Before
+    public void setUp() {
+        mDelegate = new GatedStore();
+        mStore = new WriteBehindStore(mDelegate);
+        mStore.setMyUid(ME, "ws://localhost:6060");
+        Tinode tinode = new Tinode("write-behind-test", "apikey", mStore, null);
+        mTopic = tinode.newTopic(TOPIC, null);
+        mTopic.persist();
+    }
+
+    @After
+    public void tearDown() {
+        mDelegate.gate.countDown();
+        mStore.close();
+    }
+
+    // Messages are readable before they are written.
+    @Test
+    public void testReadYourWrites() {
+        for (int seq = 1; seq <= 10; seq++) {
+            Storage.Message msg = mStore.msgReceived(mTopic, null, data(seq, ALICE));
+            assertEquals(seq, msg.getSeqId());
+        }
+        assertTrue(mStore.msgReceived(mTopic, null, data(11, ME)).isMine());
+
+        // Nothing is written yet.
+        assertNull(mDelegate.getMessageBySeq(mTopic, 1));
+        assertEquals("message 5", mStore.getMessageBySeq(mTopic, 5).getContent().txt);
+        assertEquals(new MsgRange(1, 12), mStore.getCachedMessagesRange(mTopic));
+
+        mDelegate.gate.countDown();
+        mStore.flush();
+        assertEquals("message 5", mDelegate.getMessageBySeq(mTopic, 5).getContent().txt);
+        assertEquals(new MsgRange(1, 12), mStore.getCachedMessagesRange(mTopic));
+    }
+
+    // Writes are applied in order, calls which return a value wait for the writes before them.
+    @Test
+    public void testOrder() throws Exception {
+        mStore.msgReceived(mTopic, null, data(1, ALICE));
+        mStore.msgReceived(mTopic, null, data(2, ALICE));
+
+        CountDownLatch sent = new CountDownLatch(1);
+        Storage.Message[] result = new Storage.Message[1];
+        Thread sender = new Thread(() -> {
+            result[0] = mStore.msgSend(mTopic, Drafty.fromPlainText("sent"), null);
+            sent.countDown();
+        });
+        sender.start();
+        assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+
+        mDelegate.gate.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertTrue(result[0].getDbId() > 0);
+        assertEquals(List.of(1, 2), mDelegate.order);
+
+        // Reads which are not served from the queue wait for the writes.
+        mStore.msgReceived(mTopic, null, data(3, ALICE));
+        assertNull(mStore.getMissingRanges(mTopic, 4, 10, false));
+        assertEquals(List.of(1, 2, 3), mDelegate.order);
+    }
+
+    // Messages which are queued or saved are not saved again.
+    @Test
+    public void testDuplicates() {
+        assertNotNull(mStore.msgReceived(mTopic, null, data(1, ALICE)));
+        assertNull(mStore.msgReceived(mTopic, null, data(1, ALICE)));
+
+        mDelegate.gate.countDown();
+        mStore.flush();
+        assertNull(mStore.msgReceived(mTopic, null, data(1, ALICE)));
+
+        Storage.Message[] saved = mStore.msgReceived(mTopic, List.of(data(1, ALICE), data(2, ALICE)));
+        assertNull(saved[0]);
+        assertEquals(2, saved[1].getSeqId());
+        mStore.flush();
+        assertEquals(List.of(1, 2), mDelegate.order);
+    }
+
+    // Writes see the topic as it was when they were queued.
+    @Test
+    public void testTopicSnapshot() {
+        mStore.msgReceived(mTopic, null, data(1, ALICE));
+        mTopic.setSeq(1);
+        mStore.msgReceived(mTopic, null, data(2, ALICE));
+        mTopic.setSeq(2);
+
+        mDelegate.gate.countDown();
+        mStore.flush();
+        assertEquals(List.of(0, 1), mDelegate.topicSeq);
+    }
+
+    private static MsgServerData data(int seq, String from) {
+        MsgServerData m = new MsgServerData();
+        m.topic = TOPIC;
+        m.from = from;
+        m.ts = new Date(1_700_000_000_000L + seq * 1000L);
+        m.seq = seq;
+        m.content = Drafty.fromPlainText("message " + seq);
+        return m;
+    }
+}
@@ -0,0 +1,138 @@
+package co.tinode.tinodesdk.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import co.tinode.tinodesdk.PromisedReply;
+import co.tinode.tinodesdk.Tinode;
+import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.model.MsgGetMeta;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.ServerMessage;
+
+/**
+ * Load driver: connects the SDK to a {@link SimServer} as the first account of the world, subscribes to group
+ * topics, streams synthetic messages into them and measures how the client keeps up.
+ */
+public class LoadDriver {
+    /**
+     * Results of a run.
+     *
+     * @param delivered         number of synthetic messages which reached topic listeners.
+     * @param messagesPerSecond delivery rate.
+     * @param p50Micros         median latency from publishing by the server to delivery, microseconds.
+     * @param p99Micros         99th percentile of the latency, microseconds.
+     * @param heapGrowthBytes   used heap after the run minus used heap before it, both after GC.
+     */
+    public record Report(long delivered, double messagesPerSecond, long p50Micros, long p99Micros,
+                         long heapGrowthBytes) {
+        @Override
+        public String toString() {
+            return String.format("delivered %d, %.0f msg/s, latency p50 %dus, p99 %dus, heap growth %dKB",
+                    delivered, messagesPerSecond, p50Micros, p99Micros, heapGrowthBytes / 1024);
+        }
+    }
+
+    private final SimServer mServer;
+
+    // Latencies of delivered messages, nanoseconds; guarded by this.
+    private long[] mLatencies = new long[1024];
+    private int mCount = 0;
+
+    public LoadDriver(SimServer server) {
+        mServer = server;
+    }
+
+    /**
+     * Run load.
+     *
+     * @param topics     number of group topics to subscribe to and stream into.
+     * @param rate       messages per second in each topic.
+     * @param durationMs duration of streaming, milliseconds.
+     */
+    public Report run(int topics, int rate, long durationMs) throws Exception {
+        SimWorld world = mServer.world();
+        SimWorld.Account account = world.account(0);
+        List<SimWorld.Topic> groups = world.topicsOf(account.uid());
+        if (groups.size() < topics) {
+            throw new IllegalArgumentException("World has only " + groups.size() + " topics");
+        }
+
+        long heapBefore = usedHeap();
+        Tinode tinode = SimServer.configure(new Tinode("sim-load", "apikey"));
+        try {
+            tinode.connect(mServer.address(), false, false).getResult();
+            tinode.loginBasic(account.login(), account.password()).getResult();
+
+            List<Topic> subscribed = new ArrayList<>();
+            PromisedReply<ServerMessage>[] subs = new PromisedReply[topics];
+            for (int i = 0; i < topics; i++) {
+                @SuppressWarnings("unchecked")
+                Topic topic = tinode.newTopic(groups.get(i).name, new Topic.Listener() {
+                    @Override
+                    public void onData(MsgServerData data) {
+                        record(data);
+                    }
+                });
+                subscribed.add(topic);
+                subs[i] = topic.subscribe(null, MsgGetMeta.desc());
+            }
+            PromisedReply.allOf(subs).getResult();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < topics; i++) {
+                mServer.stream(groups.get(i).name, rate);
+            }
+            Thread.sleep(durationMs);
+            long elapsed = System.nanoTime() - start;
+
+            for (Topic topic : subscribed) {
+                topic.leave();
+            }
+
+            long[] latencies;
+            synchronized (this) {
+                latencies = Arrays.copyOf(mLatencies, mCount);
+            }
+            Arrays.sort(latencies);
+            return new Report(latencies.length, latencies.length * 1e9 / elapsed,
+                    percentile(latencies, 50), percentile(latencies, 99), usedHeap() - heapBefore);
+        } finally {
+            tinode.maybeDisconnect(false);
+        }
+    }
+
+    private void record(MsgServerData data) {
+        Object sent = data.getHeader(SimServer.HEAD_SENT);
+        if (!(sent instanceof Number)) {
+            // Not a synthetic message, e.g. history.
+            return;
+        }
+        long latency = System.nanoTime() - ((Number) sent).longValue();
+        synchronized (this) {
+            if (mCount == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+            }
+            mLatencies[mCount++] = latency;
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,23 @@
+package co.tinode.tinodesdk.sim;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LoadDriverTest {
+    @Test
+    public void testSteadyLoad() throws Exception {
+        SimServer server = new SimServer(SimWorld.generate(20, 4, 5, 50, 1), 2);
+        server.startAndWait();
+        try {
+            LoadDriver.Report report = new LoadDriver(server).run(4, 250, 2_000);
+
+            // How many of the streamed messages arrive before the run ends depends on the machine.
+            assertTrue("No messages delivered", report.delivered() > 0);
+            assertTrue(report.messagesPerSecond() > 0);
+            assertTrue(report.p99Micros() >= report.p50Micros());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package co.tinode.tinodesdk.sim;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import co.tinode.tinodesdk.RFC3339Codec;
+import co.tinode.tinodesdk.Tinode;
+import co.tinode.tinodesdk.model.PrivateType;
+
+/**
+ * In-process server speaking enough of the Tinode protocol to drive the SDK without a real backend:
+ * {hi}, {login} with basic and token schemes, {sub}/{leave} for 'me' and group topics, {pub}, {get}
+ * of desc, sub and data, {note} read/recv/kp; {set} and {del} are acknowledged and ignored.
+ * The server sends {data}, {info}, {meta}, {pres} and {ctrl} as the real one does.
+ * <p>
+ * Every packet from the server is delayed by the configured one-way latency. Packets are delivered in order.
+ * Synthetic traffic is generated with {@link #stream(String, int)}: messages published by simulated members
+ * carry the send time in the "simsent" header, nanoseconds of {@link System#nanoTime()}.
+ */
+public class SimServer extends WebSocketServer {
+    /** Header of synthetic messages with the send time. */
+    public static final String HEAD_SENT = "simsent";
+
+    private static final ObjectMapper sJson = new ObjectMapper();
+    private static final String ACS_MODE = "JRWPASO";
+    private static final long TOKEN_LIFETIME = 14 * 24 * 3600 * 1000L;
+
+    // Per-connection state.
+    private static class Session {
+        volatile String uid;
+        // Topics the session is subscribed to.
+        final Set<String> topics = ConcurrentHashMap.newKeySet();
+    }
+
+    private final SimWorld mWorld;
+    private final long mLatency;
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    // Single thread: packets are sent in the order they were scheduled.
+    private final ScheduledExecutorService mSender = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sim-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<WebSocket, Session> mSessions = new ConcurrentHashMap<>();
+    private final List<ScheduledFuture<?>> mStreams = new ArrayList<>();
+    private final AtomicLong mPackets = new AtomicLong();
+
+    /**
+     * Create server on a free localhost port.
+     *
+     * @param world   accounts and topics to serve.
+     * @param latency delay of every server packet, milliseconds.
+     */
+    public SimServer(SimWorld world, long latency) {
+        super(new InetSocketAddress("localhost", 0));
+        mWorld = world;
+        mLatency = latency;
+        setReuseAddr(true);
+    }
+
+    /**
+     * Start the server and wait until it accepts connections.
+     */
+    public void startAndWait() throws InterruptedException {
+        start();
+        if (!mStarted.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Simulator failed to start");
+        }
+    }
+
+    /**
+     * Stop synthetic streams and the server.
+     */
+    public void shutdown() throws InterruptedException {
+        synchronized (mStreams) {
+            for (ScheduledFuture<?> stream : mStreams) {
+                stream.cancel(false);
+            }
+            mStreams.clear();
+        }
+        stop(1000);
+        mSender.shutdownNow();
+    }
+
+    /**
+     * Set types of {meta} payloads sent by the simulator: public is a map, e.g. {"fn": "User 1"}.
+     */
+    public static Tinode configure(Tinode tinode) {
+        tinode.setDefaultTypeOfMetaPacket(Map.class, PrivateType.class);
+        tinode.setMeTypeOfMetaPacket(Map.class);
+        return tinode;
+    }
+
+    public String address() {
+        return "localhost:" + getPort();
+    }
+
+    public SimWorld world() {
+        return mWorld;
+    }
+
+    /**
+     * Get number of packets sent to clients.
+     */
+    public long packetsSent() {
+        return mPackets.get();
+    }
+
+    /**
+     * Start publishing synthetic messages to a group topic from random members other than the first account.
+     *
+     * @param topicName name of the topic.
+     * @param rate      messages per second.
+     */
+    public void stream(String topicName, int rate) {
+        final SimWorld.Topic topic = mWorld.topic(topicName);
+        if (topic == null) {
+            throw new IllegalArgumentException("Unknown topic " + topicName);
+        }
+        final String exclude = mWorld.account(0).uid();
+        final long start = System.nanoTime();
+        final long[] published = {0};
+        ScheduledFuture<?> future = mSender.scheduleAtFixedRate(() -> {
+            long due = (System.nanoTime() - start) * rate / TimeUnit.SECONDS.toNanos(1);
+            for (; published[0] < due; published[0]++) {
+                Map<String, Object> head = new HashMap<>();
+                head.put(HEAD_SENT, System.nanoTime());
+                publish(topic, mWorld.randomMember(topic, exclude), head, "Synthetic message " + published[0], null);
+            }
+        }, 1, 1, TimeUnit.MILLISECONDS);
+        synchronized (mStreams) {
+            mStreams.add(future);
+        }
+    }
+
+    @Override
+    public void onStart() {
+        mStarted.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        mSessions.put(conn, new Session());
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        mSessions.remove(conn);
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onMessage(WebSocket conn, String message) {
+        Session session = mSessions.get(conn);
+        if (session == null) {
+            return;
+        }
+        if ("1".equals(message)) {
+            sendRaw(conn, "0");
+            return;
+        }
+        try {
+            Map<String, Object> packet = sJson.readValue(message, Map.class);
+            String type = packet.keySet().iterator().next();
+            Map<String, Object> body = (Map<String, Object>) packet.get(type);
+            String id = (String) body.get("id");
+            String topic = (String) body.get("topic");
+            switch (type) {
+                case "hi" -> ctrl(conn, id, null, 201, "created", Map.of("ver", "0.22", "build", "sim"));
+                case "login" -> handleLogin(conn, session, id, body);
+                case "sub" -> handleSub(conn, session, id, topic, (Map<String, Object>) body.get("get"));
+                case "leave" -> {
+                    session.topics.remove(topic);
+                    ctrl(conn, id, topic, 200, "ok", null);
+                }
+                case "pub" -> handlePub(conn, session, id, topic, body);
+                case "get" -> handleGet(conn, session, id, topic, body);
+                case "note" -> handleNote(conn, session, topic, body);
+                case "set", "del" -> ctrl(conn, id, topic, 200, "ok", null);
+                default -> ctrl(conn, id, topic, 501, "not implemented", null);
+            }
+        } catch (Exception ex) {
+            conn.close();
+        }
+    }
+
+    private void handleLogin(WebSocket conn, Session session, String id, Map<String, Object> body) {
+        String scheme = (String) body.get("scheme");
+        String secret = (String) body.get("secret");
+        SimWorld.Account account = null;
+        if ("basic".equals(scheme) && secret != null) {
+            String[] parts = new String(Base64.getDecoder().decode(secret), StandardCharsets.UTF_8).split(":", 2);
+            account = mWorld.accountByLogin(parts[0]);
+            if (account != null && (parts.length < 2 || !account.password().equals(parts[1]))) {
+                account = null;
+            }
+        } else if ("token".equals(scheme) && secret != null) {
+            account = mWorld.accountByToken(secret);
+        }
+
+        if (account == null) {
+            ctrl(conn, id, null, 401, "authentication failed", null);
+            return;
+        }
+        session.uid = account.uid();
+        Map<String, Object> params = new HashMap<>();
+        params.put("user", account.uid());
+        params.put("token", account.token());
+        params.put("expires", timestamp(System.currentTimeMillis() + TOKEN_LIFETIME));
+        ctrl(conn, id, null, 200, "ok", params);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleSub(WebSocket conn, Session session, String id, String topic, Map<String, Object> get) {
+        if (session.uid == null) {
+            ctrl(conn, id, topic, 401, "authentication required", null);
+            return;
+        }
+        if (!"me".equals(topic)) {
+            SimWorld.Topic group = mWorld.topic(topic);
+            if (group == null) {
+                if (topic == null || !topic.startsWith("new")) {
+                    ctrl(conn, id, topic, 404, "not found", null);
+                    return;
+                }
+                group = mWorld.newTopic(session.uid);
+            } else if (!group.isMember(session.uid)) {
+                ctrl(conn, id, topic, 403, "permission denied", null);
+                return;
+            }
+            topic = group.name;
+        }
+        session.topics.add(topic);
+        ctrl(conn, id, topic, 200, "ok", Map.of("acs", acs()));
+        if (get != null) {
+            // Replies to the embedded query carry the id of the {sub}.
+            handleGet(conn, session, id, topic, get);
+        }
+    }
+
+    private void handlePub(WebSocket conn, Session session, String id, String topic, Map<String, Object> body) {
+        SimWorld.Topic group = mWorld.topic(topic);
+        if (session.uid == null || group == null || !session.topics.contains(topic)) {
+            ctrl(conn, id, topic, session.uid == null ? 401 : 404, "not subscribed", null);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> head = (Map<String, Object>) body.get("head");
+        SimWorld.Message msg = publish(group, session.uid, head, body.get("content"),
+                Boolean.TRUE.equals(body.get("noecho")) ? conn : null);
+        ctrl(conn, id, topic, 202, "accepted", Map.of("seq", msg.seq()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleGet(WebSocket conn, Session session, String id, String topic, Map<String, Object> body) {
+        if (session.uid == null) {
+            ctrl(conn, id, topic, 401, "authentication required", null);
+            return;
+        }
+        String what = (String) body.get("what");
+        if (what == null) {
+            ctrl(conn, id, topic, 400, "malformed", null);
+            return;
+        }
+        boolean empty = true;
+        for (String part : what.split(" ")) {
+            switch (part) {
+                case "desc" -> {
+                    empty = false;
+                    meta(conn, id, topic, "desc", description(session.uid, topic));
+                }
+                case "sub" -> {
+                    empty = false;
+                    meta(conn, id, topic, "sub", subscriptions(session.uid, topic));
+                }
+                case "data" -> {
+                    empty = false;
+                    Map<String, Object> query = (Map<String, Object>) body.get("data");
+                    sendData(conn, id, topic, query != null ? query : Map.of());
+                }
+                default -> {
+                }
+            }
+        }
+        if (empty) {
+            ctrl(conn, id, topic, 204, "no content", null);
+        }
+    }
+
+    private void sendData(WebSocket conn, String id, String topic, Map<String, Object> query) {
+        SimWorld.Topic group = mWorld.topic(topic);
+        List<SimWorld.Message> messages = group != null ?
+                group.messages(intValue(query.get("since"), 1), intValue(query.get("before"), Integer.MAX_VALUE),
+                        intValue(query.get("limit"), 24)) : List.of();
+        // Oldest first, same as the server.
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            send(conn, Map.of("data", data(topic, messages.get(i))));
+        }
+        if (messages.isEmpty()) {
+            ctrl(conn, id, topic, 204, "no content", Map.of("what", "data"));
+        } else {
+            ctrl(conn, id, topic, 200, "ok", Map.of("what", "data", "count", messages.size()));
+        }
+    }
+
+    private void handleNote(WebSocket conn, Session session, String topic, Map<String, Object> body) {
+        SimWorld.Topic group = mWorld.topic(topic);
+        String what = (String) body.get("what");
+        if (session.uid == null || group == null || !session.topics.contains(topic) || what == null) {
+            // The server does not respond to {note}.
+            return;
+        }
+        int seq = intValue(body.get("seq"), 0);
+        if (("read".equals(what) || "recv".equals(what)) && !group.mark(session.uid, what, seq)) {
+            return;
+        }
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("topic", topic);
+        info.put("from", session.uid);
+        info.put("what", what);
+        if (seq > 0) {
+            info.put("seq", seq);
+        }
+        mSessions.forEach((other, otherSession) -> {
+            if (other != conn && otherSession.topics.contains(topic)) {
+                send(other, Map.of("info", info));
+            }
+        });
+    }
+
+    // Store the message and send it to all attached sessions, and {pres} on 'me' to members who are not attached.
+    private SimWorld.Message publish(SimWorld.Topic topic, String from, Map<String, Object> head, Object content,
+                                     WebSocket noecho) {
+        SimWorld.Message msg = topic.append(from, head, content);
+        Map<String, Object> data = data(topic.name, msg);
+        Set<String> notified = new HashSet<>();
+        mSessions.forEach((conn, session) -> {
+            if (session.uid == null || !topic.isMember(session.uid)) {
+                return;
+            }
+            if (session.topics.contains(topic.name)) {
+                if (conn != noecho) {
+                    send(conn, Map.of("data", data));
+                }
+                notified.add(session.uid);
+            }
+        });
+        mSessions.forEach((conn, session) -> {
+            if (session.uid != null && !notified.contains(session.uid) && session.topics.contains("me") &&
+                    topic.isMember(session.uid)) {
+                send(conn, Map.of("pres", Map.of("topic", "me", "src", topic.name, "what", "msg",
+                        "seq", msg.seq())));
+            }
+        });
+        return msg;
+    }
+
+    private Map<String, Object> data(String topic, SimWorld.Message msg) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("topic", topic);
+        data.put("from", msg.from());
+        data.put("ts", timestamp(msg.ts()));
+        data.put("seq", msg.seq());
+        if (msg.head() != null) {
+            data.put("head", msg.head());
+        }
+        data.put("content", msg.content());
+        return data;
+    }
+
+    private Map<String, Object> description(String uid, String topic) {
+        Map<String, Object> desc = new LinkedHashMap<>();
+        SimWorld.Topic group = mWorld.topic(topic);
+        if (group != null) {
+            desc.put("created", timestamp(group.created()));
+            desc.put("updated", timestamp(group.created()));
+            desc.put("seq", group.seq());
+            desc.put("read", group.read(uid));
+            desc.put("recv", group.recv(uid));
+            desc.put("public", Map.of("fn", "Group " + topic));
+        } else {
+            SimWorld.Account account = mWorld.accountByUid(uid);
+            desc.put("created", timestamp(0));
+            desc.put("updated", timestamp(0));
+            desc.put("public", Map.of("fn", account != null ? account.name() : uid));
+        }
+        desc.put("acs", acs());
+        desc.put("defacs", Map.of("auth", "JRWPS", "anon", "N"));
+        return desc;
+    }
+
+    private List<Map<String, Object>> subscriptions(String uid, String topic) {
+        List<Map<String, Object>> subs = new ArrayList<>();
+        if ("me".equals(topic)) {
+            for (SimWorld.Topic group : mWorld.topicsOf(uid)) {
+                Map<String, Object> sub = new LinkedHashMap<>();
+                sub.put("topic", group.name);
+                sub.put("updated", timestamp(group.created()));
+                sub.put("touched", timestamp(System.currentTimeMillis()));
+                sub.put("acs", acs());
+                sub.put("seq", group.seq());
+                sub.put("read", group.read(uid));
+                sub.put("recv", group.recv(uid));
+                sub.put("public", Map.of("fn", "Group " + group.name));
+                subs.add(sub);
+            }
+        } else {
+            SimWorld.Topic group = mWorld.topic(topic);
+            if (group != null) {
+                for (String member : group.members()) {
+                    SimWorld.Account account = mWorld.accountByUid(member);
+                    Map<String, Object> sub = new LinkedHashMap<>();
+                    sub.put("user", member);
+                    sub.put("updated", timestamp(group.created()));
+                    sub.put("acs", acs());
+                    sub.put("read", group.read(member));
+                    sub.put("recv", group.recv(member));
+                    sub.put("public", Map.of("fn", account != null ? account.name() : member));
+                    subs.add(sub);
+                }
+            }
+        }
+        return subs;
+    }
+
+    private void meta(WebSocket conn, String id, String topic, String what, Object value) {
+        Map<String, Object> meta = new LinkedHashMap<>();
+        if (id != null) {
+            meta.put("id", id);
+        }
+        meta.put("topic", topic);
+        meta.put("ts", timestamp(System.currentTimeMillis()));
+        meta.put(what, value);
+        send(conn, Map.of("meta", meta));
+    }
+
+    private void ctrl(WebSocket conn, String id, String topic, int code, String text, Map<String, Object> params) {
+        Map<String, Object> ctrl = new LinkedHashMap<>();
+        if (id != null) {
+            ctrl.put("id", id);
+        }
+        if (topic != null) {
+            ctrl.put("topic", topic);
+        }
+        ctrl.put("code", code);
+        ctrl.put("text", text);
+        ctrl.put("ts", timestamp(System.currentTimeMillis()));
+        if (params != null) {
+            ctrl.put("params", params);
+        }
+        send(conn, Map.of("ctrl", ctrl));
+    }
+
+    private void send(WebSocket conn, Map<String, Object> packet) {
+        try {
+            sendRaw(conn, sJson.writeValueAsString(packet));
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void sendRaw(WebSocket conn, String text) {
+        Runnable task = () -> {
+            if (conn.isOpen()) {
+                conn.send(text);
+                mPackets.incrementAndGet();
+            }
+        };
+        if (mLatency > 0) {
+            mSender.schedule(task, mLatency, TimeUnit.MILLISECONDS);
+        } else {
+            mSender.execute(task);
+        }
+    }
+
+    private static Map<String, Object> acs() {
+        return Map.of("want", ACS_MODE, "given", ACS_MODE, "mode", ACS_MODE);
+    }
+
+    private static int intValue(Object value, int fallback) {
+        return value instanceof Number ? ((Number) value).intValue() : fallback;
+    }
+
+    private static String timestamp(long millis) {
+        return RFC3339Codec.format(new Date(millis));
+    }
+}
@@ -0,0 +1,153 @@
+package co.tinode.tinodesdk.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.tinode.tinodesdk.ServerResponseException;
+import co.tinode.tinodesdk.Tinode;
+import co.tinode.tinodesdk.model.MsgGetMeta;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.MsgServerInfo;
+import co.tinode.tinodesdk.model.MsgServerPres;
+import co.tinode.tinodesdk.model.ServerMessage;
+
+public class SimServerTest {
+    private static final int HISTORY = 10;
+
+    private SimServer mServer;
+    private Client mAlice;
+    private Client mBob;
+
+    // Tinode instance with received packets.
+    private static class Client {
+        final Tinode tinode = SimServer.configure(new Tinode("sim-test", "apikey"));
+        final BlockingQueue<MsgServerData> data = new LinkedBlockingQueue<>();
+        final BlockingQueue<MsgServerInfo> info = new LinkedBlockingQueue<>();
+        final BlockingQueue<MsgServerPres> pres = new LinkedBlockingQueue<>();
+
+        Client() {
+            tinode.addListener(new Tinode.EventListener() {
+                @Override
+                public void onDataMessage(MsgServerData msg) {
+                    data.add(msg);
+                }
+
+                @Override
+                public void onInfoMessage(MsgServerInfo msg) {
+                    info.add(msg);
+                }
+
+                @Override
+                public void onPresMessage(MsgServerPres msg) {
+                    pres.add(msg);
+                }
+            });
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // Two users, both members of both groups.
+        mServer = new SimServer(SimWorld.generate(2, 2, 2, HISTORY, 1), 5);
+        mServer.startAndWait();
+        mAlice = login(0);
+        mBob = login(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mAlice.tinode.maybeDisconnect(false);
+        mBob.tinode.maybeDisconnect(false);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testLogin() throws Exception {
+        SimWorld.Account account = mServer.world().account(0);
+        assertEquals(account.uid(), mAlice.tinode.getMyId());
+        assertEquals(account.token(), mAlice.tinode.getAuthToken());
+
+        Tinode byToken = new Tinode("sim-test", "apikey");
+        try {
+            byToken.connect(mServer.address(), false, false).getResult();
+            byToken.loginToken(account.token()).getResult();
+            assertEquals(account.uid(), byToken.getMyId());
+        } finally {
+            byToken.maybeDisconnect(false);
+        }
+
+        Tinode wrong = new Tinode("sim-test", "apikey");
+        try {
+            wrong.connect(mServer.address(), false, false).getResult();
+            wrong.loginBasic(account.login(), "wrong").getResult();
+            fail("Login with wrong password must fail");
+        } catch (ServerResponseException ex) {
+            assertEquals(401, ex.getCode());
+        } finally {
+            wrong.maybeDisconnect(false);
+        }
+    }
+
+    @Test
+    public void testHistory() throws Exception {
+        MsgGetMeta get = MsgGetMeta.data();
+        ServerMessage ctrl = mAlice.tinode.subscribe("grpSim0", null, get).getResult();
+        assertEquals(ServerMessage.STATUS_OK, ctrl.ctrl.code);
+        for (int seq = 1; seq <= HISTORY; seq++) {
+            MsgServerData msg = mAlice.data.poll(5, TimeUnit.SECONDS);
+            assertNotNull(msg);
+            assertEquals("grpSim0", msg.topic);
+            // Oldest first.
+            assertEquals(seq, msg.seq);
+        }
+    }
+
+    @Test
+    public void testPublishNotifications() throws Exception {
+        // Alice is on 'me' only: Bob's message results in a {pres}.
+        mAlice.tinode.subscribe("me", null, null).getResult();
+        mBob.tinode.subscribe("grpSim0", null, null).getResult();
+        ServerMessage reply = mBob.tinode.publish("grpSim0", "hello", null, null).getResult();
+        assertEquals(202, reply.ctrl.code);
+        assertEquals(HISTORY + 1, (int) reply.ctrl.getIntParam("seq", 0));
+        MsgServerPres pres = mAlice.pres.poll(5, TimeUnit.SECONDS);
+        assertNotNull(pres);
+        assertEquals("me", pres.topic);
+        assertEquals("grpSim0", pres.src);
+        assertEquals("msg", pres.what);
+        assertEquals(Integer.valueOf(HISTORY + 1), pres.seq);
+
+        // Alice joins the topic and gets {data}; her read notification reaches Bob as {info}.
+        mAlice.tinode.subscribe("grpSim0", null, null).getResult();
+        mBob.tinode.publish("grpSim0", "again", null, null).getResult();
+        MsgServerData data = mAlice.data.poll(5, TimeUnit.SECONDS);
+        assertNotNull(data);
+        assertEquals(HISTORY + 2, data.seq);
+        assertEquals(mBob.tinode.getMyId(), data.from);
+        // The publisher asked for no echo.
+        assertNull(mBob.data.poll(100, TimeUnit.MILLISECONDS));
+
+        mAlice.tinode.noteRead("grpSim0", data.seq);
+        MsgServerInfo info = mBob.info.poll(5, TimeUnit.SECONDS);
+        assertNotNull(info);
+        assertEquals("read", info.what);
+        assertEquals(mAlice.tinode.getMyId(), info.from);
+        assertEquals(Integer.valueOf(HISTORY + 2), info.seq);
+        assertEquals(HISTORY + 2, mServer.world().topic("grpSim0").read(mAlice.tinode.getMyId()));
+    }
+
+    private Client login(int index) throws Exception {
+        SimWorld.Account account = mServer.world().account(index);
+        Client client = new Client();
+        client.tinode.connect(mServer.address(), false, false).getResult();
+        client.tinode.loginBasic(account.login(), account.password()).getResult();
+        return client;
+    }
+}
@@ -0,0 +1,241 @@
+package co.tinode.tinodesdk.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Synthetic accounts, group topics and message history served by {@link SimServer}.
+ * All methods are thread-safe.
+ */
+public final class SimWorld {
+    /**
+     * User account. Login is "user{N}", password is "pass{N}".
+     */
+    public record Account(String uid, String login, String password, String token, String name) {}
+
+    /**
+     * Message stored in a topic.
+     */
+    public record Message(int seq, String from, long ts, Map<String, Object> head, Object content) {}
+
+    /**
+     * Group topic with members and message history.
+     */
+    public static final class Topic {
+        public final String name;
+        private final long mCreated;
+        private final List<String> mMembers = new ArrayList<>();
+        private final List<Message> mMessages = new ArrayList<>();
+        // Read and recv markers by member.
+        private final Map<String, int[]> mMarkers = new LinkedHashMap<>();
+
+        Topic(String name, long created) {
+            this.name = name;
+            mCreated = created;
+        }
+
+        public long created() {
+            return mCreated;
+        }
+
+        public synchronized List<String> members() {
+            return new ArrayList<>(mMembers);
+        }
+
+        public synchronized boolean isMember(String uid) {
+            return mMembers.contains(uid);
+        }
+
+        synchronized void addMember(String uid) {
+            if (!mMembers.contains(uid)) {
+                mMembers.add(uid);
+                mMarkers.put(uid, new int[2]);
+            }
+        }
+
+        /**
+         * Append message to the topic.
+         *
+         * @return stored message with assigned seq ID.
+         */
+        public synchronized Message append(String from, Map<String, Object> head, Object content) {
+            Message msg = new Message(mMessages.size() + 1, from, System.currentTimeMillis(), head, content);
+            mMessages.add(msg);
+            return msg;
+        }
+
+        public synchronized int seq() {
+            return mMessages.size();
+        }
+
+        /**
+         * Get messages with seq IDs in [since, before), newest first, at most limit messages.
+         */
+        public synchronized List<Message> messages(int since, int before, int limit) {
+            List<Message> result = new ArrayList<>();
+            int from = Math.min(before - 1, mMessages.size());
+            for (int seq = from; seq >= Math.max(1, since) && result.size() < limit; seq--) {
+                result.add(mMessages.get(seq - 1));
+            }
+            return result;
+        }
+
+        /**
+         * Update read or recv marker of a member.
+         *
+         * @return true if the marker was moved forward.
+         */
+        synchronized boolean mark(String uid, String what, int seq) {
+            int[] markers = mMarkers.get(uid);
+            int index = "read".equals(what) ? 0 : 1;
+            if (markers == null || seq <= markers[index] || seq > mMessages.size()) {
+                return false;
+            }
+            markers[index] = seq;
+            // Read implies received.
+            markers[1] = Math.max(markers[1], markers[0]);
+            return true;
+        }
+
+        public synchronized int read(String uid) {
+            int[] markers = mMarkers.get(uid);
+            return markers != null ? markers[0] : 0;
+        }
+
+        public synchronized int recv(String uid) {
+            int[] markers = mMarkers.get(uid);
+            return markers != null ? markers[1] : 0;
+        }
+    }
+
+    private final Map<String, Account> mAccountsByUid = new ConcurrentHashMap<>();
+    private final Map<String, Account> mAccountsByLogin = new ConcurrentHashMap<>();
+    private final Map<String, Account> mAccountsByToken = new ConcurrentHashMap<>();
+    private final Map<String, Topic> mTopics = new ConcurrentHashMap<>();
+    private final List<Account> mAccounts = Collections.synchronizedList(new ArrayList<>());
+    private final Random mRandom;
+
+    public SimWorld(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Generate synthetic world.
+     *
+     * @param users    number of accounts.
+     * @param groups   number of group topics.
+     * @param members  number of members in each group; the first account is a member of all groups.
+     * @param history  number of messages in each group.
+     * @param seed     seed of the random generator.
+     */
+    public static SimWorld generate(int users, int groups, int members, int history, long seed) {
+        SimWorld world = new SimWorld(seed);
+        for (int i = 0; i < users; i++) {
+            world.addAccount();
+        }
+        for (int i = 0; i < groups; i++) {
+            Topic topic = world.addTopic("grpSim" + i);
+            topic.addMember(world.mAccounts.get(0).uid);
+            while (topic.members().size() < Math.min(members, users)) {
+                topic.addMember(world.randomAccount().uid);
+            }
+            for (int j = 0; j < history; j++) {
+                topic.append(world.randomMember(topic), null, "Message " + (j + 1) + " in " + topic.name);
+            }
+        }
+        return world;
+    }
+
+    public Account addAccount() {
+        int n = mAccounts.size();
+        Account account = new Account(String.format("usrSim%04d", n), "user" + n, "pass" + n,
+                "token" + n + "-" + Long.toHexString(mRandom.nextLong()), "User " + n);
+        mAccounts.add(account);
+        mAccountsByUid.put(account.uid, account);
+        mAccountsByLogin.put(account.login, account);
+        mAccountsByToken.put(account.token, account);
+        return account;
+    }
+
+    public Topic addTopic(String name) {
+        Topic topic = new Topic(name, System.currentTimeMillis());
+        mTopics.put(name, topic);
+        return topic;
+    }
+
+    /**
+     * Create new group topic with the given owner.
+     */
+    public Topic newTopic(String owner) {
+        Topic topic;
+        synchronized (this) {
+            topic = addTopic("grpSim" + mTopics.size() + "x" + Integer.toHexString(mRandom.nextInt()));
+        }
+        topic.addMember(owner);
+        return topic;
+    }
+
+    public Account account(int index) {
+        return mAccounts.get(index);
+    }
+
+    public Account accountByUid(String uid) {
+        return mAccountsByUid.get(uid);
+    }
+
+    public Account accountByLogin(String login) {
+        return mAccountsByLogin.get(login);
+    }
+
+    public Account accountByToken(String token) {
+        return mAccountsByToken.get(token);
+    }
+
+    public Topic topic(String name) {
+        return mTopics.get(name);
+    }
+
+    public Collection<Topic> topics() {
+        return mTopics.values();
+    }
+
+    /**
+     * Get topics the user is a member of.
+     */
+    public List<Topic> topicsOf(String uid) {
+        List<Topic> result = new ArrayList<>();
+        for (Topic topic : mTopics.values()) {
+            if (topic.isMember(uid)) {
+                result.add(topic);
+            }
+        }
+        result.sort((a, b) -> a.name.compareTo(b.name));
+        return result;
+    }
+
+    synchronized Account randomAccount() {
+        return mAccounts.get(mRandom.nextInt(mAccounts.size()));
+    }
+
+    /**
+     * Get random member of the topic other than the excluded user, or any member if there is no other.
+     */
+    synchronized String randomMember(Topic topic, String exclude) {
+        List<String> members = topic.members();
+        members.remove(exclude);
+        if (members.isEmpty()) {
+            return exclude;
+        }
+        return members.get(mRandom.nextInt(members.size()));
+    }
+
+    synchronized String randomMember(Topic topic) {
+        return randomMember(topic, null);
+    }
+}